@@ -0,0 +1,107 @@
+package mobi.dzs.android.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import mobi.dzs.android.util.CaptureWriter;
+import mobi.dzs.android.util.MappedCaptureWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 捕获时写入线程(接收线程)的开销<br>
+ * 每次操作按size分块写入 {@link #TOTAL} 字节，测量的是调用write()的线程花费的时间：
+ * FileOutputStream每块一次系统调用，CaptureWriter只复制到缓冲(磁盘跟不上时丢弃)，
+ * MappedCaptureWriter复制到映射的文件(后台线程没来得及准备好下一段时丢弃)。
+ * 每次操作前后创建、关闭并删除文件，关闭的时间不计入，磁盘占用不随测试时间增长
+ *
+ * @author t
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CaptureBench {
+	/** 常量:每次操作写入的字节数 */
+	private static final int TOTAL = 16 * 1024 * 1024;
+
+	/** 每次写入的数据块大小 */
+	@Param({ "16", "256", "4096" })
+	public int size;
+
+	private byte[] mData;
+	private File mFile;
+	private FileOutputStream mStream;
+	private CaptureWriter mWriter;
+	private MappedCaptureWriter mMapped;
+
+	@Setup
+	public void setup() throws IOException {
+		mData = new byte[size];
+		new Random(size).nextBytes(mData);
+		mFile = File.createTempFile("capbench", ".bin");
+	}
+
+	@Setup(Level.Invocation)
+	public void open() throws IOException {
+		mFile.delete();
+		mStream = new FileOutputStream(mFile);
+		mWriter = new CaptureWriter(new File(mFile.getPath() + ".cw"));
+		mMapped = new MappedCaptureWriter(mFile);
+	}
+
+	@TearDown(Level.Invocation)
+	public void close() throws IOException {
+		File segment;
+
+		mStream.close();
+		mWriter.close();
+		mMapped.close();
+		mWriter.getFile().delete();
+		for (int i = 0; (segment = MappedCaptureWriter.segmentFile(mFile, i)).exists(); i++)
+			segment.delete();
+	}
+
+	@TearDown
+	public void tearDown() {
+		mFile.delete();
+	}
+
+	@Benchmark
+	public long fileOutputStream() throws IOException {
+		for (int n = 0; n < TOTAL; n += size)
+			mStream.write(mData, 0, size);
+		return mFile.length();
+	}
+
+	@Benchmark
+	public long captureWriter() {
+		for (int n = 0; n < TOTAL; n += size)
+			mWriter.write(mData, 0, size);
+		return mWriter.getDroppedBytes();
+	}
+
+	@Benchmark
+	public long mappedCaptureWriter() {
+		for (int n = 0; n < TOTAL; n += size)
+			mMapped.write(mData, 0, size);
+		return mMapped.getWrittenBytes();
+	}
+}
@@ -0,0 +1,63 @@
+package mobi.dzs.android.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import mobi.dzs.android.util.Crc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Crc各算法的吞吐量，以java.util.zip.CRC32(JNI，桌面JVM上有硬件加速)作参照
+ *
+ * @author t
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CrcBench {
+	/** 数据长度 */
+	@Param({ "16", "256", "4096" })
+	public int size;
+
+	/** CRC的种类 */
+	@Param({ "CRC8", "CRC16_CCITT", "CRC16_MODBUS", "CRC32" })
+	public String type;
+
+	private Crc mCrc;
+	private byte[] mData;
+	private final CRC32 mZip = new CRC32();
+
+	@Setup
+	public void setup() {
+		mCrc = Crc.valueOf(type);
+		mData = new byte[size];
+		new Random(size).nextBytes(mData);
+	}
+
+	@Benchmark
+	public int compute() {
+		return mCrc.compute(mData, 0, size);
+	}
+
+	@Benchmark
+	public long zipCrc32() {
+		mZip.reset();
+		mZip.update(mData, 0, size);
+		return mZip.getValue();
+	}
+}
@@ -0,0 +1,127 @@
+package mobi.dzs.android.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import mobi.dzs.android.util.Crc;
+import mobi.dzs.android.util.FrameDecoder;
+import mobi.dzs.android.util.RingByteBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FrameDecoder从RingByteBuffer中解帧的吞吐量<br>
+ * 每次操作写入一帧编码后的数据并用decode取出，帧内容为随机数据(SLIP/COBS的特殊字节按随机出现)。
+ * 校验时帧内容的最后4字节为CRC-32，ring为在缓冲中校验(SLIP/COBS不支持，与copy相同)，copy为解码后校验
+ *
+ * @author t
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBench {
+	/** 常量:缓冲大小 */
+	private static final int BUF_SIZE = 16 * 1024;
+
+	/** 帧内容的长度 */
+	@Param({ "16", "256", "4096" })
+	public int frameSize;
+
+	/** 帧格式 */
+	@Param({ "length", "slip", "cobs" })
+	public String format;
+
+	/** 帧校验 */
+	@Param({ "none", "ring", "copy" })
+	public String check;
+
+	private RingByteBuffer mBuf;
+	private FrameDecoder mDecoder;
+	private byte[] mEncoded;
+	private byte[] mDst;
+
+	@Setup
+	public void setup() {
+		byte[] frame = new byte[frameSize];
+
+		new Random(frameSize).nextBytes(frame);
+		if (!"none".equals(check))
+			Crc.CRC32.put(Crc.CRC32.compute(frame, 0, frameSize - 4), frame, frameSize - 4, false);
+		if ("slip".equals(format)) {
+			mDecoder = new FrameDecoder.Slip(frameSize);
+			mEncoded = slip(frame);
+		} else if ("cobs".equals(format)) {
+			mDecoder = new FrameDecoder.Cobs(frameSize);
+			mEncoded = cobs(frame);
+		} else {
+			mDecoder = new FrameDecoder.LengthPrefix(2, true, frameSize);
+			mEncoded = new byte[frameSize + 2];
+			mEncoded[0] = (byte) (frameSize >> 8);
+			mEncoded[1] = (byte) frameSize;
+			System.arraycopy(frame, 0, mEncoded, 2, frameSize);
+		}
+		if (!"none".equals(check))
+			mDecoder.setCheck(Crc.CRC32, false, "ring".equals(check));
+		mBuf = new RingByteBuffer(BUF_SIZE);
+		mDst = new byte[frameSize];
+	}
+
+	@Benchmark
+	public int decode() {
+		mBuf.write(mEncoded, 0, mEncoded.length);
+		return mDecoder.decode(mBuf, mDst, 0);
+	}
+
+	private static byte[] slip(byte[] frame) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		for (byte b : frame) {
+			if (b == FrameDecoder.Slip.END) {
+				out.write(FrameDecoder.Slip.ESC);
+				out.write(FrameDecoder.Slip.ESC_END);
+			} else if (b == FrameDecoder.Slip.ESC) {
+				out.write(FrameDecoder.Slip.ESC);
+				out.write(FrameDecoder.Slip.ESC_ESC);
+			} else {
+				out.write(b);
+			}
+		}
+		out.write(FrameDecoder.Slip.END);
+		return out.toByteArray();
+	}
+
+	private static byte[] cobs(byte[] frame) {
+		byte[] out = new byte[frame.length + frame.length / 254 + 2];
+		int code = 1, codeIdx = 0, w = 1;
+
+		for (byte b : frame) {
+			if (b != 0) {
+				out[w++] = b;
+				code++;
+			}
+			if (b == 0 || code == 0xFF) {
+				out[codeIdx] = (byte) code;
+				code = 1;
+				codeIdx = w++;
+			}
+		}
+		out[codeIdx] = (byte) code;
+		out[w++] = 0;
+		return Arrays.copyOf(out, w);
+	}
+}
@@ -0,0 +1,69 @@
+package mobi.dzs.android.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import mobi.dzs.android.util.CHexConver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CHexConver十六进制编码/解码的吞吐量
+ *
+ * @author t
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexConverBench {
+	/** 原始数据的字节数 */
+	@Param({ "16", "256", "4096" })
+	public int size;
+
+	private byte[] mBytes;
+	private String mHex;
+	private byte[] mDst;
+	private final StringBuilder mOut = new StringBuilder();
+
+	@Setup
+	public void setup() {
+		mBytes = new byte[size];
+		new Random(size).nextBytes(mBytes);
+		mHex = CHexConver.bytesToHex(mBytes);
+		mDst = new byte[size];
+	}
+
+	@Benchmark
+	public String bytesToHex() {
+		return CHexConver.bytesToHex(mBytes);
+	}
+
+	@Benchmark
+	public byte[] hexToBytes() {
+		return CHexConver.hexToBytes(mHex);
+	}
+
+	@Benchmark
+	public int appendHex() {
+		mOut.setLength(0);
+		return CHexConver.appendHex(mBytes, 0, size, mOut);
+	}
+
+	@Benchmark
+	public int hexToBytesInto() {
+		return CHexConver.hexToBytes(mHex, mDst, 0);
+	}
+}
@@ -0,0 +1,100 @@
+package mobi.dzs.android.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import mobi.dzs.android.util.RingByteBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RingByteBuffer按行读出的吞吐量<br>
+ * 每次操作写入一行lineLength字节(含分隔符)的数据并用readline取出。
+ * 分隔符多于一个字节时，行内容中夹杂分隔符的首字节，使分隔符搜索会出现部分匹配后回退的情况。
+ * mixed为true时，readline同时接受 "\r\n"、"\n"、"\r" 三个分隔符(行内容中不再夹杂分隔符的首字节)，
+ * 用于比较多个分隔符与单个分隔符的搜索速度。
+ *
+ * @author t
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadlineBench {
+	/** 常量:缓冲大小 */
+	private static final int BUF_SIZE = 8 * 1024;
+
+	/** 每行的长度(含分隔符) */
+	@Param({ "16", "256", "4096" })
+	public int lineLength;
+
+	/** 分隔符长度 */
+	@Param({ "1", "2", "8" })
+	public int sepLength;
+
+	/** 是否同时使用 "\r\n"、"\n"、"\r" 三个分隔符 */
+	@Param({ "false", "true" })
+	public boolean mixed;
+
+	private RingByteBuffer mBuf;
+	private byte[] mLine;
+	private byte[] mDst;
+
+	@Setup
+	public void setup() {
+		byte[] sep;
+
+		switch (sepLength) {
+		case 1:
+			sep = "\n".getBytes();
+			break;
+		case 2:
+			sep = "\r\n".getBytes();
+			break;
+		default:
+			sep = Arrays.copyOf("--END--\n".getBytes(), sepLength);
+			break;
+		}
+
+		mBuf = new RingByteBuffer(BUF_SIZE);
+		if (mixed)
+			mBuf.setSeparators(new byte[][] { "\r\n".getBytes(), "\n".getBytes(), "\r".getBytes() });
+		else
+			mBuf.setSeparator(sep);
+		mLine = new byte[lineLength];
+		mDst = new byte[lineLength];
+		for (int i = 0; i < mLine.length - sep.length; i++)
+			mLine[i] = (!mixed && sep.length > 1 && i % 7 == 6) ? sep[0] : (byte) ('a' + i % 26);
+		System.arraycopy(sep, 0, mLine, mLine.length - sep.length, sep.length);
+	}
+
+	/**
+	 * 按行读到调用者提供的数组，不分配内存
+	 */
+	@Benchmark
+	public int readlineInto() {
+		mBuf.write(mLine, 0, mLine.length);
+		return mBuf.readline(mDst, 0);
+	}
+
+	/**
+	 * 用readline()按行读出，每行分配新的数组
+	 */
+	@Benchmark
+	public byte[] readlineAlloc() {
+		mBuf.write(mLine, 0, mLine.length);
+		return mBuf.readline();
+	}
+}
@@ -0,0 +1,104 @@
+package mobi.dzs.android.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import mobi.dzs.android.bluetooth.BtSppClient;
+import mobi.dzs.android.bluetooth.LoopbackTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 端到端的接收吞吐量<br>
+ * BtSppClient连接到LoopbackTransport，测试代码从另一端写入一块数据，
+ * 经过接收线程、接收缓存后由recv()全部取回，吞吐量(Byte/s) = ops/s * chunkSize
+ *
+ * @author t
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecvPipelineBench {
+	/** 常量:接收缓存自动扩容的上限 */
+	private static final int RECV_BUF_MAX_SIZE = 256 * 1024;
+
+	/** 每次写入的数据块大小，每块以'\n'结尾 */
+	@Param({ "64", "1024", "16384" })
+	public int chunkSize;
+
+	private BtSppClient mClient;
+	private LoopbackTransport mDevice;
+	private OutputStream mDevOut;
+	private byte[] mChunk;
+	private byte[] mDst;
+
+	@Setup
+	public void setup() throws IOException {
+		LoopbackTransport transport = new LoopbackTransport(LoopbackTransport.DEFAULT_PIPE_SIZE, false);
+
+		mClient = new BtSppClient(transport);
+		mClient.setRecvBufAutoGrow(RECV_BUF_MAX_SIZE); // 与应用中的设置相同，整行都能放入接收缓存
+		mClient.setRecvStopFlg("\n");
+		if (!mClient.createConn())
+			throw new IOException("loopback connect failed");
+		mDevice = transport.getPeer();
+		mDevice.connect();
+		mDevOut = mDevice.getOutputStream();
+
+		mChunk = new byte[chunkSize];
+		mDst = new byte[chunkSize];
+		for (int i = 0; i < mChunk.length - 1; i++)
+			mChunk[i] = (byte) ('a' + i % 26);
+		mChunk[mChunk.length - 1] = '\n';
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		mClient.closeConn();
+		mDevice.close();
+	}
+
+	/**
+	 * recv(byte[], int, int, long)取回数据，不分配内存
+	 */
+	@Benchmark
+	public int recvInto() throws IOException {
+		int got = 0, n;
+
+		mDevOut.write(mChunk);
+		while (got < mChunk.length) {
+			if ((n = mClient.recv(mDst, got, mDst.length - got, -1)) < 0)
+				throw new IOException("connection lost");
+			got += n;
+		}
+		return got;
+	}
+
+	/**
+	 * recvStopFlg(long)按行取回并转换为String
+	 */
+	@Benchmark
+	public String recvLine() throws IOException {
+		String line;
+
+		mDevOut.write(mChunk);
+		if (null == (line = mClient.recvStopFlg(-1)))
+			throw new IOException("connection lost");
+		return line;
+	}
+}
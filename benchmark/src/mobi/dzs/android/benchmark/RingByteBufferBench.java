@@ -0,0 +1,80 @@
+package mobi.dzs.android.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import mobi.dzs.android.util.RingByteBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RingByteBuffer写入/读出的吞吐量<br>
+ * 每次操作写入一块chunkSize字节的数据并全部读出，吞吐量(Byte/s) = ops/s * chunkSize
+ *
+ * @author t
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RingByteBufferBench {
+	/** 常量:缓冲大小 */
+	private static final int BUF_SIZE = 8 * 1024;
+
+	/** 每次写入的数据块大小 */
+	@Param({ "16", "256", "4096" })
+	public int chunkSize;
+
+	/** 是否使用2的幂容量及掩码下标 */
+	@Param({ "false", "true" })
+	public boolean powerOfTwo;
+
+	/** 是否使用lock-free模式 */
+	@Param({ "false", "true" })
+	public boolean lockFree;
+
+	private RingByteBuffer mBuf;
+	private byte[] mChunk;
+	private byte[] mDst;
+
+	@Setup
+	public void setup() {
+		mBuf = new RingByteBuffer(BUF_SIZE, powerOfTwo, lockFree);
+		mChunk = new byte[chunkSize];
+		mDst = new byte[chunkSize];
+		for (int i = 0; i < mChunk.length; i++)
+			mChunk[i] = (byte) i;
+		// 头尾指示器错开，使读写都会经过数组末尾的回绕
+		mBuf.write(new byte[BUF_SIZE / 3]);
+		mBuf.read(new byte[BUF_SIZE / 3], 0, BUF_SIZE / 3);
+	}
+
+	/**
+	 * 写入后读到调用者提供的数组，不分配内存
+	 */
+	@Benchmark
+	public int writeReadInto() {
+		mBuf.write(mChunk, 0, mChunk.length);
+		return mBuf.read(mDst, 0, mDst.length);
+	}
+
+	/**
+	 * 写入后用read()读出，每次分配新的数组
+	 */
+	@Benchmark
+	public byte[] writeReadAlloc() {
+		mBuf.write(mChunk, 0, mChunk.length);
+		return mBuf.read();
+	}
+}
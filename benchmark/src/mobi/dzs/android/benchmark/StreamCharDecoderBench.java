@@ -0,0 +1,70 @@
+package mobi.dzs.android.benchmark;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import mobi.dzs.android.util.StreamCharDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * StreamCharDecoder把中英文混合的数据解码到重复使用的StringBuilder，以每次new String()作参照
+ *
+ * @author t
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamCharDecoderBench {
+	/** 数据块的字节数 */
+	@Param({ "16", "256", "4096" })
+	public int size;
+
+	/** 字符集 */
+	@Param({ "UTF-8", "GBK" })
+	public String charset;
+
+	private byte[] mBytes;
+	private StreamCharDecoder mDecoder;
+	private final StringBuilder mOut = new StringBuilder();
+
+	@Setup
+	public void setup() throws UnsupportedEncodingException {
+		StringBuilder sb = new StringBuilder();
+		Random rnd = new Random(size);
+		byte[] all;
+
+		// 约一半为汉字，数据块的边界会落在多字节字符中间
+		while (sb.length() < size)
+			sb.append(rnd.nextBoolean() ? (char) ('a' + rnd.nextInt(26)) : (char) (0x4E00 + rnd.nextInt(0x5000)));
+		all = sb.toString().getBytes(charset);
+		mBytes = new byte[size];
+		System.arraycopy(all, 0, mBytes, 0, size);
+		mDecoder = new StreamCharDecoder(charset);
+	}
+
+	@Benchmark
+	public int decode() {
+		mOut.setLength(0);
+		return mDecoder.decode(mBytes, 0, size, mOut);
+	}
+
+	@Benchmark
+	public String newString() throws UnsupportedEncodingException {
+		return new String(mBytes, 0, size, charset);
+	}
+}
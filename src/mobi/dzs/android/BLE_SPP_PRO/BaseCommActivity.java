@@ -1,22 +1,32 @@
 package mobi.dzs.android.BLE_SPP_PRO;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Date;
+import java.util.Locale;
 
 import mobi.dzs.android.bluetooth.BtSppClient;
+import mobi.dzs.android.bluetooth.BtSppComm.OnReceiveListener;
+import mobi.dzs.android.bluetooth.BtSppComm.TrafficStats;
 import mobi.dzs.android.bluetooth.BtSppClient.BtIOMode;
 import mobi.dzs.android.util.PreferencesStorage;
+import mobi.dzs.android.util.TextLog;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.AutoCompleteTextView;
+import android.widget.ListView;
 import android.widget.RadioButton;
 import android.widget.TextView;
+import android.widget.Toast;
 
 public class BaseCommActivity extends BaseActivity
 {
@@ -34,6 +44,8 @@ public class BaseCommActivity extends BaseActivity
 	protected final static String KEY_IO_MODE = "key_io_mode";
 	/**常量:结束符字符集*/
 	protected final static String[] msEND_FLGS = {"\r\n", "\n"};
+	/**常量:接收时通用的行结束符(\r\n、\n、\r任意一个都结束一行)*/
+	protected final static String[] msLINE_END_FLGS = {"\r\n", "\n", "\r"};
 	
 	/**常量:历史发送命令字符串分隔符(将命令历史保存到字符串中，使用这个分隔符进行数组切割)*/
 	protected static final String HISTORY_SPLIT = "&#&";
@@ -42,15 +54,27 @@ public class BaseCommActivity extends BaseActivity
 	/**输入自动完成列表*/
 	protected ArrayList<String> malCmdHistory = new ArrayList<String>();
 	
-	/**线程终止标志(用于终止监听线程)*/
-	protected boolean mbThreadStop = false;
-	
 	/**控件:发送数据量*/
 	private TextView mtvTxdCount = null;
 	/**控件:接收数据量*/
 	private TextView mtvRxdCount = null;
 	/**控件:连接保持时间*/
 	private TextView mtvHoleRun = null;
+	/**常量:数据统计状态条的刷新间隔(ms)*/
+	private static final long DATA_COUNT_REFRESH_INTERVAL = 1000;
+	/**对象:定时刷新数据统计状态条，速率在没有收发时也能回落*/
+	private final Handler mDataCountHandler = new Handler();
+	/**对象:刷新数据统计状态条的任务*/
+	private final Runnable mDataCountRefresher = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			refreshTxdCount();
+			refreshRxdCount();
+			mDataCountHandler.postDelayed(this, DATA_COUNT_REFRESH_INTERVAL);
+		}
+	};
 	
 	/** 输入模式 */
 	protected BtIOMode mbtInputMode = BtIOMode.STR;
@@ -61,13 +85,12 @@ public class BaseCommActivity extends BaseActivity
 	protected BtSppClient mBSC = null;
 	/**对象:引用全局的动态存储对象*/
 	protected PreferencesStorage mDS = null;
-	
-	/**未设限制的AsyncTask线程池(重要)*/
-	protected static ExecutorService FULL_TASK_EXECUTOR;
-	static
-	{
-		FULL_TASK_EXECUTOR = (ExecutorService) Executors.newCachedThreadPool();
-	};
+	/**对象:本页面注册的数据接收监听器*/
+	private OnReceiveListener mRecvListener = null;
+	/**对象:数据接收区，由initReceiveLog()创建*/
+	protected ReceiveLogAdapter mReceiveLog = null;
+	/**对象:接收线程收到的数据经它合并，每个显示帧追加一次到接收区，由initReceiveLog()创建*/
+	protected UiDispatcher mRecvDispatcher = null;
 	
 	/**
 	 * 页面构造
@@ -85,6 +108,120 @@ public class BaseCommActivity extends BaseActivity
 		}
 	}
 	
+	/**
+	 * 页面析构，停止本页面的数据接收
+	 * */
+	@Override
+	protected void onDestroy()
+	{
+		this.mDataCountHandler.removeCallbacks(this.mDataCountRefresher);
+		this.stopReceive();
+		if (null != this.mRecvDispatcher)
+			this.mRecvDispatcher.stop();
+		if (null != this.mReceiveLog)
+			this.mReceiveLog.close(); //仍保留的内容写入归档后关闭文件
+		super.onDestroy();
+	}
+	
+	/**
+	 * 页面进入后台，把归档缓冲中的数据写入文件
+	 * */
+	@Override
+	protected void onPause()
+	{
+		if (null != this.mReceiveLog)
+			this.mReceiveLog.getLog().flushArchive();
+		super.onPause();
+	}
+	
+	/**
+	 * 生成SD卡上保存数据用的文件名: sdcard/应用名/前缀MMddHHmmss后缀
+	 * @param sPrefix 文件名前缀
+	 * @param sSuffix 文件名后缀(含扩展名)
+	 * @return File SD卡不可用时返回null
+	 * */
+	protected File newSdFile(String sPrefix, String sSuffix)
+	{
+		if (!Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED))
+			return null;
+		return new File(new File(Environment.getExternalStorageDirectory(), this.getString(R.string.app_name)),
+				sPrefix + (new SimpleDateFormat("MMddHHmmss", Locale.getDefault())).format(new Date()) + sSuffix);
+	}
+	
+	/**
+	 * 创建数据接收区<br/>
+	 * 按设置保留最近的若干行，超出的最早的行从列表中移除；设置了归档时写入 sdcard/应用名/recv_MMddHHmmss.log<br/>
+	 * 同时创建mRecvDispatcher，接收线程用它提交数据，每帧追加一次并刷新接收统计值
+	 * @param lv 显示接收数据的列表
+	 * @return ReceiveLogAdapter 同时保存在mReceiveLog中
+	 * @see BtSppApp#getRecvLogMaxLines()
+	 * */
+	protected ReceiveLogAdapter initReceiveLog(ListView lv)
+	{
+		BtSppApp app = (BtSppApp) this.getApplicationContext();
+		TextLog log = new TextLog(app.getRecvLogMaxLines(), TextLog.DEFAULT_MAX_LINE_CHARS);
+		
+		if (app.isRecvLogArchive())
+		{
+			File file = this.newSdFile("recv_", ".log");
+			if (null == file)
+				Toast.makeText(this, getString(R.string.recv_log_archive_fail), Toast.LENGTH_SHORT).show();
+			else //在归档线程中打开文件，失败时转到UI线程提示
+				log.openArchive(file, new TextLog.OnArchiveFailListener()
+				{
+					@Override
+					public void onArchiveFail(File file, IOException e)
+					{
+						runOnUiThread(new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								Toast.makeText(BaseCommActivity.this,
+									getString(R.string.recv_log_archive_fail), Toast.LENGTH_SHORT).show();
+							}
+						});
+					}
+				});
+		}
+		this.mReceiveLog = new ReceiveLogAdapter(lv, log);
+		this.mRecvDispatcher = new UiDispatcher(new UiDispatcher.OnFlushListener()
+		{
+			@Override
+			public void onFlush(CharSequence data)
+			{
+				if (data.length() > 0)
+					mReceiveLog.append(data); //显示区中追加这一帧内收到的数据
+				refreshRxdCount(); //刷新接收数据统计值
+			}
+		});
+		return this.mReceiveLog;
+	}
+	
+	/**
+	 * 开始接收数据(推送方式)<br/>
+	 * 数据到达时由接收线程回调listener，不需要轮询
+	 * @param listener 监听器，在接收线程中回调，更新界面时需转到UI线程
+	 * @param bSplitLines 是否按结束符分行回调onLine
+	 * @return void
+	 * */
+	protected void startReceive(OnReceiveListener listener, boolean bSplitLines)
+	{
+		this.mRecvListener = listener;
+		this.mBSC.setOnReceiveListener(listener, bSplitLines);
+	}
+	
+	/**
+	 * 停止接收数据，只取消本页面注册的监听器
+	 * @return void
+	 * */
+	protected void stopReceive()
+	{
+		if (null != this.mRecvListener && null != this.mBSC)
+			this.mBSC.removeOnReceiveListener(this.mRecvListener);
+		this.mRecvListener = null;
+	}
+	
 	/**
 	 * 启用数据统计状态条
 	 * @return void
@@ -101,6 +238,40 @@ public class BaseCommActivity extends BaseActivity
 		this.mtvHoleRun = (TextView)this.findViewById(R.id.tv_connect_hold_time);
 		this.refreshTxdCount();
 		this.refreshRxdCount();
+		/*长按统计条显示详细的统计值*/
+		View.OnLongClickListener showStats = new View.OnLongClickListener()
+		{
+			@Override
+			public boolean onLongClick(View v)
+			{
+				showTrafficStats();
+				return true;
+			}
+		};
+		this.mtvTxdCount.setOnLongClickListener(showStats);
+		this.mtvRxdCount.setOnLongClickListener(showStats);
+		this.mtvHoleRun.setOnLongClickListener(showStats);
+		this.mDataCountHandler.removeCallbacks(this.mDataCountRefresher);
+		this.mDataCountHandler.postDelayed(this.mDataCountRefresher, DATA_COUNT_REFRESH_INTERVAL);
+	}
+	
+    /**
+     * 显示详细的收发统计值(各窗口的速率、峰值、接收缓存最高水位)
+     * @return void
+     * */
+	protected void showTrafficStats()
+	{
+		TrafficStats ts = this.mBSC.getTrafficStats();
+		Toast.makeText(this,
+			getString(R.string.templet_traffic_stats,
+				ts.rxdBytes, ts.rxdFrames,
+				ts.getRxdRate(TrafficStats.WINDOW_1S), ts.getRxdRate(TrafficStats.WINDOW_10S),
+				ts.getRxdRate(TrafficStats.WINDOW_60S), ts.rxdPeakRate,
+				ts.txdBytes, ts.txdFrames,
+				ts.getTxdRate(TrafficStats.WINDOW_1S), ts.getTxdRate(TrafficStats.WINDOW_10S),
+				ts.getTxdRate(TrafficStats.WINDOW_60S), ts.txdPeakRate,
+				ts.recvBufSize, ts.recvBufHighWater),
+			Toast.LENGTH_LONG).show();
 	}
 	
     /**
@@ -111,13 +282,11 @@ public class BaseCommActivity extends BaseActivity
      * */
 	protected void refreshTxdCount()
     {
-		long lTmp = 0;
 		if (null != this.mtvTxdCount)
 		{
-			lTmp = this.mBSC.getTxdCount();
-	    	this.mtvTxdCount.setText(String.format(getString(R.string.templet_txd, lTmp)));
-	    	lTmp = this.mBSC.getConnectHoldTime();
-	    	this.mtvHoleRun.setText(String.format(getString(R.string.templet_hold_time, lTmp)));
+	    	this.mtvTxdCount.setText(getString(R.string.templet_txd_rate,
+	    		this.mBSC.getTxdCount(), this.mBSC.getTxdRate()));
+	    	this.mtvHoleRun.setText(getString(R.string.templet_hold_time, this.mBSC.getConnectHoldTime()));
 		}
     }
 	
@@ -128,13 +297,11 @@ public class BaseCommActivity extends BaseActivity
      * */
 	protected void refreshRxdCount()
     {
-		long lTmp = 0;
 		if (null != this.mtvRxdCount)
 		{
-			lTmp = this.mBSC.getRxdCount();
-	    	this.mtvRxdCount.setText(String.format(getString(R.string.templet_rxd, lTmp)));
-	    	lTmp = this.mBSC.getConnectHoldTime();
-	    	this.mtvHoleRun.setText(String.format(getString(R.string.templet_hold_time, lTmp)));
+	    	this.mtvRxdCount.setText(getString(R.string.templet_rxd_rate,
+	    		this.mBSC.getRxdCount(), this.mBSC.getRxdRate()));
+	    	this.mtvHoleRun.setText(getString(R.string.templet_hold_time, this.mBSC.getConnectHoldTime()));
 		}
     }
 	
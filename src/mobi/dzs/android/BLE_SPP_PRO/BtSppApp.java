@@ -2,6 +2,7 @@ package mobi.dzs.android.BLE_SPP_PRO;
 
 import mobi.dzs.android.bluetooth.BtSppClient;
 import mobi.dzs.android.util.PreferencesStorage;
+import mobi.dzs.android.util.TextLog;
 import android.app.Application;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
@@ -16,7 +17,11 @@ public class BtSppApp extends Application {
 
 	public static final String BT_DEV_NAME = "bluetooth_device_name";
 	public static final String BT_DEV_MAC = "bluetooth_device_mac";
+	public static final String RECV_LOG_MAX_LINES = "recv_log_max_lines";
+	public static final String RECV_LOG_ARCHIVE = "recv_log_archive";
 	private SharedPreferences mBtDevPrefs = null;
+	/** 常量:接收缓存自动扩容的上限，突发数据较多时不阻塞接收线程 */
+	private static final int RECV_BUF_MAX_SIZE = 256 * 1024;
 
 	/**
 	 * 覆盖构造
@@ -40,6 +45,7 @@ public class BtSppApp extends Application {
 			return true;
 
 		mBtSppCli = new BtSppClient(mac);
+		mBtSppCli.setRecvBufAutoGrow(RECV_BUF_MAX_SIZE);
 		if (!mBtSppCli.createConn()) {
 			mBtSppCli = null;
 			return false;
@@ -112,4 +118,27 @@ public class BtSppApp extends Application {
 	public String getSavedBtDevMac() {
 		return mBtDevPrefs.getString(BT_DEV_MAC, "");
 	}
+
+	/**
+	 * 获取接收区保留的行数
+	 * @return 行数，未设置或无效时为 {@link TextLog#DEFAULT_MAX_LINES}
+	 * @see #isRecvLogArchive()
+	 */
+	public int getRecvLogMaxLines() {
+		try {
+			return Integer.parseInt(mBtDevPrefs.getString(RECV_LOG_MAX_LINES,
+					String.valueOf(TextLog.DEFAULT_MAX_LINES)));
+		} catch (NumberFormatException e) {
+			return TextLog.DEFAULT_MAX_LINES;
+		}
+	}
+
+	/**
+	 * 接收区移除的旧数据是否归档到文件
+	 * @return true:归档 / false:丢弃
+	 * @see #getRecvLogMaxLines()
+	 */
+	public boolean isRecvLogArchive() {
+		return mBtDevPrefs.getBoolean(RECV_LOG_ARCHIVE, false);
+	}
 }
@@ -0,0 +1,137 @@
+package mobi.dzs.android.BLE_SPP_PRO;
+
+import mobi.dzs.android.util.TextLog;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+/**
+ * 数据接收区：以ListView显示 {@link TextLog} 中保留的行
+ *
+ * <p>
+ * 取代ScrollView中的TextView.append()：每次追加只通知列表刷新，ListView只布局屏幕上可见的几行，并重复使用行的View，
+ * 追加的耗时与已显示的数据量无关；保留的行数有上限，长时间运行内存也不会增长。
+ * ListView使用transcriptMode="normal"，停留在最后一行时自动卷屏，向上翻看时不会被拉回底部。
+ * 只在UI线程中使用。
+ *
+ * @author t
+ */
+public class ReceiveLogAdapter extends BaseAdapter
+{
+	/**对象:行View的生成器*/
+	private final LayoutInflater mInflater;
+	/**对象:保留的文本*/
+	private final TextLog mLog;
+
+	/**
+	 * 构造函数，同时设置为listView的数据源
+	 * @param listView 显示的列表
+	 * @param log 保留的文本
+	 */
+	public ReceiveLogAdapter(ListView listView, TextLog log)
+	{
+		this.mInflater = LayoutInflater.from(listView.getContext());
+		this.mLog = log;
+		listView.setAdapter(this);
+	}
+
+	/**
+	 * 获取保留的文本
+	 * @return TextLog
+	 */
+	public TextLog getLog()
+	{
+		return this.mLog;
+	}
+
+	/**
+	 * 追加文本并刷新列表
+	 * @param s 文本，'\n'换行
+	 * @return void
+	 */
+	public void append(CharSequence s)
+	{
+		this.mLog.append(s);
+		this.notifyDataSetChanged();
+	}
+
+	/**
+	 * 清除后显示新的文本
+	 * @param s 文本
+	 * @return void
+	 */
+	public void setText(CharSequence s)
+	{
+		this.mLog.clear();
+		this.append(s);
+	}
+
+	/**
+	 * 清除全部内容(设置了归档时写入归档文件)
+	 * @return void
+	 */
+	public void clear()
+	{
+		this.mLog.clear();
+		this.notifyDataSetChanged();
+	}
+
+	/**
+	 * 获取保留的字符数
+	 * @return 字符数
+	 */
+	public long length()
+	{
+		return this.mLog.length();
+	}
+
+	/**
+	 * 获取保留的全部内容，用于保存到文件
+	 * @return String
+	 */
+	public String getText()
+	{
+		return this.mLog.getText();
+	}
+
+	/**
+	 * 结束使用：仍保留的行写入归档后关闭归档文件
+	 * @return void
+	 */
+	public void close()
+	{
+		this.mLog.close();
+	}
+
+	@Override
+	public int getCount()
+	{
+		return this.mLog.getLineCount();
+	}
+
+	@Override
+	public Object getItem(int position)
+	{
+		return this.mLog.getLine(position);
+	}
+
+	@Override
+	public long getItemId(int position)
+	{
+		return position;
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent)
+	{
+		TextView tv = (TextView) convertView;
+
+		if (null == tv)
+			tv = (TextView) this.mInflater.inflate(R.layout.list_item_receive_log, parent, false);
+		tv.setText(this.mLog.getLine(position));
+		return tv;
+	}
+}
@@ -2,6 +2,7 @@ package mobi.dzs.android.BLE_SPP_PRO;
 
 import android.os.Bundle;
 import android.preference.EditTextPreference;
+import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.text.TextUtils;
@@ -16,6 +17,7 @@ public class Settings extends PreferenceActivity implements Preference.OnPrefere
 		
 		findPreference(BtSppApp.BT_DEV_NAME).setOnPreferenceChangeListener(this);
 		findPreference(BtSppApp.BT_DEV_MAC).setOnPreferenceChangeListener(this);
+		findPreference(BtSppApp.RECV_LOG_MAX_LINES).setOnPreferenceChangeListener(this);
 		
 		updateUi();
 	}
@@ -35,6 +37,9 @@ public class Settings extends PreferenceActivity implements Preference.OnPrefere
 		//preference.setText(settingValue);
 		preference.setSummary(TextUtils.isEmpty(settingValue) ?
 				getString(R.string.bt_dev_mac_summ) : settingValue);
+
+		ListPreference listPreference = (ListPreference) findPreference(BtSppApp.RECV_LOG_MAX_LINES);
+		listPreference.setSummary(listPreference.getEntry());
 	}
 
 	@Override
@@ -55,6 +60,12 @@ public class Settings extends PreferenceActivity implements Preference.OnPrefere
 					: (String) newValue;
 			preference.setSummary(summary);
 			return true;
+		} else if (key.equals(BtSppApp.RECV_LOG_MAX_LINES)) {
+			ListPreference listPreference = (ListPreference) preference;
+			int index = listPreference.findIndexOfValue((String) newValue);
+			preference.setSummary(index < 0 ? getString(R.string.recv_log_max_lines_summ)
+					: listPreference.getEntries()[index]);
+			return true;
 		}
 
 		return false;
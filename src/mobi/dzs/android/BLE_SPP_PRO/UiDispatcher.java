@@ -0,0 +1,267 @@
+package mobi.dzs.android.BLE_SPP_PRO;
+
+import java.io.IOException;
+
+import mobi.dzs.android.bluetooth.BtSppClient;
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * 按显示帧合并的界面刷新
+ *
+ * <p>
+ * 接收线程每收到一段数据就转到UI线程追加显示、刷新统计值，高速率时每秒要刷新几百次界面。
+ * 这里接收线程只把数据追加到缓存中，并预约下一个显示帧；UI线程每帧最多回调一次 {@link OnFlushListener#onFlush(CharSequence)}，
+ * 一次取走这一帧内收到的全部数据，统计值也在同一次回调中刷新，界面的开销与链路速率无关。
+ * Android 4.1(API 16)以上由Choreographer在垂直同步时驱动，以下用Handler按帧间隔延时代替。
+ *
+ * <p>
+ * post()可以在任意线程中调用，构造、flush()、stop()只在UI线程中调用。
+ *
+ * @author t
+ */
+public class UiDispatcher
+{
+	/**常量:没有Choreographer时的帧间隔(ms)，约60帧/秒*/
+	private static final long FRAME_INTERVAL = 16;
+	/**常量:回调后保留的缓存容量(字符)，偶尔的大块数据之后释放多余的内存*/
+	private static final int KEEP_CAPACITY = 64 * 1024;
+
+	/**
+	 * 刷新回调
+	 */
+	public interface OnFlushListener
+	{
+		/**
+		 * 在UI线程中回调，每帧最多一次
+		 * @param data 上次回调之后收到的数据，可能为空(只需刷新统计值时)；回调返回后内容被清除，不能保留引用
+		 * @return void
+		 */
+		void onFlush(CharSequence data);
+	}
+
+	/**帧的预约方式*/
+	private interface Scheduler
+	{
+		/**预约下一帧执行一次flush()，可以在任意线程中调用*/
+		void schedule();
+		/**取消预约*/
+		void cancel();
+	}
+
+	/**对象:回调*/
+	private final OnFlushListener mListener;
+	/**对象:帧的预约方式*/
+	private final Scheduler mScheduler;
+	/**对象:保护mPending、mScheduled、mStopped*/
+	private final Object mLock = new Object();
+	/**对象:接收线程追加数据的缓存*/
+	private StringBuilder mPending = new StringBuilder();
+	/**对象:UI线程回调时使用的缓存，与mPending交换使用*/
+	private StringBuilder mFlushing = new StringBuilder();
+	/**是否已预约下一帧*/
+	private boolean mScheduled = false;
+	/**是否已停止*/
+	private boolean mStopped = false;
+	/**对象:在预约的帧中执行的任务*/
+	private final Runnable mFlushTask = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			flush();
+		}
+	};
+
+	/**
+	 * 构造函数，只在UI线程中调用
+	 * @param listener 回调
+	 */
+	public UiDispatcher(OnFlushListener listener)
+	{
+		this.mListener = listener;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+			this.mScheduler = new VsyncScheduler(this.mFlushTask);
+		else
+			this.mScheduler = new HandlerScheduler(this.mFlushTask);
+	}
+
+	/**
+	 * 追加数据，在下一帧显示
+	 * @param s 数据
+	 * @return void
+	 */
+	public void post(CharSequence s)
+	{
+		synchronized (this.mLock)
+		{
+			if (this.mStopped)
+				return;
+			this.mPending.append(s);
+			this.scheduleLocked();
+		}
+	}
+
+	/**
+	 * 把收到的数据按当前的输出模式解码后追加，在下一帧显示<br/>
+	 * 直接解码到缓存中，不生成中间的字符串
+	 * @param bsc 连接对象，决定输出模式与字符集
+	 * @param buf 数据
+	 * @param off 数据开始位置
+	 * @param len 数据长度
+	 * @return void
+	 * @see BtSppClient#decodeRecv(byte[], int, int, Appendable)
+	 */
+	public void postRecv(BtSppClient bsc, byte[] buf, int off, int len)
+	{
+		synchronized (this.mLock)
+		{
+			if (this.mStopped)
+				return;
+			try
+			{
+				bsc.decodeRecv(buf, off, len, this.mPending);
+			}
+			catch (IOException e)
+			{	//StringBuilder.append()不会抛出异常
+				throw new AssertionError(e);
+			}
+			this.scheduleLocked();
+		}
+	}
+
+	/**
+	 * 没有新数据，只在下一帧回调(刷新统计值)
+	 * @return void
+	 */
+	public void requestFlush()
+	{
+		synchronized (this.mLock)
+		{
+			if (!this.mStopped)
+				this.scheduleLocked();
+		}
+	}
+
+	/**
+	 * 立即回调，取走已收到的数据，只在UI线程中调用<br/>
+	 * 用于在显示其他内容(例如连接断开的提示)之前先显示已收到的数据，保持顺序
+	 * @return void
+	 */
+	public void flush()
+	{
+		StringBuilder sb;
+
+		synchronized (this.mLock)
+		{
+			if (this.mScheduled)
+			{
+				this.mScheduled = false;
+				this.mScheduler.cancel();
+			}
+			if (this.mStopped)
+				return;
+			sb = this.mPending;
+			this.mPending = this.mFlushing;
+			this.mFlushing = sb;
+		}
+		this.mListener.onFlush(sb);
+		sb.setLength(0);
+		if (sb.capacity() > KEEP_CAPACITY)
+			sb.trimToSize();
+	}
+
+	/**
+	 * 停止：取消预约，丢弃未显示的数据，之后的post()不再有效。只在UI线程中调用
+	 * @return void
+	 */
+	public void stop()
+	{
+		synchronized (this.mLock)
+		{
+			this.mStopped = true;
+			this.mScheduled = false;
+			this.mScheduler.cancel();
+			this.mPending.setLength(0);
+		}
+	}
+
+	/**
+	 * 预约下一帧，已预约时不重复预约。调用时需持有mLock
+	 * @return void
+	 */
+	private void scheduleLocked()
+	{
+		if (!this.mScheduled)
+		{
+			this.mScheduled = true;
+			this.mScheduler.schedule();
+		}
+	}
+
+	/**
+	 * 由Choreographer在下一次垂直同步时执行(API 16以上)
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static class VsyncScheduler implements Scheduler, Choreographer.FrameCallback
+	{
+		/**对象:UI线程的Choreographer，postFrameCallback()可以在任意线程中调用*/
+		private final Choreographer mChoreographer = Choreographer.getInstance();
+		/**对象:执行的任务*/
+		private final Runnable mTask;
+
+		VsyncScheduler(Runnable task)
+		{
+			this.mTask = task;
+		}
+
+		@Override
+		public void schedule()
+		{
+			this.mChoreographer.postFrameCallback(this);
+		}
+
+		@Override
+		public void cancel()
+		{
+			this.mChoreographer.removeFrameCallback(this);
+		}
+
+		@Override
+		public void doFrame(long frameTimeNanos)
+		{
+			this.mTask.run();
+		}
+	}
+
+	/**
+	 * 由UI线程的Handler按帧间隔延时执行
+	 */
+	private static class HandlerScheduler implements Scheduler
+	{
+		/**对象:UI线程的Handler*/
+		private final Handler mHandler = new Handler(Looper.getMainLooper());
+		/**对象:执行的任务*/
+		private final Runnable mTask;
+
+		HandlerScheduler(Runnable task)
+		{
+			this.mTask = task;
+		}
+
+		@Override
+		public void schedule()
+		{
+			this.mHandler.postDelayed(this.mTask, FRAME_INTERVAL);
+		}
+
+		@Override
+		public void cancel()
+		{
+			this.mHandler.removeCallbacks(this.mTask);
+		}
+	}
+}
@@ -1,10 +1,14 @@
 package mobi.dzs.android.BLE_SPP_PRO;
 
 import mobi.dzs.android.bluetooth.BtSppClient.BtIOMode;
+import mobi.dzs.android.bluetooth.BtSppComm.OnSendListener;
+import mobi.dzs.android.bluetooth.BtSppComm.SimpleOnReceiveListener;
+import mobi.dzs.android.bluetooth.ThroughputTest;
 import mobi.dzs.android.util.CHexConver;
+import java.io.File;
+
 import android.app.Activity;
 import android.content.res.Configuration;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.text.Editable;
 import android.text.InputType;
@@ -15,8 +19,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.AutoCompleteTextView;
 import android.widget.ImageButton;
-import android.widget.ScrollView;
-import android.widget.TextView;
+import android.widget.ListView;
 import android.widget.Toast;
 
 /**
@@ -25,14 +28,18 @@ import android.widget.Toast;
  * */
 public class actByteStream extends BaseCommActivity
 {
+	/**常量:菜单变量-吞吐量测试*/
+	private final static byte MEMU_THROUGHPUT_TEST = 0x21;
+	/**常量:菜单变量-开始/停止捕获*/
+	private final static byte MEMU_CAPTURE = 0x22;
+	/**常量:吞吐量测试的时间(ms)*/
+	private final static long THROUGHPUT_TEST_DURATION = 10000;
 	/**Control: the Send button*/
 	private ImageButton mibtnSend = null;
 	/**Controls: input box*/
 	private AutoCompleteTextView mactvInput = null;
-	/**Controls: data receive area*/
-	private TextView mtvReceive = null;
-	/**Control: Scroll screen control*/
-	private ScrollView msvCtl = null;
+	/**Object: the running throughput test*/
+	private ThroughputTest mThroughputTest = null;
 	
 	/**
 	 * Page construction
@@ -46,8 +53,7 @@ public class actByteStream extends BaseCommActivity
 		/*Control reference*/
 		this.mibtnSend = (ImageButton)this.findViewById(R.id.actByteStream_btn_send);
 		this.mactvInput = (AutoCompleteTextView)this.findViewById(R.id.actByteStream_actv_input);
-		this.mtvReceive = (TextView)this.findViewById(R.id.actByteStream_tv_receive);
-		this.msvCtl = (ScrollView)this.findViewById(R.id.actByteStream_sv_Scroll);
+		this.initReceiveLog((ListView)this.findViewById(R.id.actByteStream_lv_receive)); //数据接收区
 		
 		this.initCtl(); //Initialize controls
 		//Loading the contents of the input box automatically
@@ -57,9 +63,9 @@ public class actByteStream extends BaseCommActivity
 		this.initIO_Mode(); //初始化输入输出模式
 		this.usedDataCount(); //启用数据统计状态条
 		
-		//Start receiving thread
-		new receiveTask()
-			.executeOnExecutor(FULL_TASK_EXECUTOR);
+		//Start receiving, data is pushed by the receiving thread
+		this.mReceiveLog.setText(getString(R.string.msg_receive_data_wating));
+		this.startReceive(new receiveListener(), false);
 	}
 	
 	/**
@@ -96,6 +102,10 @@ public class actByteStream extends BaseCommActivity
         miIoMode.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER); //一直隐藏
         MenuItem miSaveFile = menu.add(0, MEMU_SAVE_TO_FILE, 0, getString(R.string.menu_save_to_file));
         miSaveFile.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER); //一直隐藏
+        MenuItem miThroughput = menu.add(0, MEMU_THROUGHPUT_TEST, 0, getString(R.string.menu_throughput_test));
+        miThroughput.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER); //一直隐藏
+        MenuItem miCapture = menu.add(0, MEMU_CAPTURE, 0, getString(R.string.menu_capture_start));
+        miCapture.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER); //一直隐藏
         MenuItem miClearHistory = menu.add(0, MEMU_CLEAR_CMD_HISTORY, 0, getString(R.string.menu_clear_cmd_history));
         miClearHistory.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER); //一直隐藏
         MenuItem miHelper = menu.add(0, MEMU_HELPER, 0, getString(R.string.menu_helper));
@@ -103,6 +113,19 @@ public class actByteStream extends BaseCommActivity
         return super.onCreateOptionsMenu(menu);
     }
 	
+	/**
+	 * 按捕获状态切换菜单的标题
+	 * */
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu)
+	{
+		MenuItem miCapture = menu.findItem(MEMU_CAPTURE);
+		if (null != miCapture)
+			miCapture.setTitle(this.mBSC.isCapturing() ?
+				R.string.menu_capture_stop : R.string.menu_capture_start);
+		return super.onPrepareOptionsMenu(menu);
+	}
+	
 	/**
 	 * Menu click execute instructions
 	 * */
@@ -113,12 +136,13 @@ public class actByteStream extends BaseCommActivity
         {
 	        case android.R.id.home:
 	            // app icon in action bar clicked; go home
-	        	this.mbThreadStop = true; //Termination of the receiving thread
+	        	this.stopThroughputTest(); //Stop the throughput test
+	        	this.stopReceive(); //Stop receiving
 	        	this.setResult(Activity.RESULT_CANCELED); //Return to the main interface
 	        	this.finish();
 	        	return true;
 	        case MEMU_CLEAR: //Clear the screen
-	        	this.mtvReceive.setText("");
+	        	this.mReceiveLog.clear();
 	        	return true;
 	        case MEMU_IO_MODE: //Set the IO mode
 	        	this.setIOModeDialog();
@@ -126,14 +150,20 @@ public class actByteStream extends BaseCommActivity
 	        case MEMU_SAVE_TO_FILE: //Saved to file
 	        	this.saveData2File();
 	        	return true;
+	        case MEMU_THROUGHPUT_TEST: //Throughput test
+	        	this.startThroughputTest();
+	        	return true;
+	        case MEMU_CAPTURE: //Start or stop capturing to file
+	        	this.toggleCapture();
+	        	return true;
 	        case MEMU_CLEAR_CMD_HISTORY: //Clear History command
 	        	this.clearAutoComplate(this.mactvInput);
 	        	return true;
 	        case MEMU_HELPER: //Display using the wizard
 	        	if (this.getString(R.string.language).toString().equals("cn"))
-	        		this.mtvReceive.setText(this.getStringFormRawFile(R.raw.byte_stream_cn) +"\n\n");
+	        		this.mReceiveLog.setText(this.getStringFormRawFile(R.raw.byte_stream_cn) +"\n\n");
 	        	else
-	        		this.mtvReceive.setText(this.getStringFormRawFile(R.raw.byte_stream_en) +"\n");
+	        		this.mReceiveLog.setText(this.getStringFormRawFile(R.raw.byte_stream_en) +"\n");
 	        	return true;
 	        default:
 	        	return super.onMenuItemSelected(featureId, item);
@@ -186,7 +216,8 @@ public class actByteStream extends BaseCommActivity
     {
         if (KeyEvent.KEYCODE_BACK == keyCode)
         {
-        	this.mbThreadStop = true; //终止接收线程
+        	this.stopThroughputTest(); //终止吞吐量测试
+        	this.stopReceive(); //停止接收
         	this.setResult(Activity.RESULT_CANCELED, null);
         	this.finish();
         	return true;
@@ -196,24 +227,51 @@ public class actByteStream extends BaseCommActivity
     }
     
     /**
-     * Auto scroll processing
-     * @return void
+     * 保存收到的数据到SD卡文件中
      * */
-    private void autoScroll()
+    private void saveData2File()
     {
-		//自动滚屏处理
-		int iOffset = this.mtvReceive.getMeasuredHeight() - this.msvCtl.getHeight();     
-        if (iOffset > 0)
-        	this.msvCtl.scrollTo(0, iOffset);
+    	if (this.mReceiveLog.length() > 0)
+    		this.save2SD(this.mReceiveLog.getText().trim());
     }
     
     /**
-     * 保存收到的数据到SD卡文件中
+     * 开始或停止捕获<br/>
+     * 收发的原始数据由后台线程连续写入 sdcard/应用名/cap_MMddHHmmss_rxd.bin 和 _txd.bin，
+     * 不受接收区保留行数的限制，连接断开时自动停止。停止时要等待文件写完，在线程中执行
+     * @return void
      * */
-    private void saveData2File()
+    private void toggleCapture()
     {
-    	if (this.mtvReceive.length() > 0)
-    		this.save2SD(this.mtvReceive.getText().toString().trim());
+    	if (this.mBSC.isCapturing())
+    	{
+    		new Thread("StopCapture")
+    		{
+    			@Override
+    			public void run()
+    			{
+    				mBSC.stopCapture();
+    				final long lBytes = mBSC.getCaptureBytes();
+    				final long lDropped = mBSC.getCaptureDroppedBytes();
+    				runOnUiThread(new Runnable()
+    				{
+    					@Override
+    					public void run()
+    					{
+    						mReceiveLog.append(String.format(getString(R.string.msg_capture_stop), lBytes, lDropped));
+    					}
+    				});
+    			}
+    		}.start();
+    		return;
+    	}
+    	
+    	File fRxd = this.newSdFile("cap_", "_rxd.bin");
+    	if (null != fRxd && this.mBSC.startCapture(fRxd,
+    			new File(fRxd.getParentFile(), fRxd.getName().replace("_rxd.bin", "_txd.bin"))))
+    		this.mReceiveLog.append(String.format(getString(R.string.msg_capture_start), fRxd.getParent()));
+    	else
+    		Toast.makeText(this, getString(R.string.msg_capture_fail), Toast.LENGTH_SHORT).show();
     }
     
     /**
@@ -235,90 +293,148 @@ public class actByteStream extends BaseCommActivity
     	
     	this.mibtnSend.setEnabled(false);// 禁用发送按钮
 //    	sSend += "\r\n"; 
-    	if (this.mBSC.send(sSend) >= 0)
-    	{
-    		this.refreshTxdCount(); //刷新发送数据计值
-    		this.mibtnSend.setEnabled(true); //发送成功恢复发送按钮
-    		this.addAutoComplateVal(sSend, this.mactvInput); //追加自动完成值
-    	}
-    	else
+    	this.mBSC.sendAsync(sSend, new sendListener(sSend)); //由发送线程写出，结果在回调中处理
+    }
+    
+    /**
+     * 开始吞吐量测试<br/>
+     * 以最快速度发送伪随机数据并校验回显，设备需要设置为回环(原样送回收到的数据)。在线程中执行
+     * @return void
+     * */
+    private void startThroughputTest()
+    {
+    	if (null != this.mThroughputTest)
+    		return; //测试正在执行
+    	final ThroughputTest test = new ThroughputTest(this.mBSC, ThroughputTest.Pattern.PRNG, (int)System.nanoTime());
+    	this.mThroughputTest = test;
+    	this.mibtnSend.setEnabled(false);
+    	this.mReceiveLog.append(String.format(getString(R.string.msg_throughput_test_start), THROUGHPUT_TEST_DURATION / 1000));
+    	new Thread("ThroughputTest")
     	{
-			Toast.makeText(this, //提示 连接丢失
-					   getString(R.string.msg_bt_connect_lost),
-					   Toast.LENGTH_LONG).show();
-			this.mactvInput.setEnabled(false); //禁用输入框
-    	}
-    		
+    		@Override
+    		public void run()
+    		{
+    			final int iRet = test.run(THROUGHPUT_TEST_DURATION, true, true);
+    			runOnUiThread(new Runnable()
+    			{
+    				@Override
+    				public void run()
+    				{
+    					showThroughputTestResult(test, iRet);
+    				}
+    			});
+    		}
+    	}.start();
+    }
+    
+    /**
+     * 终止正在执行的吞吐量测试
+     * @return void
+     * */
+    private void stopThroughputTest()
+    {
+    	if (null != this.mThroughputTest)
+    		this.mThroughputTest.cancel();
+    	this.mThroughputTest = null;
+    }
+    
+    /**
+     * 显示吞吐量测试的结果
+     * @param ThroughputTest test 吞吐量测试
+     * @param int iRet run()的返回值
+     * @return void
+     * */
+    private void showThroughputTestResult(ThroughputTest test, int iRet)
+    {
+    	if (test != this.mThroughputTest)
+    		return; //已经被终止
+    	this.mThroughputTest = null;
+    	this.mibtnSend.setEnabled(this.mactvInput.length() > 0);
+    	if (-1 == iRet)
+    		this.mReceiveLog.append(getString(R.string.msg_bt_connect_lost) + "\n");
+    	this.mReceiveLog.append(String.format(getString(R.string.msg_throughput_test_result),
+    		test.getTxRate(), test.getRxRate(), test.getTxBytes(), test.getRxBytes(),
+    		test.getByteErrors(), test.getGaps(), test.getGapBytes()));
+    	this.refreshTxdCount();
+    	this.refreshRxdCount();
     }
     
     //----------------
-    /*多线程处理(建立蓝牙设备的串行通信连接)*/
-    private class receiveTask extends AsyncTask<String, String, Integer>
+    /*发送结果监听(在发送线程中回调，转到UI线程更新界面)*/
+    private class sendListener implements OnSendListener
     {
-    	/**Constant: the connection is lost*/
-    	private final static byte CONNECT_LOST = 0x01;
-    	/**Constant: the end of the thread task*/
-    	private final static byte THREAD_END = 0x02;
-		/**
-		 * 线程启动初始化操作
-		 */
-		@Override
-		public void onPreExecute()
-		{
-			mtvReceive.setText(getString(R.string.msg_receive_data_wating));
-			mbThreadStop = false;
-		}
-		
-		/**
-		  * 线程异步处理
-		  */
+    	/**发送的内容*/
+    	private final String msSend;
+    	
+    	public sendListener(String sSend)
+    	{
+    		this.msSend = sSend;
+    	}
+    	
 		@Override
-		protected Integer doInBackground(String... arg0)
+		public void onSent(final int iRet)
 		{
-			mBSC.recv(); //首次启动调用一次以启动接收线程
-			while(!mbThreadStop)
+			runOnUiThread(new Runnable()
 			{
-				if (!mBSC.isConnect())//检查连接是否丢失
-					return (int)CONNECT_LOST; 
-				
-				if (mBSC.getRecvBufLen() > 0)
-					this.publishProgress(mBSC.recv());
-				
-				try
+				@Override
+				public void run()
 				{
-					Thread.sleep(20);//接收等待延时，提高接收效率
+			    	if (iRet >= 0)
+			    	{
+			    		refreshTxdCount(); //刷新发送数据计值
+			    		mibtnSend.setEnabled(true); //发送成功恢复发送按钮
+			    		addAutoComplateVal(msSend, mactvInput); //追加自动完成值
+			    	}
+			    	else if (-4 == iRet)
+			    	{	//发送队列已满，连接仍然正常
+						Toast.makeText(actByteStream.this, //提示 稍后重试
+								   getString(R.string.msg_send_queue_full),
+								   Toast.LENGTH_SHORT).show();
+			    		mibtnSend.setEnabled(true); //恢复发送按钮，可以重新发送
+			    	}
+			    	else
+			    	{
+						Toast.makeText(actByteStream.this, //提示 连接丢失
+								   getString(R.string.msg_bt_connect_lost),
+								   Toast.LENGTH_LONG).show();
+						mactvInput.setEnabled(false); //禁用输入框
+			    	}
 				}
-				catch (InterruptedException e)
-				{
-					return (int)THREAD_END;
-				} 
-			}
-			return (int)THREAD_END;
+			});
 		}
-		
+    }
+    
+    //----------------
+    /*数据接收监听(在接收线程中回调，转到UI线程更新界面)*/
+    private class receiveListener extends SimpleOnReceiveListener
+    {
 		/**
-		 * 线程内更新处理
+		 * 收到数据
 		 */
 		@Override
-		public void onProgressUpdate(String... progress)
+		public void onBytes(byte[] buf, int off, int len)
 		{
-			mtvReceive.append(progress[0]); //显示区中追加数据
-			autoScroll(); //自动卷屏处理
-			refreshRxdCount(); //刷新接收数据统计值
+			mRecvDispatcher.postRecv(mBSC, buf, off, len); //下一帧追加到显示区并刷新接收统计值
 		}
 		
 		/**
-		  * 阻塞任务执行完后的清理工作
-		  */
+		 * 连接断开，主动关闭连接时不提示连接丢失
+		 */
 		@Override
-		public void onPostExecute(Integer result)
+		public void onDisconnected(final boolean lost)
 		{
-			if (CONNECT_LOST == result) //connection is lost
-				mtvReceive.append(getString(R.string.msg_bt_connect_lost));
-			else
-				mtvReceive.append(getString(R.string.msg_receive_data_stop));//Tip receive termination
-			mibtnSend.setEnabled(false); //Disable the Send button
-			refreshHoldTime(); //刷新数据统计状态条-运行时间
+			runOnUiThread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					mRecvDispatcher.flush(); //先显示已收到的数据
+					if (lost)
+						mReceiveLog.append(getString(R.string.msg_bt_connect_lost));
+					mibtnSend.setEnabled(false); //Disable the Send button
+					refreshHoldTime(); //刷新数据统计状态条-运行时间
+				}
+			});
 		}
     }
 }
@@ -1,11 +1,13 @@
 package mobi.dzs.android.BLE_SPP_PRO;
 
+import mobi.dzs.android.bluetooth.BtSppComm.OnSendListener;
+import mobi.dzs.android.bluetooth.LatencyProbe;
+import mobi.dzs.android.bluetooth.BtSppComm.SimpleOnReceiveListener;
 import mobi.dzs.android.util.CHexConver;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.res.Configuration;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.text.Editable;
 import android.text.InputType;
@@ -18,9 +20,9 @@ import android.view.View;
 import android.view.inputmethod.EditorInfo;
 import android.widget.AutoCompleteTextView;
 import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.RadioButton;
 import android.widget.RadioGroup;
-import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.TextView.OnEditorActionListener;
 import android.widget.Toast;
@@ -33,6 +35,10 @@ public class actCmdLine extends BaseCommActivity
 	private final static byte TYPE_TXD = 0x02;
 	/**常量:菜单变量-设置结束符*/
 	private final static byte MEMU_SET_END_FLG = 0x21;
+	/**常量:菜单变量-延迟测试*/
+	private final static byte MEMU_LATENCY_PROBE = 0x22;
+	/**常量:延迟测试的ping次数*/
+	private final static int LATENCY_PROBE_COUNT = 100;
 	/**常量:结束符 动态存储用子关键字*/
 	private final static String SUB_KEY_END_FLG = "SUB_KEY_END_FLG";
 	/**常量:模块已经被使用过的标志(用于初始化)*/
@@ -41,10 +47,8 @@ public class actCmdLine extends BaseCommActivity
 	private String msEndFlg = msEND_FLGS[0];
 	/**控件:输入框*/
 	private AutoCompleteTextView mactvInput = null;
-	/**控件:数据显示区*/
-	private TextView mtvDataView = null;
-	/**控件:卷屏控制控件*/
-	private ScrollView msvCtl = null;
+	/**对象:正在执行的延迟测试*/
+	private LatencyProbe mProbe = null;
 
 	/**
 	 * 页面构造
@@ -57,8 +61,7 @@ public class actCmdLine extends BaseCommActivity
 		
 		/*控件引用*/
 		this.mactvInput = (AutoCompleteTextView)this.findViewById(R.id.actCmdLine_actv_input);
-		this.mtvDataView = (TextView)this.findViewById(R.id.actCmdLine_tv_data_view);
-		this.msvCtl = (ScrollView)this.findViewById(R.id.actCmdLine_sv_Scroll);
+		this.initReceiveLog((ListView)this.findViewById(R.id.actCmdLine_lv_data_view)); //数据显示区
 		
 		/*监听输入框的按钮事件*/
 		this.mactvInput.setOnEditorActionListener(new OnEditorActionListener()
@@ -72,24 +75,26 @@ public class actCmdLine extends BaseCommActivity
 					EditorInfo.IME_ACTION_UNSPECIFIED == arg1
 					)
 				{
-					String sCmd = mactvInput.getText().toString().trim();
+					final String sCmd = mactvInput.getText().toString().trim();
 					if (sCmd.length() > 0)
 					{
 						mactvInput.setText(""); //清除输入框
-				    	if (mBSC.send(sCmd.concat(msEndFlg)) >= 0)
+						//由发送线程写出，不阻塞输入；结果在发送线程中回调，转到UI线程显示
+				    	mBSC.sendAsync(sCmd.concat(msEndFlg), new OnSendListener()
 				    	{
-				    		append2DataView(TYPE_TXD, sCmd); //显示数据
-				    		addAutoComplateVal(sCmd, mactvInput); //追加自动完成值
-				    	}
-				    	else
-				    	{
-							Toast.makeText(actCmdLine.this, //提示 连接丢失
-							   getString(R.string.msg_bt_connect_lost),
-							   Toast.LENGTH_LONG).show();
-							mtvDataView.append(getString(R.string.msg_bt_connect_lost));
-							mactvInput.setEnabled(false);//禁用命令输入行
-				    	}
-				    	refreshTxdCount(); //刷新接收数据统计值
+							@Override
+							public void onSent(final int iRet)
+							{
+								runOnUiThread(new Runnable()
+								{
+									@Override
+									public void run()
+									{
+										showSendResult(sCmd, iRet);
+									}
+								});
+							}
+				    	});
 					}
 					return true;
 				}
@@ -106,9 +111,10 @@ public class actCmdLine extends BaseCommActivity
 		this.initIO_Mode(); //初始化输入输出模式
 		this.usedDataCount(); //启用数据统计状态条
 		
-		//初始化结束，启动接收线程
-		new receiveTask()
-			.executeOnExecutor(FULL_TASK_EXECUTOR);
+		//初始化结束，开始按行接收，数据由接收线程推送
+		this.mReceiveLog.append(getString(R.string.msg_receive_data_wating));
+		this.mReceiveLog.append("\n");
+		this.startReceive(new receiveListener(), true);
 	}
 	
 	/**
@@ -118,7 +124,6 @@ public class actCmdLine extends BaseCommActivity
     public void onDestroy()
     {
     	super.onDestroy();
-    	this.mBSC.killReceiveData_StopFlg(); //强制终止接收函数
     	this.saveAutoComplateCmdHistory(this.getLocalClassName()); //保存用于自动完成控件的命令历史字
     }
     
@@ -145,6 +150,9 @@ public class actCmdLine extends BaseCommActivity
         //设置终止符
         MenuItem miSetStopFlg = menu.add(0, MEMU_SET_END_FLG, 0, getString(R.string.menu_set_stop_flg));
         miSetStopFlg.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+        //延迟测试
+        MenuItem miProbe = menu.add(0, MEMU_LATENCY_PROBE, 0, getString(R.string.menu_latency_probe));
+        miProbe.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER); //一直隐藏
         //保存到文件
         MenuItem miSaveFile = menu.add(0, MEMU_SAVE_TO_FILE, 0, getString(R.string.menu_save_to_file));
         miSaveFile.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER); //一直隐藏
@@ -167,17 +175,20 @@ public class actCmdLine extends BaseCommActivity
         {
 	        case android.R.id.home:
 	            // app icon in action bar clicked; go home
-	        	this.mBSC.killReceiveData_StopFlg(); //强制终止接收函数
-	        	this.mbThreadStop = true; //终止接收线程
+	        	this.stopLatencyProbe(); //终止延迟测试
+	        	this.stopReceive(); //停止接收
 	        	this.setResult(Activity.RESULT_CANCELED); //返回到主界面
 	        	this.finish();
 	        	return true;
 	        case MEMU_CLEAR: //清除屏幕
-	        	this.mtvDataView.setText("");
+	        	this.mReceiveLog.clear();
 	        	return true;
 	        case MEMU_SET_END_FLG: //设定终止符
 	        	this.selectEndFlg();
 	        	return true;
+	        case MEMU_LATENCY_PROBE: //延迟测试
+	        	this.startLatencyProbe();
+	        	return true;
 	        case MEMU_SAVE_TO_FILE: //保存到文件
 	        	this.saveData2File();
 	        	return true;
@@ -186,9 +197,9 @@ public class actCmdLine extends BaseCommActivity
 	        	return true;
 	        case MEMU_HELPER: //显示使用向导
 	        	if (this.getString(R.string.language).toString().equals("cn"))
-	        		this.mtvDataView.setText(this.getStringFormRawFile(R.raw.cmd_line_cn) +"\n\n");
+	        		this.mReceiveLog.setText(this.getStringFormRawFile(R.raw.cmd_line_cn) +"\n\n");
 	        	else
-	        		this.mtvDataView.setText(this.getStringFormRawFile(R.raw.cmd_line_en) +"\n");
+	        		this.mReceiveLog.setText(this.getStringFormRawFile(R.raw.cmd_line_en) +"\n");
 	        	return true;
 	        default:
 	        	return super.onMenuItemSelected(featureId, item);
@@ -206,7 +217,8 @@ public class actCmdLine extends BaseCommActivity
     {
         if (KeyEvent.KEYCODE_BACK == keyCode)
         {	//按回退键的处理
-        	this.mbThreadStop = true; //终止接收线程
+        	this.stopLatencyProbe(); //终止延迟测试
+        	this.stopReceive(); //停止接收
         	this.setResult(Activity.RESULT_CANCELED, null);
         	this.finish();
         	return true;
@@ -225,23 +237,107 @@ public class actCmdLine extends BaseCommActivity
 		this.refreshTxdCount();
 	}
 	
+    /**
+     * 开始延迟测试<br/>
+     * 以输入框中的指令(加终止符)作为ping，收到终止符即视为收到应答，在线程中执行，结束后显示统计并保存到文件
+     * @return void
+     * */
+    private void startLatencyProbe()
+    {
+    	String sCmd = this.mactvInput.getText().toString().trim();
+    	if (null != this.mProbe)
+    		return; //测试正在执行
+    	if (sCmd.length() == 0 || null == (this.mProbe = this.mBSC.newLatencyProbe(sCmd.concat(msEndFlg), msEndFlg)))
+    	{
+			Toast.makeText(this, //提示 需要先输入指令
+				getString(R.string.msg_latency_probe_need_cmd),
+				Toast.LENGTH_SHORT).show();
+			return;
+    	}
+    	
+    	final LatencyProbe probe = this.mProbe;
+    	this.mReceiveLog.append(String.format(getString(R.string.msg_latency_probe_start), LATENCY_PROBE_COUNT));
+    	new Thread("LatencyProbe")
+    	{
+    		@Override
+    		public void run()
+    		{
+    			final int iRet = probe.run(LATENCY_PROBE_COUNT);
+    			runOnUiThread(new Runnable()
+    			{
+    				@Override
+    				public void run()
+    				{
+    					showLatencyProbeResult(probe, iRet);
+    				}
+    			});
+    		}
+    	}.start();
+    }
+    
+    /**
+     * 终止正在执行的延迟测试
+     * @return void
+     * */
+    private void stopLatencyProbe()
+    {
+    	if (null != this.mProbe)
+    		this.mProbe.cancel();
+    	this.mProbe = null;
+    }
+    
+    /**
+     * 显示延迟测试的结果，并保存到文件
+     * @param LatencyProbe probe 延迟测试
+     * @param int iRet run()的返回值
+     * @return void
+     * */
+    private void showLatencyProbeResult(LatencyProbe probe, int iRet)
+    {
+    	if (probe != this.mProbe)
+    		return; //已经被终止
+    	this.mProbe = null;
+    	if (-1 == iRet)
+    		this.mReceiveLog.append(getString(R.string.msg_bt_connect_lost) + "\n");
+    	this.mReceiveLog.append(String.format(getString(R.string.msg_latency_probe_result),
+    		probe.getHistogram().toString(), probe.getTimeoutCount()));
+    	if (probe.getHistogram().getCount() > 0)
+    		this.save2SD(probe.export());
+    	this.refreshTxdCount();
+    	this.refreshRxdCount();
+    }
+    
     /**
      * 保存收到的数据到SD卡文件中
      * @return void
      * */
     private void saveData2File()
     {
-    	if (this.mtvDataView.length() > 0)
-    		this.save2SD(this.mtvDataView.getText().toString().trim());
+    	if (this.mReceiveLog.length() > 0)
+    		this.save2SD(this.mReceiveLog.getText().trim());
     }
     
 	/**
-	 * 追加数据到数据显示区
+	 * 追加数据到数据显示区，之前收到的数据先显示，保持收发的顺序
 	 * @param byte b 追加的数据类型 TYPE_RXD:接收 / TYPE_TXD:发送
 	 * @param String sData 需要显示的数据
+	 * @param int iBytes 数据的字节数(含结束符)
 	 * @return void
 	 * */
-	private void append2DataView(byte b, String sData)
+	private void append2DataView(byte b, String sData, int iBytes)
+	{
+		this.mRecvDispatcher.flush();
+		this.mReceiveLog.append(this.formatDataLine(b, sData, iBytes));
+	}
+	
+	/**
+	 * 生成数据显示区的一行，可以在接收线程中调用
+	 * @param byte b 数据类型 TYPE_RXD:接收 / TYPE_TXD:发送
+	 * @param String sData 数据(不含结束符)
+	 * @param int iBytes 数据的字节数(含结束符)
+	 * @return String
+	 * */
+	private String formatDataLine(byte b, String sData, int iBytes)
 	{
 		StringBuilder sbTmp = new StringBuilder();
 		if (TYPE_RXD == b)
@@ -250,10 +346,10 @@ public class actCmdLine extends BaseCommActivity
 			sbTmp.append("Txd>");
 		sbTmp.append(sData);
 		sbTmp.append("\t(");
-		sbTmp.append(sData.length() + this.msEndFlg.length());
+		sbTmp.append(iBytes);
 		sbTmp.append("B)");
 		sbTmp.append("\n");
-		this.mtvDataView.append(sbTmp.toString());
+		return sbTmp.toString();
 	}
 	
     /**
@@ -289,7 +385,7 @@ public class actCmdLine extends BaseCommActivity
             	if (sHexEndFlg.isEmpty())
             	{
 	            	msEndFlg = new String();
-	            	mBSC.setRecvStopFlg(msEndFlg); //设置结束符
+	            	applyEndFlg(); //设置结束符
 	            	mDS.setVal(getLocalClassName(), SUB_KEY_END_FLG, sHexEndFlg);
 	            	mDS.saveStorage();
 	            	showEndFlg(); //显示当前结束符的设置信息
@@ -297,7 +393,7 @@ public class actCmdLine extends BaseCommActivity
             	else if (CHexConver.isHexStr(sHexEndFlg))
             	{
 	            	msEndFlg = CHexConver.hexToStr(sHexEndFlg);
-	            	mBSC.setRecvStopFlg(msEndFlg); //设置结束符
+	            	applyEndFlg(); //设置结束符
 	            	//记住当前设置的模式
 	            	mDS.setVal(getLocalClassName(), SUB_KEY_END_FLG, sHexEndFlg);
 	            	mDS.saveStorage();
@@ -396,7 +492,21 @@ public class actCmdLine extends BaseCommActivity
     	else
     		this.msEndFlg = CHexConver.hexToStr(sHexEndFlg);
     	this.showEndFlg(); //显示当前结束符的设置信息
-    	this.mBSC.setRecvStopFlg(this.msEndFlg); //设置结束符
+    	this.applyEndFlg(); //设置结束符
+    }
+    
+    /**
+     * 按当前的结束符设置接收的终止符<br/>
+     * 选择\r\n或\n模板时，接收的\r\n、\n、\r都作为行结束，行尾不统一的设备也能正确分行；
+     * 其它结束符只按设置的值分行
+     * @return void
+     * */
+    private void applyEndFlg()
+    {
+    	if (this.msEndFlg.equals(msEND_FLGS[0]) || this.msEndFlg.equals(msEND_FLGS[1]))
+    		this.mBSC.setRecvStopFlgs(msLINE_END_FLGS);
+    	else
+    		this.mBSC.setRecvStopFlg(this.msEndFlg);
     }
     
     /**
@@ -407,14 +517,14 @@ public class actCmdLine extends BaseCommActivity
     {
     	if(msEndFlg.equals(msEND_FLGS[0]))
     	{
-    		this.mtvDataView.setText(
+    		this.mReceiveLog.setText(
     				String.format(
     						this.getString(R.string.actCmdLine_msg_helper), 
     						this.getString(R.string.dialog_end_flg_rn)));
     	}
     	else if(msEndFlg.equals(msEND_FLGS[1]))
     	{
-    		this.mtvDataView.setText(
+    		this.mReceiveLog.setText(
     				String.format(
     						this.getString(R.string.actCmdLine_msg_helper), 
     						this.getString(R.string.dialog_end_flg_n)));
@@ -429,85 +539,75 @@ public class actCmdLine extends BaseCommActivity
     			sTmp = String.format(getString(R.string.actCmdLine_msg_helper), 
     					"("+ CHexConver.strToHex(msEndFlg) +")");
     		}
-    		this.mtvDataView.setText(sTmp);
+    		this.mReceiveLog.setText(sTmp);
     	}
     }
     
     /**
-     * 自动滚屏的处理
+     * 显示指令的发送结果
+     * @param String sCmd 发送的指令(不含终止符)
+     * @param int iRet 发送结果 >=0 发送正常 / -4 发送队列已满 / 其他<0 连接丢失
      * @return void
      * */
-    private void autoScroll()
+    private void showSendResult(String sCmd, int iRet)
     {
-		//自动滚屏处理
-		int iOffset = this.mtvDataView.getMeasuredHeight() - this.msvCtl.getHeight();     
-        if (iOffset > 0)
-        	this.msvCtl.scrollTo(0, iOffset);
+    	if (iRet >= 0)
+    	{
+    		this.append2DataView(TYPE_TXD, sCmd, iRet); //显示数据，iRet为写出的字节数
+    		this.addAutoComplateVal(sCmd, this.mactvInput); //追加自动完成值
+    	}
+    	else if (-4 == iRet)
+    	{	//发送队列已满，连接仍然正常，把指令放回输入框以便重试
+			Toast.makeText(this, //提示 稍后重试
+			   getString(R.string.msg_send_queue_full),
+			   Toast.LENGTH_SHORT).show();
+			if (this.mactvInput.length() == 0)
+				this.mactvInput.setText(sCmd);
+    	}
+    	else
+    	{
+			Toast.makeText(this, //提示 连接丢失
+			   getString(R.string.msg_bt_connect_lost),
+			   Toast.LENGTH_LONG).show();
+			this.mReceiveLog.append(getString(R.string.msg_bt_connect_lost));
+			this.mactvInput.setEnabled(false);//禁用命令输入行
+    	}
+    	this.refreshTxdCount(); //刷新接收数据统计值
     }
     
     //----------------
-    /*多线程处理(接收数据线程)*/
-    private class receiveTask extends AsyncTask<String, String, Integer>
+    /*数据接收监听(在接收线程中回调，转到UI线程更新界面)*/
+    private class receiveListener extends SimpleOnReceiveListener
     {
-    	/**常量:连接丢失*/
-    	private final static byte CONNECT_LOST = 0x01;
-    	/**常量:线程任务结束*/
-    	private final static byte THREAD_END = 0x02;
 		/**
-		 * 线程启动初始化操作
+		 * 收到以结束符结尾的一行
 		 */
 		@Override
-		public void onPreExecute()
-		{
-			mtvDataView.append(getString(R.string.msg_receive_data_wating));
-			mtvDataView.append("\n");
-			mbThreadStop = false;
-		}
-		
-		/**
-		  * 线程异步处理
-		  */
-		@Override
-		protected Integer doInBackground(String... arg0)
+		public void onLine(byte[] buf, int off, int len)
 		{
-			mBSC.recv(); //首次启动调用一次以启动接收线程
-			while(!mbThreadStop)
-			{
-				if (!mBSC.isConnect())
-					return (int)CONNECT_LOST; //检查连接是否丢失
-				
-				this.publishProgress(mBSC.recvStopFlg());
-			}
-			return (int)THREAD_END;
+			//去掉行尾的结束符后，下一帧追加到显示区并刷新接收统计值；字节数按收到的原始数据计算
+			mRecvDispatcher.post(formatDataLine(TYPE_RXD,
+				mBSC.decodeLine(buf, off, mBSC.stripStopFlg(buf, off, len)), len));
 		}
 		
 		/**
-		 * 线程内更新处理
+		 * 连接断开，主动关闭连接时不提示连接丢失
 		 */
 		@Override
-		public void onProgressUpdate(String... progress)
+		public void onDisconnected(final boolean lost)
 		{
-			if (null != progress[0])
-			{	//输入不为空时，刷新列表
-				append2DataView(TYPE_RXD, progress[0]); //显示区中追加数据
-				autoScroll(); //自动卷屏处理
-				refreshRxdCount(); //刷新接收数据统计值
-			}
-		}
-		
-		/**
-		  * 阻塞任务执行完后的清理工作
-		  */
-		@Override
-		public void onPostExecute(Integer result)
-		{
-			if (CONNECT_LOST == result) //通信连接丢失
-				mtvDataView.append(getString(R.string.msg_bt_connect_lost));
-			else
-				mtvDataView.append(getString(R.string.msg_receive_data_stop));//提示接收终止
-			
-			mactvInput.setEnabled(false);
-			refreshHoldTime(); //刷新数据统计状态条-运行时间
+			runOnUiThread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					mRecvDispatcher.flush(); //先显示已收到的数据
+					if (lost)
+						mReceiveLog.append(getString(R.string.msg_bt_connect_lost));
+					mactvInput.setEnabled(false);
+					refreshHoldTime(); //刷新数据统计状态条-运行时间
+				}
+			});
 		}
     }
 }
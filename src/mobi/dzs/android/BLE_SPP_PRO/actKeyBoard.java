@@ -3,6 +3,8 @@ package mobi.dzs.android.BLE_SPP_PRO;
 import java.util.Hashtable;
 
 import mobi.dzs.android.bluetooth.BtSppClient.BtIOMode;
+import mobi.dzs.android.bluetooth.BtSppComm.OnSendListener;
+import mobi.dzs.android.bluetooth.BtSppComm.SimpleOnReceiveListener;
 import mobi.dzs.android.control.button.ButtonPassListener;
 import mobi.dzs.android.control.button.RepeatingButton;
 import mobi.dzs.android.util.CHexConver;
@@ -11,7 +13,6 @@ import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.res.Configuration;
 import android.graphics.Point;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.text.Editable;
 import android.text.InputType;
@@ -24,6 +25,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup.LayoutParams;
 import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.RadioButton;
 import android.widget.RadioGroup;
 import android.widget.RelativeLayout;
@@ -60,14 +62,10 @@ public class actKeyBoard extends BaseCommActivity
 	
 	/**发送数据视图*/
 	private TextView mtvSendView = null;
-	/**接收数据视图*/
-	private TextView mtvRecView = null;
 	/**发送区标题对象*/
 	private TextView mtvRecAreaTitle = null;
 	/**发送视图滚屏*/
 	private ScrollView msvSendView = null;
-	/**接收视图滚屏*/
-	private ScrollView msvRecView = null;
 	/**接收区域控制区*/
 	private RelativeLayout mrlSendArea= null;
 	
@@ -119,12 +117,10 @@ public class actKeyBoard extends BaseCommActivity
 		setContentView(R.layout.act_keyboard);
 		
 		this.mtvSendView = (TextView)this.findViewById(R.id.actKeyBoard_tv_send_data_show);
-		this.mtvRecView = (TextView)this.findViewById(R.id.actKeyBoard_tv_receive_show);
+		this.initReceiveLog((ListView)this.findViewById(R.id.actKeyBoard_lv_receive)); //接收数据视图
 		this.mtvRecAreaTitle = (TextView)this.findViewById(R.id.actKeyBoard_tv_receive_area_title);
 		this.msvSendView = (ScrollView)this.findViewById(R.id.actKeyBoard_sv_send_data_scroll);
-		this.msvRecView = (ScrollView)this.findViewById(R.id.actKeyBoard_sv_receive_data_scroll);
 		this.mrlSendArea = (RelativeLayout)this.findViewById(R.id.actKeyBoard_rl_send_area);
-		this.mtvRecView.setText(""); //初始化接收区内容
 		this.mtvRecAreaTitle.append("\t\t(");//设置接收区标题
 		this.mtvRecAreaTitle.append(getString(R.string.tips_click_to_hide));//设置接收区标题
 		this.mtvRecAreaTitle.append(":"+ getString(R.string.tv_send_area_title));//设置接收区标题
@@ -187,9 +183,9 @@ public class actKeyBoard extends BaseCommActivity
 		this.usedDataCount(); //启用数据统计状态条
 		this.loadProfile(); //载入终止符
 		
-		//初始化结束，启动接收线程
-		new receiveTask()
-			.executeOnExecutor(FULL_TASK_EXECUTOR);
+		//初始化结束，开始接收，数据由接收线程推送
+		this.mReceiveLog.append(getString(R.string.msg_receive_data_wating));
+		this.startReceive(new receiveListener(), false);
 	}
 	
     /**初始化控件的大小*/
@@ -211,16 +207,6 @@ public class actKeyBoard extends BaseCommActivity
     	}
     }
     
-	/**
-	 * 析构
-	 * */
-    @Override
-    public void onDestroy()
-    {
-    	super.onDestroy();
-    	this.mBSC.killReceiveData_StopFlg(); //强制终止接收函数
-    }
-    
 	/**
 	 * 屏幕旋转时的处理
 	 * */
@@ -274,14 +260,13 @@ public class actKeyBoard extends BaseCommActivity
         {
 	        case android.R.id.home:
 	            // app icon in action bar clicked; go home
-	        	this.mBSC.killReceiveData_StopFlg(); //强制终止接收函数
-	        	this.mbThreadStop = true; //终止接收线程
+	        	this.stopReceive(); //停止接收
 	        	this.setResult(Activity.RESULT_CANCELED); //返回到主界面
 	        	this.finish();
 	        	return true;
 	        case MEMU_CLEAR: //清除屏幕
 	        	this.mtvSendView.setText("");
-	        	this.mtvRecView.setText("");
+	        	this.mReceiveLog.clear();
 	        	return true;
 	        case MENU_SET_KEY_BOARD: //设置键盘
 	        	if (this.mbSetMode)
@@ -313,9 +298,9 @@ public class actKeyBoard extends BaseCommActivity
 	        	return true;
 	        case MEMU_HELPER: //显示使用向导
 	        	if (this.getString(R.string.language).toString().equals("cn"))
-	        		this.mtvRecView.setText(this.getStringFormRawFile(R.raw.key_board_cn) +"\n\n");
+	        		this.mReceiveLog.setText(this.getStringFormRawFile(R.raw.key_board_cn) +"\n\n");
 	        	else
-	        		this.mtvRecView.setText(this.getStringFormRawFile(R.raw.key_board_en) +"\n");
+	        		this.mReceiveLog.setText(this.getStringFormRawFile(R.raw.key_board_en) +"\n");
 	        	return true;
 	        default:
 	        	return super.onMenuItemSelected(featureId, item);
@@ -333,7 +318,7 @@ public class actKeyBoard extends BaseCommActivity
     {
         if (KeyEvent.KEYCODE_BACK == keyCode)
         {	//按回退键的处理
-        	this.mbThreadStop = true; //终止接收线程
+        	this.stopReceive(); //停止接收
         	this.setResult(Activity.RESULT_CANCELED, null);
         	this.finish();
         	return true;
@@ -468,14 +453,14 @@ public class actKeyBoard extends BaseCommActivity
     private void saveData2File()
     {
     	StringBuilder sb = new StringBuilder();
-    	if (this.mtvRecView.length() > 0)
+    	if (this.mReceiveLog.length() > 0)
     	{
     		sb.append("Receive Data:\n");
     		sb.append("--------------------------\n");
-    		sb.append(this.mtvRecView.getText().toString().trim());
+    		sb.append(this.mReceiveLog.getText().trim());
     		sb.append("\n\n");
     	}
-    	if (this.mtvRecView.length() > 0)
+    	if (this.mtvSendView.length() > 0)
     	{
     		sb.append("Send Data:\n");
     		sb.append("--------------------------\n");
@@ -510,17 +495,17 @@ public class actKeyBoard extends BaseCommActivity
 		if (0 == btBtnEvent)
 		{	//默认为按钮抬起时触发
 			this.setBtnBindEvent(RepeatingButton.mEVENT_UP);
-			this.mtvRecView.append(getString(R.string.menu_button_event_up) + "\n");
+			this.mReceiveLog.append(getString(R.string.menu_button_event_up) + "\n");
 		}
 		else
 		{	//载入之前保存的激发模式
 			this.setBtnBindEvent(btBtnEvent);
 			if (RepeatingButton.mEVENT_UP == btBtnEvent)
-				this.mtvRecView.append(getString(R.string.menu_button_event_up) + "\n");
+				this.mReceiveLog.append(getString(R.string.menu_button_event_up) + "\n");
 			else if (RepeatingButton.mEVENT_DOWN == btBtnEvent)
-				this.mtvRecView.append(getString(R.string.menu_button_event_down) + "\n");
+				this.mReceiveLog.append(getString(R.string.menu_button_event_down) + "\n");
 			else
-				this.mtvRecView.append(getString(R.string.menu_button_event_repeat) + "\n");
+				this.mReceiveLog.append(getString(R.string.menu_button_event_repeat) + "\n");
 		}
 		
 		//保存按钮长按时的触发频率
@@ -533,7 +518,7 @@ public class actKeyBoard extends BaseCommActivity
 		if (RepeatingButton.mEVENT_REPEAT == btBtnEvent)
 		{	//当为长按模式才会显示触发频率的提示
 			sTmp = String.format(getString(R.string.actKeyBoard_msg_repeat_freq_set)+"\n", iRepeat);
-			this.mtvRecView.append(sTmp);//显示当前设定的促发频率
+			this.mReceiveLog.append(sTmp);//显示当前设定的促发频率
 		}
 	}
 	
@@ -647,14 +632,14 @@ public class actKeyBoard extends BaseCommActivity
     {
     	if(msEndFlg.equals(msEND_FLGS[0]))
     	{
-    		this.mtvRecView.append(
+    		this.mReceiveLog.append(
     				String.format(
     						this.getString(R.string.actKeyBoard_msg_helper_endflg), 
     						this.getString(R.string.dialog_end_flg_rn)));
     	}
     	else if(msEndFlg.equals(msEND_FLGS[1]))
     	{
-    		this.mtvRecView.append(
+    		this.mReceiveLog.append(
     				String.format(
     						this.getString(R.string.actKeyBoard_msg_helper_endflg), 
     						this.getString(R.string.dialog_end_flg_n)));
@@ -662,10 +647,10 @@ public class actKeyBoard extends BaseCommActivity
     	else
     	{
     		if (this.msEndFlg.isEmpty())
-    			this.mtvRecView.append(getString(R.string.msg_helper_endflg_nothing));
+    			this.mReceiveLog.append(getString(R.string.msg_helper_endflg_nothing));
     		else
     		{
-    			this.mtvRecView.append(
+    			this.mReceiveLog.append(
     				String.format(
     						getString(R.string.actKeyBoard_msg_helper_endflg),
     						"("+ CHexConver.strToHex(msEndFlg) +")"
@@ -704,30 +689,54 @@ public class actKeyBoard extends BaseCommActivity
     {
 		if (!sData.equals(""))
 		{
-			String sSend = sData;
-			int iRet = 0;
+			final String sSend = sData;
+			OnSendListener listener = new OnSendListener()
+			{	//在发送线程中回调，转到UI线程显示结果
+				@Override
+				public void onSent(final int iRet)
+				{
+					runOnUiThread(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							showSendResult(sSend, iRet);
+						}
+					});
+				}
+			};
+			//放入发送队列后立即返回，连续按键的数据由发送线程合并写出
 			if (!this.msEndFlg.isEmpty()) //加入结束符的处理
-				iRet = this.mBSC.send(sSend.concat(this.msEndFlg));
+				this.mBSC.sendAsync(sSend.concat(this.msEndFlg), listener);
 			else
-				iRet = this.mBSC.send(sSend);
-			
-			if (iRet >= 0) //检查通信状态
-			{	//通信正常
-				if (iRet == 0)
-					this.mtvSendView.append(sSend.concat("(fail) "));
-				else
-					this.mtvSendView.append(sSend.concat("(succeed) "));
-			}
+				this.mBSC.sendAsync(sSend, listener);
+		}
+    }
+    
+    /**
+     * 显示发送结果
+     * @param String sSend 发送的内容
+     * @param int iRet 发送结果 >0 发送正常, 0未发送数据, -4发送队列已满, 其他<0 连接丢失
+     * @return void
+     * */
+    private void showSendResult(String sSend, int iRet)
+    {
+		if (iRet >= 0 || -4 == iRet) //检查通信状态
+		{	//通信正常
+			if (iRet <= 0)
+				this.mtvSendView.append(sSend.concat("(fail) "));
 			else
-			{	//链接丢失
-				Toast.makeText(actKeyBoard.this, //提示 连接丢失
-					   getString(R.string.msg_bt_connect_lost),
-					   Toast.LENGTH_LONG).show();
-				this.mtvRecView.append(this.getString(R.string.msg_bt_connect_lost) + "\n");
-			}
-			this.refreshTxdCount();//刷新发送值
-			this.autoScroll(); //滚屏处理
+				this.mtvSendView.append(sSend.concat("(succeed) "));
 		}
+		else
+		{	//链接丢失
+			Toast.makeText(actKeyBoard.this, //提示 连接丢失
+				   getString(R.string.msg_bt_connect_lost),
+				   Toast.LENGTH_LONG).show();
+			this.mReceiveLog.append(this.getString(R.string.msg_bt_connect_lost) + "\n");
+		}
+		this.refreshTxdCount();//刷新发送值
+		this.autoScroll(); //滚屏处理
     }
     
     /**
@@ -882,17 +891,12 @@ public class actKeyBoard extends BaseCommActivity
     }
     
     /**
-     * 自动滚屏的处理
+     * 发送区自动滚屏的处理(接收区为ListView，停留在最后一行时自动卷屏)
      * @return void
      * */
     private void autoScroll()
     {
     	int iOffset = 0;
-		//自动滚屏处理
-		iOffset = this.mtvRecView.getMeasuredHeight() - this.msvRecView.getHeight();     
-        if (iOffset > 0)
-        	this.msvRecView.scrollTo(0, iOffset);
-        
         if (this.mrlSendArea.getVisibility() == View.VISIBLE)
         {	//当发送区显示的时候，才组刷新处理
 			iOffset = this.mtvSendView.getMeasuredHeight() - this.msvSendView.getHeight();     
@@ -902,72 +906,35 @@ public class actKeyBoard extends BaseCommActivity
     }
     
     //----------------
-    /*多线程处理(建立蓝牙设备的串行通信连接)*/
-    private class receiveTask extends AsyncTask<String, String, Integer>
+    /*数据接收监听(在接收线程中回调，转到UI线程更新界面)*/
+    private class receiveListener extends SimpleOnReceiveListener
     {
-    	/**常量:连接丢失*/
-    	private final static int CONNECT_LOST = 0x01;
-    	/**常量:线程任务结束*/
-    	private final static int THREAD_END = 0x02;
 		/**
-		 * 线程启动初始化操作
+		 * 收到数据
 		 */
 		@Override
-		public void onPreExecute()
+		public void onBytes(byte[] buf, int off, int len)
 		{
-			mtvRecView.append(getString(R.string.msg_receive_data_wating));
-			mbThreadStop = false;
+			mRecvDispatcher.postRecv(mBSC, buf, off, len); //下一帧追加到显示区并刷新接收统计值
 		}
 		
 		/**
-		  * 线程异步处理
-		  */
+		 * 连接断开，主动关闭连接时不提示连接丢失
+		 */
 		@Override
-		protected Integer doInBackground(String... arg0)
+		public void onDisconnected(final boolean lost)
 		{
-			mBSC.recv(); //首次启动调用一次以启动接收线程
-			while(!mbThreadStop)
+			runOnUiThread(new Runnable()
 			{
-				if (!mBSC.isConnect())
-					return CONNECT_LOST; //检查连接是否丢失
-				
-				if (mBSC.getRecvBufLen() > 0)
-					this.publishProgress(mBSC.recv());
-				
-				try
+				@Override
+				public void run()
 				{
-					Thread.sleep(20);//接收等待延时，提高接收效率
+					mRecvDispatcher.flush(); //先显示已收到的数据
+					if (lost)
+						mReceiveLog.append(getString(R.string.msg_bt_connect_lost));
+					refreshHoldTime(); //刷新数据统计状态条-运行时间
 				}
-				catch (InterruptedException e)
-				{
-					return THREAD_END;
-				} 
-			}
-			return THREAD_END;
-		}
-		
-		/**
-		 * 线程内更新处理
-		 */
-		@Override
-		public void onProgressUpdate(String... progress)
-		{
-			mtvRecView.append(progress[0]); //显示区中追加数据
-			autoScroll(); //自动卷屏处理
-			refreshRxdCount(); //刷新接收数据统计值
-		}
-		
-		/**
-		  * 阻塞任务执行完后的清理工作
-		  */
-		@Override
-		public void onPostExecute(Integer result)
-		{
-			if (CONNECT_LOST == result) //通信连接丢失
-				mtvRecView.append(getString(R.string.msg_bt_connect_lost));
-			else
-				mtvRecView.append(getString(R.string.msg_receive_data_stop));//提示接收终止
-			refreshHoldTime(); //刷新数据统计状态条-运行时间
+			});
 		}
     }
 }
@@ -1,8 +1,14 @@
 package mobi.dzs.android.bluetooth;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.CharBuffer;
+import java.util.concurrent.Future;
 
 import mobi.dzs.android.util.CHexConver;
+import mobi.dzs.android.util.Crc;
+import mobi.dzs.android.util.FrameDecoder;
+import mobi.dzs.android.util.StreamCharDecoder;
 
 /**
  * 蓝牙通信的SPP客户端
@@ -15,10 +21,21 @@ public final class BtSppClient extends BtSppComm {
 	private BtIOMode mBtTxdMode = BtIOMode.STR;
 	/** 当前接收时的编码模式 */
 	private BtIOMode mBtRxdMode = BtIOMode.STR;
-	/** 接收终止符 */
-	private byte[] mBtEndFlg = null;
+	/** 接收终止符，遇到任意一个即结束一行 */
+	private byte[][] mBtEndFlgs = null;
+	/** 推送方式下是否按终止符分行 */
+	private boolean mSplitLines = false;
 	/** 指定:输入输出字符集 默认不指定(UTF-8:一个全角占3字节/GBK:一个全角占2字节) */
 	protected String mCharsetName = null;
+	/** 字符串模式下接收数据的流式解码器，跨越多次接收保留不完整的字符，使用时对其加锁 */
+	private final StreamCharDecoder mRecvChars = new StreamCharDecoder(null);
+	/** 常量:16进制模式下每次转换的字节数 */
+	private static final int HEX_CHUNK = 1024;
+	/** 16进制模式下转换用的存储区，及包装它的CharSequence，使用时对mHexChars加锁 */
+	private final char[] mHexChars = new char[3 * HEX_CHUNK];
+	private final CharBuffer mHexCharSeq = CharBuffer.wrap(mHexChars);
+	/** recv(Appendable, long)读取原始数据的存储区 */
+	private byte[] mRecvTextBuf = null;
 	
 	
 		 
@@ -86,6 +103,51 @@ public final class BtSppClient extends BtSppComm {
 		super(mac); // 执行父类的构造函数
 	}
 
+	/**
+	 * 创建蓝牙SPP客户端类
+	 * 
+	 * @param String mac 蓝牙MAC地址
+	 * @param lockFree 接收缓存是否使用lock-free模式，为true时同一时间只能有一个线程调用接收函数
+	 * @return void
+	 * */
+	public BtSppClient(String mac, boolean lockFree) {
+		super(mac, lockFree);
+	}
+
+	/**
+	 * 创建蓝牙SPP客户端类
+	 * 
+	 * @param String mac 蓝牙MAC地址
+	 * @param recvBufSize 接收缓存大小，单位:Byte。&lt;1时使用默认大小
+	 * @param lockFree 接收缓存是否使用lock-free模式，为true时同一时间只能有一个线程调用接收函数
+	 * @return void
+	 * */
+	public BtSppClient(String mac, int recvBufSize, boolean lockFree) {
+		super(mac, recvBufSize, lockFree);
+	}
+
+	/**
+	 * 使用指定的传输层创建客户端类
+	 * 
+	 * @param transport 传输层，例如 {@link LoopbackTransport} 可以脱离蓝牙设备测试
+	 * @return void
+	 * */
+	public BtSppClient(Transport transport) {
+		super(transport);
+	}
+
+	/**
+	 * 使用指定的传输层创建客户端类
+	 * 
+	 * @param transport 传输层
+	 * @param recvBufSize 接收缓存大小，单位:Byte。&lt;1时使用默认大小
+	 * @param lockFree 接收缓存是否使用lock-free模式，为true时同一时间只能有一个线程调用接收函数
+	 * @return void
+	 * */
+	public BtSppClient(Transport transport, int recvBufSize, boolean lockFree) {
+		super(transport, recvBufSize, lockFree);
+	}
+
 	/**
 	 * 设置发送时的字符串模式
 	 * 
@@ -121,25 +183,73 @@ public final class BtSppClient extends BtSppComm {
 	 * @return int >0 发送正常, 0未发送数据, -2:连接未建立; -3:连接丢失
 	 * */
 	public int send(String data) {
+		byte[] bytes = encodeSend(data);
+
+		if (null == bytes)
+			return 0;
+		return sendData(bytes);
+	}
+
+	/**
+	 * 异步发送数据给设备，不阻塞调用者，可以在UI线程中调用
+	 * 
+	 * @param data 需要发送的数据
+	 * @param listener 发送结束的监听器，可以为null。在发送线程中回调，更新界面需要转到UI线程
+	 * @return Future 结果: &gt;0 发送正常, 0未发送数据, -1:已取消, -2:连接未建立; -3:连接丢失; -4:发送队列已满
+	 * @see BtSppComm#setSendBatch(int, long)
+	 * */
+	public Future<Integer> sendAsync(String data, OnSendListener listener) {
+		byte[] bytes = encodeSend(data);
+
+		if (null == bytes)
+			bytes = new byte[0]; // 无效的HEX值，不进入发送队列，立即以结果0结束
+		return sendDataAsync(bytes, listener);
+	}
+
+	/**
+	 * 创建往返延迟测试，ping和应答的匹配序列按发送模式转换
+	 * 
+	 * @param ping 发送的数据
+	 * @param match 应答中需要匹配的数据(例如应答的结束符)，为null时匹配ping本身(回显)
+	 * @return LatencyProbe null:无效的HEX值
+	 * @see LatencyProbe#run(int)
+	 * */
+	public LatencyProbe newLatencyProbe(String ping, String match) {
+		byte[] bPing = encodeSend(ping);
+		byte[] bMatch = null;
+
+		if (null == bPing || 0 == bPing.length)
+			return null;
+		if (null != match && null == (bMatch = encodeSend(match)))
+			return null;
+		return new LatencyProbe(this, bPing, bMatch);
+	}
+
+	/**
+	 * 按照发送模式把字符串转换为需要发送的数据
+	 * 
+	 * @param data 字符串
+	 * @return byte[] null:无效的HEX值
+	 * */
+	private byte[] encodeSend(String data) {
+		byte[] bytes;
+
 		switch (mBtTxdMode) {
 		case STR:
 			if (null != mCharsetName) {
 				try { // 尝试做字符集转换
-					return sendData(data.getBytes(this.mCharsetName));
+					return data.getBytes(this.mCharsetName);
 				} catch (UnsupportedEncodingException e) { // 字符集转换失败时使用默认字符集
-					return sendData(data.getBytes());
+					return data.getBytes();
 				}
 			} else {
-				return sendData(data.getBytes());
+				return data.getBytes();
 			}
 		case HEX:
-			if (CHexConver.isHexStr(data)) {
-				return sendData(CHexConver.hexToBytes(data));
-			} else {
-				return 0; // 无效的HEX值
-			}
+			bytes = CHexConver.hexToBytes(data); // 一次遍历，同时检查有效性
+			return (null == bytes || 0 == bytes.length) ? null : bytes; // 无效的HEX值
 		default:
-			return 0;
+			return null;
 		}
 	}
 	
@@ -149,17 +259,139 @@ public final class BtSppClient extends BtSppComm {
 	 * @return String null:未连接或连接中断 / String:数据
 	 * */
 	public String recv() {
-		byte[] data = recvData();
+		return recv(0);
+	}
+	
+	/**
+	 * 接收设备数据，接收缓存为空时等待数据到达
+	 * 
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @return String null:未连接、连接中断或等待超时 / String:数据
+	 * */
+	public String recv(long timeout) {
+		byte[] data = recvData(timeout);
 
 		if (null == data)
 			return null;
 
+		return decodeRecv(data, 0, data.length);
+	}
+
+	/**
+	 * 接收设备数据，按接收模式转换后追加到out，接收缓存为空时等待数据到达<br>
+	 * 备注：不创建String，字符串模式下按setCharset()设置的字符集解码，被分在两次接收中的多字节字符不会成为乱码
+	 * 
+	 * @param out 输出，例如StringBuilder、Editable
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @return -1:未连接或连接中断 / &gt;=0:追加的字符数，等待超时返回0
+	 * @throws IOException out.append()抛出的异常
+	 * */
+	public int recv(Appendable out, long timeout) throws IOException {
+		int n;
+
+		if (null == mRecvTextBuf)
+			mRecvTextBuf = new byte[DEFAULT_RECV_BUF_SIZE];
+		if ((n = recvData(mRecvTextBuf, 0, mRecvTextBuf.length, timeout)) < 1)
+			return n < 0 ? -1 : 0;
+
+		return decodeRecv(mRecvTextBuf, 0, n, out);
+	}
+
+	/**
+	 * 按接收模式把原始数据转换为字符串，与recv()的输出相同<br>
+	 * 备注：用于 {@link OnReceiveListener#onBytes(byte[], int, int)} 中转换收到的数据。
+	 * 字符串模式下与recv()共用同一个流式解码器，数据末尾不完整的字符留到下一次调用时输出
+	 * 
+	 * @param buf 数据
+	 * @param off 数据开始位置
+	 * @param len 数据长度
+	 * @return String 数据
+	 * */
+	public String decodeRecv(byte[] buf, int off, int len) {
+		StringBuilder sb;
+		char[] hex;
+
 		if (BtIOMode.HEX == mBtRxdMode) {
-			// 16进制字符串转换成byte值
-			return (CHexConver.bytesToHex(data)).concat(" ");
+			// byte值转换成16进制字符串，每个byte之后一个空格
+			hex = new char[3 * len];
+			return new String(hex, 0, CHexConver.bytesToHex(buf, off, len, hex, 0));
 		} else {
-			return new String(data);
+			sb = new StringBuilder(len);
+			synchronized (mRecvChars) {
+				mRecvChars.decode(buf, off, len, sb);
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * 按接收模式转换原始数据，追加到out，与recv(Appendable, long)的输出相同
+	 * 
+	 * @param buf 数据
+	 * @param off 数据开始位置
+	 * @param len 数据长度
+	 * @param out 输出
+	 * @return 追加的字符数
+	 * @throws IOException out.append()抛出的异常
+	 * */
+	public int decodeRecv(byte[] buf, int off, int len, Appendable out) throws IOException {
+		if (BtIOMode.HEX == mBtRxdMode) {
+			if (out instanceof StringBuilder)
+				return CHexConver.appendHex(buf, off, len, (StringBuilder) out);
+			return appendHex(buf, off, len, out);
+		}
+		synchronized (mRecvChars) {
+			return mRecvChars.decode(buf, off, len, out);
+		}
+	}
+	
+	/**
+	 * 把原始数据分段转换为16进制字符，追加到out
+	 * 
+	 * @param buf 数据
+	 * @param off 数据开始位置
+	 * @param len 数据长度
+	 * @param out 输出
+	 * @return 追加的字符数
+	 * @throws IOException out.append()抛出的异常
+	 * */
+	private int appendHex(byte[] buf, int off, int len, Appendable out) throws IOException {
+		int end = off + len, n;
+
+		synchronized (mHexChars) {
+			while (off < end) {
+				n = Math.min(end - off, HEX_CHUNK);
+				out.append(mHexCharSeq, 0, CHexConver.bytesToHex(buf, off, n, mHexChars, 0));
+				off += n;
+			}
 		}
+		return 3 * len;
+	}
+
+	/**
+	 * 接收设备的原始数据到调用者提供的数组<br>
+	 * 备注：不做编码转换，也不分配新的内存，适合高速率的接收循环
+	 * 
+	 * @param dst 目标数组
+	 * @param off 目标数组开始位置
+	 * @param len 欲读取的最大字节数
+	 * @return -1:未连接或连接中断 / &gt;=0:取到的字节数
+	 * */
+	public int recv(byte[] dst, int off, int len) {
+		return recvData(dst, off, len);
+	}
+	
+	/**
+	 * 接收设备的原始数据到调用者提供的数组，接收缓存为空时等待数据到达
+	 * 
+	 * @param dst 目标数组
+	 * @param off 目标数组开始位置
+	 * @param len 欲读取的最大字节数
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @return -1:未连接或连接中断 / &gt;=0:取到的字节数，等待超时返回0
+	 * */
+	public int recv(byte[] dst, int off, int len, long timeout) {
+		return recvData(dst, off, len, timeout);
 	}
 	
 	/**
@@ -169,7 +401,103 @@ public final class BtSppClient extends BtSppComm {
 	 * @see 仅用于ReceiveStopFlg()函数
 	 * */
 	public void setRecvStopFlg(String sFlg) {
-		mBtEndFlg = sFlg.getBytes();
+		setRecvStopFlgs(new String[]{sFlg});
+	}
+
+	/**
+	 * 设置接收指令行的多个终止字符，遇到任意一个即结束一行<br>
+	 * 用于行尾不统一的设备，例如 {"\r\n", "\n", "\r"}：\r之后紧接着的\n与\r一起作为同一行的终止符，不会多出空行
+	 * 
+	 * @param sFlgs 终止字符
+	 * @return void
+	 * @see 仅用于ReceiveStopFlg()函数
+	 * */
+	public void setRecvStopFlgs(String[] sFlgs) {
+		byte[][] flgs = new byte[sFlgs.length][];
+
+		for (int i = 0; i < sFlgs.length; i++)
+			flgs[i] = sFlgs[i].getBytes();
+		mBtEndFlgs = flgs;
+		if (mSplitLines)
+			setRecvLineSeparators(mBtEndFlgs);
+	}
+
+	/**
+	 * 设置接收数据的监听器(推送方式)，取代接收线程的轮询<br>
+	 * 数据到达时在接收线程中回调，设置后recv()/recvStopFlg()不再能取到数据
+	 * 
+	 * @param listener 监听器，为null时恢复为读取方式
+	 * @param splitLines 是否按 {@link #setRecvStopFlg(String)} 设置的终止符分行回调onLine
+	 * @return void
+	 * */
+	public void setOnReceiveListener(OnReceiveListener listener, boolean splitLines) {
+		mSplitLines = splitLines;
+		setRecvListener(listener, splitLines ? mBtEndFlgs : null);
+	}
+
+	/**
+	 * 设置帧解码器，用于收发二进制帧的设备(长度前缀、SLIP、COBS等)<br>
+	 * 设置后推送方式下按帧回调 {@link OnReceiveListener#onFrame(byte[], int, int)}，读取方式下用recvFrame()取帧
+	 * 
+	 * @param decoder 帧解码器，为null时不分帧
+	 * @return false:接收缓存满时的处理策略为DROP_OLDEST，不能分帧
+	 * @see FrameDecoder.LengthPrefix
+	 * @see FrameDecoder.Slip
+	 * @see FrameDecoder.Cobs
+	 * @see FrameDecoder.Delimited
+	 * */
+	public boolean setFrameDecoder(FrameDecoder decoder) {
+		return setRecvFrameDecoder(decoder);
+	}
+
+	/**
+	 * 设置帧解码器，并对每一帧做CRC校验<br>
+	 * 帧内容的最后crc.size()字节为CRC字段，校验失败的帧被丢弃，通过的帧去掉CRC字段后返回；
+	 * 长度前缀、起始/结束标志的帧直接在接收缓存中校验。解出和丢弃的帧数见 {@link BtSppComm.TrafficStats}
+	 * 
+	 * @param decoder 帧解码器，不能为null
+	 * @param crc CRC的种类，为null时不校验
+	 * @param bigEndian CRC字段是否为大端(CRC-16/MODBUS为小端)
+	 * @return false:接收缓存满时的处理策略为DROP_OLDEST，不能分帧
+	 * @see Crc
+	 * */
+	public boolean setFrameDecoder(FrameDecoder decoder, Crc crc, boolean bigEndian) {
+		decoder.setCheck(crc, bigEndian, true);
+		return setRecvFrameDecoder(decoder);
+	}
+
+	/**
+	 * 接收一帧数据到调用者提供的数组（阻塞模式）
+	 * 
+	 * @param dst 目标数组，从off开始至少要有解码器最大帧长的空间
+	 * @param off 目标数组开始位置
+	 * @return -1:未设置帧解码器、未连接或连接中断 / &gt;0:帧的长度
+	 * */
+	public int recvFrame(byte[] dst, int off) {
+		return recvFrame(dst, off, -1);
+	}
+
+	/**
+	 * 接收一帧数据到调用者提供的数组，最多等待timeout毫秒
+	 * 
+	 * @param dst 目标数组，从off开始至少要有解码器最大帧长的空间
+	 * @param off 目标数组开始位置
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @return -1:未设置帧解码器、未连接或连接中断 / 0:等待超时 / &gt;0:帧的长度
+	 * */
+	public int recvFrame(byte[] dst, int off, long timeout) {
+		return recvData_Frame(dst, off, timeout);
+	}
+
+	/**
+	 * 取消接收数据的监听器，只有当前的监听器是listener时才取消
+	 * 
+	 * @param listener 监听器
+	 * @return void
+	 * */
+	public void removeOnReceiveListener(OnReceiveListener listener) {
+		if (getRecvListener() == listener)
+			setOnReceiveListener(null, false);
 	}
 	
 	/**
@@ -178,10 +506,13 @@ public final class BtSppClient extends BtSppComm {
 	 * @param String
 	 *            sCharset 设置字符集 GBK/GB2312
 	 * @return void
-	 * @see 此设置仅对ReceiveStopFlg()与Send()函数有效
+	 * @see 此设置对recv()、recvStopFlg()与send()函数有效
 	 * */
 	public void setCharset(String sCharset) {
 		mCharsetName = sCharset;
+		synchronized (mRecvChars) {
+			mRecvChars.setCharset(sCharset);
+		}
 	}
 
 	/**
@@ -191,25 +522,114 @@ public final class BtSppClient extends BtSppComm {
 	 * @return null:未连接或连接中断/String:取到数据
 	 * */
 	public String recvStopFlg() {
+		return recvStopFlg(-1);
+	}
+
+	/**
+	 * 接收设备数据，指令行模式，最多等待timeout毫秒
+	 * 
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @return null:未连接、连接中断或等待超时/String:取到数据
+	 * */
+	public String recvStopFlg(long timeout) {
 		byte[] btTmp = null;
 
-		if (null == mBtEndFlg)
+		if (null == mBtEndFlgs)
 			return new String(); // 未设置终止符
 
-		btTmp = recvData_StopFlg(mBtEndFlg);
+		btTmp = recvData_StopFlg(mBtEndFlgs, timeout);
 
 		if (null == btTmp)
 			return null; // 无效的接收
 
+		return decodeLine(btTmp, 0, btTmp.length);
+	}
+
+	/**
+	 * 按设置的字符集把一行原始数据转换为字符串，与recvStopFlg()的输出相同<br>
+	 * 备注：用于 {@link OnReceiveListener#onLine(byte[], int, int)} 中转换收到的行
+	 * 
+	 * @param buf 数据
+	 * @param off 数据开始位置
+	 * @param len 数据长度
+	 * @return String 数据
+	 * */
+	public String decodeLine(byte[] buf, int off, int len) {
 		if (null == mCharsetName)
-			return new String(btTmp);
+			return new String(buf, off, len);
 
 		try {
 			// 尝试对取得的值做字符集转换
-			return new String(btTmp, mCharsetName);
+			return new String(buf, off, len, mCharsetName);
 		} catch (UnsupportedEncodingException e) {
 			// 转换失败时直接用UTF-8输出
-			return new String(btTmp);
+			return new String(buf, off, len);
 		}
 	}
+
+	/**
+	 * 计算一行原始数据去掉行尾终止符后的长度<br>
+	 * 设置了多个终止符时去掉行尾能匹配的最长的一个；接收缓存满时送出的行没有终止符，长度不变
+	 * 
+	 * @param buf 数据
+	 * @param off 数据开始位置
+	 * @param len 数据长度(含终止符)
+	 * @return int 不含终止符的长度
+	 * @see #setRecvStopFlgs(String[])
+	 * */
+	public int stripStopFlg(byte[] buf, int off, int len) {
+		byte[][] flgs = mBtEndFlgs;
+		int n = 0;
+
+		if (null == flgs)
+			return len;
+		for (byte[] flg : flgs) {
+			if (flg.length > n && flg.length <= len && regionMatches(buf, off + len - flg.length, flg))
+				n = flg.length;
+		}
+		return len - n;
+	}
+
+	/**
+	 * 比较数组的一段与给定的字节序列
+	 * 
+	 * @param buf 数据
+	 * @param off 比较开始位置
+	 * @param pattern 字节序列
+	 * @return boolean 相同返回true
+	 * */
+	private static boolean regionMatches(byte[] buf, int off, byte[] pattern) {
+		for (int i = 0; i < pattern.length; i++) {
+			if (buf[off + i] != pattern[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 接收设备的原始数据到调用者提供的数组，指令行模式（阻塞模式）<BR>
+	 * 备注：与recvStopFlg()相同，但不做编码转换，也不分配新的内存
+	 * 
+	 * @param dst 目标数组
+	 * @param off 目标数组开始位置
+	 * @return -1:未连接、连接中断或未设置终止符 / &gt;0:取到的字节数
+	 * */
+	public int recvStopFlg(byte[] dst, int off) {
+		return recvStopFlg(dst, off, -1);
+	}
+
+	/**
+	 * 接收设备的原始数据到调用者提供的数组，指令行模式，最多等待timeout毫秒
+	 * 
+	 * @param dst 目标数组
+	 * @param off 目标数组开始位置
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @return -1:未连接、连接中断或未设置终止符 / 0:等待超时 / &gt;0:取到的字节数
+	 * */
+	public int recvStopFlg(byte[] dst, int off, long timeout) {
+		if (null == mBtEndFlgs)
+			return -1; // 未设置终止符
+
+		return recvData_StopFlg(mBtEndFlgs, dst, off, timeout);
+	}
 }
@@ -1,22 +1,29 @@
 package mobi.dzs.android.bluetooth;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import mobi.dzs.android.util.CaptureFile;
+import mobi.dzs.android.util.CaptureSink;
+import mobi.dzs.android.util.CaptureWriter;
+import mobi.dzs.android.util.FrameDecoder;
 import mobi.dzs.android.util.RingByteBuffer;
-
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
-import android.os.AsyncTask;
-import android.os.Build;
-import android.os.SystemClock;
+import mobi.dzs.android.util.ThroughputMeter;
+import mobi.dzs.android.util.TokenBucket;
 
 /**
  * 蓝牙串口通信类
@@ -34,22 +41,30 @@ public abstract class BtSppComm {
 	/** 常量:SPP的Service UUID */
 	public final static String SPP_UUID = "00001101-0000-1000-8000-00805F9B34FB";
 
-	/** 接收缓存池大小，8k */
-	private RingByteBuffer mRecvBuf = new RingByteBuffer(10);
-	/** 接收、发送计数 */
-	private RxdTxdCount rxdTxdCount = new RxdTxdCount();
-	/** 蓝牙地址码 */
-	private String mMac;
-
-	/* Get Default Adapter */
-	private BluetoothAdapter mBtAdapter = BluetoothAdapter.getDefaultAdapter();
-	/** 蓝牙串口连接对象 */
-	private BluetoothSocket mBtSocket = null;
+	/** 常量:接收缓存默认大小，8k */
+	public final static int DEFAULT_RECV_BUF_SIZE = 8 * 1024;
+	/** 接收缓存池 */
+	private RingByteBuffer mRecvBuf;
+	/** 接收统计，只由接收线程记录，每次从输入流读到的数据计为一帧 */
+	private final ThroughputMeter mRxdMeter = new ThroughputMeter();
+	/** 发送统计，在mSendLock内记录，每次写入输出流计为一帧 */
+	private final ThroughputMeter mTxdMeter = new ThroughputMeter();
+	/** 分帧时解出(校验通过)的帧数和丢弃(解码或校验失败)的帧数，建立连接和设置解码器时清零 */
+	private final AtomicLong mRxdGoodFrames = new AtomicLong();
+	private final AtomicLong mRxdBadFrames = new AtomicLong();
+	/** 接收缓存中曾经达到的最大数据量，只由接收线程修改 */
+	private volatile int mRecvBufHighWater = 0;
+	/** 传输层，默认为蓝牙SPP连接 */
+	private final Transport mTransport;
+	/** 连接是否已建立 */
+	private boolean mConnected = false;
+	/** 最近一次断开是否为连接丢失，false表示调用了closeConn()，在关闭输入流之前设置 */
+	private volatile boolean mLost = false;
 	/** 输入流对象 */
 	private InputStream mInStream = null;
 	/** 输出流对象 */
 	private OutputStream mOutStream = null;
-	/** 用于同步 mBtSocket mInStream mOutStream 的赋值, 并对mOutStream和mInStream的读写进行锁定 */
+	/** 用于同步 mConnected mInStream mOutStream 的赋值, 并对mOutStream和mInStream的读写进行锁定 */
 	private ReadWriteLock mBtRdWrLock = new ReentrantReadWriteLock(false);
 	
 	/** 连接建立的时间 */
@@ -58,113 +73,396 @@ public abstract class BtSppComm {
 	private long mConnCloseTimestamp = 0;
 
 	/** 接收线程, 默认不启动接收线程，只有当调用接收函数后，才启动接收线程 */
-	private RecvThread mRecvThread = null;
+	private volatile RecvThread mRecvThread = null;
+	/** 接收线程的优先级 */
+	private volatile int mRecvThreadPriority = Thread.NORM_PRIORITY;
+	/** 常量:接收线程名称 */
+	private static final String RECV_THREAD_NAME = "BtSppComm-Recv";
+	/** 常量:closeConn()等待接收线程结束的最长时间(ms) */
+	private static final long RECV_THREAD_JOIN_TIMEOUT = 500;
+
+	/** 常量:发送队列默认容量(待发送的数据包个数) */
+	public final static int DEFAULT_SEND_QUEUE_SIZE = 256;
+	/** 常量:默认的合并发送上限，单位:Byte */
+	public final static int DEFAULT_SEND_BATCH_SIZE = 1024;
+	/** 发送线程，第一次异步发送时启动，连接关闭时停止 */
+	private volatile SendThread mSendThread = null;
+	/** 发送队列容量，下次启动发送线程时生效 */
+	private volatile int mSendQueueSize = DEFAULT_SEND_QUEUE_SIZE;
+	/** 合并发送上限，单位:Byte */
+	private volatile int mSendBatchSize = DEFAULT_SEND_BATCH_SIZE;
+	/** 合并发送时等待后续数据的最长时间，单位:毫秒。0:只合并已在队列中的数据 */
+	private volatile long mSendBatchDelay = 0;
+	/** 对输出流的写入加锁，同步发送与发送线程的写入不会互相穿插 */
+	private final Object mSendLock = new Object();
+	/** 常量:限速发送时默认的分块大小，单位:Byte */
+	public final static int DEFAULT_SEND_CHUNK_SIZE = 64;
+	/** 发送限速的令牌桶，为null时不限速 */
+	private volatile TokenBucket mSendPacer = null;
+	/** 限速发送时每次写入的最大字节数 */
+	private volatile int mSendChunkSize = DEFAULT_SEND_CHUNK_SIZE;
+	/** 限速发送时两次写入之间的最小间隔，单位:纳秒。0:不等待 */
+	private volatile long mSendChunkGap = 0;
+	/** 上一次分块写入完成的时间(System.nanoTime())，在mSendLock上同步 */
+	private long mLastChunkTime = 0;
+	/** 常量:发送线程名称 */
+	private static final String SEND_THREAD_NAME = "BtSppComm-Send";
 
-	/** 常量:未设限制的AsyncTask线程池(重要) */
-	private static ExecutorService FULL_TASK_EXECUTOR;
-	static {
-		FULL_TASK_EXECUTOR = (ExecutorService) Executors.newCachedThreadPool();
-	};
+	/** 连接丢失的监听器 */
+	private OnConnectionLostListener mConnLostListener = null;
+	/** 执行连接丢失回调的Executor，为null时直接在发现连接丢失的线程中回调 */
+	private Executor mConnLostExecutor = null;
+
+	/** 接收数据的监听器，不为null时接收线程直接回调，数据不再留在接收缓存中 */
+	private volatile OnReceiveListener mRecvListener = null;
+	/** 推送方式下的行分隔符，任意一个都作为行的结束，为null时不分行，只回调onBytes */
+	private volatile byte[][] mRecvLineSeparators = null;
+	/** 接收线程推送数据时持有，setRecvListener()在其中修改监听器，返回后不会再有使用旧监听器的推送 */
+	private final Object mDispatchLock = new Object();
+	/** 推送方式下回调onLine使用的存储区，只在接收线程中使用 */
+	private byte[] mPushBuf = null;
+	/** 帧解码器，不为null时按帧接收 {@link #setRecvFrameDecoder(FrameDecoder)} */
+	private volatile FrameDecoder mRecvFrameDecoder = null;
+	/** 推送方式下回调onFrame使用的存储区，只在接收线程中使用 */
+	private byte[] mPushFrameBuf = null;
 	/** 操作开关，强制结束本次接收等待 */
-	private Boolean mKillRecvData_StopFlg = false;
+	private volatile boolean mKillRecvData_StopFlg = false;
+
+	/** 接收缓存满时的处理策略 */
+	private volatile OverflowPolicy mOverflowPolicy = OverflowPolicy.BLOCK;
+	/** 各处理策略影响的字节数，下标为OverflowPolicy.ordinal() */
+	private final AtomicLongArray mOverflowCounts = new AtomicLongArray(OverflowPolicy.values().length);
+	/** 溢出数据的磁盘缓存，设置过SPILL_TO_DISK策略后才创建 */
+	private volatile SpillFile mSpill = null;
+
+	/** 接收线程写入mRxdCapture、mRecorder时持有，停止捕获或记录时在其中置null */
+	private final Object mRxdTeeLock = new Object();
+	/** 捕获接收数据的输出，只在mRxdTeeLock内写入，为null时不捕获 {@link #startCapture(CaptureSink, CaptureSink)} */
+	private volatile CaptureSink mRxdCapture = null;
+	/** 发送时写入mTxdCapture、mRecorder时持有，停止捕获或记录时在其中置null。只在写入一块数据期间持有，不跨越阻塞的写出和限速等待 */
+	private final Object mTxdTeeLock = new Object();
+	/** 捕获发送数据的输出，只在mTxdTeeLock内写入，为null时不捕获 */
+	private volatile CaptureSink mTxdCapture = null;
+	/** 本次或最近一次捕获的接收、发送输出，停止后仍保留，用于统计 */
+	private CaptureSink[] mLastCapture = {};
+	/** 带时间戳的收发记录，接收线程在mRxdTeeLock内、发送时在mTxdTeeLock内写入，为null时不记录 {@link #startRecord(File, boolean)} */
+	private volatile CaptureFile.Recorder mRecorder = null;
+	/** 是否同时记录发送的数据 */
+	private volatile boolean mRecordTxd = false;
 
 	/**
-	 * 构造函数
+	 * 接收缓存满时的处理策略
 	 * 
-	 * @param String
-	 *            sMAC 需要连接的蓝牙设备MAC地址码
-	 * */
-	public BtSppComm(String mac) {
-		mMac = mac;
+	 * @author t
+	 */
+	public enum OverflowPolicy {
+		/** 阻塞接收线程，直到读出数据后有空间可写 */
+		BLOCK,
+		/** 丢弃接收缓存中最早的数据(lock-free模式下不可用) */
+		DROP_OLDEST,
+		/** 丢弃新收到的数据 */
+		DROP_NEWEST,
+		/** 写入磁盘缓存文件，读出数据时再按顺序取回 */
+		SPILL_TO_DISK
 	}
-	
+
 	/**
-	 * 发送、接收字节数计数 类
+	 * 连接丢失的监听器<br />
+	 * 只在连接意外中断(读写出错、对端关闭)时回调，调用closeConn()主动断开时不回调
 	 * 
 	 * @author t
-	 *
+	 * @see BtSppComm#setOnConnectionLostListener(OnConnectionLostListener, Executor)
 	 */
-	private class RxdTxdCount {
-		/** 接收到的字节数 */
-		private Long mRxdCount = 0L;
-		/** 发送的字节数 */
-		private Long mTxdCount = 0L;
-		
-		RxdTxdCount() {
-			reset();
-		}
-		
+	public interface OnConnectionLostListener {
 		/**
-		 * 获取接收的字节数
+		 * 连接已丢失，连接已被关闭
 		 * 
-		 * @return 接收字节数总和
+		 * @param comm 丢失连接的通信对象
 		 */
-		public long getRxdCount() {
-			synchronized (mRxdCount) {
-				return mRxdCount;
-			}
-		}
-		
+		void onConnectionLost(BtSppComm comm);
+	}
+
+	/**
+	 * 接收数据的监听器<br />
+	 * 所有方法都在接收线程中回调，数据到达后立即通知，不需要轮询。
+	 * 回调参数中的数组是接收线程重复使用的存储区，只在回调期间有效，需要保留时应复制出来；
+	 * 回调中不要做耗时的操作，也不要抛出异常。
+	 * 
+	 * @author t
+	 * @see BtSppClient#setOnReceiveListener(OnReceiveListener, boolean)
+	 */
+	public interface OnReceiveListener {
 		/**
-		 * 设置接收字节数
+		 * 收到数据
 		 * 
-		 * @param rxdCount 接收字节数总和
+		 * @param buf 存储区
+		 * @param off 数据开始位置
+		 * @param len 数据长度
 		 */
-		private void setRxdCount(long rxdCount) {
-			synchronized (mRxdCount) {
-				mRxdCount = rxdCount;
-			}
-		}
-		
+		void onBytes(byte[] buf, int off, int len);
+
+		/**
+		 * 收到完整的一行(含分隔符)，只在设置了分行时回调<br />
+		 * 接收缓存已满仍没有分隔符时，缓存中的数据作为一行送出
+		 * 
+		 * @param buf 存储区
+		 * @param off 数据开始位置
+		 * @param len 数据长度
+		 */
+		void onLine(byte[] buf, int off, int len);
+
+		/**
+		 * 收到完整的一帧(已解码，不含帧头、帧尾)，只在设置了帧解码器时回调，此时不再回调onLine
+		 * 
+		 * @param buf 存储区
+		 * @param off 数据开始位置
+		 * @param len 数据长度
+		 * @see BtSppComm#setRecvFrameDecoder(FrameDecoder)
+		 */
+		void onFrame(byte[] buf, int off, int len);
+
+		/**
+		 * 连接已断开，接收线程结束
+		 * 
+		 * @param lost true:连接丢失(读写出错或对端关闭) / false:调用了closeConn()
+		 */
+		void onDisconnected(boolean lost);
+	}
+
+	/**
+	 * 异步发送完成的监听器<br />
+	 * 在发送线程中回调(数据未进入发送队列时在调用者线程中回调)，回调中不要做耗时的操作
+	 * 
+	 * @author t
+	 * @see BtSppComm#sendDataAsync(byte[], OnSendListener)
+	 */
+	public interface OnSendListener {
 		/**
-		 * 增加接收字节数
+		 * 发送结束
 		 * 
-		 * @param rxdn 增加的字节数
+		 * @param result &gt;=0:已写入的字节数 / -1:已取消 / -2:连接未建立 / -3:连接丢失 / -4:发送队列已满
 		 */
-		public void addRxdCount(long rxdn) {
-			synchronized (mRxdCount) {
-				mRxdCount += rxdn;
+		void onSent(int result);
+	}
+
+	/**
+	 * OnReceiveListener的空实现，只需覆盖关心的方法
+	 * 
+	 * @author t
+	 */
+	public static class SimpleOnReceiveListener implements OnReceiveListener {
+		@Override
+		public void onBytes(byte[] buf, int off, int len) {
+		}
+
+		@Override
+		public void onLine(byte[] buf, int off, int len) {
+		}
+
+		@Override
+		public void onFrame(byte[] buf, int off, int len) {
+		}
+
+		@Override
+		public void onDisconnected(boolean lost) {
+		}
+	}
+
+	/**
+	 * 构造函数
+	 * 
+	 * @param String
+	 *            sMAC 需要连接的蓝牙设备MAC地址码
+	 * */
+	public BtSppComm(String mac) {
+		this(mac, DEFAULT_RECV_BUF_SIZE, false);
+	}
+
+	/**
+	 * 构造函数
+	 * 
+	 * @param String
+	 *            sMAC 需要连接的蓝牙设备MAC地址码
+	 * @param lockFree
+	 *            接收缓存是否使用单生产者/单消费者的lock-free模式。
+	 *            为true时，同一时间只能有一个线程调用接收函数
+	 * */
+	public BtSppComm(String mac, boolean lockFree) {
+		this(mac, DEFAULT_RECV_BUF_SIZE, lockFree);
+	}
+
+	/**
+	 * 构造函数
+	 * 
+	 * @param String
+	 *            sMAC 需要连接的蓝牙设备MAC地址码
+	 * @param recvBufSize
+	 *            接收缓存大小，单位:Byte。&lt;1时使用默认大小 {@link #DEFAULT_RECV_BUF_SIZE}
+	 * @param lockFree
+	 *            接收缓存是否使用单生产者/单消费者的lock-free模式。
+	 *            为true时，同一时间只能有一个线程调用接收函数
+	 * */
+	public BtSppComm(String mac, int recvBufSize, boolean lockFree) {
+		this(new RfcommTransport(mac), recvBufSize, lockFree);
+	}
+
+	/**
+	 * 构造函数
+	 * 
+	 * @param transport
+	 *            传输层，例如 {@link LoopbackTransport} 可以脱离蓝牙设备测试
+	 * */
+	public BtSppComm(Transport transport) {
+		this(transport, DEFAULT_RECV_BUF_SIZE, false);
+	}
+
+	/**
+	 * 构造函数
+	 * 
+	 * @param transport
+	 *            传输层
+	 * @param recvBufSize
+	 *            接收缓存大小，单位:Byte。&lt;1时使用默认大小 {@link #DEFAULT_RECV_BUF_SIZE}
+	 * @param lockFree
+	 *            接收缓存是否使用单生产者/单消费者的lock-free模式。
+	 *            为true时，同一时间只能有一个线程调用接收函数
+	 * */
+	public BtSppComm(Transport transport, int recvBufSize, boolean lockFree) {
+		mTransport = transport;
+		if (recvBufSize < 1)
+			recvBufSize = DEFAULT_RECV_BUF_SIZE;
+		mRecvBuf = new RingByteBuffer(recvBufSize, false, lockFree);
+	}
+	
+	/**
+	 * 获取接收缓存当前的大小
+	 * 
+	 * @return 接收缓存大小，单位:Byte
+	 * @see #setRecvBufAutoGrow(int)
+	 */
+	public int getRecvBufSize() {
+		return mRecvBuf.size();
+	}
+	
+	/**
+	 * 设置接收缓存自动扩容<br>
+	 * 接收缓存写满时容量成倍增长，直到maxSize，突发数据较多的设备不会阻塞接收线程。
+	 * 达到上限后再按 {@link #setOverflowPolicy(OverflowPolicy)} 的策略处理。
+	 * 
+	 * @param maxSize 容量上限，单位:Byte。不大于当前容量时关闭自动扩容
+	 * @return 设置成功返回true，接收缓存为lock-free模式时返回false
+	 * @see RingByteBuffer#setAutoGrow(int)
+	 */
+	public boolean setRecvBufAutoGrow(int maxSize) {
+		return mRecvBuf.setAutoGrow(maxSize);
+	}
+	
+	/**
+	 * 收发数据的统计快照
+	 * 
+	 * @author t
+	 * @see BtSppComm#getTrafficStats()
+	 */
+	public static final class TrafficStats {
+		/** 常量:统计窗口 1秒 */
+		public static final int WINDOW_1S = 0;
+		/** 常量:统计窗口 10秒 */
+		public static final int WINDOW_10S = 1;
+		/** 常量:统计窗口 60秒 */
+		public static final int WINDOW_60S = 2;
+		/** 各统计窗口的长度，单位:秒 */
+		private static final int[] WINDOW_SECONDS = { 1, 10, 60 };
+
+		/** 接收、发送的字节数 */
+		public final long rxdBytes, txdBytes;
+		/** 接收、发送的帧数(读取/写入的次数) */
+		public final long rxdFrames, txdFrames;
+		/** 接收、发送速率的峰值(整秒)，单位:Byte/s */
+		public final long rxdPeakRate, txdPeakRate;
+		/** 分帧时解出(校验通过)的帧数和丢弃(解码或CRC校验失败)的帧数，没有设置帧解码器时为0 */
+		public final long rxdGoodFrames, rxdBadFrames;
+		/** 接收缓存当前的大小和曾经达到的最大数据量，单位:Byte */
+		public final int recvBufSize, recvBufHighWater;
+		/** 连接保持的时间，单位:秒 */
+		public final long connectHoldTime;
+		/** 各窗口的平均速率，下标为WINDOW_xxx */
+		private final long[] mRxdRate = new long[WINDOW_SECONDS.length];
+		private final long[] mTxdRate = new long[WINDOW_SECONDS.length];
+		private final long[] mRxdFrameRate = new long[WINDOW_SECONDS.length];
+		private final long[] mTxdFrameRate = new long[WINDOW_SECONDS.length];
+
+		TrafficStats(ThroughputMeter rxd, ThroughputMeter txd, long goodFrames, long badFrames,
+				int bufSize, int highWater, long holdTime) {
+			rxdBytes = rxd.getTotalBytes();
+			txdBytes = txd.getTotalBytes();
+			rxdFrames = rxd.getTotalFrames();
+			txdFrames = txd.getTotalFrames();
+			rxdPeakRate = rxd.getPeakByteRate();
+			txdPeakRate = txd.getPeakByteRate();
+			rxdGoodFrames = goodFrames;
+			rxdBadFrames = badFrames;
+			recvBufSize = bufSize;
+			recvBufHighWater = highWater;
+			connectHoldTime = holdTime;
+			for (int i = 0; i < WINDOW_SECONDS.length; i++) {
+				mRxdRate[i] = rxd.getByteRate(WINDOW_SECONDS[i]);
+				mTxdRate[i] = txd.getByteRate(WINDOW_SECONDS[i]);
+				mRxdFrameRate[i] = rxd.getFrameRate(WINDOW_SECONDS[i]);
+				mTxdFrameRate[i] = txd.getFrameRate(WINDOW_SECONDS[i]);
 			}
 		}
 
 		/**
-		 * 获取发送的字节数
+		 * 接收速率
 		 * 
-		 * @return 发送字节数总和
+		 * @param window 统计窗口 WINDOW_1S / WINDOW_10S / WINDOW_60S
+		 * @return Byte/s
 		 */
-		public long getTxdCount() {
-			return mTxdCount;
+		public long getRxdRate(int window) {
+			return mRxdRate[window];
 		}
-		
+
 		/**
-		 * 设置发送字节数
+		 * 发送速率
 		 * 
-		 * @param txdCount
+		 * @param window 统计窗口 WINDOW_1S / WINDOW_10S / WINDOW_60S
+		 * @return Byte/s
 		 */
-		private void setTxdCount(long txdCount) {
-			mTxdCount = txdCount;
+		public long getTxdRate(int window) {
+			return mTxdRate[window];
 		}
-		
+
 		/**
-		 * 增加发送字节数
+		 * 接收帧率
 		 * 
-		 * @param txdn 增加的字节数
+		 * @param window 统计窗口 WINDOW_1S / WINDOW_10S / WINDOW_60S
+		 * @return 帧/s
 		 */
-		public void addTxdCount(long txdn) {
-			synchronized (mRxdCount) {
-				mTxdCount += txdn;
-			}
+		public long getRxdFrameRate(int window) {
+			return mRxdFrameRate[window];
 		}
-		
+
 		/**
-		 * 初始化计数
+		 * 发送帧率
+		 * 
+		 * @param window 统计窗口 WINDOW_1S / WINDOW_10S / WINDOW_60S
+		 * @return 帧/s
 		 */
-		public void reset() {
-			setTxdCount(0);
-			setRxdCount(0);
+		public long getTxdFrameRate(int window) {
+			return mTxdFrameRate[window];
 		}
 	}
 
+	/**
+	 * 获取收发数据的统计快照，不加锁，可以在UI线程中定时调用
+	 * 
+	 * @return TrafficStats
+	 * */
+	public TrafficStats getTrafficStats() {
+		return new TrafficStats(mRxdMeter, mTxdMeter, mRxdGoodFrames.get(), mRxdBadFrames.get(),
+				mRecvBuf.size(), mRecvBufHighWater, getConnectHoldTime());
+	}
+
 	/**
 	 * 获取连接保持的时间
 	 * 
@@ -186,29 +484,116 @@ public abstract class BtSppComm {
 	 * @return void
 	 * */
 	public void closeConn() {
-		if (!isConnect())
-			return;
+		shutdown(false);
+	}
+
+	/**
+	 * 关闭连接并停止接收线程
+	 * 
+	 * @param lost true:连接丢失 / false:调用了closeConn()，传给 {@link OnReceiveListener#onDisconnected(boolean)}
+	 * @return true:本次调用关闭了连接 / false:连接已经是关闭的
+	 * */
+	private boolean shutdown(boolean lost) {
 		synchronized (mBtRdWrLock) {
+			if (!mConnected)
+				return false;
+			mLost = lost; // 关闭输入流使接收线程退出，之前设置
 			try {
 				if (null != mInStream)
 					mInStream.close();
 				if (null != mOutStream)
 					mOutStream.close();
-
-				if (null != mBtSocket) {
-					mBtSocket.close();
-					mBtSocket = null;
-				}
-
 			} catch (IOException e) {
-				// 任何一部分报错，都将强制关闭socket连接
+				// 任何一部分报错，都将强制关闭连接
+			} finally { // 保存连接中断时间
+				closeTransport();
 				mInStream = null;
 				mOutStream = null;
-				mBtSocket = null;
-			} finally { // 保存连接中断时间
+				mConnected = false;
 				mConnCloseTimestamp = System.currentTimeMillis();
 			}
 		}
+		mRecvBuf.close(); // 唤醒等待接收数据的线程，之后的等待立即返回，直到重新连接
+		stopRecvThread();
+		stopSendThread();
+
+		SpillFile spill = mSpill;
+		if (null != spill)
+			spill.reset(); // 连接关闭后磁盘缓存中的数据不再有效
+		stopCapture(); // 接收、发送线程已停止，捕获的数据全部写入文件
+		stopRecord();
+		return true;
+	}
+
+	/**
+	 * 连接意外中断时的处理：关闭连接，并回调连接丢失的监听器
+	 * */
+	private void connectionLost() {
+		final OnConnectionLostListener listener;
+		Executor executor;
+
+		if (!shutdown(true))
+			return; // 已经被关闭，不重复通知
+
+		synchronized (this) {
+			listener = mConnLostListener;
+			executor = mConnLostExecutor;
+		}
+		if (null == listener)
+			return;
+
+		if (null == executor) {
+			listener.onConnectionLost(this);
+		} else {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					listener.onConnectionLost(BtSppComm.this);
+				}
+			});
+		}
+	}
+
+	/**
+	 * 设置连接丢失的监听器
+	 * 
+	 * @param listener 监听器，为null时取消监听
+	 * @param executor 执行回调的Executor，例如转到UI线程执行的Executor；
+	 *            为null时直接在发现连接丢失的线程(接收线程或发送数据的线程)中回调
+	 * @return void
+	 * */
+	synchronized public void setOnConnectionLostListener(OnConnectionLostListener listener, Executor executor) {
+		mConnLostListener = listener;
+		mConnLostExecutor = executor;
+	}
+
+	/**
+	 * 设置接收线程的优先级，接收线程已启动时立即生效
+	 * 
+	 * @param priority 优先级 Thread.MIN_PRIORITY ~ Thread.MAX_PRIORITY，默认为Thread.NORM_PRIORITY
+	 * @return void
+	 * */
+	public void setRecvThreadPriority(int priority) {
+		RecvThread thread = mRecvThread;
+
+		if (priority < Thread.MIN_PRIORITY)
+			priority = Thread.MIN_PRIORITY;
+		else if (priority > Thread.MAX_PRIORITY)
+			priority = Thread.MAX_PRIORITY;
+		mRecvThreadPriority = priority;
+
+		if (null != thread)
+			thread.setPriority(priority);
+	}
+
+	/**
+	 * 关闭传输层，忽略关闭时的错误
+	 * */
+	private void closeTransport() {
+		try {
+			mTransport.close();
+		} catch (IOException e) {
+		}
 	}
 
 	/**
@@ -218,44 +603,43 @@ public abstract class BtSppComm {
 	 * @return boolean false:连接创建失败 / true:连接创建成功
 	 * */
 	final public boolean createConn() {
-		if (!mBtAdapter.isEnabled())
-			return false;
-
 		// 如果连接已经存在，则断开连接
 		if (isConnect())
 			closeConn();
 
-		/* 开始连接蓝牙设备 */
-		final BluetoothDevice BtDev = mBtAdapter.getRemoteDevice(mMac);
-		final UUID uuidSPP = UUID.fromString(BtSppClient.SPP_UUID);
-
 		synchronized (mBtRdWrLock) {
 			try {
-				// 得到设备连接后，立即创建SPP连接
-				if (Build.VERSION.SDK_INT >= 10) {
-					// 2.3.3以上的设备需要用这个方式创建通信连接
-					mBtSocket = BtDev.createInsecureRfcommSocketToServiceRecord(uuidSPP);
-				} else {
-					// 创建SPP连接 API level 5
-					mBtSocket = BtDev.createRfcommSocketToServiceRecord(uuidSPP);
-				}
-
-
-				mBtSocket.connect();
-				mOutStream = mBtSocket.getOutputStream();// 获取全局输出流对象
-				mInStream = mBtSocket.getInputStream(); // 获取流输入对象
+				mTransport.connect();
+				mOutStream = mTransport.getOutputStream();// 获取全局输出流对象
+				mInStream = mTransport.getInputStream(); // 获取流输入对象
+				mRecvBuf.reopen();
+				resetFrameCounts(); // 帧数只统计本次连接
+				mConnected = true;
 				mConnEstablishedTimestamp = System.currentTimeMillis(); // 保存连接建立时间
 			} catch (IOException e) {
-				closeConn();// 断开连接
+				closeTransport();// 断开连接
+				mInStream = null;
+				mOutStream = null;
 				return false;
 			} finally {
 				mConnCloseTimestamp = 0; // 连接终止时间初始化
 			}
 		}
 
+		if (null != mRecvListener)
+			runRecvThreadIfNot(); // 推送方式下连接建立后立即开始接收
 		return true;
 	}
 
+	/**
+	 * 获取传输层
+	 * 
+	 * @return Transport
+	 * */
+	public Transport getTransport() {
+		return mTransport;
+	}
+
 	/**
 	 * 设备的通信是否已建立
 	 * 
@@ -263,7 +647,7 @@ public abstract class BtSppComm {
 	 * */
 	public boolean isConnect() {
 		synchronized (mBtRdWrLock) {
-			return mBtSocket == null ? false : true;
+			return mConnected;
 		}
 	}
 
@@ -273,7 +657,7 @@ public abstract class BtSppComm {
 	 * @return long
 	 * */
 	public long getRxdCount() {
-		return rxdTxdCount.getRxdCount();
+		return mRxdMeter.getTotalBytes();
 	}
 
 	/**
@@ -282,7 +666,25 @@ public abstract class BtSppComm {
 	 * @return long
 	 * */
 	public long getTxdCount() {
-		return rxdTxdCount.getTxdCount();
+		return mTxdMeter.getTotalBytes();
+	}
+
+	/**
+	 * 最近1秒的接收速率，只读取计数器，不生成 {@link TrafficStats} 快照
+	 * 
+	 * @return Byte/s
+	 * */
+	public long getRxdRate() {
+		return mRxdMeter.getByteRate(1);
+	}
+
+	/**
+	 * 最近1秒的发送速率，只读取计数器，不生成 {@link TrafficStats} 快照
+	 * 
+	 * @return Byte/s
+	 * */
+	public long getTxdRate() {
+		return mTxdMeter.getByteRate(1);
 	}
 
 	/**
@@ -295,182 +697,1292 @@ public abstract class BtSppComm {
 	}
 
 	/**
-	 * 发送数据
+	 * 设置接收缓存满时的处理策略<br />
+	 * 默认为OverflowPolicy.BLOCK。
 	 * 
-	 * @param byte bD[] 需要发送的数据位
-	 * @return int >=0 发送正常, -2:连接未建立; -3:连接丢失
+	 * @param policy 处理策略
+	 * @return false:当前配置不支持该策略(lock-free模式下或设置了帧解码器时的DROP_OLDEST，或未设置磁盘缓存文件的SPILL_TO_DISK)
+	 * @see #setSpillFile(File)
 	 * */
-	protected int sendData(byte[] data) {
-		if (!isConnect())
-			return -2;
-
-		try {
-			// 发送字符串值
-			mOutStream.write(data);
-			
-			rxdTxdCount.addTxdCount(data.length);
+	synchronized public boolean setOverflowPolicy(OverflowPolicy policy) {
+		/* 接收线程丢弃最早的数据会移动缓存的头部，帧解码器保存的搜索进度随之失效 */
+		if (OverflowPolicy.DROP_OLDEST == policy && (mRecvBuf.isLockFree() || null != mRecvFrameDecoder))
+			return false;
+		if (OverflowPolicy.SPILL_TO_DISK == policy && null == mSpill)
+			return false;
 
-			return data.length;
-		} catch (IOException e) {
-			// 到这儿表示蓝牙连接已经丢失，关闭socket
-			this.closeConn();
-			return -3;
-		}
+		mOverflowPolicy = policy;
+		return true;
 	}
 
 	/**
-	 * 接收数据<br />
-	 * <strong>备注:</strong>getRecvBufLen()>0时，本函数能够取出数据。一般在线程中使用这个函数
+	 * 获取接收缓存满时的处理策略
 	 * 
-	 * @return null:未连接或连接中断/byte[]:取到的新数据
+	 * @return OverflowPolicy
 	 * */
-	final protected byte[] recvData() {
-		if (!isConnect())
-			return null;
-
-		runRecvThreadIfNot();
-		
-		return mRecvBuf.read();
+	public OverflowPolicy getOverflowPolicy() {
+		return mOverflowPolicy;
 	}
 
 	/**
-	 * 接收数据（带结束标识符的接收方式）<br />
-	 * <strong>注意:</strong>本函数以阻塞模式工作，如果未收到结束符，将一直等待。<br />
-	 * <strong>备注:</strong>只有遇到结束标示符时才会终止等待，并送出结果。适合于命令行模式。<br />
-	 * 如果想要终止阻塞等待可调用killRecvData_StopFlg()
+	 * 设置SPILL_TO_DISK策略使用的磁盘缓存文件<br />
+	 * 文件在第一次溢出时创建，连接关闭时删除；只能设置一次。
 	 * 
-	 * @param btStopFlg
-	 *            结束符 (例如: '\n')
-	 * @return null:未连接或连接中断/byte[]:取到数据
+	 * @param file 磁盘缓存文件
+	 * @return false:已经设置过磁盘缓存文件
+	 * @see #setOverflowPolicy(OverflowPolicy)
 	 * */
-	final protected byte[] recvData_StopFlg(byte[] btStopFlg) {
-		byte[] ret = null; // 临时输出缓存
-
-		if (!isConnect())
-			return null;
-
-		runRecvThreadIfNot();
-
-		synchronized (mKillRecvData_StopFlg) {
-			mKillRecvData_StopFlg = false; // 可用killRecvData_StopFlg()来终止阻塞状态
-		}
-
-		mRecvBuf.setSeparator(btStopFlg);
-		while (isConnect()) {
-			synchronized (mKillRecvData_StopFlg) {
-				if (mKillRecvData_StopFlg)
-					break;
-			}
-
-			if ((ret = mRecvBuf.readline()) != null)
-				return ret;
-
-			SystemClock.sleep(50);// 死循环，等待数据回复
-		}
+	synchronized public boolean setSpillFile(File file) {
+		if (null != mSpill)
+			return false;
 
-		return ret;
+		mSpill = new SpillFile(file);
+		return true;
 	}
 
 	/**
-	 * 强制终止ReceiveData_StopFlg()的阻塞等待状态
+	 * 获取接收缓存满时被处理策略影响的字节数
 	 * 
-	 * @return void
-	 * @see 必须在ReceiveData_StopFlg()执行后，才有使用价值
+	 * @param policy 处理策略
+	 * @return BLOCK:等待空间后才写入的字节数 / DROP_OLDEST:丢弃的旧数据字节数 /
+	 *         DROP_NEWEST:丢弃的新数据字节数(包括磁盘缓存写入失败的数据) / SPILL_TO_DISK:写入磁盘缓存的字节数
 	 * */
-	public void killReceiveData_StopFlg() {
-		synchronized (mKillRecvData_StopFlg) {
-			mKillRecvData_StopFlg = true;
+	public long getOverflowCount(OverflowPolicy policy) {
+		return mOverflowCounts.get(policy.ordinal());
+	}
+
+	/**
+	 * 开始捕获：把从输入流读到的原始数据(以及可选的写入输出流的数据)原样追加到文件中<br />
+	 * 在接收线程读到数据后、交给接收缓存或监听器之前复制一份，与接收方式(轮询、推送、按行、按帧)无关，
+	 * 接收缓存的溢出策略也不影响捕获。文件由后台线程定时写入，不阻塞接收和发送；磁盘跟不上时丢弃的字节数见
+	 * {@link #getCaptureDroppedBytes()}。连接关闭时自动停止。
+	 * 
+	 * @param rxdFile 接收数据的文件
+	 * @param txdFile 发送数据的文件，为null时不捕获发送数据
+	 * @return false:已经在捕获，或文件无法打开
+	 * @see #stopCapture()
+	 * @see CaptureWriter
+	 * */
+	synchronized public boolean startCapture(File rxdFile, File txdFile) {
+		CaptureWriter rxd, txd = null;
+
+		if (null != mRxdCapture)
+			return false;
+		try {
+			rxd = new CaptureWriter(rxdFile);
+		} catch (IOException e) {
+			return false;
+		}
+		if (null != txdFile) {
+			try {
+				txd = new CaptureWriter(txdFile);
+			} catch (IOException e) {
+				rxd.close();
+				return false;
+			}
+		}
+		return startCapture(rxd, txd);
+	}
+
+	/**
+	 * 开始捕获到指定的输出，例如高速率长时间捕获时使用 {@link mobi.dzs.android.util.MappedCaptureWriter}，
+	 * 由接收线程直接写入映射的文件。其他同 {@link #startCapture(File, File)}，停止捕获时关闭输出。
+	 * 
+	 * @param rxd 接收数据的输出
+	 * @param txd 发送数据的输出，为null时不捕获发送数据
+	 * @return false:已经在捕获(输出不会被关闭)
+	 * @see #stopCapture()
+	 * */
+	synchronized public boolean startCapture(CaptureSink rxd, CaptureSink txd) {
+		if (null != mRxdCapture)
+			return false;
+		mLastCapture = null == txd ? new CaptureSink[] { rxd } : new CaptureSink[] { rxd, txd };
+		mTxdCapture = txd;
+		mRxdCapture = rxd;
+		return true;
+	}
+
+	/**
+	 * 停止捕获，等待缓冲中的数据写入文件后关闭文件<br />
+	 * 关闭时会等待后台线程写完文件，不持有任何锁，不影响收发；但可能耗时较长，不要在UI线程中调用
+	 * 
+	 * @return true:捕获的数据全部写入了文件 / false:没有在捕获，或有数据因缓冲满、写文件失败而丢弃
+	 * @see #startCapture(File, File)
+	 * */
+	public boolean stopCapture() {
+		CaptureSink rxd, txd;
+		boolean ok;
+
+		synchronized (this) { // 与startCapture()互斥，只在取下输出期间持有
+			rxd = mRxdCapture;
+			txd = mTxdCapture;
+			if (null == rxd)
+				return false;
+			synchronized (mRxdTeeLock) { // 等待接收线程正在进行的写入结束，之后不会再写入rxd
+				mRxdCapture = null;
+			}
+			synchronized (mTxdTeeLock) { // 等待正在写入的一块数据结束，之后不会再写入txd
+				mTxdCapture = null;
+			}
+		}
+		ok = rxd.close() && 0 == rxd.getDroppedBytes();
+		if (null != txd)
+			ok = txd.close() && 0 == txd.getDroppedBytes() && ok;
+		return ok;
+	}
+
+	/**
+	 * 开始记录：把从输入流读到的每一块数据(以及可选的写入输出流的数据)加上到达时间，写入记录文件<br />
+	 * 与 {@link #startCapture(File, File)} 在同一位置取得数据，但收发在同一个文件中，并保留每块数据的时间，
+	 * 可以用 {@link CaptureFile.Reader} 读取、用 {@link CaptureReplay} 回放。连接关闭时自动停止。
+	 * 
+	 * @param file 记录文件，同时生成索引文件 {@link CaptureFile#indexFile(File)}
+	 * @param withTxd 是否记录发送的数据
+	 * @return false:已经在记录，或文件无法创建
+	 * @see #stopRecord()
+	 * */
+	synchronized public boolean startRecord(File file, boolean withTxd) {
+		if (null != mRecorder)
+			return false;
+		try {
+			mRecordTxd = withTxd;
+			mRecorder = new CaptureFile.Recorder(file);
+		} catch (IOException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 停止记录，等待缓冲中的记录写入文件后关闭文件<br />
+	 * 关闭时不持有任何锁，不影响收发；但可能耗时较长，不要在UI线程中调用
+	 * 
+	 * @return true:全部数据已记录 / false:没有在记录，或有数据块因缓冲满、写文件失败而丢弃
+	 * @see #startRecord(File, boolean)
+	 * */
+	public boolean stopRecord() {
+		CaptureFile.Recorder recorder;
+
+		synchronized (this) { // 与startRecord()互斥，只在取下记录期间持有
+			recorder = mRecorder;
+			if (null == recorder)
+				return false;
+			synchronized (mRxdTeeLock) { // 等待收发双方正在进行的写入结束，之后不会再写入recorder
+				synchronized (mTxdTeeLock) {
+					mRecorder = null;
+				}
+			}
+		}
+		return recorder.close();
+	}
+
+	/**
+	 * 是否正在记录
+	 * 
+	 * @return boolean
+	 * */
+	public boolean isRecording() {
+		return null != mRecorder;
+	}
+
+	/**
+	 * 是否正在捕获
+	 * 
+	 * @return boolean
+	 * */
+	public boolean isCapturing() {
+		return null != mRxdCapture;
+	}
+
+	/**
+	 * 获取本次(或停止后最近一次)捕获已写入文件的字节数，接收与发送之和
+	 * 
+	 * @return 字节数，从未捕获过时为0
+	 * */
+	synchronized public long getCaptureBytes() {
+		long n = 0;
+
+		for (CaptureSink capture : mLastCapture)
+			n += capture.getWrittenBytes();
+		return n;
+	}
+
+	/**
+	 * 获取本次(或停止后最近一次)捕获因缓冲满或写文件失败而丢弃的字节数，接收与发送之和
+	 * 
+	 * @return 字节数，从未捕获过时为0
+	 * */
+	synchronized public long getCaptureDroppedBytes() {
+		long n = 0;
+
+		for (CaptureSink capture : mLastCapture)
+			n += capture.getDroppedBytes();
+		return n;
+	}
+
+	/**
+	 * 发送数据
+	 * 
+	 * @param byte bD[] 需要发送的数据位
+	 * @return int >=0 发送正常, -1:限速等待时被中断; -2:连接未建立; -3:连接丢失
+	 * @see #sendDataAsync(byte[], OnSendListener)
+	 * @see #setSendPacing(int, int, long)
+	 * */
+	protected int sendData(byte[] data) {
+		OutputStream out;
+
+		synchronized (mBtRdWrLock) {
+			if (!mConnected || null == (out = mOutStream))
+				return -2;
+		}
+
+		try {
+			// 发送字符串值
+			synchronized (mSendLock) {
+				writeOut(out, data, 0, data.length);
+			}
+
+			return data.length;
+		} catch (IOException e) {
+			// 到这儿表示蓝牙连接已经丢失，关闭socket
+			connectionLost();
+			return -3;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+	}
+
+	/**
+	 * 设置发送限速<br />
+	 * 数据按chunkSize分块写入，每块先从令牌桶中取得令牌，令牌不足时等待，平均速率不超过bytesPerSec；
+	 * 块与块之间至少间隔chunkGap毫秒。适用于SPP模块后面接收FIFO很小、连续写入会丢字节的设备。
+	 * 同步发送和异步发送都受限制，限速时sendData()会阻塞更长时间，建议使用异步发送
+	 * 
+	 * @param bytesPerSec 每秒最多发送的字节数，&lt;1时不限制速率
+	 * @param chunkSize 每块的最大字节数，也是允许连续突发的字节数，应不大于设备的接收FIFO。
+	 *            &lt;1时使用默认值 {@link #DEFAULT_SEND_CHUNK_SIZE}
+	 * @param chunkGap 块与块之间的最小间隔，单位:毫秒。0:不等待
+	 * @return void
+	 * */
+	public void setSendPacing(int bytesPerSec, int chunkSize, long chunkGap) {
+		if (chunkSize < 1)
+			chunkSize = DEFAULT_SEND_CHUNK_SIZE;
+		mSendChunkSize = chunkSize;
+		mSendChunkGap = TimeUnit.MILLISECONDS.toNanos(Math.max(0, chunkGap));
+		mSendPacer = bytesPerSec < 1 ? null : new TokenBucket(bytesPerSec, chunkSize);
+	}
+
+	/**
+	 * 取消发送限速
+	 * 
+	 * @return void
+	 * */
+	public void clearSendPacing() {
+		mSendPacer = null;
+		mSendChunkGap = 0;
+	}
+
+	/**
+	 * 写入输出流并记录发送统计，设置了发送限速时分块写入并按限速等待<br />
+	 * 调用者需持有mSendLock
+	 * 
+	 * @param out 输出流
+	 * @param data 数据
+	 * @param off 数据开始位置
+	 * @param len 数据长度
+	 * @throws IOException 写入出错
+	 * @throws InterruptedException 限速等待时被中断，已写入的部分不会撤回
+	 * */
+	private void writeOut(OutputStream out, byte[] data, int off, int len) throws IOException, InterruptedException {
+		TokenBucket pacer = mSendPacer;
+		long gap = mSendChunkGap, wait;
+		int chunk = mSendChunkSize, n;
+
+		if (null == pacer && 0 == gap) {
+			out.write(data, off, len);
+			mTxdMeter.record(len);
+			teeTxd(data, off, len);
+			return;
+		}
+
+		while (len > 0) {
+			n = Math.min(len, chunk);
+			if (gap > 0 && (wait = mLastChunkTime + gap - System.nanoTime()) > 0)
+				TimeUnit.NANOSECONDS.sleep(wait);
+			if (null != pacer)
+				pacer.acquire(n);
+			out.write(data, off, n);
+			mTxdMeter.record(n);
+			teeTxd(data, off, n);
+			mLastChunkTime = System.nanoTime();
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * 把已写入输出流的数据复制到捕获和记录<br />
+	 * 只在复制期间持有mTxdTeeLock，停止捕获或记录时不需要等待阻塞的写出
+	 * 
+	 * @param data 数据
+	 * @param off 数据开始位置
+	 * @param len 数据长度
+	 * */
+	private void teeTxd(byte[] data, int off, int len) {
+		CaptureSink capture;
+		CaptureFile.Recorder recorder;
+
+		if (null == mTxdCapture && (null == mRecorder || !mRecordTxd))
+			return;
+		synchronized (mTxdTeeLock) { // 与stopCapture()/stopRecord()互斥，关闭后不会再写入
+			if (null != (capture = mTxdCapture))
+				capture.write(data, off, len);
+			if (mRecordTxd && null != (recorder = mRecorder))
+				recorder.record(CaptureFile.TXD, data, off, len);
+		}
+	}
+
+	/**
+	 * 异步发送数据<br />
+	 * 数据放入发送队列后立即返回，由发送线程写出；队列中相邻的小数据包合并为一次写入，
+	 * 适合在UI线程中调用。与sendData()混用时，两者之间不保证先后顺序
+	 * 
+	 * @param data 需要发送的数据，放入队列后不要再修改。长度为0时不进入队列，立即以结果0结束
+	 * @param listener 发送结束的监听器，可以为null
+	 * @return Future 结果与 {@link OnSendListener#onSent(int)} 相同
+	 * @see #setSendBatch(int, long)
+	 * */
+	final protected Future<Integer> sendDataAsync(byte[] data, OnSendListener listener) {
+		SendFuture future = new SendFuture(data, listener);
+		SendThread thread;
+
+		if (0 == data.length) {
+			future.complete(0); // 没有数据，不占用队列
+			return future;
+		}
+		thread = runSendThreadIfNot();
+		if (null == thread)
+			future.complete(-2);
+		else if (!thread.mQueue.offer(future))
+			future.complete(-4);
+		else if (thread.mStopped && thread.mQueue.remove(future))
+			future.complete(-2); // 发送线程已经退出，不会再取出这个数据
+		return future;
+	}
+
+	/**
+	 * 设置异步发送的合并策略<br />
+	 * 发送线程取到数据后，继续从队列中取出后续数据拼成一次写入，直到达到batchSize或等待超过batchDelay。
+	 * batchDelay越大，每次写入的数据越多，但单个数据包的延迟也越大
+	 * 
+	 * @param batchSize 一次写入的最大字节数，&lt;1时不合并
+	 * @param batchDelay 等待后续数据的最长时间，单位:毫秒。0:只合并已在队列中的数据
+	 * @return void
+	 * */
+	public void setSendBatch(int batchSize, long batchDelay) {
+		mSendBatchSize = Math.max(1, batchSize);
+		mSendBatchDelay = Math.max(0, batchDelay);
+	}
+
+	/**
+	 * 设置发送队列的容量，下次启动发送线程(重新连接)时生效
+	 * 
+	 * @param size 队列中最多能容纳的数据包个数，&lt;1时使用默认值 {@link #DEFAULT_SEND_QUEUE_SIZE}
+	 * @return void
+	 * */
+	public void setSendQueueSize(int size) {
+		mSendQueueSize = size < 1 ? DEFAULT_SEND_QUEUE_SIZE : size;
+	}
+
+	/**
+	 * 发送队列中等待发送的数据包个数
+	 * 
+	 * @return int
+	 * */
+	public int getSendQueueLen() {
+		SendThread thread = mSendThread;
+		return null == thread ? 0 : thread.mQueue.size();
+	}
+
+	/**
+	 * 接收数据<br />
+	 * <strong>备注:</strong>getRecvBufLen()>0时，本函数能够取出数据。一般在线程中使用这个函数
+	 * 
+	 * @return null:未连接或连接中断/byte[]:取到的新数据
+	 * */
+	final protected byte[] recvData() {
+		return recvData(0);
+	}
+
+	/**
+	 * 接收数据，缓冲为空时等待数据到达<br />
+	 * <strong>备注:</strong>由接收线程写入数据时唤醒，不做轮询
+	 * 
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @return null:未连接、连接中断或等待超时/byte[]:取到的新数据
+	 * */
+	final protected byte[] recvData(long timeout) {
+		if (!isConnect())
+			return null;
+
+		runRecvThreadIfNot();
+		awaitRecvBuf(timeout, false);
+		
+		return mRecvBuf.read();
+	}
+
+	/**
+	 * 接收数据到调用者提供的数组<br />
+	 * <strong>备注:</strong>与recvData()相同，但不分配新的内存，适合在接收循环中重复使用同一个数组
+	 * 
+	 * @param dst 目标数组
+	 * @param off 目标数组开始位置
+	 * @param len 欲读取的最大字节数
+	 * @return -1:未连接或连接中断 / &gt;=0:取到的字节数
+	 * */
+	final protected int recvData(byte[] dst, int off, int len) {
+		return recvData(dst, off, len, 0);
+	}
+
+	/**
+	 * 接收数据到调用者提供的数组，缓冲为空时等待数据到达
+	 * 
+	 * @param dst 目标数组
+	 * @param off 目标数组开始位置
+	 * @param len 欲读取的最大字节数
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @return -1:未连接或连接中断 / &gt;=0:取到的字节数，等待超时返回0
+	 * */
+	final protected int recvData(byte[] dst, int off, int len, long timeout) {
+		if (!isConnect())
+			return -1;
+
+		runRecvThreadIfNot();
+		awaitRecvBuf(timeout, false);
+		
+		return mRecvBuf.read(dst, off, len);
+	}
+
+	/**
+	 * 接收数据（带结束标识符的接收方式）<br />
+	 * <strong>注意:</strong>本函数以阻塞模式工作，如果未收到结束符，将一直等待。<br />
+	 * <strong>备注:</strong>只有遇到结束标示符时才会终止等待，并送出结果。适合于命令行模式。<br />
+	 * 如果想要终止阻塞等待可调用killRecvData_StopFlg()
+	 * 
+	 * @param btStopFlg
+	 *            结束符 (例如: '\n')
+	 * @return null:未连接或连接中断/byte[]:取到数据
+	 * */
+	final protected byte[] recvData_StopFlg(byte[] btStopFlg) {
+		return recvData_StopFlg(btStopFlg, -1);
+	}
+
+	/**
+	 * 接收数据（带结束标识符的接收方式），最多等待timeout毫秒<br />
+	 * <strong>备注:</strong>由接收线程写入数据时唤醒，行到达后立即返回，不做轮询。<br />
+	 * 可调用killRecvData_StopFlg()终止等待
+	 * 
+	 * @param btStopFlg
+	 *            结束符 (例如: '\n')
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @return null:未连接、连接中断、被终止或等待超时/byte[]:取到数据
+	 * */
+	final protected byte[] recvData_StopFlg(byte[] btStopFlg, long timeout) {
+		return recvData_StopFlg(new byte[][]{btStopFlg}, timeout);
+	}
+
+	/**
+	 * 接收数据（带多个结束标识符的接收方式），最多等待timeout毫秒<br />
+	 * 遇到任意一个结束符即结束一行，用于行尾不统一的设备(例如 "\r\n"、"\n"、"\r" 混用)
+	 * 
+	 * @param btStopFlgs 结束符
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @return null:未连接、连接中断、被终止或等待超时/byte[]:取到数据
+	 * @see RingByteBuffer#setSeparators(byte[][])
+	 * */
+	final protected byte[] recvData_StopFlg(byte[][] btStopFlgs, long timeout) {
+		if (!prepareRecvData_StopFlg(btStopFlgs))
+			return null;
+
+		if (awaitRecvBuf(timeout, true))
+			return mRecvBuf.readline();
+
+		return null;
+	}
+
+	/**
+	 * 接收数据到调用者提供的数组（带结束标识符的接收方式）<br />
+	 * <strong>注意:</strong>与recvData_StopFlg(byte[])相同，以阻塞模式工作，但不分配新的内存。<br />
+	 * 数组空间不足以容纳整行时，先取出能容纳的部分。
+	 * 
+	 * @param btStopFlg
+	 *            结束符 (例如: '\n')
+	 * @param dst 目标数组
+	 * @param off 目标数组开始位置
+	 * @return -1:未连接、连接中断或被终止 / &gt;0:取到的字节数
+	 * */
+	final protected int recvData_StopFlg(byte[] btStopFlg, byte[] dst, int off) {
+		return recvData_StopFlg(btStopFlg, dst, off, -1);
+	}
+
+	/**
+	 * 接收数据到调用者提供的数组（带结束标识符的接收方式），最多等待timeout毫秒
+	 * 
+	 * @param btStopFlg
+	 *            结束符 (例如: '\n')
+	 * @param dst 目标数组
+	 * @param off 目标数组开始位置
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @return -1:未连接、连接中断或被终止 / 0:等待超时 / &gt;0:取到的字节数
+	 * */
+	final protected int recvData_StopFlg(byte[] btStopFlg, byte[] dst, int off, long timeout) {
+		return recvData_StopFlg(new byte[][]{btStopFlg}, dst, off, timeout);
+	}
+
+	/**
+	 * 接收数据到调用者提供的数组（带多个结束标识符的接收方式），最多等待timeout毫秒
+	 * 
+	 * @param btStopFlgs 结束符，遇到任意一个即结束一行
+	 * @param dst 目标数组
+	 * @param off 目标数组开始位置
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @return -1:未连接、连接中断或被终止 / 0:等待超时 / &gt;0:取到的字节数
+	 * @throws IllegalArgumentException 目标数组从off开始没有空间
+	 * */
+	final protected int recvData_StopFlg(byte[][] btStopFlgs, byte[] dst, int off, long timeout) {
+		if (off < 0 || off >= dst.length)
+			throw new IllegalArgumentException("no room in dst at offset " + off);
+		if (!prepareRecvData_StopFlg(btStopFlgs))
+			return -1;
+
+		if (awaitRecvBuf(timeout, true))
+			return mRecvBuf.readline(dst, off);
+
+		return (isConnect() && !mKillRecvData_StopFlg) ? 0 : -1;
+	}
+
+	/**
+	 * 接收一帧数据到调用者提供的数组，最多等待timeout毫秒<br />
+	 * 按 {@link #setRecvFrameDecoder(FrameDecoder)} 设置的解码器分帧，缓冲中只有半帧时等待后续数据到达，不做轮询。<br />
+	 * 可调用killReceiveData_StopFlg()终止等待
+	 * 
+	 * @param dst 目标数组，从off开始至少要有解码器最大帧长的空间
+	 * @param off 目标数组开始位置
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @return -1:未设置帧解码器、未连接、连接中断或被终止 / 0:等待超时 / &gt;0:帧的长度
+	 * */
+	final protected int recvData_Frame(byte[] dst, int off, long timeout) {
+		FrameDecoder decoder = mRecvFrameDecoder;
+		long deadline = deadlineOf(timeout);
+		long wait;
+		int n;
+
+		if (null == decoder || !isConnect())
+			return -1;
+
+		runRecvThreadIfNot();
+		mKillRecvData_StopFlg = false;
+		while (isConnect() && !mKillRecvData_StopFlg) {
+			refillRecvBuf();
+			if ((n = decodeRecvFrame(decoder, dst, off)) > 0)
+				return n;
+			if (timeout < 0)
+				wait = -1;
+			else if ((wait = remainMillis(deadline)) <= 0)
+				return 0;
+			// 缓冲中可能有半帧，等到解码器没有见过的新数据到达(或被终止、断开、磁盘缓存有新数据)后再解码
+			if (!mRecvBuf.awaitData(wait, decoder.getPendingBytes())
+					&& Thread.currentThread().isInterrupted())
+				break;
 		}
+
+		return (isConnect() && !mKillRecvData_StopFlg) ? 0 : -1;
+	}
+
+	/**
+	 * 带结束标识符接收的准备工作：启动接收线程，设置结束符，清除终止标志
+	 * 
+	 * @param btStopFlgs 结束符
+	 * @return false:未连接或连接中断
+	 * */
+	private boolean prepareRecvData_StopFlg(byte[][] btStopFlgs) {
+		if (!isConnect())
+			return false;
+
+		runRecvThreadIfNot();
+		mKillRecvData_StopFlg = false; // 可用killRecvData_StopFlg()来终止阻塞状态
+		mRecvBuf.setSeparators(btStopFlgs);
+
+		return true;
+	}
+
+	/**
+	 * 等待接收缓存中有数据或出现完整的一行，连接中断时返回<br />
+	 * 等待前会先从磁盘缓存中取回溢出的数据。等待行时，调用killRecvData_StopFlg()也会返回
+	 * 
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @param line 是否等待完整的行
+	 * @return true:有数据或完整的行可读
+	 * */
+	private boolean awaitRecvBuf(long timeout, boolean line) {
+		long deadline = deadlineOf(timeout);
+		long wait = timeout;
+
+		/* 断开连接时接收缓存被关闭，终止和磁盘缓存有新数据时被唤醒，等待返回后重新检查 */
+		while (isConnect() && !(line && mKillRecvData_StopFlg)) {
+			refillRecvBuf();
+			if (line ? mRecvBuf.awaitLine(wait) : mRecvBuf.awaitData(wait))
+				return true;
+			if (Thread.currentThread().isInterrupted())
+				break;
+			if (timeout >= 0 && (wait = remainMillis(deadline)) <= 0)
+				break;
+		}
+
+		return false;
+	}
+
+	/**
+	 * 计算等待的截止时间，使用System.nanoTime()，不受修改系统时间影响<br />
+	 * 超时过长(例如Long.MAX_VALUE)时限制在约146年，截止时间按差值比较不会溢出
+	 * 
+	 * @param timeout 最长等待时间，单位:毫秒，&lt;0时返回值无意义
+	 * @return 截止时间(System.nanoTime())
+	 * */
+	private static long deadlineOf(long timeout) {
+		return System.nanoTime() + Math.min(TimeUnit.MILLISECONDS.toNanos(Math.max(timeout, 0)), Long.MAX_VALUE / 2);
+	}
+
+	/**
+	 * 距离截止时间剩余的毫秒数，不足1毫秒按1毫秒计
+	 * 
+	 * @param deadline 截止时间(System.nanoTime())
+	 * @return 剩余的毫秒数，&lt;=0:已到截止时间
+	 * */
+	private static long remainMillis(long deadline) {
+		long nanos = deadline - System.nanoTime();
+
+		return nanos <= 0 ? 0 : (nanos + 999999L) / 1000000L;
+	}
+
+	/**
+	 * 把磁盘缓存中溢出的数据按顺序取回接收缓存
+	 * */
+	private void refillRecvBuf() {
+		SpillFile spill = mSpill;
+
+		if (null != spill && !spill.isEmpty())
+			spill.moveTo(mRecvBuf);
+	}
+
+	/**
+	 * 设置接收数据的监听器(推送方式)<br />
+	 * 设置后接收线程在数据到达时直接回调，recvData()系列函数不再能取到数据；设为null时恢复为读取方式。
+	 * 接收线程正在推送时等待本次推送结束后才修改，返回后接收线程不会再读接收缓存，调用者可以立即开始读取
+	 * 
+	 * @param listener 监听器，为null时取消推送
+	 * @param lineSeparators 行分隔符，任意一个都作为行的结束，为null时不分行，只回调onBytes
+	 * */
+	final protected void setRecvListener(OnReceiveListener listener, byte[][] lineSeparators) {
+		synchronized (mDispatchLock) {
+			mRecvLineSeparators = lineSeparators;
+			mRecvListener = listener;
+		}
+		if (null != listener && isConnect())
+			runRecvThreadIfNot();
+	}
+
+	/**
+	 * 获取接收数据的监听器
+	 * 
+	 * @return 监听器，读取方式时返回null
+	 * */
+	public OnReceiveListener getRecvListener() {
+		return mRecvListener;
+	}
+
+	/**
+	 * 获取推送方式下的行分隔符
+	 * 
+	 * @return 行分隔符，不分行时返回null
+	 * */
+	byte[][] getRecvLineSeparators() {
+		return mRecvLineSeparators;
+	}
+
+	/**
+	 * 推送方式下修改行分隔符，下次收到数据时生效
+	 * 
+	 * @param lineSeparators 行分隔符，任意一个都作为行的结束，为null时不分行
+	 * */
+	final protected void setRecvLineSeparators(byte[][] lineSeparators) {
+		mRecvLineSeparators = lineSeparators;
+	}
+
+	/**
+	 * 设置帧解码器<br />
+	 * 设置后推送方式下按帧回调onFrame(不再按行回调onLine)，读取方式下用recvData_Frame()取帧。
+	 * 接收缓存应能容纳编码后最长的一帧，否则这样的帧会被丢弃，需要时用setRecvBufAutoGrow()扩大接收缓存。
+	 * 需要校验时先用 {@link FrameDecoder#setCheck(mobi.dzs.android.util.Crc, boolean, boolean)} 设置CRC，
+	 * 校验失败的帧不会回调，解出和丢弃的帧数见 {@link TrafficStats}。不能与DROP_OLDEST策略同时使用
+	 * 
+	 * @param decoder 帧解码器，为null时不分帧
+	 * @return false:当前为DROP_OLDEST策略
+	 * @see FrameDecoder
+	 * @see #setOverflowPolicy(OverflowPolicy)
+	 * */
+	synchronized final protected boolean setRecvFrameDecoder(FrameDecoder decoder) {
+		if (null != decoder && OverflowPolicy.DROP_OLDEST == mOverflowPolicy)
+			return false;
+		mRecvFrameDecoder = decoder;
+		resetFrameCounts(); // 帧数只统计当前的解码器
+		return true;
+	}
+
+	/**
+	 * 清零解出和丢弃的帧数
+	 * */
+	private void resetFrameCounts() {
+		mRxdGoodFrames.set(0);
+		mRxdBadFrames.set(0);
+	}
+
+	/**
+	 * 获取帧解码器
+	 * 
+	 * @return 帧解码器，不分帧时返回null
+	 * */
+	public FrameDecoder getRecvFrameDecoder() {
+		return mRecvFrameDecoder;
+	}
+
+	/**
+	 * 把接收到的数据推送给监听器，只在接收线程中调用<br />
+	 * 需要分帧或分行时，数据先写入接收缓存，再按帧或按行取出回调onFrame/onLine
+	 * 
+	 * @param listener 监听器
+	 * @param data 数据
+	 * @param len 数据长度
+	 * */
+	private void dispatchRecvData(OnReceiveListener listener, byte[] data, int len) {
+		FrameDecoder decoder = mRecvFrameDecoder;
+		byte[][] seps = mRecvLineSeparators;
+		int off = 0, n;
+
+		if (null != decoder) {
+			dispatchRecvFrames(listener, decoder, data, len);
+			return;
+		}
+		if (null == seps) {
+			// 切换到推送方式前留在接收缓存中的数据先送出，保持顺序
+			if (!mRecvBuf.isEmpty()) {
+				ensurePushBuf();
+				while ((n = mRecvBuf.read(mPushBuf, 0, mPushBuf.length)) > 0)
+					listener.onBytes(mPushBuf, 0, n);
+			}
+			listener.onBytes(data, 0, len);
+			return;
+		}
+
+		listener.onBytes(data, 0, len);
+		mRecvBuf.setSeparators(seps);
+		while (off < len) {
+			off += mRecvBuf.write(data, off, len - off);
+			ensurePushBuf(); // 接收缓存可能已经扩容
+			// 缓存满且没有分隔符时readline会取出全部数据，因此写入总能继续
+			while ((n = mRecvBuf.readline(mPushBuf, 0)) > 0)
+				listener.onLine(mPushBuf, 0, n);
+		}
+	}
+
+	/**
+	 * 把接收到的数据写入接收缓存，按帧取出回调onFrame，只在接收线程中调用
+	 * 
+	 * @param listener 监听器
+	 * @param decoder 帧解码器
+	 * @param data 数据
+	 * @param len 数据长度
+	 * */
+	private void dispatchRecvFrames(OnReceiveListener listener, FrameDecoder decoder, byte[] data, int len) {
+		int off = 0, n;
+
+		listener.onBytes(data, 0, len);
+		if (null == mPushFrameBuf || mPushFrameBuf.length < decoder.getMaxFrameSize())
+			mPushFrameBuf = new byte[decoder.getMaxFrameSize()];
+		while (off < len) {
+			off += mRecvBuf.write(data, off, len - off);
+			// 缓存满且解不出帧时decode会丢弃缓存中的数据，因此写入总能继续
+			while ((n = decodeRecvFrame(decoder, mPushFrameBuf, 0)) > 0)
+				listener.onFrame(mPushFrameBuf, 0, n);
+		}
+	}
+
+	/**
+	 * 用帧解码器从接收缓存中取出一帧，同时累计解出和丢弃的帧数<br />
+	 * 推送方式下在接收线程中调用，读取方式下在recvData_Frame()的调用线程中调用，两者不会同时进行
+	 * 
+	 * @param decoder 帧解码器
+	 * @param dst 目标数组
+	 * @param off 目标数组开始位置
+	 * @return &gt;0:帧的长度 / 0:缓冲中没有完整的帧
+	 * */
+	private int decodeRecvFrame(FrameDecoder decoder, byte[] dst, int off) {
+		long bad = decoder.getBadFrameCount();
+		int n = decoder.decode(mRecvBuf, dst, off);
+
+		if (n > 0)
+			mRxdGoodFrames.incrementAndGet();
+		if ((bad = decoder.getBadFrameCount() - bad) > 0)
+			mRxdBadFrames.addAndGet(bad);
+		return n;
+	}
+
+	/**
+	 * 保证onLine使用的存储区能容纳接收缓存中的全部数据
+	 * */
+	private void ensurePushBuf() {
+		if (null == mPushBuf || mPushBuf.length < mRecvBuf.size())
+			mPushBuf = new byte[mRecvBuf.size()];
+	}
+
+	/**
+	 * 把接收到的数据写入接收缓存，缓存满时按照OverflowPolicy处理<br />
+	 * 只在接收线程中调用
+	 * 
+	 * @param data 数据
+	 * @param len 数据长度
+	 * */
+	private void storeRecvData(byte[] data, int len) {
+		SpillFile spill = mSpill;
+		OverflowPolicy policy = mOverflowPolicy;
+		int nwrite;
+
+		/* 磁盘缓存中还有数据时，新数据只能排在其后，否则会打乱顺序 */
+		if (null != spill && spill.store(data, len, OverflowPolicy.SPILL_TO_DISK == policy))
+			return;
+
+		switch (policy) {
+		case DROP_OLDEST:
+			mOverflowCounts.addAndGet(OverflowPolicy.DROP_OLDEST.ordinal(),
+					mRecvBuf.writeOverwrite(data, 0, len));
+			break;
+		case DROP_NEWEST:
+			nwrite = mRecvBuf.write(data, 0, len);
+			if (nwrite < len)
+				mOverflowCounts.addAndGet(OverflowPolicy.DROP_NEWEST.ordinal(), len - nwrite);
+			break;
+		default:
+			nwrite = mRecvBuf.write(data, 0, len);
+			if (nwrite < len)
+				mOverflowCounts.addAndGet(OverflowPolicy.BLOCK.ordinal(), len - nwrite);
+			while (nwrite < len) {
+				// 等待读出数据后唤醒，连接关闭(接收缓存被关闭)或线程被中断时放弃剩余数据
+				if (!mRecvBuf.awaitSpace(-1))
+					break;
+				nwrite += mRecvBuf.write(data, nwrite, len - nwrite);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * 强制终止ReceiveData_StopFlg()的阻塞等待状态
+	 * 
+	 * @return void
+	 * @see 必须在ReceiveData_StopFlg()执行后，才有使用价值
+	 * */
+	public void killReceiveData_StopFlg() {
+		mKillRecvData_StopFlg = true;
+		mRecvBuf.wakeup();
 	}
 	
 	/**
 	 * 如果数据接收线程未启动，则启动接收线程
 	 */
-	private void runRecvThreadIfNot() {
-		if (mRecvThread == null) {
-			mRecvThread = new RecvThread();
-			
-			if (Build.VERSION.SDK_INT >= 11) {
-				// LEVEL 11 时的特殊处理
-				mRecvThread.executeOnExecutor(FULL_TASK_EXECUTOR);
-			} else {
-				// 启动接收线程
-				mRecvThread.execute("");
+	synchronized private void runRecvThreadIfNot() {
+		InputStream in;
+
+		if (mRecvThread != null)
+			return;
+		synchronized (mBtRdWrLock) {
+			if (!mConnected || null == (in = mInStream))
+				return;
+		}
+
+		mRecvBuf.clear(); // 清空缓冲数据
+		mRecvThread = new RecvThread(in);
+		mRecvThread.setDaemon(true);
+		mRecvThread.setPriority(mRecvThreadPriority);
+		mRecvThread.start();
+	}
+
+	/**
+	 * 停止接收线程：中断并等待其结束，最多等待RECV_THREAD_JOIN_TIMEOUT毫秒<br />
+	 * 在接收线程中调用时不等待
+	 */
+	private void stopRecvThread() {
+		RecvThread thread;
+
+		synchronized (this) {
+			thread = mRecvThread;
+			mRecvThread = null;
+		}
+		if (null == thread)
+			return;
+
+		thread.interrupt();
+		if (thread == Thread.currentThread())
+			return;
+		try {
+			thread.join(RECV_THREAD_JOIN_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * 如果发送线程未启动，则启动发送线程
+	 * 
+	 * @return 发送线程，未连接时返回null
+	 */
+	synchronized private SendThread runSendThreadIfNot() {
+		OutputStream out;
+
+		if (mSendThread != null)
+			return mSendThread;
+		synchronized (mBtRdWrLock) {
+			if (!mConnected || null == (out = mOutStream))
+				return null;
+		}
+
+		mSendThread = new SendThread(out, mSendQueueSize);
+		mSendThread.setDaemon(true);
+		mSendThread.start();
+		return mSendThread;
+	}
+
+	/**
+	 * 停止发送线程，队列中未发送的数据以-2结束<br />
+	 * 写入可能阻塞在输出流上，连接关闭后才会返回，因此这里不等待线程结束
+	 */
+	private void stopSendThread() {
+		SendThread thread;
+
+		synchronized (this) {
+			thread = mSendThread;
+			mSendThread = null;
+		}
+		if (null != thread)
+			thread.interrupt();
+	}
+
+	/**
+	 * 异步发送的数据包及其结果
+	 * 
+	 * @author t
+	 *
+	 */
+	private static class SendFuture extends FutureTask<Integer> {
+		/** 不会被执行的任务，结果由complete()设置 */
+		private static final Callable<Integer> NOP = new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return 0;
+			}
+		};
+		/** 需要发送的数据 */
+		final byte[] mData;
+		/** 发送结束的监听器 */
+		private final OnSendListener mListener;
+		/** 发送结果 */
+		private volatile int mResult = -1;
+
+		SendFuture(byte[] data, OnSendListener listener) {
+			super(NOP);
+			mData = data;
+			mListener = listener;
+		}
+
+		/**
+		 * 设置发送结果，已取消时忽略
+		 * 
+		 * @param result 发送结果
+		 */
+		void complete(int result) {
+			mResult = result;
+			set(result);
+		}
+
+		@Override
+		protected void done() {
+			if (null != mListener)
+				mListener.onSent(isCancelled() ? -1 : mResult);
+		}
+	}
+
+	/**
+	 * 接收缓存溢出数据的磁盘缓存<br>
+	 * 由接收线程写入，由读数据的线程取回接收缓存，读写都在本对象上同步。
+	 * 只要磁盘缓存中还有数据，新收到的数据就必须排在其后，以保证数据顺序。
+	 * 
+	 * @author t
+	 *
+	 */
+	private class SpillFile {
+		/** 磁盘缓存文件 */
+		private final File mFile;
+		/** 文件读写对象，第一次溢出时才打开 */
+		private RandomAccessFile mRaf = null;
+		/** 文件中未取回数据的开始和结束位置 */
+		private volatile long mReadPos = 0, mWritePos = 0;
+		/** 取回数据时使用的临时存储区 */
+		private final byte[] mBuf = new byte[4096];
+
+		SpillFile(File file) {
+			mFile = file;
+		}
+
+		/**
+		 * 磁盘缓存中是否没有数据
+		 * 
+		 * @return 没有数据返回true
+		 */
+		public boolean isEmpty() {
+			return mReadPos == mWritePos;
+		}
+
+		/**
+		 * 保存接收到的数据
+		 * 
+		 * @param data 数据
+		 * @param len 数据长度
+		 * @param spill 当前策略是否为SPILL_TO_DISK
+		 * @return true:数据已写入接收缓存或磁盘缓存 / false:磁盘缓存为空且不是SPILL_TO_DISK策略，由调用者处理
+		 */
+		synchronized public boolean store(byte[] data, int len, boolean spill) {
+			int nwrite = 0;
+
+			if (isEmpty()) {
+				if (!spill)
+					return false;
+				if ((nwrite = mRecvBuf.write(data, 0, len)) == len)
+					return true;
+			}
+
+			try {
+				if (null == mRaf)
+					mRaf = new RandomAccessFile(mFile, "rw");
+				mRaf.seek(mWritePos);
+				mRaf.write(data, nwrite, len - nwrite);
+				mWritePos += len - nwrite;
+				mOverflowCounts.addAndGet(OverflowPolicy.SPILL_TO_DISK.ordinal(), len - nwrite);
+			} catch (IOException e) {
+				// 磁盘缓存写入失败，丢弃新数据
+				mOverflowCounts.addAndGet(OverflowPolicy.DROP_NEWEST.ordinal(), len - nwrite);
+			}
+			mRecvBuf.wakeup(); // 新数据只在磁盘缓存中，唤醒等待的线程去取回
+
+			return true;
+		}
+
+		/**
+		 * 按顺序取回数据，直到接收缓存满或磁盘缓存为空
+		 * 
+		 * @param ring 接收缓存
+		 */
+		synchronized public void moveTo(RingByteBuffer ring) {
+			int n;
+
+			try {
+				while (!isEmpty()) {
+					n = (int) Math.min(mWritePos - mReadPos, mBuf.length);
+					if ((n = Math.min(n, ring.size() - ring.remain())) < 1)
+						break;
+					mRaf.seek(mReadPos);
+					mRaf.readFully(mBuf, 0, n);
+					ring.write(mBuf, 0, n);
+					mReadPos += n;
+				}
+
+				if (isEmpty()) { // 数据已全部取回，截断文件
+					mReadPos = mWritePos = 0;
+					mRaf.setLength(0);
+				}
+			} catch (IOException e) {
+				// 磁盘缓存读取失败，丢弃剩余数据
+				mOverflowCounts.addAndGet(OverflowPolicy.DROP_NEWEST.ordinal(), mWritePos - mReadPos);
+				mReadPos = mWritePos = 0;
+			}
+		}
+
+		/**
+		 * 丢弃所有数据，关闭并删除磁盘缓存文件
+		 */
+		synchronized public void reset() {
+			mReadPos = mWritePos = 0;
+			if (null != mRaf) {
+				try {
+					mRaf.close();
+				} catch (IOException e) {
+				}
+				mRaf = null;
+				mFile.delete();
 			}
 		}
 	}
 
 	// ----------------
 	/** 多线程处理<br>
-	 * 接收数据的线程
+	 * 接收数据的线程，由BtSppComm管理生命周期：第一次接收时启动，closeConn()时中断并等待结束
 	 */
-	private class RecvThread extends AsyncTask<String, String, Integer> {
+	private class RecvThread extends Thread {
 		/** 常量:缓冲区最大空间 */
 		static private final int BUFF_MAX_CONUT = 1024;
-		/** 常量:连接丢失 */
-		static private final int CONNECT_LOST = 0x01;
-		/** 常量：接收线程正常结束 */
-		static private final int THREAD_END = 0x02;
+		/** 本线程读取的输入流 */
+		private final InputStream mIn;
 
-		/**
-		 * 线程启动初始化操作
-		 */
-		@Override
-		public void onPreExecute() {
-			mRecvThread = this;
-			/* 清空缓冲数据 */
-			mRecvBuf.clear();
+		RecvThread(InputStream in) {
+			super(RECV_THREAD_NAME);
+			mIn = in;
 		}
 
 		@Override
-		protected Integer doInBackground(String... arg0) {
+		public void run() {
 			int iReadCnt = 0; // 本次读取的字节数
 			byte[] btButTmp = new byte[BUFF_MAX_CONUT]; // 临时存储区
+			OnReceiveListener listener;
+			CaptureSink capture;
+			CaptureFile.Recorder recorder;
 
-			/* 只要连接建立完成就开始进入读取等待处理 */
-			while (isConnect()) {
-					try {
-						iReadCnt = mInStream.read(btButTmp); // 没有数据，将一直锁死在这个位置等待
-					} catch (IOException e) {
-						return CONNECT_LOST;
-					}
+			/* 只要连接建立完成就开始进入读取等待处理，closeConn()后退出 */
+			while (mRecvThread == this && !isInterrupted()) {
+				try {
+					iReadCnt = mIn.read(btButTmp); // 没有数据，将一直锁死在这个位置等待
+				} catch (IOException e) {
+					iReadCnt = -1;
+				}
+				if (iReadCnt < 0) { // 读取出错或对端关闭了连接
+					if (mRecvThread == this)
+						connectionLost();
+					break;
+				}
 
 				// 开始处理接收到的数据
-				rxdTxdCount.addRxdCount(iReadCnt);// 记录接收的字节总数
-				int nwrite = 0;
-				while (nwrite < iReadCnt) {
-					nwrite += mRecvBuf.write(btButTmp, nwrite, iReadCnt - nwrite);
-					try {
-						Thread.sleep(100);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
+				mRxdMeter.record(iReadCnt);// 记录接收的字节总数
+				if (null != mRxdCapture || null != mRecorder) {
+					synchronized (mRxdTeeLock) { // 与stopCapture()/stopRecord()互斥，关闭后不会再写入
+						if (null != (capture = mRxdCapture))
+							capture.write(btButTmp, 0, iReadCnt); // 在交给接收缓存或监听器之前捕获原始数据
+						if (null != (recorder = mRecorder))
+							recorder.record(CaptureFile.RXD, btButTmp, 0, iReadCnt);
 					}
 				}
+				synchronized (mDispatchLock) { // 与setRecvListener()互斥，推送期间监听器不会被换掉
+					if (null != (listener = mRecvListener))
+						dispatchRecvData(listener, btButTmp, iReadCnt);
+				}
+				if (null == listener) // 写入接收缓存可能阻塞，不能持有mDispatchLock
+					storeRecvData(btButTmp, iReadCnt);
+				if (mRecvBuf.remain() > mRecvBufHighWater)
+					mRecvBufHighWater = mRecvBuf.remain();
 			}
-			
-			return THREAD_END;
+
+			if (null != (listener = mRecvListener))
+				listener.onDisconnected(mLost);
+		}
+	}
+
+	/**
+	 * 异步发送的线程，由BtSppComm管理生命周期：第一次异步发送时启动，closeConn()时中断<br>
+	 * 每次从队列中取出尽量多的数据，合并成一次写入
+	 */
+	private class SendThread extends Thread {
+		/** 发送队列 */
+		final ArrayBlockingQueue<SendFuture> mQueue;
+		/** 线程已退出，不再从队列中取数据 */
+		volatile boolean mStopped = false;
+		/** 本线程写入的输出流 */
+		private final OutputStream mOut;
+
+		SendThread(OutputStream out, int queueSize) {
+			super(SEND_THREAD_NAME);
+			mOut = out;
+			mQueue = new ArrayBlockingQueue<SendFuture>(queueSize);
 		}
 
-		/**
-		 * 阻塞任务执行完后的清理工作
-		 */
 		@Override
-		public void onPostExecute(Integer result) {
-			mRecvThread = null;
+		public void run() {
+			ArrayList<SendFuture> batch = new ArrayList<SendFuture>();
+			byte[] buf = new byte[0]; // 合并数据的存储区
+			SendFuture next = null; // 放不进上一批、留到下一批的数据
+			int batchSize, len, i;
+			long deadline, wait;
+			int result = -2;
+
+			try {
+				while (mSendThread == this) {
+					if (null == next)
+						next = mQueue.take();
+					batchSize = mSendBatchSize;
+					deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mSendBatchDelay);
+
+					/* 取出一批数据，超过上限的数据包单独写入 */
+					len = 0;
+					do {
+						if (!next.isCancelled()) {
+							if (!batch.isEmpty() && len + next.mData.length > batchSize)
+								break;
+							batch.add(next);
+							len += next.mData.length;
+						}
+						if (len >= batchSize)
+							next = null;
+						else if ((wait = deadline - System.nanoTime()) > 0)
+							next = mQueue.poll(wait, TimeUnit.NANOSECONDS);
+						else
+							next = mQueue.poll();
+					} while (null != next && len < batchSize);
+					if (batch.isEmpty())
+						continue;
 
-			if (CONNECT_LOST == result) {
-				// 判断是否为串口连接失败
-				closeConn();
-			} else { // 正常结束，关闭接收流
-				synchronized (mBtRdWrLock) {
 					try {
-						mInStream.close();
-						mInStream = null;
+						synchronized (mSendLock) {
+							if (batch.size() == 1) {
+								writeOut(mOut, batch.get(0).mData, 0, len);
+							} else {
+								if (buf.length < len)
+									buf = new byte[Math.max(len, batchSize)];
+								len = 0;
+								for (i = 0; i < batch.size(); i++) {
+									System.arraycopy(batch.get(i).mData, 0, buf, len, batch.get(i).mData.length);
+									len += batch.get(i).mData.length;
+								}
+								writeOut(mOut, buf, 0, len);
+							}
+						}
 					} catch (IOException e) {
-						mInStream = null;
+						result = -3;
+						break;
 					}
+					for (i = 0; i < batch.size(); i++)
+						batch.get(i).complete(batch.get(i).mData.length);
+					batch.clear();
 				}
+			} catch (InterruptedException e) {
+				// closeConn()停止了发送线程
 			}
+
+			/* 未发送的数据全部结束，之后放入队列的数据由sendDataAsync()自己结束 */
+			mStopped = true;
+			if (null != next)
+				batch.add(next);
+			mQueue.drainTo(batch);
+			for (i = 0; i < batch.size(); i++)
+				batch.get(i).complete(result);
+
+			if (-3 == result && mSendThread == this)
+				connectionLost();
 		}
 	}
 }
@@ -0,0 +1,151 @@
+package mobi.dzs.android.bluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import mobi.dzs.android.util.CaptureFile;
+
+/**
+ * 回放收发记录
+ *
+ * <p>
+ * 把记录文件中接收的数据按原来的时间间隔(或按倍速加快)写入输出流。与 {@link LoopbackTransport} 一起使用时，
+ * 数据从回环的另一端写入，连接在这一端的 {@link BtSppClient} 收到的数据和时间间隔与记录时的设备相同，
+ * 可以在没有设备的情况下重现现场的问题：
+ *
+ * <pre>
+ * LoopbackTransport t = new LoopbackTransport(LoopbackTransport.DEFAULT_PIPE_SIZE, false);
+ * BtSppClient client = new BtSppClient(t);
+ * client.createConn();
+ * CaptureFile.Reader reader = new CaptureFile.Reader(file);
+ * reader.seek(startUs); // 可选，从指定的时间开始
+ * CaptureReplay replay = CaptureReplay.forLoopback(reader, t);
+ * replay.setSpeed(4); // 4倍速
+ * replay.run();
+ * </pre>
+ *
+ * 发送的记录(TXD)是当时应用发出的数据，回放时跳过，只计数。run()会阻塞，需要在线程中调用。
+ *
+ * @author t
+ * @see CaptureFile
+ * @see BtSppComm#startRecord(java.io.File, boolean)
+ */
+public class CaptureReplay {
+	/** 常量:等待时间短于这个值时不等待，直接写出(ns) */
+	private static final long MIN_SLEEP = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/** 读取的记录文件 */
+	private final CaptureFile.Reader mReader;
+	/** 回放的输出 */
+	private final OutputStream mOut;
+	/** 回放速度，1为原速，&lt;=0为不等待 */
+	private volatile double mSpeed = 1;
+	/** 终止回放的标志 */
+	private volatile boolean mCancel = false;
+	/** 已回放的字节数、接收记录数、跳过的发送记录数 */
+	private volatile long mBytes = 0, mRecords = 0, mSkipped = 0;
+
+	/**
+	 * 构造函数
+	 *
+	 * @param reader 记录文件，从它的当前位置开始回放
+	 * @param out 回放的输出
+	 */
+	public CaptureReplay(CaptureFile.Reader reader, OutputStream out) {
+		mReader = reader;
+		mOut = out;
+	}
+
+	/**
+	 * 回放到回环传输层：数据从回环的另一端写入，由连接在transport上的通信对象接收
+	 *
+	 * @param reader 记录文件
+	 * @param transport 以对端方式构造的回环(LoopbackTransport(size, false))
+	 * @return CaptureReplay
+	 * @throws IOException 另一端无法连接
+	 * @throws IllegalArgumentException transport为回显方式，没有另一端
+	 */
+	public static CaptureReplay forLoopback(CaptureFile.Reader reader, LoopbackTransport transport) throws IOException {
+		LoopbackTransport peer = transport.getPeer();
+
+		if (null == peer)
+			throw new IllegalArgumentException("echo loopback has no peer");
+		peer.connect();
+		return new CaptureReplay(reader, peer.getOutputStream());
+	}
+
+	/**
+	 * 设置回放速度，run()开始时生效
+	 *
+	 * @param speed 1:按原来的时间间隔 / 2:两倍速 ... / &lt;=0:不等待，以最快速度回放
+	 */
+	public void setSpeed(double speed) {
+		mSpeed = speed;
+	}
+
+	/**
+	 * 回放到记录文件结束或被终止
+	 *
+	 * @return 回放的字节数
+	 * @throws IOException 读记录文件或写输出出错
+	 * @throws InterruptedException 等待时被中断
+	 */
+	public long run() throws IOException, InterruptedException {
+		double speed = mSpeed;
+		long startNanos = 0, firstUs = -1, wait;
+
+		while (!mCancel && mReader.next()) {
+			if (CaptureFile.RXD != mReader.getType()) {
+				mSkipped++;
+				continue;
+			}
+			if (firstUs < 0) {
+				firstUs = mReader.getTime();
+				startNanos = System.nanoTime();
+			} else if (speed > 0) {
+				wait = startNanos + (long) ((mReader.getTime() - firstUs) * 1000 / speed) - System.nanoTime();
+				if (wait >= MIN_SLEEP)
+					TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			mOut.write(mReader.getData(), 0, mReader.getLength());
+			mBytes += mReader.getLength();
+			mRecords++;
+		}
+		return mBytes;
+	}
+
+	/**
+	 * 终止回放，run()在写完当前记录后返回
+	 */
+	public void cancel() {
+		mCancel = true;
+	}
+
+	/**
+	 * 获取已回放的字节数
+	 *
+	 * @return 字节数
+	 */
+	public long getBytes() {
+		return mBytes;
+	}
+
+	/**
+	 * 获取已回放的接收记录数
+	 *
+	 * @return 记录数
+	 */
+	public long getRecords() {
+		return mRecords;
+	}
+
+	/**
+	 * 获取跳过的发送记录数
+	 *
+	 * @return 记录数
+	 */
+	public long getSkippedRecords() {
+		return mSkipped;
+	}
+}
@@ -0,0 +1,265 @@
+package mobi.dzs.android.bluetooth;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import mobi.dzs.android.bluetooth.BtSppComm.OnReceiveListener;
+import mobi.dzs.android.util.CHexConver;
+import mobi.dzs.android.util.LatencyHistogram;
+
+/**
+ * 往返延迟测试
+ *
+ * <p>
+ * 反复发送ping数据，等待设备的应答中出现匹配的字节序列(回显设备为ping本身，命令/应答设备一般为应答的结束符)，
+ * 把发送到收到匹配之间的时间记录到 {@link LatencyHistogram}。一次只发送一个ping，收到应答或超时后才发送下一个。
+ *
+ * <p>
+ * 测试期间以读取方式接收数据：设置了接收监听器时先暂停推送，结束后恢复，测试期间收到的数据不会推送给监听器。
+ * 暂停和恢复都在执行run()的线程中进行，接收缓存始终只有一个读者。run()会阻塞，需要在线程中调用。
+ *
+ * @author t
+ * @see BtSppClient#newLatencyProbe(String, String)
+ */
+public class LatencyProbe {
+	/** 常量:默认的应答超时，单位:毫秒 */
+	public static final long DEFAULT_TIMEOUT = 2000;
+	/** 常量:默认的发送间隔，单位:毫秒 */
+	public static final long DEFAULT_INTERVAL = 100;
+
+	/** 通信对象 */
+	private final BtSppComm mComm;
+	/** ping数据 */
+	private final byte[] mPing;
+	/** 应答中需要匹配的字节序列 */
+	private final byte[] mMatch;
+	/** 应答超时 */
+	private volatile long mTimeout = DEFAULT_TIMEOUT;
+	/** 收到应答后到发送下一个ping的间隔 */
+	private volatile long mInterval = DEFAULT_INTERVAL;
+	/** 延迟统计，单位:微秒 */
+	private final LatencyHistogram mHistogram = new LatencyHistogram();
+	/** 超时的次数 */
+	private volatile int mTimeouts = 0;
+	/** 终止测试的标志 */
+	private volatile boolean mCancel = false;
+	/** 正在执行run()的线程，没有执行时为null */
+	private Thread mRunner = null;
+	/** run()正在等待应答，只有这时cancel()才中断线程 */
+	private boolean mInRecv = false;
+	/** cancel()中断了等待应答的线程，等待结束后清除中断标志 */
+	private boolean mInterrupted = false;
+	/** 丢弃旧数据用的存储区 */
+	private final byte[] mDrain = new byte[1024];
+	/** 测试期间暂停的接收监听器及其行分隔符，恢复后置为null */
+	private OnReceiveListener mPausedListener = null;
+	private byte[][] mPausedSeparators = null;
+
+	/**
+	 * 构造函数
+	 *
+	 * @param comm 通信对象，需要已建立连接
+	 * @param ping 发送的数据
+	 * @param match 应答中需要匹配的字节序列，为null时匹配ping本身(回显)
+	 */
+	public LatencyProbe(BtSppComm comm, byte[] ping, byte[] match) {
+		mComm = comm;
+		mPing = ping;
+		mMatch = (null == match || 0 == match.length) ? ping : match;
+	}
+
+	/**
+	 * 设置应答超时
+	 *
+	 * @param timeout 单位:毫秒
+	 */
+	public void setTimeout(long timeout) {
+		mTimeout = Math.max(1, timeout);
+	}
+
+	/**
+	 * 设置收到应答后到发送下一个ping的间隔
+	 *
+	 * @param interval 单位:毫秒。0:立即发送
+	 */
+	public void setInterval(long interval) {
+		mInterval = Math.max(0, interval);
+	}
+
+	/**
+	 * 执行测试，结果累加到延迟统计中
+	 *
+	 * @param count ping的次数
+	 * @return &gt;=0:本次记录的延迟个数 / -1:连接未建立或连接丢失 / -2:被cancel()终止
+	 */
+	public int run(int count) {
+		long start;
+		int ok = 0;
+
+		synchronized (this) {
+			mCancel = false;
+			mRunner = Thread.currentThread();
+		}
+		pauseListener();
+		try {
+			for (int i = 0; i < count; i++) {
+				if (mCancel)
+					return -2;
+				// 丢弃上一个ping之后到达的数据(例如超时后才到的应答)，避免被当作本次的应答
+				while (mComm.recvData(mDrain, 0, mDrain.length) > 0)
+					;
+
+				start = System.nanoTime();
+				if (mComm.sendData(mPing) < 0)
+					return mCancel ? -2 : -1;
+				if (null != recvReply()) {
+					mHistogram.record((System.nanoTime() - start) / 1000);
+					ok++;
+				} else if (mCancel) {
+					return -2;
+				} else if (!mComm.isConnect()) {
+					return -1;
+				} else {
+					mTimeouts++;
+				}
+
+				if (mInterval > 0 && i < count - 1 && !sleepInterval())
+					return -2;
+			}
+		} finally {
+			resumeListener();
+			synchronized (this) {
+				mRunner = null;
+				notifyAll();
+			}
+		}
+		return ok;
+	}
+
+	/**
+	 * 终止正在执行的测试，已记录的延迟保留<br>
+	 * 等待run()返回，暂停的接收监听器在返回前就已恢复，调用者之后可以立即移除监听器
+	 */
+	synchronized public void cancel() {
+		mCancel = true;
+		notifyAll(); // 唤醒发送间隔的等待
+		if (null == mRunner || mRunner == Thread.currentThread())
+			return;
+		if (mInRecv) {
+			/* 中断标志不会像killReceiveData_StopFlg()那样在开始等待时被清除；只在等待应答时中断，不影响发送 */
+			mInterrupted = true;
+			mRunner.interrupt();
+		}
+		while (null != mRunner) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 等待应答，cancel()时中断等待
+	 *
+	 * @return 应答数据 / null:超时、连接丢失或被终止
+	 */
+	private byte[] recvReply() {
+		synchronized (this) {
+			if (mCancel)
+				return null;
+			mInRecv = true;
+		}
+		try {
+			return mComm.recvData_StopFlg(mMatch, mTimeout);
+		} finally {
+			synchronized (this) {
+				mInRecv = false;
+				if (mInterrupted) {
+					mInterrupted = false;
+					Thread.interrupted(); // 清除cancel()设置的中断标志
+				}
+			}
+		}
+	}
+
+	/**
+	 * 发送下一个ping前等待mInterval，cancel()时提前返回
+	 *
+	 * @return false:被终止
+	 */
+	synchronized private boolean sleepInterval() {
+		long deadline = System.nanoTime() + mInterval * 1000000L;
+		long nanos;
+
+		while (!mCancel && (nanos = deadline - System.nanoTime()) > 0) {
+			try {
+				TimeUnit.NANOSECONDS.timedWait(this, nanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return !mCancel;
+	}
+
+	/**
+	 * 暂停推送，改为读取方式。返回时接收线程正在进行的推送已经结束
+	 */
+	private void pauseListener() {
+		mPausedListener = mComm.getRecvListener();
+		mPausedSeparators = mComm.getRecvLineSeparators();
+		if (null != mPausedListener)
+			mComm.setRecvListener(null, null);
+	}
+
+	/**
+	 * 恢复暂停的接收监听器，只恢复一次
+	 */
+	private void resumeListener() {
+		if (null != mPausedListener)
+			mComm.setRecvListener(mPausedListener, mPausedSeparators);
+		mPausedListener = null;
+		mPausedSeparators = null;
+	}
+
+	/**
+	 * 获取延迟统计
+	 *
+	 * @return 延迟直方图，单位:微秒
+	 */
+	public LatencyHistogram getHistogram() {
+		return mHistogram;
+	}
+
+	/**
+	 * 获取超时的次数
+	 *
+	 * @return 次数
+	 */
+	public int getTimeoutCount() {
+		return mTimeouts;
+	}
+
+	/**
+	 * 导出测试条件和结果，用于保存到文件后比较不同的设备、固件和手机
+	 *
+	 * @return 文本
+	 * @see LatencyHistogram#export()
+	 */
+	public String export() {
+		StringBuilder sb = new StringBuilder();
+		Transport transport = mComm.getTransport();
+
+		sb.append("transport\t").append(transport.getClass().getSimpleName());
+		if (transport instanceof RfcommTransport)
+			sb.append(' ').append(((RfcommTransport) transport).getMac());
+		sb.append("\nping_hex\t").append(CHexConver.bytesToHex(mPing));
+		sb.append("\nmatch_hex\t").append(CHexConver.bytesToHex(mMatch));
+		sb.append(String.format(Locale.US, "\ntimeout_ms\t%d\ninterval_ms\t%d\ntimeouts\t%d\n",
+				mTimeout, mInterval, mTimeouts));
+		sb.append(mHistogram.export());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,181 @@
+package mobi.dzs.android.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import mobi.dzs.android.util.RingByteBuffer;
+
+/**
+ * 内存回环传输层<br>
+ * 不需要蓝牙设备，可在普通JVM上驱动BtSppClient，测试接收缓存、分行等处理的吞吐量和延迟。
+ *
+ * <p>
+ * 两种工作方式:
+ * <ul>
+ * <li>回显: 写入输出流的数据原样从输入流读回</li>
+ * <li>对端: 由 {@link #getPeer()} 取得另一端，测试代码通过另一端模拟设备收发数据</li>
+ * </ul>
+ * 任意一端关闭后，两个方向的数据管道都被关闭；再次connect()时清空管道并重新打开。
+ *
+ * @author t
+ * @see Transport
+ */
+public class LoopbackTransport implements Transport {
+	/** 常量:默认管道缓存大小，64k */
+	public static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+
+	/** 本端读取的管道 */
+	private final Pipe mRxPipe;
+	/** 本端写入的管道 */
+	private final Pipe mTxPipe;
+	/** 另一端，回显方式时为null */
+	private final LoopbackTransport mPeer;
+
+	/**
+	 * 构造回显方式的回环
+	 */
+	public LoopbackTransport() {
+		this(DEFAULT_PIPE_SIZE, true);
+	}
+
+	/**
+	 * 构造函数
+	 *
+	 * @param pipeSize 管道缓存大小，单位:Byte
+	 * @param echo true:回显方式 / false:对端方式，用 {@link #getPeer()} 取得另一端
+	 */
+	public LoopbackTransport(int pipeSize, boolean echo) {
+		mRxPipe = new Pipe(pipeSize);
+		if (echo) {
+			mTxPipe = mRxPipe;
+			mPeer = null;
+		} else {
+			mTxPipe = new Pipe(pipeSize);
+			mPeer = new LoopbackTransport(mTxPipe, mRxPipe, this);
+		}
+	}
+
+	private LoopbackTransport(Pipe rx, Pipe tx, LoopbackTransport peer) {
+		mRxPipe = rx;
+		mTxPipe = tx;
+		mPeer = peer;
+	}
+
+	/**
+	 * 获取另一端
+	 *
+	 * @return 另一端，回显方式时返回null
+	 */
+	public LoopbackTransport getPeer() {
+		return mPeer;
+	}
+
+	@Override
+	public void connect() throws IOException {
+		mRxPipe.open();
+		mTxPipe.open();
+	}
+
+	@Override
+	public void close() throws IOException {
+		mRxPipe.close();
+		mTxPipe.close();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return mRxPipe.mIn;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return mTxPipe.mOut;
+	}
+
+	/**
+	 * 单向数据管道<br>
+	 * 以RingByteBuffer为缓存，读写双方由缓存的等待/唤醒机制同步。
+	 *
+	 * @author t
+	 */
+	private static class Pipe {
+		private final RingByteBuffer mBuf;
+		private volatile boolean mClosed = true;
+
+		private final InputStream mIn = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n;
+
+				if (len == 0)
+					return 0;
+				while ((n = mBuf.read(b, off, len)) == 0) {
+					if (mClosed) // 关闭前写入的数据仍然有效
+						return (n = mBuf.read(b, off, len)) > 0 ? n : -1;
+					if (!mBuf.awaitData(-1) && Thread.interrupted())
+						throw new InterruptedIOException();
+				}
+				return n;
+			}
+
+			@Override
+			public int available() throws IOException {
+				return mBuf.remain();
+			}
+		};
+
+		private final OutputStream mOut = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				int n;
+
+				while (len > 0) {
+					if (mClosed)
+						throw new IOException("pipe closed");
+					n = mBuf.write(b, off, len);
+					off += n;
+					len -= n;
+					if (len > 0 && !mBuf.awaitSpace(-1) && Thread.interrupted())
+						throw new InterruptedIOException();
+				}
+			}
+		};
+
+		Pipe(int size) {
+			mBuf = new RingByteBuffer(size);
+		}
+
+		/**
+		 * 清空缓存并打开管道
+		 */
+		synchronized void open() {
+			if (mClosed) {
+				mBuf.clear();
+				mBuf.reopen();
+				mClosed = false;
+			}
+		}
+
+		/**
+		 * 关闭管道，缓存中剩余的数据仍可读出，之后读到流结束
+		 */
+		synchronized void close() {
+			mClosed = true;
+			mBuf.close();
+		}
+	}
+}
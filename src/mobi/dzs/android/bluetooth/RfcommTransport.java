@@ -0,0 +1,108 @@
+package mobi.dzs.android.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.os.Build;
+
+/**
+ * 蓝牙SPP(RFCOMM)传输层
+ *
+ * @author t
+ * @see Transport
+ */
+public class RfcommTransport implements Transport {
+	/** 蓝牙地址码 */
+	private final String mMac;
+	/** 蓝牙串口连接对象 */
+	private volatile BluetoothSocket mBtSocket = null;
+
+	/**
+	 * 构造函数
+	 *
+	 * @param mac 需要连接的蓝牙设备MAC地址码
+	 */
+	public RfcommTransport(String mac) {
+		mMac = mac;
+	}
+
+	/**
+	 * 获取蓝牙设备MAC地址码
+	 *
+	 * @return MAC地址码
+	 */
+	public String getMac() {
+		return mMac;
+	}
+
+	@Override
+	public void connect() throws IOException {
+		BluetoothAdapter btAdapter = BluetoothAdapter.getDefaultAdapter();
+		BluetoothSocket btSocket;
+
+		if (null == btAdapter || !btAdapter.isEnabled())
+			throw new IOException("bluetooth is not enabled");
+
+		/* 开始连接蓝牙设备 */
+		final BluetoothDevice btDev = btAdapter.getRemoteDevice(mMac);
+		final UUID uuidSPP = UUID.fromString(BtSppComm.SPP_UUID);
+
+		// 得到设备连接后，立即创建SPP连接
+		if (Build.VERSION.SDK_INT >= 10) {
+			// 2.3.3以上的设备需要用这个方式创建通信连接
+			btSocket = btDev.createInsecureRfcommSocketToServiceRecord(uuidSPP);
+		} else {
+			// 创建SPP连接 API level 5
+			btSocket = btDev.createRfcommSocketToServiceRecord(uuidSPP);
+		}
+
+		try {
+			btSocket.connect();
+		} catch (IOException e) {
+			try {
+				btSocket.close();
+			} catch (IOException e2) {
+			}
+			throw e;
+		}
+		mBtSocket = btSocket;
+	}
+
+	@Override
+	public void close() throws IOException {
+		BluetoothSocket btSocket = mBtSocket;
+
+		mBtSocket = null;
+		if (null != btSocket)
+			btSocket.close();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return getSocket().getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return getSocket().getOutputStream();
+	}
+
+	/**
+	 * 获取已建立的连接
+	 *
+	 * @return 蓝牙串口连接对象
+	 * @throws IOException 连接未建立
+	 */
+	private BluetoothSocket getSocket() throws IOException {
+		BluetoothSocket btSocket = mBtSocket;
+
+		if (null == btSocket)
+			throw new IOException("not connected");
+		return btSocket;
+	}
+}
@@ -0,0 +1,98 @@
+package mobi.dzs.android.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * TCP传输层<br>
+ * 连接本机或局域网内模拟串口设备的TCP服务，可在没有蓝牙设备时测试通信吞吐量和延迟。
+ *
+ * @author t
+ * @see Transport
+ */
+public class TcpTransport implements Transport {
+	/** 常量:默认连接超时时间(ms) */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+	/** 服务端地址 */
+	private final String mHost;
+	/** 服务端端口 */
+	private final int mPort;
+	/** 连接超时时间(ms)，0表示不超时 */
+	private final int mConnectTimeout;
+	/** TCP连接对象 */
+	private volatile Socket mSocket = null;
+
+	/**
+	 * 构造函数
+	 *
+	 * @param host 服务端地址
+	 * @param port 服务端端口
+	 */
+	public TcpTransport(String host, int port) {
+		this(host, port, DEFAULT_CONNECT_TIMEOUT);
+	}
+
+	/**
+	 * 构造函数
+	 *
+	 * @param host 服务端地址
+	 * @param port 服务端端口
+	 * @param connectTimeout 连接超时时间，单位:毫秒。0表示不超时
+	 */
+	public TcpTransport(String host, int port, int connectTimeout) {
+		mHost = host;
+		mPort = port;
+		mConnectTimeout = connectTimeout;
+	}
+
+	@Override
+	public void connect() throws IOException {
+		Socket socket = new Socket();
+
+		try {
+			socket.setTcpNoDelay(true); // 串口数据一般很短，不等待合并
+			socket.connect(new InetSocketAddress(mHost, mPort), mConnectTimeout);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		mSocket = socket;
+	}
+
+	@Override
+	public void close() throws IOException {
+		Socket socket = mSocket;
+
+		mSocket = null;
+		if (null != socket)
+			socket.close();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return getSocket().getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return getSocket().getOutputStream();
+	}
+
+	/**
+	 * 获取已建立的连接
+	 *
+	 * @return TCP连接对象
+	 * @throws IOException 连接未建立
+	 */
+	private Socket getSocket() throws IOException {
+		Socket socket = mSocket;
+
+		if (null == socket)
+			throw new IOException("not connected");
+		return socket;
+	}
+}
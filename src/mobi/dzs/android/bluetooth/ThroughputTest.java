@@ -0,0 +1,516 @@
+package mobi.dzs.android.bluetooth;
+
+import java.util.Locale;
+
+import mobi.dzs.android.bluetooth.BtSppComm.OnReceiveListener;
+
+/**
+ * 吞吐量测试
+ *
+ * <p>
+ * 以最快速度发送按位置生成的测试数据(计数或伪随机)，并在接收线程中逐字节校验收到的数据，
+ * 统计持续的发送/接收速率、错误字节和丢失的数据段。测试数据的每个字节只由种子和它在流中的位置决定，
+ * 校验时不需要保存已发送的数据，只保留 {@link #RESYNC_BYTES} 字节用于出错后重新同步。
+ * 每4个字节(一个字)与字的序号一一对应，可以从收到的字反推出位置，丢失任意长度的数据都能重新同步。
+ *
+ * <p>
+ * 对端需要原样回显(例如 {@link LoopbackTransport} 或设置为回环的模块)；只测试一个方向时，
+ * 可以只发送(对端不回显)，或只校验(对端按同样的规则生成数据)。
+ * 测试期间接收数据推送给本对象，原有的接收监听器暂停，结束后恢复，暂停和恢复都在执行run()的线程中进行。
+ * run()会阻塞，需要在线程中调用。
+ *
+ * @author t
+ */
+public class ThroughputTest {
+	/**
+	 * 测试数据的生成方式
+	 */
+	public enum Pattern {
+		/** 32位大端计数，第n个4字节为n */
+		COUNTER,
+		/** 由种子和位置散列得到的伪随机数据 */
+		PRNG
+	}
+
+	/** 常量:每次发送的字节数 */
+	public static final int BLOCK_SIZE = 1024;
+	/** 常量:出错后用于重新同步的字节数 */
+	public static final int RESYNC_BYTES = 16;
+	/** 常量:伪随机数据的散列参数及其乘法逆元(mod 2^32)，用于从字反推序号 */
+	private static final int GOLDEN = 0x9E3779B9, MIX1 = 0x85EBCA6B, MIX2 = 0xC2B2AE35;
+	private static final int GOLDEN_INV = inverse(GOLDEN), MIX1_INV = inverse(MIX1), MIX2_INV = inverse(MIX2);
+	/** 常量:字序号(32位)对应的位置范围，超过后测试数据重复 */
+	private static final long POS_PERIOD = 1L << 34;
+	/** 常量:发送结束后等待回显的最长时间，期间有数据到达时重新计时，单位:毫秒 */
+	private static final long DRAIN_TIMEOUT = 2000;
+	/** 常量:等待回显时检查进度的间隔，单位:毫秒 */
+	private static final long DRAIN_SLICE = 100;
+
+	/** 通信对象 */
+	private final BtSppComm mComm;
+	/** 测试数据的生成方式 */
+	private final Pattern mPattern;
+	/** 伪随机数据的种子 */
+	private final int mSeed;
+	/** 终止测试的标志 */
+	private volatile boolean mCancel = false;
+	/** 测试期间连接丢失 */
+	private volatile boolean mLost = false;
+	/** 正在执行run()的线程，没有执行时为null */
+	private Thread mRunner = null;
+	/** 测试期间暂停的接收监听器及其行分隔符，恢复后置为null */
+	private OnReceiveListener mPausedListener = null;
+	private byte[][] mPausedSeparators = null;
+
+	/** 已发送、已接收的字节数 */
+	private volatile long mTxBytes = 0, mRxBytes = 0;
+	/** 错误字节数、丢失的数据段个数、丢失的字节数 */
+	private volatile long mByteErrors = 0, mGaps = 0, mGapBytes = 0;
+	/** 开始时间、发送结束时间、最后一次收到数据的时间(System.nanoTime()) */
+	private volatile long mStartTime = 0, mTxEndTime = 0, mLastRxTime = 0;
+
+	/** 下一个字节在流中的位置，只在校验时使用 */
+	private long mExpected = 0;
+	/** 出错后等待重新同步的字节 */
+	private final byte[] mPending = new byte[RESYNC_BYTES];
+	private int mPendingLen = 0;
+	/** 重新同步失败时重新校验的字节 */
+	private final byte[] mRefeed = new byte[RESYNC_BYTES];
+	/** 上次同步后丢弃(记为错误)的字节数，用于区分连续的错误字节和丢失 */
+	private long mDropped = 0;
+
+	/** 接收数据的监听器，在接收线程中校验 */
+	private final OnReceiveListener mListener = new BtSppComm.SimpleOnReceiveListener() {
+		@Override
+		public void onBytes(byte[] buf, int off, int len) {
+			verify(buf, off, len);
+		}
+
+		@Override
+		public void onDisconnected(boolean lost) {
+			mLost = true;
+			synchronized (ThroughputTest.this) {
+				ThroughputTest.this.notifyAll();
+			}
+		}
+	};
+
+	/**
+	 * 构造函数
+	 *
+	 * @param comm 通信对象，需要已建立连接
+	 * @param pattern 测试数据的生成方式
+	 * @param seed 伪随机数据的种子，COUNTER方式时不使用
+	 */
+	public ThroughputTest(BtSppComm comm, Pattern pattern, int seed) {
+		mComm = comm;
+		mPattern = pattern;
+		mSeed = seed;
+	}
+
+	/**
+	 * 测试数据在位置pos的字节，对端生成测试数据时使用同样的规则
+	 *
+	 * @param pattern 生成方式
+	 * @param seed 种子
+	 * @param pos 在流中的位置，从0开始
+	 * @return 字节
+	 */
+	public static byte byteAt(Pattern pattern, int seed, long pos) {
+		int word = (int) (pos >>> 2);
+		int shift = 24 - 8 * (int) (pos & 3);
+
+		if (Pattern.PRNG == pattern) {
+			// murmur3的fmix32，相邻位置的数据互不相关，并且可逆
+			word = seed + word * GOLDEN;
+			word ^= word >>> 16;
+			word *= MIX1;
+			word ^= word >>> 13;
+			word *= MIX2;
+			word ^= word >>> 16;
+		}
+		return (byte) (word >>> shift);
+	}
+
+	/**
+	 * 由测试数据中的一个字(大端)反推它的序号，byteAt()的逆运算
+	 *
+	 * @param pattern 生成方式
+	 * @param seed 种子
+	 * @param word 字
+	 * @return 字的序号(无符号32位)，位置为序号*4
+	 */
+	private static int wordIndex(Pattern pattern, int seed, int word) {
+		if (Pattern.PRNG == pattern) {
+			word ^= word >>> 16;
+			word *= MIX2_INV;
+			word ^= (word >>> 13) ^ (word >>> 26);
+			word *= MIX1_INV;
+			word ^= word >>> 16;
+			word = (word - seed) * GOLDEN_INV;
+		}
+		return word;
+	}
+
+	/**
+	 * 奇数的乘法逆元(mod 2^32)
+	 *
+	 * @param a 奇数
+	 * @return a * inverse(a) == 1
+	 */
+	private static int inverse(int a) {
+		int x = a; // 对奇数a，a*a ≡ 1 (mod 8)，每次牛顿迭代精度位数加倍
+		for (int i = 0; i < 4; i++)
+			x *= 2 - a * x;
+		return x;
+	}
+
+	/**
+	 * 执行测试
+	 *
+	 * @param duration 发送的时间，单位:毫秒。只校验时为接收的时间
+	 * @param send 是否发送测试数据
+	 * @param verify 是否校验收到的数据
+	 * @return 0:完成 / -1:连接未建立或连接丢失 / -2:被cancel()终止
+	 */
+	public int run(long duration, boolean send, boolean verify) {
+		byte[] block = new byte[BLOCK_SIZE];
+		long deadline, txPos = 0;
+		int i;
+
+		if (!mComm.isConnect())
+			return -1;
+		reset();
+		synchronized (this) {
+			mRunner = Thread.currentThread();
+		}
+		if (verify)
+			pauseListener();
+		try {
+			mStartTime = System.nanoTime();
+			deadline = mStartTime + duration * 1000000L;
+			while (System.nanoTime() - deadline < 0) {
+				if (mCancel)
+					return -2;
+				if (mLost)
+					return -1;
+				if (!send) {
+					if (!await(deadline))
+						return mCancel ? -2 : -1;
+					continue;
+				}
+				for (i = 0; i < block.length; i++)
+					block[i] = byteAt(mPattern, mSeed, txPos + i);
+				if (mComm.sendData(block) < 0)
+					return mCancel ? -2 : -1;
+				txPos += block.length;
+				mTxBytes = txPos;
+			}
+			mTxEndTime = System.nanoTime();
+
+			if (verify && !drain())
+				return mCancel ? -2 : -1;
+		} finally {
+			if (verify)
+				resumeListener();
+			synchronized (this) {
+				mRunner = null;
+				notifyAll();
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * 终止正在执行的测试，已统计的结果保留<br>
+	 * 等待run()返回(正在进行的发送完成后)，暂停的接收监听器在返回前就已恢复，调用者之后可以立即移除监听器
+	 */
+	synchronized public void cancel() {
+		mCancel = true;
+		notifyAll();
+		if (null == mRunner || mRunner == Thread.currentThread())
+			return;
+		while (null != mRunner) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 获取已发送的字节数
+	 *
+	 * @return 字节数
+	 */
+	public long getTxBytes() {
+		return mTxBytes;
+	}
+
+	/**
+	 * 获取已接收的字节数
+	 *
+	 * @return 字节数
+	 */
+	public long getRxBytes() {
+		return mRxBytes;
+	}
+
+	/**
+	 * 获取持续发送速率
+	 *
+	 * @return Byte/s
+	 */
+	public long getTxRate() {
+		return rate(mTxBytes, (0 == mTxEndTime ? System.nanoTime() : mTxEndTime) - mStartTime);
+	}
+
+	/**
+	 * 获取持续接收速率
+	 *
+	 * @return Byte/s
+	 */
+	public long getRxRate() {
+		return rate(mRxBytes, mLastRxTime - mStartTime);
+	}
+
+	/**
+	 * 获取错误字节数(内容不符，或多出来的字节)
+	 *
+	 * @return 字节数
+	 */
+	public long getByteErrors() {
+		return mByteErrors;
+	}
+
+	/**
+	 * 获取丢失的数据段个数
+	 *
+	 * @return 个数
+	 */
+	public long getGaps() {
+		return mGaps;
+	}
+
+	/**
+	 * 获取丢失的字节数
+	 *
+	 * @return 字节数
+	 */
+	public long getGapBytes() {
+		return mGapBytes;
+	}
+
+	/**
+	 * 测试结果的摘要
+	 *
+	 * @return 文本
+	 */
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "tx=%dB %dB/s rx=%dB %dB/s errors=%dB gaps=%d (%dB)",
+				mTxBytes, getTxRate(), mRxBytes, getRxRate(), mByteErrors, mGaps, mGapBytes);
+	}
+
+	/**
+	 * 清除上一次的结果
+	 */
+	synchronized private void reset() {
+		mCancel = mLost = false;
+		mTxBytes = mRxBytes = mByteErrors = mGaps = mGapBytes = 0;
+		mStartTime = mTxEndTime = mLastRxTime = 0;
+		mExpected = mDropped = 0;
+		mPendingLen = 0;
+	}
+
+	/**
+	 * 只校验时等待到deadline，连接丢失或被终止时提前返回
+	 *
+	 * @param deadline 结束时间(System.nanoTime())
+	 * @return false:连接丢失或被终止
+	 */
+	synchronized private boolean await(long deadline) {
+		long wait = (deadline - System.nanoTime()) / 1000000L;
+
+		if (wait > 0 && !mCancel && !mLost) {
+			try {
+				wait(Math.min(wait, DRAIN_SLICE));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				mCancel = true;
+			}
+		}
+		return !mCancel && !mLost;
+	}
+
+	/**
+	 * 发送结束后等待回显全部到达，超过DRAIN_TIMEOUT没有新数据时不再等待，然后结束校验
+	 *
+	 * @return false:连接丢失或被终止
+	 */
+	synchronized private boolean drain() {
+		long last = mRxBytes, idle = System.nanoTime();
+
+		while (mExpected + mPendingLen < mTxBytes && !mCancel && !mLost) {
+			if (mRxBytes != last) {
+				last = mRxBytes;
+				idle = System.nanoTime();
+			} else if (System.nanoTime() - idle > DRAIN_TIMEOUT * 1000000L) {
+				break;
+			}
+			try {
+				wait(DRAIN_SLICE);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		finish();
+		return !mCancel && !mLost;
+	}
+
+	/**
+	 * 校验收到的数据，在接收线程中调用
+	 *
+	 * @param buf 存储区
+	 * @param off 数据开始位置
+	 * @param len 数据长度
+	 */
+	synchronized private void verify(byte[] buf, int off, int len) {
+		for (int i = off; i < off + len; i++)
+			verifyByte(buf[i]);
+		mRxBytes += len;
+		mLastRxTime = System.nanoTime();
+		notifyAll();
+	}
+
+	/**
+	 * 校验一个字节，不符时先保存，攒够RESYNC_BYTES字节后再判断是错误还是丢失
+	 *
+	 * @param b 字节
+	 */
+	private void verifyByte(byte b) {
+		if (0 == mPendingLen && b == byteAt(mPattern, mSeed, mExpected)) {
+			mExpected++;
+			mDropped = 0;
+			return;
+		}
+		mPending[mPendingLen++] = b;
+		if (RESYNC_BYTES == mPendingLen)
+			resync();
+	}
+
+	/**
+	 * 重新同步：第一个字节出错而后续一致时为错误字节；
+	 * 否则由等待同步的字节反推位置，位置在后面时，扣除之前丢弃的字节(连续的错误字节)后为丢失，
+	 * 在前面时(重复的数据)重复的字节数记为错误字节；
+	 * 都不是时丢弃第一个字节记为错误字节(位置不变，多出来的字节也能正确统计)，其余字节重新校验
+	 */
+	private void resync() {
+		long pos;
+		int a, n, word;
+
+		if (pendingMatches(mExpected, 1)) {
+			mByteErrors++;
+			mExpected += RESYNC_BYTES;
+			mPendingLen = 0;
+			return;
+		}
+		for (a = 0; a < 4; a++) {
+			// 假设mPending[a]是一个字的开始
+			word = ((mPending[a] & 0xFF) << 24) | ((mPending[a + 1] & 0xFF) << 16)
+					| ((mPending[a + 2] & 0xFF) << 8) | (mPending[a + 3] & 0xFF);
+			pos = ((wordIndex(mPattern, mSeed, word) & 0xFFFFFFFFL) << 2) - a;
+			// 取与当前位置最近的周期
+			pos += (mExpected - pos + POS_PERIOD / 2) / POS_PERIOD * POS_PERIOD;
+			if (pos < 0 || !pendingMatches(pos, 0))
+				continue;
+			if (pos - mExpected > mDropped) {
+				mGaps++;
+				mGapBytes += pos - mExpected - mDropped;
+			} else if (pos < mExpected) {
+				mByteErrors += mExpected - pos; // 从pos到mExpected的数据已经收到过一次
+			}
+			mExpected = pos + RESYNC_BYTES;
+			mDropped = 0;
+			mPendingLen = 0;
+			return;
+		}
+
+		mByteErrors++;
+		mDropped++;
+		n = mPendingLen - 1;
+		System.arraycopy(mPending, 1, mRefeed, 0, n);
+		mPendingLen = 0;
+		for (a = 0; a < n; a++)
+			verifyByte(mRefeed[a]);
+	}
+
+	/**
+	 * 等待同步的字节是否与从pos开始的测试数据一致
+	 *
+	 * @param pos 第一个等待同步的字节对应的位置
+	 * @param from 从第几个字节开始比较
+	 * @return 一致返回true
+	 */
+	private boolean pendingMatches(long pos, int from) {
+		for (int i = from; i < mPendingLen; i++)
+			if (mPending[i] != byteAt(mPattern, mSeed, pos + i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * 结束校验：不足RESYNC_BYTES的待同步字节逐个比较，不符的记为错误字节；
+	 * 没有收到的回显记为丢失
+	 */
+	private void finish() {
+		for (int i = 0; i < mPendingLen; i++)
+			if (mPending[i] != byteAt(mPattern, mSeed, mExpected++))
+				mByteErrors++;
+		mPendingLen = 0;
+		if (mExpected < mTxBytes) {
+			mGaps++;
+			mGapBytes += mTxBytes - mExpected;
+			mExpected = mTxBytes;
+		}
+	}
+
+	/**
+	 * 计算速率
+	 *
+	 * @param bytes 字节数
+	 * @param nanos 时间，单位:纳秒
+	 * @return Byte/s
+	 */
+	private static long rate(long bytes, long nanos) {
+		return nanos <= 0 ? 0 : (long) (bytes * 1e9 / nanos);
+	}
+
+	/**
+	 * 暂停原有的接收监听器，改为推送给本对象校验<br>
+	 * 不能持有对象锁：设置监听器时要等待接收线程结束正在进行的推送，而推送给本对象的verify()需要对象锁
+	 */
+	private void pauseListener() {
+		byte[] drain = new byte[BLOCK_SIZE];
+
+		mPausedListener = mComm.getRecvListener();
+		mPausedSeparators = mComm.getRecvLineSeparators();
+		mComm.setRecvListener(null, null);
+		while (mComm.recvData(drain, 0, drain.length) > 0)
+			; // 丢弃接收缓存中测试开始前的数据
+		mComm.setRecvListener(mListener, null);
+	}
+
+	/**
+	 * 恢复暂停的接收监听器，只恢复一次，同样不能持有对象锁
+	 */
+	private void resumeListener() {
+		if (mComm.getRecvListener() == mListener)
+			mComm.setRecvListener(mPausedListener, mPausedSeparators);
+		mPausedListener = null;
+		mPausedSeparators = null;
+	}
+}
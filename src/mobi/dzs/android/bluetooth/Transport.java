@@ -0,0 +1,52 @@
+package mobi.dzs.android.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 通信传输层接口<br>
+ * BtSppComm只通过本接口建立连接和读写数据，接收缓存、分行等处理与具体的传输方式无关。
+ *
+ * <p>
+ * 实现类:
+ * <ul>
+ * <li>{@link RfcommTransport} 蓝牙SPP(RFCOMM)连接</li>
+ * <li>{@link LoopbackTransport} 内存回环，用于脱离设备的测试</li>
+ * <li>{@link TcpTransport} TCP连接，用于连接本机或局域网内的模拟设备</li>
+ * </ul>
+ *
+ * @author t
+ * @see BtSppComm#BtSppComm(Transport)
+ */
+public interface Transport {
+	/**
+	 * 建立连接，连接建立前一直阻塞
+	 *
+	 * @throws IOException 连接失败
+	 */
+	void connect() throws IOException;
+
+	/**
+	 * 关闭连接，正在读写数据的线程会收到IOException或读到流结束
+	 *
+	 * @throws IOException 关闭失败
+	 */
+	void close() throws IOException;
+
+	/**
+	 * 获取输入流，只在connect()成功后调用
+	 *
+	 * @return 输入流
+	 * @throws IOException 连接未建立
+	 */
+	InputStream getInputStream() throws IOException;
+
+	/**
+	 * 获取输出流，只在connect()成功后调用
+	 *
+	 * @return 输出流
+	 * @throws IOException 连接未建立
+	 */
+	OutputStream getOutputStream() throws IOException;
+}
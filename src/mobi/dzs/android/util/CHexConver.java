@@ -1,40 +1,53 @@
 package mobi.dzs.android.util;
 
-import android.annotation.SuppressLint;
-import java.util.Locale;
-
 /**
  * 16进制值与String/Byte之间的转换
  * 
+ * <p>
+ * 编码、解码都是查表完成，一次遍历，不做字符串的拼接、截取和大小写转换。
+ * 解码时忽略空白字符(空格、制表符、换行等)，十六进制数字大小写均可，两个数字可以被空白隔开。
+ * 需要大量转换时使用写入调用者数组/StringBuilder的版本，不分配内存
+ * 
  * @author JerryLi
  * @email lijian@dzs.mobi
  * @data 2011-10-16
  * */
 public class CHexConver {
 	private final static String mHexStr = "0123456789ABCDEF";
-	private final static char[] mHexChars = mHexStr.toCharArray();
+	/** 每个字节值对应的两个十六进制字符，下标为 2*字节值 */
+	private final static char[] mHexPairs = new char[512];
+	/** ASCII字符对应的数值：0~15为十六进制数字，-1为空白字符，-2为无效字符 */
+	private final static byte[] mHexValues = new byte[128];
+	/** 值:空白字符 */
+	private final static byte SPACE = -1;
+	/** 值:无效字符 */
+	private final static byte INVALID = -2;
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			mHexPairs[2 * i] = mHexStr.charAt(i >> 4);
+			mHexPairs[2 * i + 1] = mHexStr.charAt(i & 0x0F);
+		}
+		for (int i = 0; i < mHexValues.length; i++)
+			mHexValues[i] = i <= ' ' ? SPACE : INVALID;
+		for (int i = 0; i < 16; i++) {
+			mHexValues[mHexStr.charAt(i)] = (byte) i;
+			mHexValues[Character.toLowerCase(mHexStr.charAt(i))] = (byte) i;
+		}
+	}
 
 	/**
 	 * 检查16进制字符串是否有效
-	 *     字符长为2的倍数。
+	 *     去掉空白字符后字符长为2的倍数且不为0。
 	 * 
 	 * @param String
 	 *            str 16进制字符串
 	 * @return boolean
 	 */
-	@SuppressLint("DefaultLocale")
-	public static boolean isHexStr(String str) {
-		String tmpStr = str.trim().replace(" ", "").toUpperCase(Locale.US);
-		int len = tmpStr.length();
+	public static boolean isHexStr(CharSequence str) {
+		int n = countHexDigits(str);
 
-		if (len < 1 || len % 2 != 0)
-			return false;
-
-		for (int i = 0; i < len; i++)
-			if (!mHexStr.contains(tmpStr.substring(i, i + 1)))
-				return false;
-
-		return true;
+		return n > 0 && n % 2 == 0;
 	}
 
 	/**
@@ -53,65 +66,154 @@ public class CHexConver {
 	 * 
 	 * @param String
 	 *            hex字符串
-	 * @return String 对应的字符串
+	 * @return String 对应的字符串，无效的HEX值返回空字符串
 	 */
 	public static String hexToStr(String hexStr) {
-		hexStr = hexStr.trim().replace(" ", "").toUpperCase(Locale.US);
-		char[] hexs = hexStr.toCharArray();
-		byte[] bytes = new byte[hexStr.length() / 2];
-		int c;
-
-		for (int i = 0; i < bytes.length; i++) {
-			c = mHexStr.indexOf(hexs[2 * i]) << 4;
-			c |= mHexStr.indexOf(hexs[2 * i + 1]);
-			bytes[i] = (byte) (c & 0xFF);
-		}
-		
-		return new String(bytes);
+		byte[] bytes = hexToBytes(hexStr);
+
+		return null == bytes ? "" : new String(bytes);
 	}
 
 	/**
 	 * bytes转换成十六进制字符串
 	 * 
 	 * @param byte[] b byte数组
-	 * @param int len 取前N位处理 N=iLen
 	 * @return String 每个Byte值之间空格分隔
 	 */
 	public static String bytesToHex(byte[] b) {
-		StringBuilder hexStr = new StringBuilder("");
-		
-		for (int i = 0; i < b.length; i++) {
-			hexStr.append(mHexChars[b[i] & 0xFF >> 4]);
-			hexStr.append(mHexChars[b[i] & 0x0F]);
-			hexStr.append(' ');
+		return bytesToHex(b, 0, b.length);
+	}
+
+	/**
+	 * bytes的一部分转换成十六进制字符串
+	 * 
+	 * @param b byte数组
+	 * @param off 开始位置
+	 * @param len 字节数
+	 * @return String 每个Byte值之间空格分隔，末尾没有空格
+	 */
+	public static String bytesToHex(byte[] b, int off, int len) {
+		char[] chars;
+
+		if (len < 1)
+			return "";
+		chars = new char[3 * len];
+		bytesToHex(b, off, len, chars, 0);
+		return new String(chars, 0, chars.length - 1);
+	}
+
+	/**
+	 * bytes转换成十六进制字符，写入调用者提供的数组<br>
+	 * 每个Byte输出3个字符：两个十六进制数字和一个空格(最后一个Byte之后也有空格)
+	 * 
+	 * @param b byte数组
+	 * @param off 开始位置
+	 * @param len 字节数
+	 * @param dst 目标数组，从dstOff开始至少要有 3*len 个字符的空间
+	 * @param dstOff 目标数组开始位置
+	 * @return 写入的字符数 3*len
+	 */
+	public static int bytesToHex(byte[] b, int off, int len, char[] dst, int dstOff) {
+		final char[] pairs = mHexPairs;
+		int end = off + len, w = dstOff, v;
+
+		while (off < end) {
+			v = (b[off++] & 0xFF) << 1;
+			dst[w] = pairs[v];
+			dst[w + 1] = pairs[v + 1];
+			dst[w + 2] = ' ';
+			w += 3;
 		}
-		
-		return hexStr.toString().trim();
+		return w - dstOff;
+	}
+
+	/**
+	 * bytes转换成十六进制字符，追加到StringBuilder，格式同 {@link #bytesToHex(byte[], int, int, char[], int)}
+	 * 
+	 * @param b byte数组
+	 * @param off 开始位置
+	 * @param len 字节数
+	 * @param out 输出
+	 * @return 追加的字符数 3*len
+	 */
+	public static int appendHex(byte[] b, int off, int len, StringBuilder out) {
+		final char[] pairs = mHexPairs;
+		int end = off + len, v;
+
+		out.ensureCapacity(out.length() + 3 * len);
+		while (off < end) {
+			v = (b[off++] & 0xFF) << 1;
+			out.append(pairs[v]).append(pairs[v + 1]).append(' ');
+		}
+		return 3 * len;
 	}
 
 	/**
 	 * Hex字符串转换为Bytes
 	 * 
 	 * @param String
-	 *            src Byte字符串，每个Byte之间没有分隔符(字符范围:0-9 A-F)
-	 * @return byte[]
+	 *            src Byte字符串，可以有空白字符分隔(字符范围:0-9 A-F a-f)
+	 * @return byte[] null:无效的HEX值(含无效字符或数字个数为奇数)
 	 */
-	public static byte[] hexToBytes(String hexStr) {
-		/* 对输入值进行规范化整理 */
-		hexStr = hexStr.trim().replace(" ", "").toUpperCase(Locale.US);
-		// 处理值初始化
-		int m = 0, n = 0;
-		int len = hexStr.length() / 2; // 计算长度
-		byte[] bytes = new byte[len]; // 分配存储空间
+	public static byte[] hexToBytes(CharSequence hexStr) {
+		int n = countHexDigits(hexStr);
+		byte[] bytes;
+
+		if (n < 0 || n % 2 != 0)
+			return null;
+		bytes = new byte[n / 2];
+		hexToBytes(hexStr, bytes, 0);
+		return bytes;
+	}
+
+	/**
+	 * Hex字符串转换为Bytes，写入调用者提供的数组，一次遍历同时检查有效性
+	 * 
+	 * @param hexStr Byte字符串，可以有空白字符分隔(字符范围:0-9 A-F a-f)
+	 * @param dst 目标数组，从off开始至少要有 hexStr.length()/2 字节的空间
+	 * @param off 目标数组开始位置
+	 * @return &gt;=0:写入的字节数 / -1:含无效字符或数字个数为奇数(dst中可能已写入部分数据)
+	 */
+	public static int hexToBytes(CharSequence hexStr, byte[] dst, int off) {
+		final byte[] values = mHexValues;
+		int len = hexStr.length(), w = off, hi = -1, v;
+		char c;
 
 		for (int i = 0; i < len; i++) {
-			m = i * 2 + 1;
-			n = m + 1;
-			bytes[i] = (byte) (Integer.decode("0x" + hexStr.substring(i * 2, m)
-					+ hexStr.substring(m, n)) & 0xFF);
+			c = hexStr.charAt(i);
+			if (c >= 128 || (v = values[c]) == INVALID)
+				return -1;
+			if (v == SPACE)
+				continue;
+			if (hi < 0) {
+				hi = v << 4;
+			} else {
+				dst[w++] = (byte) (hi | v);
+				hi = -1;
+			}
 		}
-		
-		return bytes;
+		return hi < 0 ? w - off : -1;
+	}
+
+	/**
+	 * 统计字符串中十六进制数字的个数
+	 * 
+	 * @param str 字符串
+	 * @return &gt;=0:数字个数 / -1:含无效字符
+	 */
+	private static int countHexDigits(CharSequence str) {
+		final byte[] values = mHexValues;
+		int len = str.length(), n = 0, v;
+		char c;
+
+		for (int i = 0; i < len; i++) {
+			c = str.charAt(i);
+			if (c >= 128 || (v = values[c]) == INVALID)
+				return -1;
+			if (v != SPACE)
+				n++;
+		}
+		return n;
 	}
 
 	/**
@@ -0,0 +1,571 @@
+package mobi.dzs.android.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * 带时间戳的收发记录文件
+ *
+ * <p>
+ * 文件格式(多字节整数均为大端)：
+ *
+ * <pre>
+ * 文件头 16字节: 'S' 'P' 'P' 'C' | 版本(2) | 文件头长度(2) | 开始记录时的系统时间(8，ms)
+ * 记录:          类型(1) | ...
+ *   RXD(0)/TXD(1): 与上一条记录的时间差(varint，us) | 数据长度(varint) | 数据
+ *   SYNC(2):       从开始记录起的时间(8，us)
+ * </pre>
+ *
+ * 时间取自System.nanoTime()，单调递增，不受修改系统时间影响。每条数据记录只保存与上一条记录的时间差，
+ * 短的数据块只多几个字节。每隔 {@link Recorder#SYNC_INTERVAL_BYTES} 字节或 {@link Recorder#SYNC_INTERVAL_US}
+ * 写一条SYNC记录，给出完整的时间，从这里开始读不需要之前的任何记录。
+ *
+ * <p>
+ * 每条SYNC记录的(时间，位置)同时追加到索引文件(记录文件名加上 {@link #INDEX_SUFFIX})，每项16字节：时间(8，us) | 位置(8)。
+ * {@link Reader#seek(long)} 在索引文件中二分查找，不需要从头扫描记录文件；索引丢失或与记录文件不符时，
+ * 可以用 {@link #buildIndex(File)} 扫描一遍重新生成。
+ *
+ * @author t
+ * @see mobi.dzs.android.bluetooth.BtSppComm#startRecord(File, boolean)
+ * @see mobi.dzs.android.bluetooth.CaptureReplay
+ */
+public class CaptureFile {
+	/** 常量:记录类型-接收的数据 */
+	public static final int RXD = 0;
+	/** 常量:记录类型-发送的数据 */
+	public static final int TXD = 1;
+	/** 常量:记录类型-完整的时间 */
+	private static final int SYNC = 2;
+	/** 常量:索引文件名后缀 */
+	public static final String INDEX_SUFFIX = ".idx";
+
+	/** 常量:文件头的标志"SPPC" */
+	private static final int MAGIC = 0x53505043;
+	/** 常量:文件格式版本 */
+	private static final int VERSION = 1;
+	/** 常量:文件头长度 */
+	private static final int HEADER_SIZE = 16;
+	/** 常量:索引每项的长度 */
+	private static final int INDEX_ENTRY_SIZE = 16;
+	/** 常量:SYNC记录的长度 */
+	private static final int SYNC_SIZE = 9;
+
+	private CaptureFile() {
+	}
+
+	/**
+	 * 获取记录文件的索引文件
+	 *
+	 * @param file 记录文件
+	 * @return 索引文件
+	 */
+	public static File indexFile(File file) {
+		return new File(file.getPath() + INDEX_SUFFIX);
+	}
+
+	/**
+	 * 扫描记录文件，重新生成索引文件<br>
+	 * 用于索引文件丢失、或记录过程中程序异常退出导致索引不完整时。文件末尾不完整的记录被忽略
+	 *
+	 * @param file 记录文件
+	 * @return 索引项数
+	 * @throws IOException 读写文件出错，或不是记录文件
+	 */
+	public static int buildIndex(File file) throws IOException {
+		Reader reader = new Reader(file, false);
+		OutputStream idx = new FileOutputStream(indexFile(file));
+		byte[] entry = new byte[INDEX_ENTRY_SIZE];
+		int n = 0;
+
+		try {
+			while (reader.nextRecord()) {
+				if (SYNC == reader.mType) {
+					putLong(entry, 0, reader.mTimeUs);
+					putLong(entry, 8, reader.mRecordPos);
+					idx.write(entry);
+					n++;
+				}
+			}
+		} finally {
+			idx.close();
+			reader.close();
+		}
+		return n;
+	}
+
+	/**
+	 * 记录器：把收发的数据块加上时间戳写入记录文件
+	 *
+	 * <p>
+	 * {@link #record(int, byte[], int, int)} 可以在多个线程(接收线程、发送线程)中调用，在本对象上同步，
+	 * 时间戳在同步块内取得，文件中记录的顺序与时间顺序一致。记录和索引都经 {@link CaptureWriter} 由后台线程写入文件，
+	 * 调用者只做一次内存复制；缓冲满时整条记录被丢弃并计数，不会阻塞调用者，也不会在文件中留下不完整的记录。
+	 *
+	 * @author t
+	 */
+	public static class Recorder {
+		/** 常量:两条SYNC记录之间最多的字节数 */
+		public static final int SYNC_INTERVAL_BYTES = 64 * 1024;
+		/** 常量:两条SYNC记录之间最长的时间(us) */
+		public static final long SYNC_INTERVAL_US = 1000000;
+		/** 常量:索引的缓冲大小 */
+		private static final int INDEX_BUF_SIZE = 4 * 1024;
+
+		/** 记录文件 */
+		private final CaptureWriter mData;
+		/** 索引文件 */
+		private final CaptureWriter mIndex;
+		/** 开始记录的时间(System.nanoTime()) */
+		private final long mStartNanos;
+		/** 上一条写入的记录的时间(us) */
+		private long mLastUs = 0;
+		/** 下一条记录在文件中的位置 */
+		private long mPos = HEADER_SIZE;
+		/** 上一条SYNC记录的时间(us)和位置，-1表示还没有写入SYNC记录 */
+		private long mSyncUs = -1, mSyncPos = -1;
+		/** 记录头、索引项的存储区 */
+		private final byte[] mHead = new byte[INDEX_ENTRY_SIZE];
+		/** 记录的数据块数、丢弃的数据块数 */
+		private long mRecords = 0, mDroppedRecords = 0;
+
+		/**
+		 * 构造函数，创建记录文件与索引文件(已存在时覆盖)
+		 *
+		 * @param file 记录文件，所在目录不存在时创建
+		 * @throws IOException 文件无法创建
+		 */
+		public Recorder(File file) throws IOException {
+			byte[] header = new byte[HEADER_SIZE];
+			File dir = file.getParentFile();
+			OutputStream out;
+
+			if (null != dir && !dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("cannot create " + dir);
+			putInt(header, 0, MAGIC);
+			header[4] = (byte) (VERSION >>> 8);
+			header[5] = (byte) VERSION;
+			header[6] = (byte) (HEADER_SIZE >>> 8);
+			header[7] = (byte) HEADER_SIZE;
+			putLong(header, 8, System.currentTimeMillis());
+			out = new FileOutputStream(file);
+			try {
+				out.write(header);
+			} finally {
+				out.close();
+			}
+			new FileOutputStream(indexFile(file)).close();
+
+			mStartNanos = System.nanoTime();
+			mData = new CaptureWriter(file);
+			try {
+				mIndex = new CaptureWriter(indexFile(file), INDEX_BUF_SIZE, CaptureWriter.DEFAULT_FLUSH_INTERVAL);
+			} catch (IOException e) {
+				mData.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * 记录一个数据块，时间为调用的时刻
+		 *
+		 * @param type {@link CaptureFile#RXD} / {@link CaptureFile#TXD}
+		 * @param buf 数据
+		 * @param off 数据开始位置
+		 * @param len 数据长度
+		 * @return true:已记录 / false:缓冲满、已关闭，整块丢弃
+		 */
+		synchronized public boolean record(int type, byte[] buf, int off, int len) {
+			long us = (System.nanoTime() - mStartNanos) / 1000;
+			int n;
+
+			if (mSyncPos < 0 || mPos - mSyncPos >= SYNC_INTERVAL_BYTES || us - mSyncUs >= SYNC_INTERVAL_US)
+				sync(us);
+
+			mHead[0] = (byte) type;
+			n = putVarint(mHead, 1, us - mLastUs);
+			n = putVarint(mHead, n, len);
+			if (!mData.write(mHead, n, buf, off, len)) {
+				mDroppedRecords++;
+				return false;
+			}
+			mLastUs = us;
+			mPos += n + len;
+			mRecords++;
+			return true;
+		}
+
+		/**
+		 * 关闭：等待缓冲中的记录和索引写入文件
+		 *
+		 * @return true:全部写入 / false:有记录被丢弃或写文件失败
+		 */
+		synchronized public boolean close() {
+			boolean ok = mData.close();
+
+			ok = mIndex.close() && ok;
+			return ok && 0 == mDroppedRecords;
+		}
+
+		/**
+		 * 获取记录的数据块数
+		 *
+		 * @return 块数
+		 */
+		synchronized public long getRecordCount() {
+			return mRecords;
+		}
+
+		/**
+		 * 获取因缓冲满而丢弃的数据块数
+		 *
+		 * @return 块数
+		 */
+		synchronized public long getDroppedRecordCount() {
+			return mDroppedRecords;
+		}
+
+		/**
+		 * 获取已写入记录文件的字节数(不含文件头)
+		 *
+		 * @return 字节数
+		 */
+		public long getWrittenBytes() {
+			return mData.getWrittenBytes();
+		}
+
+		/**
+		 * 写入SYNC记录和对应的索引项，SYNC记录被丢弃时不写索引，下一条记录再试
+		 *
+		 * @param us 当前时间(us)
+		 */
+		private void sync(long us) {
+			mHead[0] = (byte) SYNC;
+			putLong(mHead, 1, us);
+			if (!mData.write(mHead, SYNC_SIZE, mHead, 0, 0))
+				return;
+			putLong(mHead, 0, us);
+			putLong(mHead, 8, mPos);
+			mIndex.write(mHead, INDEX_ENTRY_SIZE, mHead, 0, 0);
+			mSyncUs = mLastUs = us;
+			mSyncPos = mPos;
+			mPos += SYNC_SIZE;
+		}
+	}
+
+	/**
+	 * 读取记录文件
+	 *
+	 * <p>
+	 * {@link #next()} 依次读出数据记录，读出后用getType()、getTime()、getData()等取得记录的内容。
+	 * 读到文件末尾不完整的记录(例如记录时程序异常退出)时按文件结束处理。不是线程安全的。
+	 *
+	 * @author t
+	 */
+	public static class Reader {
+		/** 常量:读取缓冲大小 */
+		private static final int READ_BUF_SIZE = 64 * 1024;
+
+		/** 记录文件 */
+		private final FileInputStream mFile;
+		/** 按顺序读取记录 */
+		private DataInputStream mIn;
+		/** 索引文件，为null时seek()从头扫描 */
+		private RandomAccessFile mIndex = null;
+		/** 开始记录时的系统时间(ms) */
+		private final long mStartTime;
+		/** 文件头长度 */
+		private final int mHeaderSize;
+		/** 下一条记录在文件中的位置 */
+		private long mPos;
+		/** 当前记录的位置、类型、时间(us) */
+		private long mRecordPos;
+		private int mType;
+		private long mTimeUs = 0;
+		/** 当前记录的数据 */
+		private byte[] mData = new byte[256];
+		private int mLen = 0;
+		/** seek()之后已读出、但还没有由next()返回的记录 */
+		private boolean mPeeked = false;
+
+		/**
+		 * 打开记录文件，索引文件存在时同时打开
+		 *
+		 * @param file 记录文件
+		 * @throws IOException 文件无法打开，或不是记录文件
+		 */
+		public Reader(File file) throws IOException {
+			this(file, true);
+		}
+
+		private Reader(File file, boolean useIndex) throws IOException {
+			byte[] header = new byte[HEADER_SIZE];
+			File idx = indexFile(file);
+
+			mFile = new FileInputStream(file);
+			try {
+				mIn = new DataInputStream(new BufferedInputStream(mFile, READ_BUF_SIZE));
+				mIn.readFully(header);
+				if (getInt(header, 0) != MAGIC || (header[4] << 8 | header[5] & 0xFF) != VERSION)
+					throw new IOException("not a capture file: " + file);
+				mStartTime = getLong(header, 8);
+				mHeaderSize = (header[6] & 0xFF) << 8 | header[7] & 0xFF;
+				mIn.skipBytes(mHeaderSize - HEADER_SIZE);
+				mPos = mHeaderSize;
+				if (useIndex && idx.isFile())
+					mIndex = new RandomAccessFile(idx, "r");
+			} catch (IOException e) {
+				mFile.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * 获取开始记录时的系统时间
+		 *
+		 * @return System.currentTimeMillis()
+		 */
+		public long getStartTime() {
+			return mStartTime;
+		}
+
+		/**
+		 * 读出下一条数据记录
+		 *
+		 * @return true:读出了一条记录 / false:文件结束
+		 * @throws IOException 读文件出错
+		 */
+		public boolean next() throws IOException {
+			if (mPeeked) {
+				mPeeked = false;
+				return true;
+			}
+			while (nextRecord()) {
+				if (SYNC != mType)
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * 定位到指定的时间，之后next()从时间不早于timeUs的第一条记录开始读出<br>
+		 * 有索引时先在索引中二分查找不晚于timeUs的最后一个SYNC记录，从那里开始读；没有索引时从头扫描
+		 *
+		 * @param timeUs 从开始记录起的时间(us)
+		 * @throws IOException 读文件出错
+		 */
+		public void seek(long timeUs) throws IOException {
+			long lo = 0, hi, mid, pos = -1, t;
+
+			if (null != mIndex) {
+				hi = mIndex.length() / INDEX_ENTRY_SIZE - 1;
+				while (lo <= hi) {
+					mid = (lo + hi) >>> 1;
+					mIndex.seek(mid * INDEX_ENTRY_SIZE);
+					t = mIndex.readLong();
+					if (t <= timeUs) {
+						pos = mIndex.readLong();
+						lo = mid + 1;
+					} else {
+						hi = mid - 1;
+					}
+				}
+			}
+			if (pos < 0 || !seekSync(pos))
+				seekSync(-1);
+
+			mPeeked = false;
+			while (next()) {
+				if (mTimeUs >= timeUs) {
+					mPeeked = true;
+					break;
+				}
+			}
+		}
+
+		/**
+		 * 获取当前记录的类型
+		 *
+		 * @return {@link CaptureFile#RXD} / {@link CaptureFile#TXD}
+		 */
+		public int getType() {
+			return mType;
+		}
+
+		/**
+		 * 获取当前记录的时间
+		 *
+		 * @return 从开始记录起的时间(us)
+		 */
+		public long getTime() {
+			return mTimeUs;
+		}
+
+		/**
+		 * 获取当前记录的数据，内容在下一次next()时被覆盖
+		 *
+		 * @return 数据，有效长度为 {@link #getLength()}
+		 */
+		public byte[] getData() {
+			return mData;
+		}
+
+		/**
+		 * 获取当前记录的数据长度
+		 *
+		 * @return 字节数
+		 */
+		public int getLength() {
+			return mLen;
+		}
+
+		/**
+		 * 关闭文件
+		 */
+		public void close() {
+			try {
+				mFile.close();
+				if (null != mIndex)
+					mIndex.close();
+			} catch (IOException e) {
+				// 只读的文件，关闭失败不影响数据
+			}
+		}
+
+		/**
+		 * 从pos开始读，pos处应为SYNC记录
+		 *
+		 * @param pos SYNC记录的位置，&lt;0时从第一条记录开始
+		 * @return false:pos处不是SYNC记录(索引与记录文件不符)
+		 * @throws IOException 读文件出错
+		 */
+		private boolean seekSync(long pos) throws IOException {
+			mFile.getChannel().position(pos < 0 ? 0 : pos);
+			mIn = new DataInputStream(new BufferedInputStream(mFile, READ_BUF_SIZE));
+			if (pos < 0) {
+				mIn.skipBytes(mHeaderSize);
+				mPos = mHeaderSize;
+				mTimeUs = 0;
+				return true;
+			}
+			mPos = pos;
+			return nextRecord() && SYNC == mType;
+		}
+
+		/**
+		 * 读出下一条记录(包括SYNC记录)
+		 *
+		 * @return false:文件结束，或末尾的记录不完整
+		 * @throws IOException 读文件出错
+		 */
+		private boolean nextRecord() throws IOException {
+			int type;
+			long delta, len;
+
+			try {
+				type = mIn.read();
+				if (type < 0)
+					return false;
+				mRecordPos = mPos;
+				if (SYNC == type) {
+					mTimeUs = mIn.readLong();
+					mPos += SYNC_SIZE;
+				} else if (RXD == type || TXD == type) {
+					delta = readVarint();
+					len = readVarint();
+					if (len > Integer.MAX_VALUE - 8)
+						throw new IOException("bad record length at " + mRecordPos);
+					if (mData.length < len)
+						mData = new byte[(int) Math.max(len, mData.length * 2L)];
+					mIn.readFully(mData, 0, (int) len);
+					mTimeUs += delta;
+					mLen = (int) len;
+					mPos += 1 + varintSize(delta) + varintSize(len) + len;
+				} else {
+					throw new IOException("bad record type at " + mRecordPos);
+				}
+				mType = type;
+				return true;
+			} catch (EOFException e) {
+				return false; // 末尾不完整的记录
+			}
+		}
+
+		/**
+		 * 读出一个varint
+		 *
+		 * @return 值
+		 * @throws IOException 读文件出错，EOFException:文件结束
+		 */
+		private long readVarint() throws IOException {
+			long v = 0;
+			int b, shift = 0;
+
+			do {
+				b = mIn.readUnsignedByte();
+				v |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0 && shift < 64);
+			return v;
+		}
+	}
+
+	/**
+	 * 写入varint：每字节7位，低位在前，最高位为1表示后面还有字节
+	 *
+	 * @param buf 存储区
+	 * @param off 开始位置
+	 * @param v 值，&gt;=0
+	 * @return 写入后的位置
+	 */
+	private static int putVarint(byte[] buf, int off, long v) {
+		while (v >= 0x80) {
+			buf[off++] = (byte) (v | 0x80);
+			v >>>= 7;
+		}
+		buf[off++] = (byte) v;
+		return off;
+	}
+
+	/**
+	 * 获取varint的字节数
+	 *
+	 * @param v 值，&gt;=0
+	 * @return 字节数
+	 */
+	private static int varintSize(long v) {
+		int n = 1;
+
+		while (v >= 0x80) {
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	private static void putInt(byte[] buf, int off, int v) {
+		buf[off] = (byte) (v >>> 24);
+		buf[off + 1] = (byte) (v >>> 16);
+		buf[off + 2] = (byte) (v >>> 8);
+		buf[off + 3] = (byte) v;
+	}
+
+	private static void putLong(byte[] buf, int off, long v) {
+		putInt(buf, off, (int) (v >>> 32));
+		putInt(buf, off + 4, (int) v);
+	}
+
+	private static int getInt(byte[] buf, int off) {
+		return buf[off] << 24 | (buf[off + 1] & 0xFF) << 16 | (buf[off + 2] & 0xFF) << 8 | buf[off + 3] & 0xFF;
+	}
+
+	private static long getLong(byte[] buf, int off) {
+		return (long) getInt(buf, off) << 32 | getInt(buf, off + 4) & 0xFFFFFFFFL;
+	}
+}
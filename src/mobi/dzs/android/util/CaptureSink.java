@@ -0,0 +1,51 @@
+package mobi.dzs.android.util;
+
+/**
+ * 原始数据捕获的输出
+ *
+ * <p>
+ * 由接收线程(或发送线程)在读到(写出)数据后直接调用 {@link #write(byte[], int, int)}，实现类不能阻塞调用的线程，
+ * 来不及保存的数据丢弃并计数。
+ *
+ * <p>
+ * 实现类:
+ * <ul>
+ * <li>{@link CaptureWriter} 环形缓冲+后台线程写文件</li>
+ * <li>{@link MappedCaptureWriter} 按段映射到内存的文件，直接在调用的线程中写入</li>
+ * </ul>
+ *
+ * @author t
+ * @see mobi.dzs.android.bluetooth.BtSppComm#startCapture(CaptureSink, CaptureSink)
+ */
+public interface CaptureSink {
+	/**
+	 * 写入数据，不阻塞
+	 *
+	 * @param buf 数据
+	 * @param off 数据开始位置
+	 * @param len 数据长度
+	 * @return 保存的字节数，其余的被丢弃并计入 {@link #getDroppedBytes()}
+	 */
+	int write(byte[] buf, int off, int len);
+
+	/**
+	 * 关闭，之后写入的数据全部丢弃
+	 *
+	 * @return true:数据全部保存 / false:保存失败或被中断
+	 */
+	boolean close();
+
+	/**
+	 * 获取已保存的字节数
+	 *
+	 * @return 字节数
+	 */
+	long getWrittenBytes();
+
+	/**
+	 * 获取丢弃的字节数
+	 *
+	 * @return 字节数
+	 */
+	long getDroppedBytes();
+}
@@ -0,0 +1,221 @@
+package mobi.dzs.android.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 后台写文件的数据捕获
+ *
+ * <p>
+ * 调用 {@link #write(byte[], int, int)} 的线程(例如接收线程)只把数据复制到固定大小的环形缓冲中，不做任何磁盘操作；
+ * 后台线程每隔flushInterval毫秒(或缓冲过半时)把缓冲中的数据一次写入文件。磁盘跟不上时，
+ * 缓冲满后新数据被丢弃并计数({@link #getDroppedBytes()})，不会阻塞写入的线程，内存占用固定，可以长时间记录。
+ *
+ * <p>
+ * 环形缓冲为lock-free模式，同一时间只能有一个线程调用write()(不同线程轮流调用时需由调用者互斥)。
+ *
+ * @author t
+ * @see mobi.dzs.android.bluetooth.BtSppComm#startCapture(File, File)
+ */
+public class CaptureWriter implements CaptureSink {
+	/** 常量:默认的缓冲大小 */
+	public static final int DEFAULT_BUF_SIZE = 256 * 1024;
+	/** 常量:默认的写文件间隔(ms) */
+	public static final long DEFAULT_FLUSH_INTERVAL = 500;
+	/** 常量:后台线程名称 */
+	private static final String THREAD_NAME = "CaptureWriter";
+	/** 常量:后台线程每次从缓冲取出的最大字节数 */
+	private static final int WRITE_CHUNK = 32 * 1024;
+
+	/** 待写入文件的数据 */
+	private final RingByteBuffer mBuf;
+	/** 文件 */
+	private final File mFile;
+	/** 文件输出 */
+	private final OutputStream mOut;
+	/** 写文件间隔(ms) */
+	private final long mFlushInterval;
+	/** 后台线程 */
+	private final Thread mThread;
+	/** 已写入文件的字节数 */
+	private final AtomicLong mWritten = new AtomicLong();
+	/** 因缓冲满或写文件失败而丢弃的字节数 */
+	private final AtomicLong mDropped = new AtomicLong();
+	/** 已关闭，不再接受新数据 */
+	private volatile boolean mClosed = false;
+	/** 写文件失败的异常，为null时没有失败 */
+	private volatile IOException mError = null;
+
+	/**
+	 * 构造函数，打开文件(追加)并启动后台线程
+	 *
+	 * @param file 文件，所在目录不存在时创建
+	 * @param bufSize 缓冲大小，&lt;1时使用 {@link #DEFAULT_BUF_SIZE}
+	 * @param flushInterval 写文件间隔(ms)，&lt;1时使用 {@link #DEFAULT_FLUSH_INTERVAL}
+	 * @throws IOException 文件无法打开
+	 */
+	public CaptureWriter(File file, int bufSize, long flushInterval) throws IOException {
+		File dir = file.getParentFile();
+
+		if (null != dir && !dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("cannot create " + dir);
+		mFile = file;
+		mOut = new FileOutputStream(file, true);
+		mBuf = new RingByteBuffer(bufSize < 1 ? DEFAULT_BUF_SIZE : bufSize, true, true);
+		mFlushInterval = flushInterval < 1 ? DEFAULT_FLUSH_INTERVAL : flushInterval;
+		mThread = new Thread(THREAD_NAME) {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		};
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * 以默认的缓冲大小和写文件间隔构造
+	 *
+	 * @param file 文件
+	 * @throws IOException 文件无法打开
+	 */
+	public CaptureWriter(File file) throws IOException {
+		this(file, DEFAULT_BUF_SIZE, DEFAULT_FLUSH_INTERVAL);
+	}
+
+	/**
+	 * 写入数据，只复制到缓冲中，不等待磁盘<br>
+	 * 缓冲满、已关闭或写文件已失败时，放不下的数据被丢弃并计入 {@link #getDroppedBytes()}
+	 *
+	 * @param buf 数据
+	 * @param off 数据开始位置
+	 * @param len 数据长度
+	 * @return 放入缓冲的字节数
+	 */
+	@Override
+	public int write(byte[] buf, int off, int len) {
+		int n = 0;
+
+		if (!mClosed && null == mError)
+			n = mBuf.write(buf, off, len);
+		if (n < len)
+			mDropped.addAndGet(len - n);
+		return n;
+	}
+
+	/**
+	 * 写入一条记录(记录头和数据)，整条放入缓冲或整条丢弃，文件中不会出现不完整的记录<br>
+	 * 丢弃时计入 {@link #getDroppedBytes()}
+	 *
+	 * @param head 记录头
+	 * @param headLen 记录头长度
+	 * @param buf 数据
+	 * @param off 数据开始位置
+	 * @param len 数据长度
+	 * @return true:已放入缓冲 / false:空间不足、已关闭或写文件已失败，整条丢弃
+	 */
+	public boolean write(byte[] head, int headLen, byte[] buf, int off, int len) {
+		// 只有一个线程写入，检查之后可用空间只会因后台线程取出数据而增加
+		if (!mClosed && null == mError && mBuf.size() - mBuf.remain() >= headLen + len) {
+			mBuf.write(head, 0, headLen);
+			mBuf.write(buf, off, len);
+			return true;
+		}
+		mDropped.addAndGet(headLen + len);
+		return false;
+	}
+
+	/**
+	 * 关闭：把缓冲中剩余的数据写入文件后关闭文件，等待后台线程结束
+	 *
+	 * @return true:全部数据已写入 / false:写文件失败或等待时被中断
+	 */
+	@Override
+	public boolean close() {
+		mClosed = true;
+		mBuf.wakeup();
+		try {
+			mThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return null == mError;
+	}
+
+	/**
+	 * 获取文件
+	 *
+	 * @return 文件
+	 */
+	public File getFile() {
+		return mFile;
+	}
+
+	/**
+	 * 获取已写入文件的字节数
+	 *
+	 * @return 字节数
+	 */
+	@Override
+	public long getWrittenBytes() {
+		return mWritten.get();
+	}
+
+	/**
+	 * 获取丢弃的字节数(缓冲满、关闭后写入、写文件失败)
+	 *
+	 * @return 字节数
+	 */
+	@Override
+	public long getDroppedBytes() {
+		return mDropped.get();
+	}
+
+	/**
+	 * 获取写文件失败的原因
+	 *
+	 * @return 异常，没有失败时为null
+	 */
+	public IOException getError() {
+		return mError;
+	}
+
+	/**
+	 * 后台线程：缓冲过半或到写文件间隔时把缓冲中的数据写入文件，关闭后写完剩余数据再关闭文件
+	 */
+	private void drainLoop() {
+		byte[] chunk = new byte[Math.min(WRITE_CHUNK, mBuf.size())];
+		int half = mBuf.size() / 2, n;
+		boolean closed;
+
+		do {
+			closed = mClosed; // 先读取关闭标志，之后取出的数据包含关闭前写入的全部数据
+			if (!closed)
+				mBuf.awaitData(mFlushInterval, half);
+			while ((n = mBuf.read(chunk, 0, chunk.length)) > 0) {
+				if (null != mError) {
+					mDropped.addAndGet(n);
+					continue;
+				}
+				try {
+					mOut.write(chunk, 0, n);
+					mWritten.addAndGet(n);
+				} catch (IOException e) {
+					mError = e; // 之后的数据全部丢弃
+					mDropped.addAndGet(n);
+				}
+			}
+		} while (!closed);
+
+		try {
+			mOut.close();
+		} catch (IOException e) {
+			if (null == mError)
+				mError = e;
+		}
+	}
+}
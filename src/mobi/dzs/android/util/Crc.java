@@ -0,0 +1,242 @@
+package mobi.dzs.android.util;
+
+/**
+ * 常用的CRC校验
+ *
+ * <p>
+ * 全部查表计算：CRC-8、CRC-16每字节查一次表，CRC-32使用slice-by-8，每8字节查8张表，不逐位计算。
+ * CRC值总是以int表示，只有低 {@link #size()} 字节有效。
+ *
+ * <p>
+ * 分段计算(例如数据分为两段存放在 {@link RingByteBuffer} 中)时，用 {@link #start()} 取初值，
+ * 对每段依次调用 {@link #update(int, byte[], int, int)}，最后用 {@link #finish(int)} 得到CRC值。
+ *
+ * @author t
+ * @see RingByteBuffer#checksum(Crc, int, int)
+ * @see FrameDecoder#setCheck(Crc, boolean, boolean)
+ */
+public enum Crc {
+	/** CRC-8(多项式0x07，初值0x00)，"123456789"的CRC为0xF4 */
+	CRC8(1, 0x00, 0x00) {
+		@Override
+		public int update(int crc, byte[] buf, int off, int len) {
+			final int[] t = CRC8_TABLE;
+			int end = off + len;
+
+			while (off < end)
+				crc = t[(crc ^ buf[off++]) & 0xFF];
+			return crc;
+		}
+	},
+	/** CRC-16/CCITT-FALSE(多项式0x1021，初值0xFFFF，不反转)，"123456789"的CRC为0x29B1，一般按大端传送 */
+	CRC16_CCITT(2, 0xFFFF, 0x0000) {
+		@Override
+		public int update(int crc, byte[] buf, int off, int len) {
+			final int[] t = CCITT_TABLE;
+			int end = off + len;
+
+			while (off < end)
+				crc = (crc << 8 ^ t[(crc >>> 8 ^ buf[off++]) & 0xFF]) & 0xFFFF;
+			return crc;
+		}
+	},
+	/** CRC-16/MODBUS(多项式0x8005反转，初值0xFFFF)，"123456789"的CRC为0x4B37，按小端传送 */
+	CRC16_MODBUS(2, 0xFFFF, 0x0000) {
+		@Override
+		public int update(int crc, byte[] buf, int off, int len) {
+			final int[] t = MODBUS_TABLE;
+			int end = off + len;
+
+			while (off < end)
+				crc = crc >>> 8 ^ t[(crc ^ buf[off++]) & 0xFF];
+			return crc;
+		}
+	},
+	/** CRC-32(以太网、zip，多项式0x04C11DB7反转)，"123456789"的CRC为0xCBF43926 */
+	CRC32(4, 0xFFFFFFFF, 0xFFFFFFFF) {
+		@Override
+		public int update(int crc, byte[] buf, int off, int len) {
+			final int[] t = CRC32_TABLE;
+			int end = off + len;
+			int lo, hi;
+
+			// slice-by-8：8个字节的贡献分别查8张表后异或，每次循环处理8字节
+			while (end - off >= 8) {
+				lo = crc ^ (buf[off] & 0xFF | (buf[off + 1] & 0xFF) << 8
+						| (buf[off + 2] & 0xFF) << 16 | buf[off + 3] << 24);
+				hi = buf[off + 4] & 0xFF | (buf[off + 5] & 0xFF) << 8
+						| (buf[off + 6] & 0xFF) << 16 | buf[off + 7] << 24;
+				crc = t[7 << 8 | lo & 0xFF] ^ t[6 << 8 | lo >>> 8 & 0xFF]
+						^ t[5 << 8 | lo >>> 16 & 0xFF] ^ t[4 << 8 | lo >>> 24]
+						^ t[3 << 8 | hi & 0xFF] ^ t[2 << 8 | hi >>> 8 & 0xFF]
+						^ t[1 << 8 | hi >>> 16 & 0xFF] ^ t[hi >>> 24];
+				off += 8;
+			}
+			while (off < end)
+				crc = crc >>> 8 ^ t[(crc ^ buf[off++]) & 0xFF];
+			return crc;
+		}
+	};
+
+	/** 查表用的表，CRC32_TABLE为8张表依次排列，第k张表从 k*256 开始 */
+	private static final int[] CRC8_TABLE = msbTable(0x07, 8);
+	private static final int[] CCITT_TABLE = msbTable(0x1021, 16);
+	private static final int[] MODBUS_TABLE = lsbTable(0xA001, 1);
+	private static final int[] CRC32_TABLE = lsbTable(0xEDB88320, 8);
+
+	/** CRC的字节数 */
+	private final int mSize;
+	/** 初值 */
+	private final int mInit;
+	/** 结果的异或值 */
+	private final int mXorOut;
+
+	Crc(int size, int init, int xorOut) {
+		mSize = size;
+		mInit = init;
+		mXorOut = xorOut;
+	}
+
+	/**
+	 * 获取CRC的字节数
+	 *
+	 * @return 1 / 2 / 4
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * 分段计算的初值
+	 *
+	 * @return 中间值
+	 */
+	public int start() {
+		return mInit;
+	}
+
+	/**
+	 * 把一段数据累加到中间值
+	 *
+	 * @param crc 中间值，第一段为 {@link #start()}
+	 * @param buf 数据
+	 * @param off 数据开始位置
+	 * @param len 数据长度
+	 * @return 新的中间值
+	 */
+	public abstract int update(int crc, byte[] buf, int off, int len);
+
+	/**
+	 * 由中间值得到CRC值
+	 *
+	 * @param crc 中间值
+	 * @return CRC值
+	 */
+	public int finish(int crc) {
+		return crc ^ mXorOut;
+	}
+
+	/**
+	 * 计算一段数据的CRC
+	 *
+	 * @param buf 数据
+	 * @param off 数据开始位置
+	 * @param len 数据长度
+	 * @return CRC值
+	 */
+	public int compute(byte[] buf, int off, int len) {
+		return finish(update(mInit, buf, off, len));
+	}
+
+	/**
+	 * 校验末尾带CRC的数据：CRC字段为最后 {@link #size()} 字节，校验范围是它之前的全部数据
+	 *
+	 * @param buf 数据
+	 * @param off 数据开始位置
+	 * @param len 数据长度，含CRC字段
+	 * @param bigEndian CRC字段是否为大端
+	 * @return true:校验通过 / false:校验失败或长度不足
+	 */
+	public boolean check(byte[] buf, int off, int len, boolean bigEndian) {
+		len -= mSize;
+		return len >= 0 && compute(buf, off, len) == get(buf, off + len, bigEndian);
+	}
+
+	/**
+	 * 从数组中读出CRC字段
+	 *
+	 * @param buf 数组
+	 * @param off CRC字段开始位置
+	 * @param bigEndian CRC字段是否为大端
+	 * @return CRC值
+	 */
+	public int get(byte[] buf, int off, boolean bigEndian) {
+		int crc = 0;
+
+		for (int i = 0; i < mSize; i++) {
+			if (bigEndian)
+				crc = crc << 8 | (buf[off + i] & 0xFF);
+			else
+				crc |= (buf[off + i] & 0xFF) << (8 * i);
+		}
+		return crc;
+	}
+
+	/**
+	 * 把CRC值写入数组，用于发送带CRC的帧
+	 *
+	 * @param crc CRC值
+	 * @param buf 数组，从off开始至少要有 {@link #size()} 字节的空间
+	 * @param off CRC字段开始位置
+	 * @param bigEndian CRC字段是否为大端
+	 * @return CRC字段之后的位置
+	 */
+	public int put(int crc, byte[] buf, int off, boolean bigEndian) {
+		for (int i = 0; i < mSize; i++)
+			buf[off + i] = (byte) (crc >>> (8 * (bigEndian ? mSize - 1 - i : i)));
+		return off + mSize;
+	}
+
+	/**
+	 * 生成不反转的CRC的查表表：表项为一个字节在CRC高位时移出8位的结果
+	 *
+	 * @param poly 多项式
+	 * @param width CRC的位数 8 / 16
+	 * @return 256项的表
+	 */
+	private static int[] msbTable(int poly, int width) {
+		int[] t = new int[256];
+		int top = 1 << (width - 1), mask = (1 << width) - 1, c;
+
+		for (int i = 0; i < 256; i++) {
+			c = i << (width - 8);
+			for (int k = 0; k < 8; k++)
+				c = (c & top) != 0 ? (c << 1 ^ poly) : c << 1;
+			t[i] = c & mask;
+		}
+		return t;
+	}
+
+	/**
+	 * 生成反转的CRC的查表表，slices大于1时依次生成slice-by-N的各张表：
+	 * 第k张表是一个字节之后再跟k个0x00字节的结果
+	 *
+	 * @param poly 反转后的多项式
+	 * @param slices 表的张数
+	 * @return slices*256项的表
+	 */
+	private static int[] lsbTable(int poly, int slices) {
+		int[] t = new int[slices << 8];
+		int c;
+
+		for (int i = 0; i < 256; i++) {
+			c = i;
+			for (int k = 0; k < 8; k++)
+				c = (c & 1) != 0 ? (c >>> 1 ^ poly) : c >>> 1;
+			t[i] = c;
+		}
+		for (int i = 256; i < t.length; i++)
+			t[i] = t[i - 256] >>> 8 ^ t[t[i - 256] & 0xFF];
+		return t;
+	}
+}
@@ -0,0 +1,716 @@
+package mobi.dzs.android.util;
+
+/**
+ * 帧解码器
+ *
+ * <p>
+ * 直接在 {@link RingByteBuffer} 中查找帧的边界，确认是完整的一帧后，把帧的内容从缓冲拷贝到调用者提供的数组并解码，
+ * 再从缓冲中取走这一帧。不完整的帧留在缓冲中，搜索进度被保留，数据到达后继续搜索，不会重复扫描。
+ * 每次解码只处理开始时缓冲中已有的数据，解码过程中写线程新写入的数据留到下一次，搜索进度与缓冲内容始终一致。
+ * 解码失败的帧(长度超出上限、转义错误等)被丢弃并计数，之后从下一帧重新同步。
+ *
+ * <p>
+ * 内置的解码器：{@link LengthPrefix} 长度前缀、{@link Slip} SLIP(RFC 1055)、{@link Cobs} COBS、
+ * {@link Delimited} 起始/结束标志。一个解码器只能用于一个缓冲，且只能在缓冲的读线程中使用，
+ * 各计数可以在任意线程中读取。搜索进度是相对缓冲头部的位置，写线程不能用 {@link RingByteBuffer#writeOverwrite(byte[], int, int)}
+ * 丢弃最早的数据(头部会在两次解码之间甚至一次解码的中途移动)。
+ *
+ * <p>
+ * 可以用 {@link #setCheck(Crc, boolean, boolean)} 在分帧之后增加CRC校验：帧内容的最后几个字节为CRC字段，
+ * 校验失败的帧被丢弃并计数，通过的帧去掉CRC字段后返回。帧内容在缓冲中未经转义的解码器(长度前缀、起始/结束标志)
+ * 可以直接在缓冲中校验，失败的帧不必拷贝出来。
+ *
+ * @author t
+ * @see mobi.dzs.android.bluetooth.BtSppClient#setFrameDecoder(FrameDecoder)
+ */
+public abstract class FrameDecoder {
+	/** 帧内容的最大长度 */
+	protected final int mMaxFrameSize;
+	/** 解出的帧数(设置了校验时为校验通过的帧数) */
+	private volatile long mFrameCount = 0;
+	/** 解码失败而丢弃的帧数 */
+	private volatile long mErrorCount = 0;
+	/** 丢弃的字节数(帧以外的数据和解码失败的帧) */
+	private volatile long mDiscardedBytes = 0;
+	/** CRC校验失败而丢弃的帧数 */
+	private volatile long mCrcErrorCount = 0;
+	/** 帧校验的CRC，为null时不校验 */
+	private volatile Crc mCrc = null;
+	/** CRC字段是否为大端 */
+	private volatile boolean mCrcBigEndian = false;
+	/** 是否尽量在缓冲中校验 */
+	private volatile boolean mCrcInRing = true;
+	/** 当前这一帧已经在缓冲中校验通过 */
+	private boolean mCrcChecked = false;
+	/** 读取CRC字段的存储区 */
+	private final byte[] mCrcField = new byte[4];
+	/** 本次解码可以处理的字节数：开始时缓冲中的数据减去已取走的，只在读线程中使用 */
+	private int mAvail = 0;
+
+	/**
+	 * 构造函数
+	 *
+	 * @param maxFrameSize 帧内容的最大长度，单位:Byte
+	 */
+	protected FrameDecoder(int maxFrameSize) {
+		if (maxFrameSize < 1)
+			throw new IllegalArgumentException("maxFrameSize must be positive: " + maxFrameSize);
+		mMaxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * 从缓冲头部解出一帧<br>
+	 * 帧以外的数据、解码失败和校验失败的帧被丢弃，空帧被忽略。缓冲已满且不能扩容时仍解不出帧，丢弃缓冲中的全部数据重新同步
+	 *
+	 * @param buf 缓冲
+	 * @param dst 存放帧内容的数组，从off开始至少要有 {@link #getMaxFrameSize()} 字节的空间
+	 * @param off 数组开始位置
+	 * @return &gt;0:帧内容的长度(设置了校验时不含CRC字段) / 0:缓冲中没有完整的帧
+	 */
+	public final int decode(RingByteBuffer buf, byte[] dst, int off) {
+		Crc crc;
+		boolean checked;
+		int n;
+
+		if (dst.length - off < mMaxFrameSize)
+			throw new IllegalArgumentException("dst has no room for " + mMaxFrameSize + " bytes");
+
+		mAvail = buf.remain();
+		while ((n = decodeFrame(buf, dst, off)) > 0) {
+			crc = mCrc;
+			checked = mCrcChecked;
+			mCrcChecked = false;
+			if (null != crc) {
+				if (!checked && !crc.check(dst, off, n, mCrcBigEndian)) {
+					mCrcErrorCount++;
+					continue;
+				}
+				// 只有CRC字段的帧按空帧忽略
+				if ((n -= crc.size()) < 1)
+					continue;
+			}
+			mFrameCount++;
+			return n;
+		}
+
+		if (mAvail >= buf.size() && buf.size() >= buf.getMaxSize()) {
+			error();
+			discard(buf, mAvail);
+			reset();
+		}
+		return n;
+	}
+
+	/**
+	 * 获取缓冲头部已经检查过、还不足一帧的字节数，即最近一次 {@link #decode(RingByteBuffer, byte[], int)}
+	 * 返回0时留在缓冲中的数据。缓冲中的数据多于这个数时才可能解出新的帧，读线程可以据此等待新数据，只在读线程中调用
+	 *
+	 * @return 字节数
+	 * @see RingByteBuffer#awaitData(long, int)
+	 */
+	public int getPendingBytes() {
+		return mAvail;
+	}
+
+	/**
+	 * 从缓冲头部解出一帧，由子类实现<br>
+	 * 只能处理 {@link #available()} 字节，搜索、取走数据使用本类的方法，不直接调用缓冲的remain()/indexOf()/skip()/read()
+	 *
+	 * @param buf 缓冲
+	 * @param dst 存放帧内容的数组，空间足够
+	 * @param off 数组开始位置
+	 * @return &gt;0:帧内容的长度 / 0:缓冲中没有完整的帧
+	 */
+	protected abstract int decodeFrame(RingByteBuffer buf, byte[] dst, int off);
+
+	/**
+	 * 设置帧校验：帧内容的最后crc.size()字节为CRC字段，校验范围是它之前的全部帧内容<br>
+	 * 只能在开始解码之前设置
+	 *
+	 * @param crc CRC的种类，为null时不校验
+	 * @param bigEndian CRC字段是否为大端
+	 * @param inRing 是否在缓冲中校验：支持的解码器在拷贝之前直接对缓冲中的数据计算CRC，其它解码器仍在解码后校验
+	 */
+	public void setCheck(Crc crc, boolean bigEndian, boolean inRing) {
+		mCrcBigEndian = bigEndian;
+		mCrcInRing = inRing;
+		mCrc = crc;
+	}
+
+	/**
+	 * 获取帧校验的CRC
+	 *
+	 * @return CRC的种类，不校验时返回null
+	 */
+	public Crc getCheck() {
+		return mCrc;
+	}
+
+	/**
+	 * 在缓冲中校验一帧，由帧内容在缓冲中未经转义的子类在拷贝之前调用<br>
+	 * 没有设置校验或设置为解码后校验时直接返回true
+	 *
+	 * @param buf 缓冲
+	 * @param index 帧内容在缓冲中的位置
+	 * @param len 帧内容的长度，含CRC字段
+	 * @return true:校验通过、空帧或不在缓冲中校验 / false:校验失败，调用者需要丢弃这一帧
+	 */
+	protected final boolean checkInRing(RingByteBuffer buf, int index, int len) {
+		Crc crc = mCrc;
+		int body;
+
+		mCrcChecked = false;
+		if (null == crc || !mCrcInRing || 0 == len)
+			return true;
+		body = len - crc.size();
+		if (body < 0 || buf.peek(index + body, mCrcField, 0, crc.size()) != crc.size()
+				|| buf.checksum(crc, index, body) != crc.get(mCrcField, 0, mCrcBigEndian)) {
+			mCrcErrorCount++;
+			return false;
+		}
+		mCrcChecked = true;
+		return true;
+	}
+
+	/**
+	 * 清除搜索进度，从缓冲头部重新开始<br>
+	 * 缓冲被其它方法读取或清空后需要调用
+	 */
+	public void reset() {
+	}
+
+	/**
+	 * 获取帧内容的最大长度
+	 *
+	 * @return 最大长度，单位:Byte
+	 */
+	public int getMaxFrameSize() {
+		return mMaxFrameSize;
+	}
+
+	/**
+	 * 获取解出的帧数，设置了校验时为校验通过的帧数
+	 *
+	 * @return 帧数
+	 */
+	public long getFrameCount() {
+		return mFrameCount;
+	}
+
+	/**
+	 * 获取解码失败而丢弃的帧数
+	 *
+	 * @return 帧数
+	 */
+	public long getErrorCount() {
+		return mErrorCount;
+	}
+
+	/**
+	 * 获取CRC校验失败而丢弃的帧数
+	 *
+	 * @return 帧数
+	 */
+	public long getCrcErrorCount() {
+		return mCrcErrorCount;
+	}
+
+	/**
+	 * 获取丢弃的帧数：解码失败和CRC校验失败的帧数之和
+	 *
+	 * @return 帧数
+	 */
+	public long getBadFrameCount() {
+		return mErrorCount + mCrcErrorCount;
+	}
+
+	/**
+	 * 获取丢弃的字节数
+	 *
+	 * @return 字节数
+	 */
+	public long getDiscardedBytes() {
+		return mDiscardedBytes;
+	}
+
+	/**
+	 * 获取本次解码可以处理的字节数，之后写入缓冲的数据不计在内
+	 *
+	 * @return 字节数
+	 */
+	protected final int available() {
+		return mAvail;
+	}
+
+	/**
+	 * 在本次解码可以处理的数据中搜索一个字节
+	 *
+	 * @param buf 缓冲
+	 * @param b 要搜索的字节
+	 * @param from 从缓冲头部算起的开始位置
+	 * @return 位置，没有找到时返回-1
+	 */
+	protected final int indexOf(RingByteBuffer buf, byte b, int from) {
+		int idx = from < mAvail ? buf.indexOf(b, from) : -1;
+
+		return idx < mAvail ? idx : -1;
+	}
+
+	/**
+	 * 在本次解码可以处理的数据中搜索一个字节序列
+	 *
+	 * @param buf 缓冲
+	 * @param pattern 要搜索的字节序列
+	 * @param from 从缓冲头部算起的开始位置
+	 * @return 位置，没有找到时返回-1
+	 */
+	protected final int indexOf(RingByteBuffer buf, byte[] pattern, int from) {
+		int idx = from < mAvail ? buf.indexOf(pattern, from) : -1;
+
+		return idx >= 0 && idx + pattern.length <= mAvail ? idx : -1;
+	}
+
+	/**
+	 * 取走缓冲头部的数据(帧的标志、长度字段等)，不计为丢弃
+	 *
+	 * @param buf 缓冲
+	 * @param n 字节数
+	 */
+	protected final void skip(RingByteBuffer buf, int n) {
+		mAvail -= buf.skip(n);
+	}
+
+	/**
+	 * 取出缓冲头部的帧内容
+	 *
+	 * @param buf 缓冲
+	 * @param dst 目标数组
+	 * @param off 目标数组开始位置
+	 * @param len 字节数
+	 * @return 取出的字节数
+	 */
+	protected final int read(RingByteBuffer buf, byte[] dst, int off, int len) {
+		int n = buf.read(dst, off, len);
+
+		mAvail -= n;
+		return n;
+	}
+
+	/**
+	 * 记录一个解码失败的帧
+	 */
+	protected void error() {
+		mErrorCount++;
+	}
+
+	/**
+	 * 丢弃缓冲头部的数据并计数
+	 *
+	 * @param buf 缓冲
+	 * @param n 字节数
+	 */
+	protected void discard(RingByteBuffer buf, int n) {
+		n = buf.skip(n);
+		mAvail -= n;
+		mDiscardedBytes += n;
+	}
+
+	/**
+	 * 长度前缀的帧：1/2/4字节的长度字段(大端或小端)之后是帧内容<br>
+	 * 返回的帧内容不含长度字段。长度超出范围时认为失去同步，丢弃一个字节后重新查找
+	 *
+	 * @author t
+	 */
+	public static class LengthPrefix extends FrameDecoder {
+		/** 长度字段的字节数 */
+		private final int mWidth;
+		/** 长度字段是否为大端 */
+		private final boolean mBigEndian;
+		/** 长度字段的值加上这个数才是帧内容的长度，例如长度字段包含自身时为-width */
+		private final int mAdjust;
+		/** 读取长度字段的存储区 */
+		private final byte[] mHeader = new byte[4];
+
+		/**
+		 * 构造函数，长度字段的值为帧内容的长度
+		 *
+		 * @param width 长度字段的字节数 1/2/4
+		 * @param bigEndian 长度字段是否为大端
+		 * @param maxFrameSize 帧内容的最大长度
+		 */
+		public LengthPrefix(int width, boolean bigEndian, int maxFrameSize) {
+			this(width, bigEndian, 0, maxFrameSize);
+		}
+
+		/**
+		 * 构造函数
+		 *
+		 * @param width 长度字段的字节数 1/2/4
+		 * @param bigEndian 长度字段是否为大端
+		 * @param adjust 长度字段的值加上adjust为帧内容的长度，例如长度字段包含自身时为-width
+		 * @param maxFrameSize 帧内容的最大长度
+		 */
+		public LengthPrefix(int width, boolean bigEndian, int adjust, int maxFrameSize) {
+			super(maxFrameSize);
+			if (width != 1 && width != 2 && width != 4)
+				throw new IllegalArgumentException("width must be 1, 2 or 4: " + width);
+			mWidth = width;
+			mBigEndian = bigEndian;
+			mAdjust = adjust;
+		}
+
+		@Override
+		protected int decodeFrame(RingByteBuffer buf, byte[] dst, int off) {
+			long len;
+			int have;
+
+			while ((have = available()) >= mWidth) {
+				buf.peek(0, mHeader, 0, mWidth);
+				len = 0;
+				for (int i = 0; i < mWidth; i++) {
+					if (mBigEndian)
+						len = len << 8 | (mHeader[i] & 0xFF);
+					else
+						len |= (long) (mHeader[i] & 0xFF) << (8 * i);
+				}
+				len += mAdjust;
+
+				if (len < 0 || len > mMaxFrameSize) {
+					error();
+					discard(buf, 1);
+					continue;
+				}
+				if (have - mWidth < len)
+					return 0;
+				if (!checkInRing(buf, mWidth, (int) len)) {
+					discard(buf, mWidth + (int) len);
+					continue;
+				}
+
+				skip(buf, mWidth);
+				if (len > 0)
+					return read(buf, dst, off, (int) len);
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * SLIP(RFC 1055)：帧以END(0xC0)结束，帧内容中的END、ESC(0xDB)分别转义为ESC ESC_END(0xDC)、ESC ESC_ESC(0xDD)<br>
+	 * 帧开头的END(部分设备在帧前也发送END)被当作空帧忽略
+	 *
+	 * @author t
+	 */
+	public static class Slip extends FrameDecoder {
+		/** 常量:SLIP的特殊字节 */
+		public static final byte END = (byte) 0xC0;
+		public static final byte ESC = (byte) 0xDB;
+		public static final byte ESC_END = (byte) 0xDC;
+		public static final byte ESC_ESC = (byte) 0xDD;
+
+		/** 已搜索过、不含END的字节数 */
+		private int mScanned = 0;
+		/** 正在丢弃超长的帧，直到下一个END */
+		private boolean mSkipping = false;
+
+		/**
+		 * 构造函数
+		 *
+		 * @param maxFrameSize 帧内容(解码后)的最大长度
+		 */
+		public Slip(int maxFrameSize) {
+			super(maxFrameSize);
+		}
+
+		@Override
+		public void reset() {
+			mScanned = 0;
+			mSkipping = false;
+		}
+
+		@Override
+		protected int decodeFrame(RingByteBuffer buf, byte[] dst, int off) {
+			int end, n;
+
+			while (true) {
+				if ((end = indexOf(buf, END, mScanned)) < 0) {
+					mScanned = available();
+					// 编码后最长为帧内容的两倍，超过时不必等到END就可以丢弃
+					if (mScanned > 2 * mMaxFrameSize) {
+						if (!mSkipping)
+							error();
+						mSkipping = true;
+						discard(buf, mScanned);
+						mScanned = 0;
+					}
+					return 0;
+				}
+				mScanned = 0;
+
+				if (mSkipping) {
+					mSkipping = false;
+					discard(buf, end + 1);
+				} else if (end == 0) {
+					skip(buf, 1);
+				} else if ((n = unescape(buf, end, dst, off)) < 0) {
+					error();
+					discard(buf, end + 1);
+				} else {
+					skip(buf, end + 1);
+					if (n > 0)
+						return n;
+				}
+			}
+		}
+
+		/**
+		 * 把缓冲头部len字节的编码数据解码到dst<br>
+		 * 编码数据分段拷贝到dst中尚未使用的部分，就地解码(解码后的数据不会比编码前长)
+		 *
+		 * @param buf 缓冲
+		 * @param len 编码数据的长度，不含END
+		 * @param dst 目标数组
+		 * @param off 目标数组开始位置
+		 * @return 解码后的长度，-1:转义错误或超出最大长度
+		 */
+		private int unescape(RingByteBuffer buf, int len, byte[] dst, int off) {
+			boolean esc = false;
+			int pos = 0, w = off, r, e;
+			byte c;
+
+			while (pos < len) {
+				if (w - off == mMaxFrameSize)
+					return -1;
+				r = w;
+				e = r + buf.peek(pos, dst, r, Math.min(len - pos, mMaxFrameSize - (w - off)));
+				pos += e - r;
+				while (r < e) {
+					c = dst[r++];
+					if (esc) {
+						if (c == ESC_END)
+							c = END;
+						else if (c == ESC_ESC)
+							c = ESC;
+						else
+							return -1;
+						esc = false;
+					} else if (c == ESC) {
+						esc = true;
+						continue;
+					}
+					dst[w++] = c;
+				}
+			}
+			return esc ? -1 : w - off;
+		}
+	}
+
+	/**
+	 * COBS(Consistent Overhead Byte Stuffing)：帧以0x00结束，帧内容中没有0x00<br>
+	 * 编码数据由若干块组成，每块以一个长度字节code开头，其后是code-1个非零字节，code小于0xFF时块后隐含一个0x00(最后一块除外)
+	 *
+	 * @author t
+	 */
+	public static class Cobs extends FrameDecoder {
+		/** 已搜索过、不含0x00的字节数 */
+		private int mScanned = 0;
+		/** 正在丢弃超长的帧，直到下一个0x00 */
+		private boolean mSkipping = false;
+
+		/**
+		 * 构造函数
+		 *
+		 * @param maxFrameSize 帧内容(解码后)的最大长度
+		 */
+		public Cobs(int maxFrameSize) {
+			super(maxFrameSize);
+		}
+
+		@Override
+		public void reset() {
+			mScanned = 0;
+			mSkipping = false;
+		}
+
+		/**
+		 * 编码后的最大长度：每254字节增加一个code，再加上开头的code
+		 *
+		 * @return 字节数，不含结尾的0x00
+		 */
+		private int maxEncodedSize() {
+			return mMaxFrameSize + mMaxFrameSize / 254 + 1;
+		}
+
+		@Override
+		protected int decodeFrame(RingByteBuffer buf, byte[] dst, int off) {
+			int end, n;
+
+			while (true) {
+				if ((end = indexOf(buf, (byte) 0, mScanned)) < 0) {
+					mScanned = available();
+					if (mScanned > maxEncodedSize()) {
+						if (!mSkipping)
+							error();
+						mSkipping = true;
+						discard(buf, mScanned);
+						mScanned = 0;
+					}
+					return 0;
+				}
+				mScanned = 0;
+
+				if (mSkipping) {
+					mSkipping = false;
+					discard(buf, end + 1);
+				} else if (end == 0) {
+					skip(buf, 1);
+				} else if ((n = unstuff(buf, end, dst, off)) < 0) {
+					error();
+					discard(buf, end + 1);
+				} else {
+					skip(buf, end + 1);
+					if (n > 0)
+						return n;
+				}
+			}
+		}
+
+		/**
+		 * 把缓冲头部len字节的编码数据解码到dst，方法同 {@link Slip}，分段拷贝后就地解码
+		 *
+		 * @param buf 缓冲
+		 * @param len 编码数据的长度，不含结尾的0x00
+		 * @param dst 目标数组
+		 * @param off 目标数组开始位置
+		 * @return 解码后的长度，-1:格式错误或超出最大长度
+		 */
+		private int unstuff(RingByteBuffer buf, int len, byte[] dst, int off) {
+			int block = 0; // 当前块中剩余的数据字节数，0表示下一个字节是code
+			boolean zero = false; // 当前块之后是否隐含0x00
+			int pos = 0, w = off, r, e, c;
+
+			while (pos < len) {
+				if (w - off == mMaxFrameSize) {
+					// 目标数组已满，剩下的只能是不产生数据的code(最后一块的code)
+					if (block > 0 || zero)
+						return -1;
+					c = buf.peek(pos++);
+					block = c - 1;
+					zero = c != 0xFF;
+					continue;
+				}
+				r = w;
+				e = r + buf.peek(pos, dst, r, Math.min(len - pos, mMaxFrameSize - (w - off)));
+				pos += e - r;
+				while (r < e) {
+					c = dst[r++] & 0xFF;
+					if (block > 0) {
+						dst[w++] = (byte) c;
+						block--;
+						continue;
+					}
+					if (zero) {
+						if (w - off == mMaxFrameSize)
+							return -1;
+						dst[w++] = 0;
+					}
+					block = c - 1;
+					zero = c != 0xFF;
+				}
+			}
+			return block > 0 ? -1 : w - off;
+		}
+	}
+
+	/**
+	 * 起始/结束标志的帧：帧内容位于起始标志与结束标志之间，不含标志本身<br>
+	 * 起始标志为null时只按结束标志分帧。帧内容中不能出现结束标志，不做转义
+	 *
+	 * @author t
+	 */
+	public static class Delimited extends FrameDecoder {
+		/** 起始标志，为null时不使用 */
+		private final byte[] mStart;
+		/** 结束标志 */
+		private final byte[] mEnd;
+		/** 已找到起始标志，正在查找结束标志 */
+		private boolean mInFrame = false;
+		/** 已搜索过的字节数 */
+		private int mScanned = 0;
+		/** 正在丢弃超长的帧，直到下一个结束标志 */
+		private boolean mSkipping = false;
+
+		/**
+		 * 构造函数
+		 *
+		 * @param start 起始标志，为null或空时只按结束标志分帧
+		 * @param end 结束标志
+		 * @param maxFrameSize 帧内容的最大长度
+		 */
+		public Delimited(byte[] start, byte[] end, int maxFrameSize) {
+			super(maxFrameSize);
+			if (null == end || end.length == 0)
+				throw new IllegalArgumentException("end delimiter is empty");
+			mStart = (null == start || start.length == 0) ? null : start.clone();
+			mEnd = end.clone();
+		}
+
+		@Override
+		public void reset() {
+			mInFrame = false;
+			mScanned = 0;
+			mSkipping = false;
+		}
+
+		@Override
+		protected int decodeFrame(RingByteBuffer buf, byte[] dst, int off) {
+			int idx, n;
+
+			while (true) {
+				if (null != mStart && !mInFrame) {
+					if ((idx = indexOf(buf, mStart, mScanned)) < 0) {
+						// 起始标志之前的数据都丢弃，只保留可能是起始标志开头的部分
+						n = available() - (mStart.length - 1);
+						if (n > 0)
+							discard(buf, n);
+						mScanned = 0;
+						return 0;
+					}
+					discard(buf, idx);
+					skip(buf, mStart.length);
+					mInFrame = true;
+					mScanned = 0;
+				}
+
+				if ((idx = indexOf(buf, mEnd, mScanned)) < 0) {
+					mScanned = Math.max(0, available() - (mEnd.length - 1));
+					if (mScanned > mMaxFrameSize) {
+						if (!mSkipping)
+							error();
+						mSkipping = true;
+						discard(buf, mScanned);
+						mScanned = 0;
+					}
+					return 0;
+				}
+				mScanned = 0;
+				mInFrame = false;
+
+				if (mSkipping || idx > mMaxFrameSize) {
+					if (!mSkipping)
+						error();
+					mSkipping = false;
+					discard(buf, idx + mEnd.length);
+				} else if (idx == 0) {
+					skip(buf, mEnd.length);
+				} else if (!checkInRing(buf, 0, idx)) {
+					discard(buf, idx + mEnd.length);
+				} else {
+					n = read(buf, dst, off, idx);
+					skip(buf, mEnd.length);
+					return n;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package mobi.dzs.android.util;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * 延迟直方图(HDR风格)
+ *
+ * <p>
+ * 记录的数值单位为微秒，按对数-线性方式分桶：小于 {@link #SUB_BUCKETS} 的值每个整数一个桶；
+ * 更大的值按2的幂分段，每段再线性分为 SUB_BUCKETS/2 个桶，因此任何数值的相对误差都不超过 1/64，
+ * 而桶的总数只有两千多个，与记录的次数无关。可记录的最大值约为 2^38 微秒(76小时)，更大的值按最大值记录。
+ *
+ * <p>
+ * 所有方法都是同步的。
+ *
+ * @author t
+ *
+ */
+public class LatencyHistogram {
+	/** 常量:每段中桶数的位数 */
+	private static final int SUB_BITS = 7;
+	/** 常量:第一段(线性段)的桶数 */
+	public static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/** 常量:之后每段的桶数 */
+	private static final int HALF_BUCKETS = SUB_BUCKETS / 2;
+	/** 常量:对数段的个数 */
+	private static final int SHIFTS = 31;
+	/** 常量:可记录的最大值，单位:微秒 */
+	public static final long MAX_VALUE = ((long) SUB_BUCKETS << SHIFTS) - 1;
+	/** 常量:导出时列出的百分位 */
+	private static final double[] EXPORT_PERCENTILES = { 50, 90, 99, 99.9 };
+
+	/** 各桶的计数 */
+	private final long[] mCounts = new long[SUB_BUCKETS + SHIFTS * HALF_BUCKETS];
+	/** 总次数 */
+	private long mTotal = 0;
+	/** 数值总和，用于计算平均值 */
+	private long mSum = 0;
+	/** 最小值、最大值(精确值) */
+	private long mMin = Long.MAX_VALUE, mMax = 0;
+
+	/**
+	 * 记录一个数值
+	 *
+	 * @param value 延迟，单位:微秒。&lt;0时按0记录
+	 */
+	synchronized public void record(long value) {
+		value = Math.max(0, Math.min(MAX_VALUE, value));
+		mCounts[indexOf(value)]++;
+		mTotal++;
+		mSum += value;
+		if (value < mMin)
+			mMin = value;
+		if (value > mMax)
+			mMax = value;
+	}
+
+	/**
+	 * 清除所有记录
+	 */
+	synchronized public void reset() {
+		Arrays.fill(mCounts, 0);
+		mTotal = mSum = mMax = 0;
+		mMin = Long.MAX_VALUE;
+	}
+
+	/**
+	 * 获取记录的次数
+	 *
+	 * @return 次数
+	 */
+	synchronized public long getCount() {
+		return mTotal;
+	}
+
+	/**
+	 * 获取最小值
+	 *
+	 * @return 微秒，没有记录时返回0
+	 */
+	synchronized public long getMin() {
+		return 0 == mTotal ? 0 : mMin;
+	}
+
+	/**
+	 * 获取最大值
+	 *
+	 * @return 微秒
+	 */
+	synchronized public long getMax() {
+		return mMax;
+	}
+
+	/**
+	 * 获取平均值
+	 *
+	 * @return 微秒，没有记录时返回0
+	 */
+	synchronized public double getMean() {
+		return 0 == mTotal ? 0 : (double) mSum / mTotal;
+	}
+
+	/**
+	 * 获取百分位数值，即不超过它的记录占全部记录的percentile%
+	 *
+	 * @param percentile 百分位 0 ~ 100，例如 99 为p99
+	 * @return 微秒(所在桶的上限，不超过最大值)，没有记录时返回0
+	 */
+	synchronized public long getValueAtPercentile(double percentile) {
+		long target, count = 0;
+
+		if (0 == mTotal)
+			return 0;
+		target = (long) Math.ceil(Math.max(0, Math.min(100, percentile)) / 100 * mTotal);
+		if (target < 1)
+			target = 1;
+		for (int i = 0; i < mCounts.length; i++) {
+			count += mCounts[i];
+			if (count >= target)
+				return Math.min(mMax, highestEquivalent(i));
+		}
+		return mMax;
+	}
+
+	/**
+	 * 导出为文本：摘要(次数、最小、平均、百分位、最大)和按桶的累计分布<br>
+	 * 分布部分每行为 "数值(us) 百分位 累计次数"，以制表符分隔，可直接导入表格或绘图工具
+	 *
+	 * @return 文本
+	 */
+	synchronized public String export() {
+		StringBuilder sb = new StringBuilder();
+		long count = 0;
+
+		sb.append(String.format(Locale.US, "count\t%d\nmin_us\t%d\nmean_us\t%.1f\n", mTotal, getMin(), getMean()));
+		for (double p : EXPORT_PERCENTILES)
+			sb.append(String.format(Locale.US, "p%s_us\t%d\n", trimZero(p), getValueAtPercentile(p)));
+		sb.append(String.format(Locale.US, "max_us\t%d\n\nvalue_us\tpercentile\ttotal_count\n", mMax));
+		for (int i = 0; i < mCounts.length; i++) {
+			if (0 == mCounts[i])
+				continue;
+			count += mCounts[i];
+			sb.append(String.format(Locale.US, "%d\t%.4f\t%d\n",
+					Math.min(mMax, highestEquivalent(i)), 100.0 * count / mTotal, count));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 一行摘要：次数、p50/p90/p99/最大值
+	 *
+	 * @return 文本
+	 */
+	@Override
+	synchronized public String toString() {
+		return String.format(Locale.US, "n=%d p50=%dus p90=%dus p99=%dus max=%dus", mTotal,
+				getValueAtPercentile(50), getValueAtPercentile(90), getValueAtPercentile(99), mMax);
+	}
+
+	/**
+	 * 数值所在的桶
+	 *
+	 * @param value 数值，0 ~ MAX_VALUE
+	 * @return 桶的下标
+	 */
+	private static int indexOf(long value) {
+		int shift;
+
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		// value >> shift 落在 [HALF_BUCKETS, SUB_BUCKETS) 之间
+		shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+		return SUB_BUCKETS + (shift - 1) * HALF_BUCKETS + (int) (value >> shift) - HALF_BUCKETS;
+	}
+
+	/**
+	 * 桶中能记录的最大数值
+	 *
+	 * @param index 桶的下标
+	 * @return 数值
+	 */
+	private static long highestEquivalent(int index) {
+		int shift;
+		long top;
+
+		if (index < SUB_BUCKETS)
+			return index;
+		shift = (index - SUB_BUCKETS) / HALF_BUCKETS + 1;
+		top = (index - SUB_BUCKETS) % HALF_BUCKETS + HALF_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+
+	/**
+	 * 百分位的显示格式，整数不带小数点
+	 *
+	 * @param p 百分位
+	 * @return 文本，例如 "99" "99.9"
+	 */
+	private static String trimZero(double p) {
+		return p == Math.rint(p) ? String.valueOf((long) p) : String.valueOf(p);
+	}
+}
@@ -67,7 +67,7 @@ public class LocalIoTools {
 					return false; // 目录创建失败，退出
 
 			/* 检查文件是否存在 */
-			file = new File(path + "\\" + name); // 获取文件句柄
+			file = new File(path, name); // 获取文件句柄
 			if (!file.exists())
 				if (!file.createNewFile()) // 文件不存在，创建之
 					return false; // 文件创建失败，退出
@@ -119,7 +119,7 @@ public class LocalIoTools {
 					return false; // 目录创建失败，退出
 
 			/* 检查文件是否存在 */
-			fhd = new File(path + "/" + name); // 获取文件句柄
+			fhd = new File(path, name); // 获取文件句柄
 			if (fhd.exists())
 				fhd.delete(); // 文件存在，删除
 
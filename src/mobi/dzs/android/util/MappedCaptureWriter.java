@@ -0,0 +1,540 @@
+package mobi.dzs.android.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 映射到内存的分段捕获文件
+ *
+ * <p>
+ * 捕获文件按固定大小分段(文件名为 base.0000、base.0001 ...)，每段创建时一次映射到内存，
+ * {@link #write(byte[], int, int)} 在调用的线程(例如接收线程)中直接把数据复制到映射的内存，
+ * 不经过缓冲，每次写入也没有系统调用，由系统在后台把脏页写回文件。下一段由后台线程预先创建、预分配并映射，
+ * 一段写满后直接切换过去，写满的段也交给后台线程写回(msync)，写入的线程中不做任何文件操作。
+ *
+ * <p>
+ * 每段的格式(多字节整数均为大端)：
+ *
+ * <pre>
+ * 段头 64字节: 'S' 'P' 'P' 'M' | 版本(4) | 段头长度(4) | 段序号(4) | 段大小(4) | 保留(4) | 开始捕获时的系统时间(8，ms)
+ *              提交槽0: 序号(4) | 已提交长度(4) | 校验(4) | 保留(4)
+ *              提交槽1: 同上
+ * 数据:        段大小 - 段头长度
+ * </pre>
+ *
+ * 每次写入数据后把已提交的长度交替写入两个提交槽，读取时取校验正确、序号较新的一个，写提交槽时中断也还有另一个可用。
+ * 进程崩溃时已写入映射内存的数据仍由系统写回，文件中的已提交长度与数据一致；掉电时只保证最近一次 {@link #force()}
+ * 之前的数据。正常 {@link #close()} 时最后一段截短到实际长度，未关闭的段保持完整大小，
+ * 用 {@link #committedLength(File)} 或 {@link #export(File, OutputStream)} 取出有效数据。
+ *
+ * <p>
+ * 创建新段时先写入整段的0预分配磁盘空间：setLength()只产生稀疏文件，空间在写映射内存时才分配，
+ * 磁盘满时进程会收到SIGBUS而崩溃。预分配失败(空间不足)时写满当前段后停止写入，之后的数据丢弃并计数。
+ * 当前段写满时下一段还没有准备好(磁盘跟不上)，数据同样丢弃并计数，写入从不等待。
+ *
+ * <p>
+ * 写满的段写回文件后不再引用，Android上不能主动解除映射，映射在对象回收时释放。
+ * 关闭时删除已准备好但没有用到的下一段。
+ *
+ * @author t
+ * @see mobi.dzs.android.bluetooth.BtSppComm#startCapture(CaptureSink, CaptureSink)
+ */
+public class MappedCaptureWriter implements CaptureSink {
+	/** 常量:默认的段大小 */
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+	/** 常量:最小的段大小 */
+	public static final int MIN_SEGMENT_SIZE = 4096;
+	/** 常量:段头长度 */
+	public static final int HEADER_SIZE = 64;
+
+	/** 常量:段头的标志"SPPM" */
+	private static final int MAGIC = 0x5350504D;
+	/** 常量:段格式版本 */
+	private static final int VERSION = 1;
+	/** 常量:段头中各项的位置 */
+	private static final int OFF_MAGIC = 0, OFF_VERSION = 4, OFF_HEADER_SIZE = 8, OFF_INDEX = 12, OFF_SEGMENT_SIZE = 16,
+			OFF_START_TIME = 24, OFF_SLOT = 32;
+	/** 常量:提交槽的长度 */
+	private static final int SLOT_SIZE = 16;
+	/** 常量:预分配时每次写入的长度 */
+	private static final int PREALLOC_BLOCK = 64 * 1024;
+	/** 常量:后台线程名称 */
+	private static final String PREPARE_THREAD_NAME = "MappedCaptureWriter-prepare",
+			FORCE_THREAD_NAME = "MappedCaptureWriter-force";
+
+	/** 文件名前缀 */
+	private final File mBase;
+	/** 段大小 */
+	private final int mSegmentSize;
+	/** 开始捕获时的系统时间(ms) */
+	private final long mStartTime;
+	/** 当前段映射的内存，为null时已关闭 */
+	private MappedByteBuffer mMap = null;
+	/** 后台线程正在准备或已准备好的下一段，为null时已关闭或创建失败 */
+	private Future<Segment> mNext = null;
+	/** 创建下一段的后台线程 */
+	private final ExecutorService mPrepareExecutor = newExecutor(PREPARE_THREAD_NAME);
+	/** 写回写满的段的后台线程，写回较慢，与创建分开，不推迟下一段的准备 */
+	private final ExecutorService mForceExecutor = newExecutor(FORCE_THREAD_NAME);
+	/** 当前段的文件 */
+	private File mSegmentFile = null;
+	/** 当前段的序号、已创建的段数 */
+	private int mIndex, mSegmentCount = 0;
+	/** 当前段的提交序号 */
+	private int mCommitSeq = 0;
+	/** 已写入和丢弃的字节数 */
+	private volatile long mWritten = 0, mDropped = 0;
+	/** 已关闭 */
+	private boolean mClosed = false;
+	/** 创建段或写文件失败的异常，为null时没有失败 */
+	private volatile IOException mError = null;
+
+	/**
+	 * 构造函数，在调用者线程中创建第一段，并开始在后台准备第二段<br>
+	 * 已有同名的段时接在最后一段之后，不覆盖
+	 *
+	 * @param base 文件名前缀，所在目录不存在时创建
+	 * @param segmentSize 段大小，&lt;{@link #MIN_SEGMENT_SIZE}时使用 {@link #DEFAULT_SEGMENT_SIZE}
+	 * @throws IOException 无法创建第一段
+	 */
+	public MappedCaptureWriter(File base, int segmentSize) throws IOException {
+		File dir = base.getAbsoluteFile().getParentFile();
+
+		if (null != dir && !dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("cannot create " + dir);
+		mBase = base;
+		mSegmentSize = segmentSize < MIN_SEGMENT_SIZE ? DEFAULT_SEGMENT_SIZE : segmentSize;
+		mStartTime = System.currentTimeMillis();
+		mIndex = 0;
+		while (segmentFile(base, mIndex).exists())
+			mIndex++;
+		use(createSegment(mIndex));
+		prepareNext();
+	}
+
+	/**
+	 * 以默认的段大小构造
+	 *
+	 * @param base 文件名前缀
+	 * @throws IOException 无法创建第一段
+	 */
+	public MappedCaptureWriter(File base) throws IOException {
+		this(base, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * 获取段的文件
+	 *
+	 * @param base 文件名前缀
+	 * @param index 段序号
+	 * @return 文件 base.NNNN
+	 */
+	public static File segmentFile(File base, int index) {
+		return new File(base.getPath() + String.format(Locale.US, ".%04d", index));
+	}
+
+	/**
+	 * 写入数据，直接复制到映射的内存并提交，不阻塞<br>
+	 * 当前段写满时切换到后台准备好的新段，数据跨段写入；已关闭、新段还没有准备好或创建失败时，
+	 * 剩余的数据被丢弃并计入 {@link #getDroppedBytes()}
+	 *
+	 * @param buf 数据
+	 * @param off 数据开始位置
+	 * @param len 数据长度
+	 * @return 写入的字节数
+	 */
+	@Override
+	synchronized public int write(byte[] buf, int off, int len) {
+		int done = 0, n;
+
+		while (done < len && null != mMap) {
+			if (!mMap.hasRemaining() && !nextSegment())
+				break;
+			n = Math.min(len - done, mMap.remaining());
+			mMap.put(buf, off + done, n);
+			commit();
+			done += n;
+		}
+		mWritten += done;
+		if (done < len)
+			mDropped += len - done;
+		return done;
+	}
+
+	/**
+	 * 把当前段已写入的数据写回文件(msync)，会阻塞到写完，不要在接收线程中频繁调用
+	 *
+	 * @return true:成功 / false:已关闭或已失败
+	 */
+	synchronized public boolean force() {
+		if (null == mMap)
+			return false;
+		mMap.force();
+		return true;
+	}
+
+	/**
+	 * 关闭：删除没有用到的下一段，写回当前段并截短到实际长度，等待后台线程写回之前的段
+	 *
+	 * @return true:全部数据已写入 / false:创建段或写文件失败，或等待时被中断
+	 */
+	@Override
+	synchronized public boolean close() {
+		RandomAccessFile raf;
+		MappedByteBuffer map = mMap;
+		Future<Segment> next = mNext;
+		boolean interrupted = false;
+
+		if (mClosed)
+			return null == mError;
+		mClosed = true;
+		mMap = null;
+		mNext = null;
+		mPrepareExecutor.shutdown(); // 已提交的任务仍会执行
+		mForceExecutor.shutdown();
+		if (null != next) {
+			try {
+				next.get().mFile.delete(); // 准备好但没有用到的段
+			} catch (ExecutionException e) {
+				// 创建失败时文件已删除
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (null != map) {
+			map.force();
+			try {
+				raf = new RandomAccessFile(mSegmentFile, "rw");
+				try {
+					raf.setLength(map.position());
+				} finally {
+					raf.close();
+				}
+			} catch (IOException e) {
+				// 截短失败不影响数据，committedLength()仍能取出
+				if (null == mError)
+					mError = e;
+			}
+		}
+		try {
+			if (!interrupted)
+				mForceExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			interrupted = true;
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		return null == mError && !interrupted;
+	}
+
+	/**
+	 * 获取文件名前缀
+	 *
+	 * @return 文件
+	 */
+	public File getFile() {
+		return mBase;
+	}
+
+	/**
+	 * 获取已创建的段数
+	 *
+	 * @return 段数
+	 */
+	synchronized public int getSegmentCount() {
+		return mSegmentCount;
+	}
+
+	@Override
+	public long getWrittenBytes() {
+		return mWritten;
+	}
+
+	@Override
+	public long getDroppedBytes() {
+		return mDropped;
+	}
+
+	/**
+	 * 获取失败的原因
+	 *
+	 * @return 异常，没有失败时为null
+	 */
+	public IOException getError() {
+		return mError;
+	}
+
+	/**
+	 * 读取段头，获取段中已提交的数据长度<br>
+	 * 未正常关闭(例如进程崩溃)的段同样适用
+	 *
+	 * @param segment 段的文件
+	 * @return 数据长度，不含段头
+	 * @throws IOException 读取失败，或不是有效的段
+	 */
+	public static int committedLength(File segment) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(segment, "r");
+		int headerSize, seq0, seq1, len0, len1;
+		boolean ok0, ok1;
+
+		try {
+			if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC || raf.readInt() != VERSION)
+				throw new IOException("not a capture segment: " + segment);
+			headerSize = raf.readInt();
+			raf.seek(OFF_SLOT);
+			seq0 = raf.readInt();
+			len0 = raf.readInt();
+			ok0 = raf.readInt() == check(seq0, len0);
+			raf.seek(OFF_SLOT + SLOT_SIZE);
+			seq1 = raf.readInt();
+			len1 = raf.readInt();
+			ok1 = raf.readInt() == check(seq1, len1);
+			if (ok0 && ok1)
+				len0 = seq1 - seq0 > 0 ? len1 : len0; // 序号可能回绕，按差值比较
+			else if (ok1)
+				len0 = len1;
+			else if (!ok0)
+				throw new IOException("corrupt capture segment: " + segment);
+			// 截短失败或文件被截断时，不超出实际的文件长度
+			return (int) Math.max(0, Math.min(len0, raf.length() - headerSize));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * 把各段已提交的数据依次写入输出流，得到与 {@link CaptureWriter} 相同的连续数据
+	 *
+	 * @param base 文件名前缀
+	 * @param out 输出流
+	 * @return 写入的字节数
+	 * @throws IOException 读取段或写输出出错
+	 */
+	public static long export(File base, OutputStream out) throws IOException {
+		byte[] buf = new byte[32 * 1024];
+		RandomAccessFile raf;
+		File segment;
+		long total = 0;
+		int headerSize, len, n;
+
+		for (int i = 0; (segment = segmentFile(base, i)).exists(); i++) {
+			try {
+				len = committedLength(segment);
+			} catch (IOException e) {
+				if (segmentFile(base, i + 1).exists())
+					throw e;
+				break; // 最后一段在写入段头前中断(例如进程崩溃)，没有数据
+			}
+			raf = new RandomAccessFile(segment, "r");
+			try {
+				raf.seek(OFF_HEADER_SIZE);
+				headerSize = raf.readInt();
+				raf.seek(headerSize);
+				while (len > 0) {
+					n = raf.read(buf, 0, Math.min(len, buf.length));
+					if (n < 0)
+						break;
+					out.write(buf, 0, n);
+					len -= n;
+					total += n;
+				}
+			} finally {
+				raf.close();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * 切换到后台线程准备好的下一段，不等待：写满的段交给后台线程写回，并开始准备再下一段<br>
+	 * 下一段创建失败时记录错误，之后不再写入
+	 *
+	 * @return true:已切换 / false:下一段还没有准备好，或创建失败
+	 */
+	private boolean nextSegment() {
+		final MappedByteBuffer full = mMap;
+		Segment next;
+
+		if (null == mNext || !mNext.isDone())
+			return false; // 磁盘跟不上
+		try {
+			next = mNext.get();
+		} catch (ExecutionException e) {
+			mError = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			mNext = null;
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt(); // 已完成的Future不会等待，不会发生
+			return false;
+		}
+		mIndex++;
+		use(next);
+		prepareNext();
+		mForceExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				full.force(); // 写满的段写回文件后不再引用，映射在对象回收时释放
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * 使用新创建的段作为当前段
+	 *
+	 * @param segment 段
+	 */
+	private void use(Segment segment) {
+		mSegmentCount++;
+		mSegmentFile = segment.mFile;
+		mMap = segment.mMap;
+		mCommitSeq = 1; // createSegment()已提交长度0
+	}
+
+	/**
+	 * 在后台线程中创建当前段的下一段
+	 */
+	private void prepareNext() {
+		final int index = mIndex + 1;
+
+		mNext = mPrepareExecutor.submit(new Callable<Segment>() {
+			@Override
+			public Segment call() throws IOException {
+				return createSegment(index);
+			}
+		});
+	}
+
+	/**
+	 * 创建、预分配并映射一段，写入段头，已提交长度为0。失败时删除不完整的文件
+	 *
+	 * @param index 段序号
+	 * @return 段
+	 * @throws IOException 空间不足或无法创建
+	 */
+	private Segment createSegment(int index) throws IOException {
+		File file = segmentFile(mBase, index), dir = file.getAbsoluteFile().getParentFile();
+		RandomAccessFile raf = null;
+		MappedByteBuffer map;
+
+		try {
+			if (null != dir && dir.getUsableSpace() < mSegmentSize)
+				throw new IOException("no space for " + file);
+			raf = new RandomAccessFile(file, "rw");
+			try {
+				preallocate(raf);
+				map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+			} finally {
+				raf.close(); // 关闭文件后映射仍然有效
+			}
+		} catch (IOException e) {
+			if (null != raf)
+				file.delete(); // 不留下没有段头的半截文件
+			throw e;
+		}
+		map.putInt(OFF_MAGIC, MAGIC);
+		map.putInt(OFF_VERSION, VERSION);
+		map.putInt(OFF_HEADER_SIZE, HEADER_SIZE);
+		map.putInt(OFF_INDEX, index);
+		map.putInt(OFF_SEGMENT_SIZE, mSegmentSize);
+		map.putLong(OFF_START_TIME, mStartTime);
+		map.position(HEADER_SIZE);
+		putCommit(map, 1, 0);
+		return new Segment(file, map);
+	}
+
+	/**
+	 * 创建单线程的后台执行器，线程为守护线程，不阻止进程退出
+	 *
+	 * @param name 线程名称
+	 * @return 执行器
+	 */
+	private static ExecutorService newExecutor(final String name) {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name);
+
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * 写入整段的0，使文件的磁盘空间全部分配，写映射内存时不会因磁盘满而出错
+	 *
+	 * @param raf 新段的文件
+	 * @throws IOException 空间不足或写入失败
+	 */
+	private void preallocate(RandomAccessFile raf) throws IOException {
+		byte[] zero = new byte[Math.min(PREALLOC_BLOCK, mSegmentSize)];
+		int n;
+
+		raf.setLength(0);
+		for (int pos = 0; pos < mSegmentSize; pos += n) {
+			n = Math.min(zero.length, mSegmentSize - pos);
+			raf.write(zero, 0, n);
+		}
+	}
+
+	/**
+	 * 把当前段的数据长度写入下一个提交槽
+	 */
+	private void commit() {
+		putCommit(mMap, ++mCommitSeq, mMap.position() - HEADER_SIZE);
+	}
+
+	/**
+	 * 写提交槽，序号的奇偶决定写哪一个
+	 *
+	 * @param map 段映射的内存
+	 * @param seq 提交序号
+	 * @param len 已提交长度
+	 */
+	private static void putCommit(MappedByteBuffer map, int seq, int len) {
+		int slot = OFF_SLOT + (seq & 1) * SLOT_SIZE;
+
+		map.putInt(slot, seq);
+		map.putInt(slot + 4, len);
+		map.putInt(slot + 8, check(seq, len));
+	}
+
+	/**
+	 * 提交槽的校验值
+	 *
+	 * @param seq 序号
+	 * @param len 长度
+	 * @return 校验值
+	 */
+	private static int check(int seq, int len) {
+		return MAGIC ^ seq ^ Integer.rotateLeft(len, 16);
+	}
+
+	/**
+	 * 已创建并映射、写好段头的一段
+	 */
+	private static final class Segment {
+		/** 段的文件 */
+		final File mFile;
+		/** 映射的内存，位置在段头之后 */
+		final MappedByteBuffer mMap;
+
+		Segment(File file, MappedByteBuffer map) {
+			mFile = file;
+			mMap = map;
+		}
+	}
+}
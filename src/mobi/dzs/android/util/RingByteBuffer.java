@@ -1,5 +1,8 @@
 package mobi.dzs.android.util;
 
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
 /**
  * 环形字节缓冲
  * 
@@ -16,19 +19,70 @@ package mobi.dzs.android.util;
  * <b><i>H</i></b> is head, <b><i>T</i></b> is tail, <b><i>S</i></b> is data size.
  * </per>
  * 
+ * <p>
+ * 默认所有读写方法都是同步的，可以有多个读写线程。以lock-free模式构造时
+ * ({@link #RingByteBuffer(int, boolean, boolean)})，只允许一个线程写入(write)、
+ * 一个线程读出(read/readline/setSeparator/clear)，读写双方只通过volatile的头尾指示器交换数据，
+ * 不再获取对象锁。
+ * 
  * @author t
  * 
  */
 public class RingByteBuffer {
 	private byte[] mBuf = null;
-	/** 数组使用情况指示器 */
-	private int mHead, mTail;
+	/** 下标掩码，仅在2的幂容量模式下有效，否则为0 {@link #RingByteBuffer(int, boolean)} */
+	private int mMask;
+	/** 数组使用情况指示器，lock-free模式下mHead只由读线程修改，mTail只由写线程修改 */
+	private volatile int mHead, mTail;
+	/** 单生产者/单消费者的lock-free模式 {@link #RingByteBuffer(int, boolean, boolean)} */
+	private final boolean mLockFree;
+	/** 自动扩容的容量上限，0表示不自动扩容 {@link #setAutoGrow(int)} */
+	private int mMaxSize;
 	/** 用于readline方法中，保存上次搜索分割符时已经搜索的位置 {@link #readline(boolean)} */
 	private int mSearchIdx;
-	/** 用于readline作为各行的分割符 */
-	private byte[] mSeparator;
+	/** 用于readline作为各行的分割符，可以有多个 {@link #setSeparators(byte[][])} */
+	private byte[][] mSeparators;
+	/** 分隔符自动机的当前状态，与mSearchIdx一起保存搜索进度 */
 	private int mSeparatorIdx;
-	private int[] mSepKmpTab;
+	/** 分隔符自动机(Aho-Corasick)的状态转移表，下标为 (状态 &lt;&lt; 8 | 字节) */
+	private int[] mSepGoto;
+	/** 各状态已匹配的字节数 */
+	private int[] mSepDepth;
+	/** 各状态的标志 SEP_MATCH / SEP_EXACT / SEP_EXTENDABLE */
+	private byte[] mSepFlags;
+	/** 已找到但尚未取走的行长度(含分隔符)，0表示还没有找到完整的行 */
+	private int mLineLen;
+	/** 上一行的分隔符还可能延长为更长的分隔符时(例如"\r"之后的"\n")，为其在自动机中的状态，否则为0 */
+	private int mPrevSepState;
+	/** 缓冲头部属于上一行分隔符延长部分的字节数，取下一行时丢弃 */
+	private int mLineSkip;
+	/** 等待数据或空间的线程使用的信号对象 {@link #awaitData(long)} {@link #awaitLine(long)} {@link #awaitSpace(long)} */
+	private final Object mSignal = new Object();
+	/** 正在等待数据的线程数，写入数据后只有存在等待线程时才发出通知 */
+	private volatile int mDataWaiters;
+	/** 正在等待空间的线程数，读出数据后只有存在等待线程时才发出通知 */
+	private volatile int mSpaceWaiters;
+	/** 已调用 {@link #wakeup()}、尚未被等待数据的线程取走，只在mSignal内读写 */
+	private boolean mWakeupPending;
+	/** 已关闭，等待立即返回，直到 {@link #reopen()}，只在mSignal内读写 {@link #close()} */
+	private boolean mClosed;
+	
+	/** 常量:等待条件-有数据可读 */
+	private static final int WAIT_DATA = 0;
+	/** 常量:等待条件-有完整的行可读 */
+	private static final int WAIT_LINE = 1;
+	/** 常量:等待条件-有空间可写 */
+	private static final int WAIT_SPACE = 2;
+	
+	/** 常量:分隔符状态标志-有分隔符在此结束 */
+	private static final byte SEP_MATCH = 1;
+	/** 常量:分隔符状态标志-已匹配的字节正好是一个完整的分隔符 */
+	private static final byte SEP_EXACT = 2;
+	/** 常量:分隔符状态标志-完整的分隔符，同时又是更长的分隔符的开头 */
+	private static final byte SEP_EXTENDABLE = 4;
+
+	/** 常量:2的幂容量时允许的最大缓冲大小，内部数组长度为2^30 */
+	public static final int MAX_POW2_SIZE = (1 << 30) - 1;
 
 	/**
 	 * 构造方法
@@ -36,10 +90,109 @@ public class RingByteBuffer {
 	 * @param size 缓冲大小，单位:Byte
 	 */
 	public RingByteBuffer(int size) {
-		mBuf = new byte[size + 1];
+		this(size, false);
+	}
+
+	/**
+	 * 构造方法
+	 * 
+	 * <p>
+	 * powerOfTwo为true时，内部数组长度取不小于size+1的2的幂，下标回绕使用掩码运算代替取模和比较，
+	 * 此时 {@link #size()} 可能大于指定的size，size的范围为1 ~ {@link #MAX_POW2_SIZE}。
+	 * 
+	 * @param size 缓冲大小，单位:Byte
+	 * @param powerOfTwo 是否使用2的幂容量及掩码下标
+	 * @throws IllegalArgumentException powerOfTwo为true且size超出范围
+	 */
+	public RingByteBuffer(int size, boolean powerOfTwo) {
+		this(size, powerOfTwo, false);
+	}
+
+	/**
+	 * 构造方法
+	 * 
+	 * <p>
+	 * lockFree为true时，缓冲工作在单生产者/单消费者模式：读写方法不再同步，
+	 * 调用者必须保证只有一个线程写入、一个线程读出。lock-free模式不支持自动扩容。
+	 * 
+	 * @param size 缓冲大小，单位:Byte。powerOfTwo为true时为1 ~ {@link #MAX_POW2_SIZE}
+	 * @param powerOfTwo 是否使用2的幂容量及掩码下标
+	 * @param lockFree 是否使用单生产者/单消费者的lock-free模式
+	 * @throws IllegalArgumentException powerOfTwo为true且size超出范围
+	 */
+	public RingByteBuffer(int size, boolean powerOfTwo, boolean lockFree) {
+		int length = size + 1;
+
+		if (powerOfTwo) {
+			if (size < 1 || size > MAX_POW2_SIZE)
+				throw new IllegalArgumentException("size out of range: " + size);
+			length = Integer.highestOneBit(size) << 1;
+			mMask = length - 1;
+		}
+		mBuf = new byte[length];
 		mHead = mTail = 0;
+		mLockFree = lockFree;
 		setSeparator(null);
 	}
+	
+	/**
+	 * 是否工作在单生产者/单消费者的lock-free模式
+	 * 
+	 * @return lock-free模式返回true
+	 */
+	public boolean isLockFree() {
+		return mLockFree;
+	}
+	
+	/**
+	 * 设置自动扩容<br>
+	 * 写入时空间不足，缓冲容量成倍增长，直到能容纳写入的数据或达到maxSize。
+	 * 2的幂容量模式下，maxSize按构造方法的规则向上取整，超过 {@link #MAX_POW2_SIZE} 时取MAX_POW2_SIZE。
+	 * 扩容时读线程可能正在访问内部数组，因此lock-free模式下不可用。
+	 * 
+	 * @param maxSize 容量上限，单位:Byte。不大于当前容量时关闭自动扩容
+	 * @return 设置成功返回true，lock-free模式下返回false
+	 * 
+	 * @see #getMaxSize()
+	 * @see #size()
+	 */
+	synchronized public boolean setAutoGrow(int maxSize) {
+		if (mLockFree)
+			return false;
+		
+		if (maxSize <= capacity())
+			mMaxSize = 0;
+		else if (mMask != 0)
+			mMaxSize = (Integer.highestOneBit(Math.min(maxSize, MAX_POW2_SIZE)) << 1) - 1;
+		else
+			mMaxSize = maxSize;
+		
+		return true;
+	}
+	
+	/**
+	 * 获取自动扩容的容量上限
+	 * 
+	 * @return 容量上限，没有开启自动扩容时返回当前容量
+	 * 
+	 * @see #setAutoGrow(int)
+	 */
+	synchronized public int getMaxSize() {
+		return mMaxSize > 0 ? mMaxSize : capacity();
+	}
+	
+	/**
+	 * 下标回绕处理，idx取值范围为[0, 2 * mBuf.length)
+	 * 
+	 * @param idx 数组下标
+	 * @return 回绕后的数组下标
+	 */
+	private int wrap(int idx) {
+		if (mMask != 0)
+			return idx & mMask;
+		
+		return idx >= mBuf.length ? idx - mBuf.length : idx;
+	}
 
 	/**
 	 * 获取缓冲大小
@@ -51,9 +204,32 @@ public class RingByteBuffer {
 	 * @see #isFull()
 	 */
 	public int size() {
+		if (mLockFree)
+			return capacity();
+		
+		synchronized (this) {
+			return capacity();
+		}
+	}
+	
+	/**
+	 * 缓冲容量，调用时需持有对象锁(lock-free模式下不会扩容，不需要)
+	 * 
+	 * @return 缓冲容量
+	 */
+	private int capacity() {
 		return mBuf.length - 1;
 	}
 	
+	/**
+	 * 缓冲中的数据量，mHead、mTail各只读一次，调用时需持有对象锁(lock-free模式下不需要)
+	 * 
+	 * @return 数据量
+	 */
+	private int used() {
+		return wrap(mTail - mHead + mBuf.length);
+	}
+	
 	/**
 	 * 设置readline方法使用的换行符
 	 * 
@@ -62,31 +238,89 @@ public class RingByteBuffer {
 	 * @see #readline(boolean)
 	 * @see #readline()
 	 * @see #getSeparator()
+	 * @see #setSeparators(byte[][])
 	 */
 	synchronized public void setSeparator(byte[] separator) {
-		if (separator == mSeparator)
+		if (mSeparators != null && mSeparators.length == 1 && Arrays.equals(separator, mSeparators[0]))
 			return;
 		
-		if (separator == null || separator.length == 0)
-			separator = new byte[]{'\n'};
+		setSeparators(new byte[][]{separator});
+	}
+	
+	/**
+	 * 设置readline方法使用的一组换行符，任意一个都作为行的结束
+	 * 
+	 * <p>
+	 * 所有分隔符合并为一个Aho-Corasick自动机，每个字节只查一次表，与分隔符的个数和长度无关，
+	 * 搜索进度在多次调用之间保留，不会重复搜索。
+	 * 
+	 * <p>
+	 * 行在最先出现的分隔符处结束。结束行的分隔符同时是更长的分隔符的开头时(例如 {"\r\n", "\n", "\r"} 中的"\r")，
+	 * 行立即可读，不等待后续数据。延长为更长的分隔符的数据(紧接着的"\n")在找到行时已经收到，则属于本行的分隔符；
+	 * 之后才收到时，延长的部分在取下一行时丢弃，不会多出一个空行，这部分字节不会出现在任何一行中，read()仍能取到。
+	 * 
+	 * @param separators 换行分隔符，其中的null和空数组被忽略，没有有效的分隔符时使用'\n'
+	 * 
+	 * @see #readline(boolean)
+	 * @see #readline()
+	 * @see #getSeparators()
+	 */
+	synchronized public void setSeparators(byte[][] separators) {
+		int n = 0;
 		
-		mSeparator = separator;
-		mSepKmpTab = getKmpTab(mSeparator);
+		if (separators != null) {
+			for (byte[] sep : separators) {
+				if (sep != null && sep.length > 0)
+					n++;
+			}
+		}
+		if (n == 0) {
+			separators = new byte[][]{{'\n'}};
+		} else if (n < separators.length) {
+			byte[][] valid = new byte[n][];
+			n = 0;
+			for (byte[] sep : separators) {
+				if (sep != null && sep.length > 0)
+					valid[n++] = sep;
+			}
+			separators = valid;
+		}
+		
+		if (Arrays.deepEquals(separators, mSeparators))
+			return;
+		
+		mSeparators = separators;
+		buildSepAutomaton(separators);
 		mSearchIdx = mHead;
 		mSeparatorIdx = 0;
+		mLineLen = 0;
+		mPrevSepState = 0;
+		mLineSkip = 0;
 	}
 	
 	/**
 	 * 获取readline当前使用的换行符
 	 * 
-	 * @return 存储于byte[]中的换行分隔符
+	 * @return 存储于byte[]中的换行分隔符，设置了多个时返回第一个
 	 * 
 	 * @see #readline(boolean)
 	 * @see #readline()
 	 * @see #setSeparator(byte[])
+	 * @see #getSeparators()
 	 */
 	synchronized public byte[] getSeparator() {
-		return mSeparator;
+		return mSeparators[0];
+	}
+	
+	/**
+	 * 获取readline当前使用的所有换行符
+	 * 
+	 * @return 换行分隔符
+	 * 
+	 * @see #setSeparators(byte[][])
+	 */
+	synchronized public byte[][] getSeparators() {
+		return mSeparators;
 	}
 
 	/**
@@ -114,8 +348,13 @@ public class RingByteBuffer {
 	 * @see #remain()
 	 * @see #size()
 	 */
-	synchronized public boolean isEmpty() {
-		return mHead == mTail;
+	public boolean isEmpty() {
+		if (mLockFree)
+			return mHead == mTail;
+		
+		synchronized (this) { // 扩容时mHead、mTail、mBuf一起改变，不能分开读取
+			return mHead == mTail;
+		}
 	}
 
 	/**
@@ -140,8 +379,13 @@ public class RingByteBuffer {
 	 * @see #remain()
 	 * @see #size()
 	 */
-	synchronized public boolean isFull() {
-		return (mHead - mTail + mBuf.length) % mBuf.length == 1;
+	public boolean isFull() {
+		if (mLockFree)
+			return used() == capacity();
+		
+		synchronized (this) {
+			return used() == capacity();
+		}
 	}
 
 	/**
@@ -166,8 +410,13 @@ public class RingByteBuffer {
 	 * @see #isEmpty()
 	 * @see #isFull()
 	 */
-	synchronized public int remain() {
-		return (mTail - mHead + mBuf.length) % mBuf.length;
+	public int remain() {
+		if (mLockFree)
+			return used();
+		
+		synchronized (this) {
+			return used();
+		}
 	}
 
 	/**
@@ -184,27 +433,64 @@ public class RingByteBuffer {
 	 * @see #write(byte[])
 	 * @see #clear()
 	 */
-	synchronized public byte[] read(int n) {
+	public byte[] read(int n) {
+		byte[] ret;
+		
+		if (mLockFree) {
+			ret = doRead(n);
+		} else {
+			synchronized (this) {
+				ret = doRead(n);
+			}
+		}
+		if (ret != null)
+			signalSpace();
+		
+		return ret;
+	}
+	
+	private byte[] doRead(int n) {
 		byte[] ret = null;
-		int idx;
-		int remain = remain();
+		int remain = used();
 		
 		if (n < 1 || remain < 1)
 			return null;
 
 		ret = new byte[n > remain ? remain : n];
-		for (idx = 0; idx < ret.length; ++idx) {
-			ret[idx] = mBuf[(mHead + idx) % mBuf.length];
+		copyOut(ret, 0, ret.length);
+
+		return ret;
+	}
+	
+	/**
+	 * 从缓冲头部取出数据，最多分两段拷贝(头部至数组末尾，回绕后数组开头)
+	 * 
+	 * @param dst 目标数组，为null时只丢弃数据
+	 * @param off 目标数组开始位置
+	 * @param n 取出的字节数，不能大于 {@link #remain()}
+	 */
+	private void copyOut(byte[] dst, int off, int n) {
+		int first = mBuf.length - mHead;
+		int searched = wrap(mSearchIdx - mHead + mBuf.length);
+		
+		if (dst == null) {
+			/* 只丢弃数据，不拷贝 */
+		} else if (first >= n) {
+			System.arraycopy(mBuf, mHead, dst, off, n);
+		} else {
+			System.arraycopy(mBuf, mHead, dst, off, first);
+			System.arraycopy(mBuf, 0, dst, off + first, n - first);
 		}
-		mHead = (mHead + idx) % mBuf.length;
+		mHead = wrap(mHead + n);
+		mLineLen = mLineLen > n ? mLineLen - n : 0;
+		mLineSkip = mLineSkip > n ? mLineSkip - n : 0;
 		
-		/* 重置readline()会用到的指示器 @see {@link #readline()} */
-		if (mSearchIdx < mHead || mSearchIdx > mTail) {
+		/* 已匹配的部分分隔符被取走时，重置readline()会用到的指示器 @see {@link #readline()} */
+		if (searched - mSepDepth[mSeparatorIdx] < n) {
 			mSearchIdx = mHead;
 			mSeparatorIdx = 0;
+			mPrevSepState = 0;
 		}
-
-		return ret;
 	}
 	
 	/**
@@ -219,10 +505,255 @@ public class RingByteBuffer {
 	 * @see #write(byte[])
 	 * @see #clear()
 	 */
-	synchronized public byte[] read() {
+	public byte[] read() {
 		return read(remain());
 	}
 	
+	/**
+	 * 从缓冲中读出数据到调用者提供的数组，不分配新的内存
+	 * 
+	 * @param dst 目标数组
+	 * @param off 目标数组开始位置
+	 * @param len 欲读取的最大字节数
+	 * @return 实际读取的字节数，缓冲为空时返回0
+	 * 
+	 * @see #read(int)
+	 * @see #readline(byte[], int)
+	 */
+	public int read(byte[] dst, int off, int len) {
+		int n;
+		
+		if (mLockFree) {
+			n = doRead(dst, off, len);
+		} else {
+			synchronized (this) {
+				n = doRead(dst, off, len);
+			}
+		}
+		if (n > 0)
+			signalSpace();
+		
+		return n;
+	}
+	
+	private int doRead(byte[] dst, int off, int len) {
+		int remain = used();
+		
+		if (len > remain)
+			len = remain;
+		if (len < 1)
+			return 0;
+		
+		copyOut(dst, off, len);
+		
+		return len;
+	}
+	
+	/**
+	 * 查看缓冲中的一个字节，不取出<br>
+	 * lock-free模式下只能由读线程调用
+	 * 
+	 * @param index 从缓冲头部算起的位置
+	 * @return 字节值 0 ~ 255，index超出数据范围时返回-1
+	 * 
+	 * @see #peek(int, byte[], int, int)
+	 * @see #skip(int)
+	 */
+	public int peek(int index) {
+		if (mLockFree)
+			return doPeek(index);
+		
+		synchronized (this) {
+			return doPeek(index);
+		}
+	}
+	
+	private int doPeek(int index) {
+		if (index < 0 || index >= used())
+			return -1;
+		
+		return mBuf[wrap(mHead + index)] & 0xFF;
+	}
+	
+	/**
+	 * 把缓冲中的一段数据拷贝到调用者提供的数组，不取出<br>
+	 * 用于在缓冲中直接解析数据，确认是完整的一帧后再用 {@link #skip(int)} 取走。lock-free模式下只能由读线程调用
+	 * 
+	 * @param index 从缓冲头部算起的开始位置
+	 * @param dst 目标数组
+	 * @param off 目标数组开始位置
+	 * @param len 欲拷贝的最大字节数
+	 * @return 拷贝的字节数
+	 * 
+	 * @see #peek(int)
+	 * @see #skip(int)
+	 */
+	public int peek(int index, byte[] dst, int off, int len) {
+		if (mLockFree)
+			return doPeek(index, dst, off, len);
+		
+		synchronized (this) {
+			return doPeek(index, dst, off, len);
+		}
+	}
+	
+	private int doPeek(int index, byte[] dst, int off, int len) {
+		int start, first;
+		
+		len = Math.min(len, used() - index);
+		if (index < 0 || len < 1)
+			return 0;
+		
+		start = wrap(mHead + index);
+		first = mBuf.length - start;
+		if (first >= len) {
+			System.arraycopy(mBuf, start, dst, off, len);
+		} else {
+			System.arraycopy(mBuf, start, dst, off, first);
+			System.arraycopy(mBuf, 0, dst, off + first, len - first);
+		}
+		
+		return len;
+	}
+	
+	/**
+	 * 计算缓冲中一段数据的CRC，不取出也不拷贝<br>
+	 * 数据在数组中分为两段时分段累加。用于在取出一帧之前先校验，校验失败的帧可以直接用 {@link #skip(int)} 丢弃。
+	 * lock-free模式下只能由读线程调用
+	 * 
+	 * @param crc CRC的种类
+	 * @param index 从缓冲头部算起的开始位置
+	 * @param len 数据长度，超出缓冲中的数据时只计算到缓冲尾部
+	 * @return CRC值
+	 * 
+	 * @see Crc#compute(byte[], int, int)
+	 */
+	public int checksum(Crc crc, int index, int len) {
+		if (mLockFree)
+			return doChecksum(crc, index, len);
+		
+		synchronized (this) {
+			return doChecksum(crc, index, len);
+		}
+	}
+	
+	private int doChecksum(Crc crc, int index, int len) {
+		int value = crc.start();
+		int start, first;
+		
+		len = Math.min(len, used() - index);
+		if (index < 0 || len < 1)
+			return crc.finish(value);
+		
+		start = wrap(mHead + index);
+		first = mBuf.length - start;
+		if (first >= len) {
+			value = crc.update(value, mBuf, start, len);
+		} else {
+			value = crc.update(value, mBuf, start, first);
+			value = crc.update(value, mBuf, 0, len - first);
+		}
+		
+		return crc.finish(value);
+	}
+	
+	/**
+	 * 在缓冲中搜索一个字节，不取出数据<br>
+	 * lock-free模式下只能由读线程调用
+	 * 
+	 * @param b 要搜索的字节
+	 * @param from 从缓冲头部算起的开始位置
+	 * @return 第一次出现的位置(从缓冲头部算起)，没有找到时返回-1
+	 * 
+	 * @see #indexOf(byte[], int)
+	 */
+	public int indexOf(byte b, int from) {
+		if (mLockFree)
+			return doIndexOf(b, from);
+		
+		synchronized (this) {
+			return doIndexOf(b, from);
+		}
+	}
+	
+	private int doIndexOf(byte b, int from) {
+		int n = used();
+		int first = Math.min(n, mBuf.length - mHead);
+		int i;
+		
+		/* 分两段搜索(头部至数组末尾，回绕后数组开头)，循环中不需要回绕下标 */
+		for (i = Math.max(0, from); i < first; i++) {
+			if (mBuf[mHead + i] == b)
+				return i;
+		}
+		for (; i < n; i++) {
+			if (mBuf[i - first] == b)
+				return i;
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * 在缓冲中搜索一个字节序列，不取出数据<br>
+	 * lock-free模式下只能由读线程调用
+	 * 
+	 * @param pattern 要搜索的字节序列，为空时与String.indexOf("", from)相同，返回限制在0 ~ 数据量之间的from
+	 * @param from 从缓冲头部算起的开始位置
+	 * @return 第一次出现的位置(从缓冲头部算起)，没有找到或只找到开头的一部分时返回-1
+	 * 
+	 * @see #indexOf(byte, int)
+	 */
+	public int indexOf(byte[] pattern, int from) {
+		if (mLockFree)
+			return doIndexOf(pattern, from);
+		
+		synchronized (this) {
+			return doIndexOf(pattern, from);
+		}
+	}
+	
+	private int doIndexOf(byte[] pattern, int from) {
+		int n = used() - pattern.length;
+		int i = from, j;
+		
+		if (0 == pattern.length)
+			return Math.min(Math.max(0, from), n);
+		while ((i = doIndexOf(pattern[0], i)) >= 0 && i <= n) {
+			for (j = 1; j < pattern.length; j++) {
+				if (mBuf[wrap(mHead + i + j)] != pattern[j])
+					break;
+			}
+			if (j == pattern.length)
+				return i;
+			i++;
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * 丢弃缓冲头部的数据
+	 * 
+	 * @param n 欲丢弃的字节数
+	 * @return 丢弃的字节数
+	 * 
+	 * @see #peek(int, byte[], int, int)
+	 */
+	public int skip(int n) {
+		if (mLockFree) {
+			n = doRead(null, 0, n);
+		} else {
+			synchronized (this) {
+				n = doRead(null, 0, n);
+			}
+		}
+		if (n > 0)
+			signalSpace();
+		
+		return n;
+	}
+	
 	/**
 	 * 从缓冲中读取一行数据<br>
 	 * 通过搜索指定换行分隔符区分各行。换行符不仅限于\n或\r,可以自定义换行符号。<br>
@@ -253,32 +784,27 @@ public class RingByteBuffer {
 	 * @see #clear()
 	 */
 	public byte[] readline(boolean reSearch) {
+		byte[] ret;
 		
-		if (reSearch) {
-			mSearchIdx = mHead;
-			mSeparatorIdx = 0;
-		}
-	
-		while (mSearchIdx != mTail) {
-			while (mSeparatorIdx >= 0 &&
-					mBuf[mSearchIdx] != mSeparator[mSeparatorIdx]) {
-				mSeparatorIdx = mSepKmpTab[mSeparatorIdx];
-			}
-			mSearchIdx = (mSearchIdx + 1) % mBuf.length;
-			++mSeparatorIdx;
-
-			if (mSeparatorIdx == mSeparator.length) {
-				mSeparatorIdx = mSepKmpTab[mSeparatorIdx];
-				return read((mSearchIdx - mHead + mBuf.length) % mBuf.length);
+		if (mLockFree) {
+			ret = doReadline(reSearch);
+		} else {
+			synchronized (this) {
+				ret = doReadline(reSearch);
 			}
 		}
+		if (ret != null)
+			signalSpace();
 		
-		if (isFull()) {
-			/* 缓冲是满的，但没有搜索到换行符，直接把所有数据返回 */
-			return read();
-		}
+		return ret;
+	}
+	
+	private byte[] doReadline(boolean reSearch) {
+		int n = lineLength(reSearch);
 		
-		return null;
+		if (n > 0)
+			n -= dropLineSkip();
+		return n > 0 ? doRead(n) : null;
 	}
 	
 	/**
@@ -313,6 +839,154 @@ public class RingByteBuffer {
 		return readline(false);
 	}
 	
+	/**
+	 * 从缓冲中读取一行数据到调用者提供的数组，不分配新的内存<br>
+	 * 行的划分规则与 {@link #readline()} 相同。目标数组空间不足以容纳整行时，
+	 * 先取出能容纳的部分，剩余部分在下次调用时取出。
+	 * 
+	 * @param dst 目标数组
+	 * @param off 目标数组开始位置
+	 * @return 取出的字节数，没有完整的行时返回0
+	 * @throws IllegalArgumentException 目标数组从off开始没有空间，否则返回0无法与没有完整的行区分
+	 * 
+	 * @see #readline()
+	 * @see #read(byte[], int, int)
+	 */
+	public int readline(byte[] dst, int off) {
+		int n;
+		
+		if (off < 0 || off >= dst.length)
+			throw new IllegalArgumentException("no room in dst at offset " + off);
+		if (mLockFree) {
+			n = doReadline(dst, off);
+		} else {
+			synchronized (this) {
+				n = doReadline(dst, off);
+			}
+		}
+		if (n > 0)
+			signalSpace();
+		
+		return n;
+	}
+	
+	private int doReadline(byte[] dst, int off) {
+		int n = lineLength(false);
+		
+		if (n > 0)
+			n -= dropLineSkip();
+		if (n < 1)
+			return 0;
+		
+		/* 空间不足时只取出行的前半部分，剩余部分的长度会被保留，下次调用时不必重新搜索 */
+		if (n > dst.length - off)
+			n = dst.length - off;
+		copyOut(dst, off, n);
+		
+		return n;
+	}
+	
+	/**
+	 * 搜索换行分隔符，计算缓冲头部第一行数据的长度(含分隔符)
+	 * 
+	 * @param reSearch 是否需要从头开始搜索换行符
+	 * @return 行长度，没有完整的行时返回0；缓冲已满但没有分隔符时返回缓冲中的数据量
+	 */
+	private int lineLength(boolean reSearch) {
+		if (reSearch) {
+			mSearchIdx = mHead;
+			mSeparatorIdx = 0;
+			mLineLen = 0;
+			mPrevSepState = 0;
+			mLineSkip = 0;
+		}
+		if (mLineLen > 0)
+			return mLineLen;
+	
+		int tail = mTail;
+		int idx, state;
+		
+		if (mPrevSepState == 0 || extendPrevSeparator(tail)) {
+			idx = mSearchIdx;
+			state = mSeparatorIdx;
+			while (idx != tail) {
+				state = mSepGoto[state << 8 | (mBuf[idx] & 0xFF)];
+				idx = wrap(idx + 1);
+				
+				if ((mSepFlags[state] & SEP_MATCH) != 0) {
+					mSearchIdx = idx;
+					mSeparatorIdx = 0;
+					mPrevSepState = (mSepFlags[state] & SEP_EXTENDABLE) != 0 ? state : 0;
+					if (mPrevSepState != 0) {
+						/* 已经收到的延长部分(例如"\r"之后的"\n")算作本行的分隔符，还没收到的才在下一行开头丢弃 */
+						int skip = mLineSkip;
+						extendPrevSeparator(tail);
+						mLineSkip = skip;
+					}
+					mLineLen = wrap(mSearchIdx - mHead + mBuf.length);
+					return mLineLen;
+				}
+			}
+			mSearchIdx = idx;
+			mSeparatorIdx = state;
+		}
+		
+		int n = wrap(tail - mHead + mBuf.length); // 使用搜索时的tail，不再读mTail，与搜索过的范围一致
+		if (n == capacity() && capacity() >= mMaxSize) {
+			/* 缓冲是满的且不能再扩容，但没有搜索到换行符，直接把所有数据返回 */
+			return n;
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * 上一行的分隔符还可能延长时，检查缓冲头部的数据是否把它延长为更长的分隔符，
+	 * 延长的部分计入mLineSkip，搜索从延长部分之后开始
+	 * 
+	 * @param tail 搜索的结束位置
+	 * @return true:已确定上一行分隔符的范围，可以开始搜索下一行 / false:需要等待更多的数据才能确定
+	 */
+	private boolean extendPrevSeparator(int tail) {
+		int state = mPrevSepState;
+		int idx = mSearchIdx;
+		int next;
+		
+		while (idx != tail) {
+			next = mSepGoto[state << 8 | (mBuf[idx] & 0xFF)];
+			if (mSepDepth[next] != mSepDepth[state] + 1) {
+				/* 没有继续延长，上一行的分隔符到mSearchIdx为止 */
+				mPrevSepState = 0;
+				return true;
+			}
+			idx = wrap(idx + 1);
+			state = next;
+			
+			if ((mSepFlags[state] & SEP_EXACT) != 0) {
+				mLineSkip += wrap(idx - mSearchIdx + mBuf.length);
+				mSearchIdx = idx;
+				mPrevSepState = (mSepFlags[state] & SEP_EXTENDABLE) != 0 ? state : 0;
+				if (mPrevSepState == 0)
+					return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * 丢弃缓冲头部属于上一行分隔符延长部分的字节
+	 * 
+	 * @return 丢弃的字节数
+	 */
+	private int dropLineSkip() {
+		int n = mLineSkip;
+		
+		if (n > 0)
+			copyOut(null, 0, n);
+		return n;
+	}
+	
 	/**
 	 * 向缓冲写入数据<br>
 	 * 
@@ -328,19 +1002,125 @@ public class RingByteBuffer {
 	 * @see #write(byte[])
 	 * @see #clear()
 	 */
-	synchronized public int write(byte[] buffer, int offset, int count) {
-		int idx;
+	public int write(byte[] buffer, int offset, int count) {
 		int nWrite;
 		
-		if ((nWrite = mBuf.length - 1 - remain()) > count)
+		if (mLockFree) {
+			nWrite = doWrite(buffer, offset, count);
+		} else {
+			synchronized (this) {
+				nWrite = doWrite(buffer, offset, count);
+			}
+		}
+		
+		if (nWrite > 0)
+			signalData();
+		
+		return nWrite;
+	}
+	
+	/**
+	 * 向缓冲写入数据，空间不足时丢弃最早的数据<br>
+	 * 写入的数据多于缓冲大小时，只保留最后的 {@link #size()} 字节。开启自动扩容时先扩容。
+	 * 丢弃旧数据需要移动头指示器，因此不能在lock-free模式下使用。
+	 * 
+	 * @param buffer 数据数组
+	 * @param offset 数据数组开始位置
+	 * @param count  数据数量
+	 * @return 被丢弃的字节数
+	 * @throws IllegalStateException lock-free模式下调用
+	 * 
+	 * @see #write(byte[], int, int)
+	 */
+	public int writeOverwrite(byte[] buffer, int offset, int count) {
+		int dropped = 0;
+		int free;
+		
+		if (mLockFree)
+			throw new IllegalStateException("lock-free mode can not drop the oldest data");
+		
+		synchronized (this) {
+			/* 能扩容时先扩容，达到上限后才丢弃旧数据 */
+			if (mMaxSize > 0 && capacity() - used() < count)
+				grow(count);
+			if (count > capacity()) {
+				dropped = count - capacity();
+				offset += dropped;
+				count = capacity();
+			}
+			if ((free = capacity() - used()) < count) {
+				copyOut(null, 0, count - free);
+				dropped += count - free;
+			}
+			doWrite(buffer, offset, count);
+		}
+		if (count > 0)
+			signalData();
+		
+		return dropped;
+	}
+	
+	private int doWrite(byte[] buffer, int offset, int count) {
+		int nWrite;
+		int first;
+		
+		if (mMaxSize > 0 && mBuf.length - 1 - used() < count)
+			grow(count);
+		if ((nWrite = mBuf.length - 1 - used()) > count)
 			nWrite = count;
+		if (nWrite < 1)
+			return 0;
 
-		for (idx = 0; idx < nWrite; ++idx) {
-			mBuf[(mTail + idx) % mBuf.length] = buffer[offset + idx];
+		/* 最多分两段拷贝：尾部至数组末尾，回绕后数组开头 */
+		first = mBuf.length - mTail;
+		if (first >= nWrite) {
+			System.arraycopy(buffer, offset, mBuf, mTail, nWrite);
+		} else {
+			System.arraycopy(buffer, offset, mBuf, mTail, first);
+			System.arraycopy(buffer, offset + first, mBuf, 0, nWrite - first);
 		}
-		mTail = (mTail + idx) % mBuf.length;
+		mTail = wrap(mTail + nWrite);
 
-		return idx;
+		return nWrite;
+	}
+	
+	/**
+	 * 扩大缓冲容量，容量成倍增长直到能再写入count字节或达到上限<br>
+	 * 数据被移到新数组的开头，readline的搜索进度保持不变。只在持有对象锁时调用。
+	 * 
+	 * @param count 欲写入的字节数
+	 */
+	private void grow(int count) {
+		int used = used();
+		int newSize = capacity();
+		int searched = wrap(mSearchIdx - mHead + mBuf.length);
+		int first = mBuf.length - mHead;
+		byte[] buf;
+		
+		while (newSize - used < count && newSize < mMaxSize) {
+			if (newSize > mMaxSize / 2)
+				newSize = mMaxSize;
+			else if (mMask != 0)
+				newSize = (newSize << 1) + 1;
+			else
+				newSize = Math.max(newSize << 1, 1);
+		}
+		if (newSize <= capacity())
+			return;
+		
+		buf = new byte[newSize + 1];
+		if (first >= used) {
+			System.arraycopy(mBuf, mHead, buf, 0, used);
+		} else {
+			System.arraycopy(mBuf, mHead, buf, 0, first);
+			System.arraycopy(mBuf, 0, buf, first, used - first);
+		}
+		mBuf = buf;
+		if (mMask != 0)
+			mMask = buf.length - 1;
+		mHead = 0;
+		mTail = used;
+		mSearchIdx = searched;
 	}
 
 	/**
@@ -358,38 +1138,301 @@ public class RingByteBuffer {
 	 * @see #write(byte[], int, int)
 	 * @see #clear()
 	 */
-	synchronized public int write(byte[] buffer) {
+	public int write(byte[] buffer) {
 		 return write(buffer, 0, buffer.length);
 	}
 
 	/**
-	 * 清空缓冲区
+	 * 清空缓冲区<br>
+	 * lock-free模式下只能由读线程调用
 	 * 
 	 * @see #read()
 	 * @see #read(int)
 	 * @see #readline(byte[])
 	 * @see #write(byte[])
 	 */
-	synchronized public void clear() {
-		mHead = mTail = 0;
-		mSearchIdx = mHead;
-		mSeparatorIdx = 0;
+	public void clear() {
+		synchronized (this) {
+			mHead = mTail;
+			mSearchIdx = mHead;
+			mSeparatorIdx = 0;
+			mLineLen = 0;
+			mPrevSepState = 0;
+			mLineSkip = 0;
+		}
+		signalSpace();
 	}
 	
-	private int[] getKmpTab(byte[] ptrn) {
-		int idx = 0, n = -1;
-		int[] kmpTab = new int[ptrn.length + 1];
-
-		kmpTab[idx] = n;
-		while (idx < ptrn.length) {
-			while (n >= 0 && ptrn[idx] != ptrn[n]) {
-				n = kmpTab[n];
+	/**
+	 * 等待缓冲中有数据可读<br>
+	 * 由 {@link #write(byte[], int, int)} 唤醒，不做轮询。lock-free模式下只能由读线程调用。
+	 * 
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @return 有数据可读返回true；超时、被 {@link #wakeup()} 唤醒、已 {@link #close()} 或线程被中断时返回false
+	 * 
+	 * @see #awaitLine(long)
+	 * @see #wakeup()
+	 */
+	public boolean awaitData(long timeout) {
+		return await(timeout, WAIT_DATA, 0);
+	}
+	
+	/**
+	 * 等待缓冲中的数据多于count字节<br>
+	 * 用于缓冲中已有不完整的数据(例如半帧)时等待新的数据到达。lock-free模式下只能由读线程调用。
+	 * 
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @param count 已有的字节数
+	 * @return 数据多于count字节返回true；超时、被 {@link #wakeup()} 唤醒、已 {@link #close()} 或线程被中断时返回false
+	 * 
+	 * @see #awaitData(long)
+	 * @see #wakeup()
+	 */
+	public boolean awaitData(long timeout, int count) {
+		return await(timeout, WAIT_DATA, count);
+	}
+	
+	/**
+	 * 等待缓冲中有完整的一行数据可读<br>
+	 * 行的划分规则与 {@link #readline()} 相同，搜索进度会被保留，
+	 * 之后的readline()不会重复搜索。lock-free模式下只能由读线程调用。
+	 * 
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @return 有完整的行可读返回true；超时、被 {@link #wakeup()} 唤醒、已 {@link #close()} 或线程被中断时返回false
+	 * 
+	 * @see #awaitData(long)
+	 * @see #wakeup()
+	 */
+	public boolean awaitLine(long timeout) {
+		return await(timeout, WAIT_LINE, 0);
+	}
+	
+	/**
+	 * 等待缓冲中有空间可写<br>
+	 * 由读出数据的方法唤醒，不做轮询。lock-free模式下只能由写线程调用。
+	 * 
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @return 有空间可写返回true；超时、已 {@link #close()} 或线程被中断时返回false
+	 * 
+	 * @see #awaitData(long)
+	 * @see #close()
+	 */
+	public boolean awaitSpace(long timeout) {
+		return await(timeout, WAIT_SPACE, 0);
+	}
+	
+	/**
+	 * 唤醒正在 {@link #awaitData(long)} / {@link #awaitLine(long)} 中等待的线程，使其返回false<br>
+	 * 调用时没有线程在等待，则下一次等待数据立即返回false，不会因为先于等待发生而丢失。
+	 * 用于通知读线程重新检查自己的条件(终止标志等)，不影响 {@link #awaitSpace(long)}
+	 * 
+	 * @see #close()
+	 */
+	public void wakeup() {
+		synchronized (mSignal) {
+			mWakeupPending = true;
+			mSignal.notifyAll();
+		}
+	}
+	
+	/**
+	 * 关闭：唤醒所有等待的线程，之后的等待在条件不满足时都立即返回false，直到 {@link #reopen()}<br>
+	 * 用于连接断开、流关闭等不再有数据(或空间)的情况；缓冲中已有的数据仍然可以读出
+	 * 
+	 * @see #isClosed()
+	 */
+	public void close() {
+		synchronized (mSignal) {
+			mClosed = true;
+			mSignal.notifyAll();
+		}
+	}
+	
+	/**
+	 * 取消 {@link #close()} 以及未取走的 {@link #wakeup()}，恢复等待
+	 */
+	public void reopen() {
+		synchronized (mSignal) {
+			mClosed = false;
+			mWakeupPending = false;
+		}
+	}
+	
+	/**
+	 * 是否已关闭
+	 * 
+	 * @return 已调用 {@link #close()} 且未 {@link #reopen()} 时返回true
+	 */
+	public boolean isClosed() {
+		synchronized (mSignal) {
+			return mClosed;
+		}
+	}
+	
+	/**
+	 * 数据写入后，如果有线程在等待数据则发出通知<br>
+	 * 先发布mTail再检查等待线程数，与await()中先登记再检查条件的顺序配合，不会丢失通知
+	 */
+	private void signalData() {
+		if (mDataWaiters > 0) {
+			synchronized (mSignal) {
+				mSignal.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * 数据读出后，如果有线程在等待空间则发出通知
+	 */
+	private void signalSpace() {
+		if (mSpaceWaiters > 0) {
+			synchronized (mSignal) {
+				mSignal.notifyAll();
 			}
-			idx++;
-			n++;
-			kmpTab[idx] = n;
 		}
+	}
+	
+	/**
+	 * 等待条件满足
+	 * 
+	 * @param timeout 最长等待时间，单位:毫秒。0:不等待 / &lt;0:一直等待
+	 * @param what 等待条件 WAIT_DATA / WAIT_LINE / WAIT_SPACE
+	 * @param count WAIT_DATA时已有的字节数，数据多于count字节时条件满足
+	 * @return 条件满足返回true，否则返回false
+	 */
+	private boolean await(long timeout, int what, int count) {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		long deadline = System.nanoTime() + nanos;
+		
+		while (!isReady(what, count)) {
+			if (timeout == 0 || (timeout > 0 && nanos <= 0))
+				return false;
 
-		return kmpTab;
+			synchronized (mSignal) {
+				/* 关闭和唤醒标志在mSignal内设置和检查，先于等待发生的也不会丢失 */
+				if (takeWakeup(what))
+					return false;
+				if (what == WAIT_SPACE)
+					++mSpaceWaiters;
+				else
+					++mDataWaiters;
+				try {
+					/* 登记后再检查一次，避免错过登记前读写数据时的通知 */
+					if (isReady(what, count))
+						return true;
+					
+					if (timeout < 0)
+						mSignal.wait();
+					else
+						TimeUnit.NANOSECONDS.timedWait(mSignal, nanos);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				} finally {
+					if (what == WAIT_SPACE)
+						--mSpaceWaiters;
+					else
+						--mDataWaiters;
+				}
+			}
+			
+			nanos = deadline - System.nanoTime();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * 检查关闭标志，等待数据时取走未处理的唤醒。调用时需持有mSignal
+	 * 
+	 * @param what 等待条件 WAIT_DATA / WAIT_LINE / WAIT_SPACE
+	 * @return true:应当结束等待
+	 */
+	private boolean takeWakeup(int what) {
+		if (mClosed)
+			return true;
+		if (what == WAIT_SPACE || !mWakeupPending)
+			return false;
+		mWakeupPending = false;
+		return true;
+	}
+	
+	/**
+	 * 判断等待条件是否满足
+	 * 
+	 * @param what 等待条件 WAIT_DATA / WAIT_LINE / WAIT_SPACE
+	 * @param count WAIT_DATA时已有的字节数
+	 * @return 满足返回true
+	 */
+	private boolean isReady(int what, int count) {
+		if (what == WAIT_DATA)
+			return remain() > count;
+		if (what == WAIT_SPACE)
+			return !isFull();
+		
+		if (mLockFree)
+			return lineLength(false) > 0;
+		
+		synchronized (this) {
+			return lineLength(false) > 0;
+		}
+	}
+	
+	/**
+	 * 由分隔符构造Aho-Corasick自动机：先把所有分隔符插入字典树，再按广度优先计算失配后的状态，
+	 * 补全每个状态对全部256个字节值的转移，搜索时每个字节只需查一次表
+	 * 
+	 * @param seps 分隔符，不含空数组
+	 */
+	private void buildSepAutomaton(byte[][] seps) {
+		int states = 1, total = 1, head = 0, tail = 0;
+		int s, b, next;
+		
+		for (byte[] sep : seps)
+			total += sep.length;
+		int[] go = new int[total << 8];
+		int[] depth = new int[total];
+		int[] fail = new int[total];
+		int[] queue = new int[total];
+		byte[] flags = new byte[total];
+		
+		/* 字典树，状态0为根，转移为0表示还没有子节点 */
+		for (byte[] sep : seps) {
+			s = 0;
+			for (byte c : sep) {
+				b = s << 8 | (c & 0xFF);
+				if (go[b] == 0) {
+					go[b] = states;
+					depth[states++] = depth[s] + 1;
+				}
+				s = go[b];
+			}
+			flags[s] |= SEP_MATCH | SEP_EXACT;
+		}
+		
+		/* 根的子节点失配后回到根，其它字节的转移保持为0，即留在根 */
+		for (b = 0; b < 256; b++) {
+			if (go[b] != 0)
+				queue[tail++] = go[b];
+		}
+		while (head < tail) {
+			s = queue[head++];
+			flags[s] |= flags[fail[s]] & SEP_MATCH;
+			for (b = 0; b < 256; b++) {
+				next = go[s << 8 | b];
+				if (next != 0) {
+					fail[next] = go[fail[s] << 8 | b];
+					queue[tail++] = next;
+					if ((flags[s] & SEP_EXACT) != 0)
+						flags[s] |= SEP_EXTENDABLE;
+				} else {
+					go[s << 8 | b] = go[fail[s] << 8 | b];
+				}
+			}
+		}
+		
+		mSepGoto = Arrays.copyOf(go, states << 8);
+		mSepDepth = Arrays.copyOf(depth, states);
+		mSepFlags = Arrays.copyOf(flags, states);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,239 @@
+package mobi.dzs.android.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * 流式字符解码器
+ *
+ * <p>
+ * 把分成多段到达的字节流解码为字符。每段末尾不完整的多字节字符(UTF-8、GBK等)保留下来，与下一段开头的字节拼接后再解码，
+ * 不会因为数据在多字节字符中间被截断而产生乱码。无法解码的字节替换为替换字符(U+FFFD)。
+ *
+ * <p>
+ * CharsetDecoder、输出用的CharBuffer和输入用的ByteBuffer都重复使用，解码时不分配内存(调用者每次传入同一个数组时)。
+ * 不是线程安全的，同一时间只能有一个线程调用。
+ *
+ * @author t
+ *
+ */
+public class StreamCharDecoder {
+	/** 常量:输出缓存的字符数 */
+	private static final int CHAR_BUF_SIZE = 1024;
+	/** 常量:保留不完整字符的缓存大小，大于任何字符集中一个字符的最大字节数 */
+	private static final int CARRY_SIZE = 16;
+
+	/** 当前使用的字符集名称，null为系统默认字符集 */
+	private String mCharsetName;
+	/** 解码器 */
+	private CharsetDecoder mDecoder;
+	/** 解码输出，读取前为写模式 */
+	private final CharBuffer mChars = CharBuffer.allocate(CHAR_BUF_SIZE);
+	/** 上一段末尾不完整的字符，写模式 */
+	private final ByteBuffer mCarry = ByteBuffer.allocate(CARRY_SIZE);
+	/** 包装调用者数组的输入，同一个数组时重复使用 */
+	private ByteBuffer mIn = null;
+
+	/**
+	 * 构造函数
+	 *
+	 * @param charsetName 字符集名称，为null或不支持时使用系统默认字符集
+	 */
+	public StreamCharDecoder(String charsetName) {
+		mCharsetName = charsetName;
+		mDecoder = newDecoder(charsetName);
+	}
+
+	/**
+	 * 更换字符集，与当前的不同时丢弃保留的不完整字符
+	 *
+	 * @param charsetName 字符集名称，为null或不支持时使用系统默认字符集
+	 */
+	public void setCharset(String charsetName) {
+		if (null == charsetName ? null == mCharsetName : charsetName.equals(mCharsetName))
+			return;
+		mCharsetName = charsetName;
+		mDecoder = newDecoder(charsetName);
+		mCarry.clear();
+	}
+
+	/**
+	 * 获取实际使用的字符集
+	 *
+	 * @return 字符集
+	 */
+	public Charset getCharset() {
+		return mDecoder.charset();
+	}
+
+	/**
+	 * 解码一段数据，追加到out<br>
+	 * 末尾不完整的字符不输出，保留到下一次调用
+	 *
+	 * @param buf 数据
+	 * @param off 数据开始位置
+	 * @param len 数据长度
+	 * @param out 输出，例如StringBuilder、Editable
+	 * @return 追加的字符数
+	 * @throws IOException out.append()抛出的异常
+	 */
+	public int decode(byte[] buf, int off, int len, Appendable out) throws IOException {
+		ByteBuffer in = mIn;
+
+		if (null == in || in.array() != buf)
+			mIn = in = ByteBuffer.wrap(buf);
+		in.limit(off + len).position(off);
+		return decode(in, out);
+	}
+
+	/**
+	 * 解码一段数据，追加到StringBuilder，同 {@link #decode(byte[], int, int, Appendable)}
+	 *
+	 * @param buf 数据
+	 * @param off 数据开始位置
+	 * @param len 数据长度
+	 * @param out 输出
+	 * @return 追加的字符数
+	 */
+	public int decode(byte[] buf, int off, int len, StringBuilder out) {
+		try {
+			return decode(buf, off, len, (Appendable) out);
+		} catch (IOException e) { // StringBuilder.append()不会抛出异常
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * 解码in中剩余的全部数据，追加到out<br>
+	 * 末尾不完整的字符从in中取走并保留到下一次调用，返回时in中没有剩余的数据
+	 *
+	 * @param in 数据
+	 * @param out 输出
+	 * @return 追加的字符数
+	 * @throws IOException out.append()抛出的异常
+	 */
+	public int decode(ByteBuffer in, Appendable out) throws IOException {
+		int n = 0;
+
+		// 把新数据逐字节补到上次剩下的半个字符后面，直到解出这个字符
+		while (mCarry.position() > 0 && in.hasRemaining()) {
+			mCarry.put(in.get()).flip();
+			n += decodeInto(mCarry, out, false);
+			mCarry.compact();
+			if (!mCarry.hasRemaining()) {
+				// 缓存已满仍解不出字符，不会是合法的数据
+				mCarry.clear();
+				n += emit(out, mDecoder.replacement());
+			}
+		}
+		n += decodeInto(in, out, false);
+		mCarry.put(in);
+		return n;
+	}
+
+	/**
+	 * 数据流结束：保留的不完整字符按替换字符输出，之后可以解码新的数据流
+	 *
+	 * @param out 输出
+	 * @return 追加的字符数
+	 * @throws IOException out.append()抛出的异常
+	 */
+	public int flush(Appendable out) throws IOException {
+		int n;
+
+		mCarry.flip();
+		n = decodeInto(mCarry, out, true);
+		mChars.clear();
+		mDecoder.flush(mChars);
+		n += drain(out);
+		reset();
+		return n;
+	}
+
+	/**
+	 * 丢弃保留的不完整字符，从头开始解码新的数据流
+	 */
+	public void reset() {
+		mDecoder.reset();
+		mCarry.clear();
+	}
+
+	/**
+	 * 解码in中的数据追加到out，输出缓存满时分多次输出
+	 *
+	 * @param in 数据，返回时只剩下末尾不完整的字符
+	 * @param out 输出
+	 * @param endOfInput 是否为数据流的结尾
+	 * @return 追加的字符数
+	 * @throws IOException out.append()抛出的异常
+	 */
+	private int decodeInto(ByteBuffer in, Appendable out, boolean endOfInput) throws IOException {
+		boolean overflow;
+		int n = 0;
+
+		while (true) {
+			mChars.clear();
+			// 错误的数据按替换字符处理，结果只有下溢(数据用完)和上溢(输出缓存满)两种
+			overflow = mDecoder.decode(in, mChars, endOfInput).isOverflow();
+			n += drain(out);
+			if (!overflow)
+				return n;
+		}
+	}
+
+	/**
+	 * 把输出缓存中的字符追加到out，输出缓存为写模式
+	 *
+	 * @param out 输出
+	 * @return 追加的字符数
+	 * @throws IOException out.append()抛出的异常
+	 */
+	private int drain(Appendable out) throws IOException {
+		int n = mChars.position();
+
+		if (n > 0) {
+			if (out instanceof StringBuilder) {
+				((StringBuilder) out).append(mChars.array(), 0, n);
+			} else {
+				mChars.flip(); // 作为CharSequence时从position开始
+				out.append(mChars, 0, n);
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * 把一个字符串追加到out
+	 *
+	 * @param out 输出
+	 * @param s 字符串
+	 * @return 追加的字符数
+	 * @throws IOException out.append()抛出的异常
+	 */
+	private static int emit(Appendable out, String s) throws IOException {
+		out.append(s);
+		return s.length();
+	}
+
+	/**
+	 * 创建解码器，错误的数据替换为替换字符
+	 *
+	 * @param charsetName 字符集名称
+	 * @return 解码器
+	 */
+	private static CharsetDecoder newDecoder(String charsetName) {
+		Charset cs;
+
+		try {
+			cs = null == charsetName ? Charset.defaultCharset() : Charset.forName(charsetName);
+		} catch (IllegalArgumentException e) { // 字符集名称无效或不支持时使用默认字符集
+			cs = Charset.defaultCharset();
+		}
+		return cs.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+}
@@ -0,0 +1,456 @@
+package mobi.dzs.android.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 有界的文本日志
+ *
+ * <p>
+ * 按行保存最近的文本，行数或字符总数超过上限时丢弃最早的行，内存占用不随运行时间增长。最后一行在收到换行符之前保持打开，
+ * 之后追加的文本接在它后面；超过 maxLineChars 的行折成多行，没有换行符的数据(例如HEX)也不会成为一个无限长的行。
+ * 行尾的\r与\n一起去掉。
+ *
+ * <p>
+ * 设置了归档文件时，离开日志的行(超出上限被丢弃、clear()清除、close()时仍保留的)依次写入文件，
+ * 文件中是完整的记录。调用线程只把离开的行攒成批交给后台线程，磁盘操作都在后台线程中进行。
+ * 不是线程安全的，只在一个线程(一般为UI线程)中使用。
+ *
+ * @author t
+ *
+ */
+public class TextLog {
+	/** 常量:默认保留的行数 */
+	public static final int DEFAULT_MAX_LINES = 2000;
+	/** 常量:默认的每行最大字符数 */
+	public static final int DEFAULT_MAX_LINE_CHARS = 1024;
+	/** 常量:默认保留的字符总数，行很长时先于行数达到上限 */
+	public static final long DEFAULT_MAX_CHARS = 2 * 1024 * 1024;
+	/** 常量:归档时攒够的字符数，达到后交给后台线程写入 */
+	private static final int ARCHIVE_BATCH_CHARS = 8 * 1024;
+	/** 常量:归档线程名称 */
+	private static final String ARCHIVE_THREAD_NAME = "TextLogArchive";
+
+	/** 已结束的行，环形存放 */
+	private String[] mLines;
+	/** 最早一行的下标、已结束的行数 */
+	private int mHead = 0, mCount = 0;
+	/** 正在追加的最后一行 */
+	private final StringBuilder mOpen = new StringBuilder();
+	/** 每行最大字符数 */
+	private final int mMaxLineChars;
+	/** 已结束的行保留的字符总数上限 */
+	private final long mMaxChars;
+	/** 已结束的行的字符总数 */
+	private long mChars = 0;
+	/** 归档，为null时不归档 */
+	private Archive mArchive = null;
+	/** 尚未交给归档线程的行 */
+	private final StringBuilder mArchiveBatch = new StringBuilder();
+	/** 已归档的行数 */
+	private long mArchivedLines = 0;
+
+	/**
+	 * 归档失败的监听器
+	 *
+	 * @author t
+	 * @see TextLog#openArchive(File, OnArchiveFailListener)
+	 */
+	public interface OnArchiveFailListener {
+		/**
+		 * 归档文件无法打开或写入失败，之后不再归档。在归档线程中回调，更新界面需要转到UI线程
+		 *
+		 * @param file 归档文件
+		 * @param e 失败的原因
+		 */
+		void onArchiveFail(File file, IOException e);
+	}
+
+	/**
+	 * 构造函数
+	 *
+	 * @param maxLines 保留的行数，&lt;1时按1处理
+	 * @param maxLineChars 每行最大字符数，超过时折行，&lt;1时按1处理
+	 * @param maxChars 已结束的行保留的字符总数，超过时丢弃最早的行(至少保留一行)
+	 */
+	public TextLog(int maxLines, int maxLineChars, long maxChars) {
+		mLines = new String[Math.max(1, maxLines)];
+		mMaxLineChars = Math.max(1, maxLineChars);
+		mMaxChars = maxChars;
+	}
+
+	/**
+	 * 以默认的字符总数上限 {@link #DEFAULT_MAX_CHARS} 构造
+	 *
+	 * @param maxLines 保留的行数，&lt;1时按1处理
+	 * @param maxLineChars 每行最大字符数，超过时折行，&lt;1时按1处理
+	 */
+	public TextLog(int maxLines, int maxLineChars) {
+		this(maxLines, maxLineChars, DEFAULT_MAX_CHARS);
+	}
+
+	/**
+	 * 修改保留的行数，超出新上限的最早的行被丢弃(或归档)
+	 *
+	 * @param maxLines 保留的行数，&lt;1时按1处理
+	 */
+	public void setMaxLines(int maxLines) {
+		String[] lines;
+
+		maxLines = Math.max(1, maxLines);
+		if (maxLines == mLines.length)
+			return;
+		while (mCount > maxLines)
+			evict();
+		lines = new String[maxLines];
+		for (int i = 0; i < mCount; i++)
+			lines[i] = mLines[(mHead + i) % mLines.length];
+		mLines = lines;
+		mHead = 0;
+	}
+
+	/**
+	 * 获取保留的行数
+	 *
+	 * @return 行数
+	 */
+	public int getMaxLines() {
+		return mLines.length;
+	}
+
+	/**
+	 * 追加文本，'\n'结束当前行
+	 *
+	 * @param s 文本
+	 */
+	public void append(CharSequence s) {
+		int len = s.length(), start = 0;
+
+		for (int i = 0; i < len; i++) {
+			if (s.charAt(i) == '\n') {
+				appendOpen(s, start, i);
+				closeLine();
+				start = i + 1;
+			}
+		}
+		appendOpen(s, start, len);
+	}
+
+	/**
+	 * 清除全部内容，设置了归档时先写入归档
+	 */
+	public void clear() {
+		if (null != mArchive) {
+			while (mCount > 0)
+				evict();
+			if (mOpen.length() > 0)
+				archive(mOpen);
+			submitArchive();
+		}
+		for (int i = 0; i < mCount; i++)
+			mLines[(mHead + i) % mLines.length] = null;
+		mHead = mCount = 0;
+		mChars = 0;
+		mOpen.setLength(0);
+	}
+
+	/**
+	 * 获取行数，包含尚未结束的最后一行
+	 *
+	 * @return 行数
+	 */
+	public int getLineCount() {
+		return mCount + (mOpen.length() > 0 ? 1 : 0);
+	}
+
+	/**
+	 * 获取一行
+	 *
+	 * @param index 0 ~ getLineCount()-1，0为保留的最早一行
+	 * @return 行的内容，不含换行符。最后一行尚未结束时，返回的内容会随之后的append()变化
+	 */
+	public CharSequence getLine(int index) {
+		return index < mCount ? mLines[(mHead + index) % mLines.length] : mOpen;
+	}
+
+	/**
+	 * 获取保留的字符数，不含换行符
+	 *
+	 * @return 字符数
+	 */
+	public long length() {
+		return mChars + mOpen.length();
+	}
+
+	/**
+	 * 获取保留的全部内容
+	 *
+	 * @return 各行以'\n'连接
+	 */
+	public String getText() {
+		StringBuilder sb = new StringBuilder((int) Math.min(Integer.MAX_VALUE / 2, length() + mCount));
+
+		for (int i = 0; i < mCount; i++)
+			sb.append(mLines[(mHead + i) % mLines.length]).append('\n');
+		sb.append(mOpen);
+		return sb.toString();
+	}
+
+	/**
+	 * 设置归档文件，之后离开日志的行追加到文件末尾(UTF-8)<br>
+	 * 创建目录和打开文件都在归档线程中进行，不等待；无法打开或之后写入失败时通过listener通知
+	 *
+	 * @param file 归档文件，所在目录不存在时创建
+	 * @param listener 归档失败的监听器，可以为null
+	 */
+	public void openArchive(File file, OnArchiveFailListener listener) {
+		closeArchive();
+		mArchive = new Archive(file, listener);
+	}
+
+	/**
+	 * 是否正在归档
+	 *
+	 * @return true:正在归档 / false:未设置归档文件，或打开、写入失败后已停止
+	 */
+	public boolean isArchiving() {
+		return null != mArchive && !mArchive.mFailed;
+	}
+
+	/**
+	 * 获取已归档的行数
+	 *
+	 * @return 行数
+	 */
+	public long getArchivedLines() {
+		return mArchivedLines;
+	}
+
+	/**
+	 * 把攒下的归档数据交给后台线程写入文件，不等待写入完成
+	 */
+	public void flushArchive() {
+		if (null == mArchive)
+			return;
+		submitArchive();
+		mArchive.flush();
+	}
+
+	/**
+	 * 关闭归档文件，不归档仍保留的行<br>
+	 * 攒下的归档数据由后台线程写完后关闭文件，不等待
+	 */
+	public void closeArchive() {
+		if (null == mArchive)
+			return;
+		submitArchive();
+		mArchive.close();
+		mArchive = null;
+	}
+
+	/**
+	 * 结束使用：设置了归档时把仍保留的行写入归档后关闭文件
+	 */
+	public void close() {
+		clear();
+		closeArchive();
+	}
+
+	/**
+	 * 把文本接到最后一行，超过每行最大字符数时折行
+	 *
+	 * @param s 文本
+	 * @param start 开始位置
+	 * @param end 结束位置
+	 */
+	private void appendOpen(CharSequence s, int start, int end) {
+		int n;
+
+		while (end - start > (n = mMaxLineChars - mOpen.length())) {
+			mOpen.append(s, start, start + n);
+			start += n;
+			closeLine();
+		}
+		mOpen.append(s, start, end);
+	}
+
+	/**
+	 * 结束最后一行，行数已达上限时先丢弃最早的一行
+	 */
+	private void closeLine() {
+		int len = mOpen.length();
+		String line;
+
+		if (len > 0 && mOpen.charAt(len - 1) == '\r')
+			len--;
+		line = mOpen.substring(0, len);
+		mOpen.setLength(0);
+
+		if (mCount == mLines.length)
+			evict();
+		mLines[(mHead + mCount) % mLines.length] = line;
+		mCount++;
+		mChars += line.length();
+		while (mChars > mMaxChars && mCount > 1)
+			evict();
+	}
+
+	/**
+	 * 丢弃最早的一行，设置了归档时写入归档
+	 */
+	private void evict() {
+		String line = mLines[mHead];
+
+		archive(line);
+		mLines[mHead] = null;
+		mHead = (mHead + 1) % mLines.length;
+		mCount--;
+		mChars -= line.length();
+	}
+
+	/**
+	 * 归档一行，攒够ARCHIVE_BATCH_CHARS后交给后台线程。未设置归档时不做任何事，写入已失败时停止归档
+	 *
+	 * @param line 行的内容
+	 */
+	private void archive(CharSequence line) {
+		if (null == mArchive)
+			return;
+		if (mArchive.mFailed) {
+			closeArchive();
+			return;
+		}
+		mArchiveBatch.append(line).append('\n');
+		mArchivedLines++;
+		if (mArchiveBatch.length() >= ARCHIVE_BATCH_CHARS)
+			submitArchive();
+	}
+
+	/**
+	 * 把攒下的行交给归档线程
+	 */
+	private void submitArchive() {
+		if (mArchiveBatch.length() == 0)
+			return;
+		if (null != mArchive)
+			mArchive.write(mArchiveBatch.toString());
+		mArchiveBatch.setLength(0);
+	}
+
+	/**
+	 * 归档文件，打开和所有写入都在一个后台线程中按提交的顺序进行
+	 */
+	private static class Archive {
+		/** 归档文件 */
+		private final File mFile;
+		/** 失败的监听器，可以为null */
+		private final OnArchiveFailListener mListener;
+		/** 文件输出，只在后台线程中使用，打开失败时为null */
+		private Writer mOut = null;
+		/** 后台线程 */
+		private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, ARCHIVE_THREAD_NAME);
+			}
+		});
+		/** 写入失败，之后的数据不再写入 */
+		volatile boolean mFailed = false;
+
+		Archive(File file, OnArchiveFailListener listener) {
+			mFile = file;
+			mListener = listener;
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					File dir = mFile.getAbsoluteFile().getParentFile();
+
+					try {
+						if (null != dir && !dir.isDirectory() && !dir.mkdirs())
+							throw new IOException("cannot create " + dir);
+						mOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mFile, true), "UTF-8"));
+					} catch (IOException e) {
+						fail(e);
+					}
+				}
+			});
+		}
+
+		/**
+		 * 记录失败并通知监听器，只通知一次。在后台线程中调用
+		 *
+		 * @param e 失败的原因
+		 */
+		private void fail(IOException e) {
+			if (mFailed)
+				return;
+			mFailed = true;
+			if (null != mListener)
+				mListener.onArchiveFail(mFile, e);
+		}
+
+		/**
+		 * 提交一批文本
+		 *
+		 * @param text 文本
+		 */
+		void write(final String text) {
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (mFailed)
+						return;
+					try {
+						mOut.write(text);
+					} catch (IOException e) {
+						fail(e);
+					}
+				}
+			});
+		}
+
+		/**
+		 * 提交写入文件的请求
+		 */
+		void flush() {
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (mFailed)
+						return;
+					try {
+						mOut.flush();
+					} catch (IOException e) {
+						fail(e);
+					}
+				}
+			});
+		}
+
+		/**
+		 * 提交关闭文件的请求，之后后台线程结束
+		 */
+		void close() {
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (null == mOut)
+						return; // 没有打开
+					try {
+						mOut.close();
+					} catch (IOException e) {
+						// 关闭失败时缓冲中的数据丢失，不影响日志本身
+					}
+				}
+			});
+			mExecutor.shutdown();
+		}
+	}
+}
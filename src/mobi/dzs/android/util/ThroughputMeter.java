@@ -0,0 +1,193 @@
+package mobi.dzs.android.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 吞吐量统计
+ *
+ * <p>
+ * 记录累计的字节数、帧数(每次record()计为一帧)，并按秒分槽保存最近 {@link #MAX_WINDOW} 秒的数据，
+ * 用于计算滑动窗口内的平均速率和每秒速率的峰值。只统计已经结束的整秒，当前这一秒不计入速率。
+ *
+ * <p>
+ * record()只允许一个线程调用(或由调用者保证互斥)，其余方法可以在任意线程中调用，不加锁。
+ *
+ * @author t
+ *
+ */
+public class ThroughputMeter {
+	/** 常量:滑动窗口的最大长度，单位:秒 */
+	public static final int MAX_WINDOW = 60;
+	/** 常量:槽的个数，比窗口多一个给正在统计的当前秒 */
+	private static final int SLOTS = MAX_WINDOW + 1;
+	/** 常量:一秒的纳秒数 */
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	/** 累计字节数 */
+	private final AtomicLong mTotalBytes = new AtomicLong();
+	/** 累计帧数 */
+	private final AtomicLong mTotalFrames = new AtomicLong();
+	/** 每个槽中的字节数、帧数 */
+	private final AtomicLongArray mSlotBytes = new AtomicLongArray(SLOTS);
+	private final AtomicLongArray mSlotFrames = new AtomicLongArray(SLOTS);
+	/** 每个槽对应的秒(从开始统计时算起)，-1表示空槽 */
+	private final AtomicLongArray mSlotSecond = new AtomicLongArray(SLOTS);
+	/** 开始统计的时间(System.nanoTime()) */
+	private final long mStartNanos;
+	/** 最近一次record()所在的秒，只由写线程修改 */
+	private volatile long mCurSecond = -1;
+	/** 已结束的秒中，每秒字节数、帧数的峰值，只由写线程修改 */
+	private volatile long mPeakBytes = 0, mPeakFrames = 0;
+
+	/**
+	 * 构造函数，从现在开始统计
+	 */
+	public ThroughputMeter() {
+		mStartNanos = System.nanoTime();
+		for (int i = 0; i < SLOTS; i++)
+			mSlotSecond.set(i, -1);
+	}
+
+	/**
+	 * 记录一帧数据
+	 *
+	 * @param bytes 这一帧的字节数
+	 */
+	public void record(long bytes) {
+		long sec = now();
+		int i = (int) (sec % SLOTS);
+
+		if (sec != mCurSecond) {
+			finishSecond();
+			// 槽中是MAX_WINDOW秒以前的数据，先清零再标记为当前秒
+			mSlotBytes.set(i, 0);
+			mSlotFrames.set(i, 0);
+			mSlotSecond.set(i, sec);
+			mCurSecond = sec;
+		}
+		mSlotBytes.lazySet(i, mSlotBytes.get(i) + bytes);
+		mSlotFrames.lazySet(i, mSlotFrames.get(i) + 1);
+		mTotalBytes.addAndGet(bytes);
+		mTotalFrames.incrementAndGet();
+	}
+
+	/**
+	 * 获取累计字节数
+	 *
+	 * @return 字节数
+	 */
+	public long getTotalBytes() {
+		return mTotalBytes.get();
+	}
+
+	/**
+	 * 获取累计帧数
+	 *
+	 * @return 帧数
+	 */
+	public long getTotalFrames() {
+		return mTotalFrames.get();
+	}
+
+	/**
+	 * 获取最近seconds秒内的平均速率
+	 *
+	 * @param seconds 窗口长度，1 ~ {@link #MAX_WINDOW}
+	 * @return 字节/秒
+	 */
+	public long getByteRate(int seconds) {
+		return average(mSlotBytes, seconds);
+	}
+
+	/**
+	 * 获取最近seconds秒内的平均帧率
+	 *
+	 * @param seconds 窗口长度，1 ~ {@link #MAX_WINDOW}
+	 * @return 帧/秒
+	 */
+	public long getFrameRate(int seconds) {
+		return average(mSlotFrames, seconds);
+	}
+
+	/**
+	 * 获取每秒字节数的峰值
+	 *
+	 * @return 字节/秒
+	 */
+	public long getPeakByteRate() {
+		return Math.max(mPeakBytes, lastFinished(mSlotBytes));
+	}
+
+	/**
+	 * 获取每秒帧数的峰值
+	 *
+	 * @return 帧/秒
+	 */
+	public long getPeakFrameRate() {
+		return Math.max(mPeakFrames, lastFinished(mSlotFrames));
+	}
+
+	/**
+	 * 写线程进入新的一秒时，把上一次记录的那一秒计入峰值
+	 */
+	private void finishSecond() {
+		long sec = mCurSecond;
+		int i;
+
+		if (sec < 0)
+			return;
+		i = (int) (sec % SLOTS);
+		if (mSlotBytes.get(i) > mPeakBytes)
+			mPeakBytes = mSlotBytes.get(i);
+		if (mSlotFrames.get(i) > mPeakFrames)
+			mPeakFrames = mSlotFrames.get(i);
+	}
+
+	/**
+	 * 最近一次记录的那一秒如果已经结束，返回其中的数据量<br>
+	 * 写线程之后没有再调用record()时，这一秒还没有计入峰值
+	 *
+	 * @param slots 字节数或帧数的槽
+	 * @return 数据量，这一秒还没结束时返回0
+	 */
+	private long lastFinished(AtomicLongArray slots) {
+		long sec = mCurSecond;
+
+		if (sec < 0 || sec >= now())
+			return 0;
+		return slots.get((int) (sec % SLOTS));
+	}
+
+	/**
+	 * 计算最近seconds个整秒的平均值，统计时间不足seconds秒时按实际的秒数平均
+	 *
+	 * @param slots 字节数或帧数的槽
+	 * @param seconds 窗口长度
+	 * @return 平均每秒的数量
+	 */
+	private long average(AtomicLongArray slots, int seconds) {
+		long sec = now(), sum = 0, s;
+		int i;
+
+		seconds = Math.max(1, Math.min(MAX_WINDOW, seconds));
+		if (sec < 1)
+			return 0;
+		seconds = (int) Math.min(seconds, sec);
+		for (s = sec - seconds; s < sec; s++) {
+			i = (int) (s % SLOTS);
+			if (mSlotSecond.get(i) == s)
+				sum += slots.get(i);
+		}
+		return sum / seconds;
+	}
+
+	/**
+	 * 从开始统计到现在的秒数
+	 *
+	 * @return 秒
+	 */
+	private long now() {
+		return (System.nanoTime() - mStartNanos) / NANOS_PER_SECOND;
+	}
+}
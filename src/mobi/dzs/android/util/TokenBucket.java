@@ -0,0 +1,126 @@
+package mobi.dzs.android.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 令牌桶限速器
+ *
+ * <p>
+ * 令牌以固定速率(rate 个/秒)补充，桶中最多存放 capacity 个令牌，即最多允许连续突发 capacity 个单位。
+ * 令牌在取用时按经过的时间补充，不需要定时线程。取用的数量超过桶中剩余的令牌时，
+ * 差额记为欠账，调用者等待欠账被补足后再继续，因此长时间的平均速率不会超过 rate。
+ *
+ * <p>
+ * 所有方法都是同步的，可以在多个线程中共用同一个令牌桶。
+ *
+ * @author t
+ *
+ */
+public class TokenBucket {
+	/** 常量:一秒的纳秒数 */
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	/** 每秒补充的令牌数 */
+	private final long mRate;
+	/** 桶的容量 */
+	private final long mCapacity;
+	/** 桶中的令牌，以补充这些令牌所需的时间(ns)表示，负数为欠账 */
+	private long mCredit;
+	/** 上次补充令牌的时间(System.nanoTime()) */
+	private long mLastRefill;
+
+	/**
+	 * 构造函数，桶初始为满
+	 *
+	 * @param rate 每秒补充的令牌数，必须大于0
+	 * @param capacity 桶的容量，&lt;1时按1处理
+	 */
+	public TokenBucket(long rate, long capacity) {
+		if (rate < 1)
+			throw new IllegalArgumentException("rate must be positive: " + rate);
+		mRate = rate;
+		mCapacity = Math.max(1, capacity);
+		mCredit = toNanos(mCapacity);
+		mLastRefill = System.nanoTime();
+	}
+
+	/**
+	 * 获取每秒补充的令牌数
+	 *
+	 * @return 每秒的令牌数
+	 */
+	public long getRate() {
+		return mRate;
+	}
+
+	/**
+	 * 获取桶的容量
+	 *
+	 * @return 容量
+	 */
+	public long getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * 取用n个令牌，令牌不足时等待
+	 *
+	 * @param n 令牌数
+	 * @throws InterruptedException 等待时被中断，已取用的令牌不退回
+	 * @see #reserve(int)
+	 */
+	public void acquire(int n) throws InterruptedException {
+		long wait = reserve(n);
+
+		if (wait > 0)
+			TimeUnit.NANOSECONDS.sleep(wait);
+	}
+
+	/**
+	 * 立即取用n个令牌，并返回需要等待的时间<br>
+	 * 调用者等待返回的时间后再执行受限的操作
+	 *
+	 * @param n 令牌数
+	 * @return 需要等待的时间，单位:纳秒。0:令牌足够，不需要等待
+	 */
+	synchronized public long reserve(int n) {
+		refill();
+		mCredit -= toNanos(n);
+		return mCredit < 0 ? -mCredit : 0;
+	}
+
+	/**
+	 * 令牌足够时取用n个令牌，不足时不取用
+	 *
+	 * @param n 令牌数
+	 * @return 取用成功返回true
+	 */
+	synchronized public boolean tryAcquire(int n) {
+		long cost = toNanos(n);
+
+		refill();
+		if (mCredit < cost)
+			return false;
+		mCredit -= cost;
+		return true;
+	}
+
+	/**
+	 * 按经过的时间补充令牌，不超过桶的容量
+	 */
+	private void refill() {
+		long now = System.nanoTime();
+
+		mCredit = Math.min(toNanos(mCapacity), mCredit + (now - mLastRefill));
+		mLastRefill = now;
+	}
+
+	/**
+	 * 补充n个令牌所需的时间
+	 *
+	 * @param n 令牌数
+	 * @return 时间，单位:纳秒
+	 */
+	private long toNanos(long n) {
+		return n * NANOS_PER_SECOND / mRate;
+	}
+}